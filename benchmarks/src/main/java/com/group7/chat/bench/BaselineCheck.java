@@ -0,0 +1,213 @@
+package com.group7.chat.bench;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 把JMH的JSON结果与基线比较，超过阈值的退化会列出并以状态码1退出；
+ * 结果或基线文件缺失、为空时以状态码2退出，不会当作"没有退化"
+ *
+ * 用法: BaselineCheck <结果.json> <基线.json> [阈值百分比，默认10]
+ *       BaselineCheck --update <结果.json> <基线.json>   用本次结果替换基线
+ *
+ * 结果是JMH原样输出的JSON数组；基线只保存比较需要的字段和运行环境摘要:
+ * {"environment": {...}, "results": [{"benchmark", "mode", "params", "score", "scoreError"}]}，
+ * 不含原始样本和本机路径。两种格式都可以作为任一参数读入。
+ */
+public class BaselineCheck {
+
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10.0;
+
+    /**
+     * 一项测试结果，thrpt模式分数越高越好，其余模式越低越好
+     */
+    private static class Score {
+        final String benchmark;
+        final String mode;
+        final JsonObject params;
+        final double score;
+        final double error;
+        final String unit; // 基线中不保存，为空串
+
+        Score(String benchmark, String mode, JsonObject params, double score, double error, String unit) {
+            this.benchmark = benchmark;
+            this.mode = mode;
+            this.params = params;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && "--update".equals(args[0])) {
+            if (!writeBaseline(Paths.get(args[1]), Paths.get(args[2]))) {
+                System.out.println("结果文件缺失或没有测试结果: " + args[1]);
+                System.exit(2);
+            }
+            System.out.println("基线已更新: " + args[2]);
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("用法: BaselineCheck <结果.json> <基线.json> [阈值百分比]");
+            System.out.println("      BaselineCheck --update <结果.json> <基线.json>");
+            System.exit(2);
+        }
+
+        Map<String, Score> current = load(Paths.get(args[0]));
+        Map<String, Score> baseline = load(Paths.get(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+
+        if (current.isEmpty()) {
+            System.out.println("结果文件缺失或没有测试结果: " + args[0]);
+            System.exit(2);
+        }
+        if (baseline.isEmpty()) {
+            System.out.println("基线文件缺失或为空: " + args[1] + "，请先在参考机器上运行测试并用 --update 记录基线");
+            System.exit(2);
+        }
+
+        int regressions = 0;
+        int compared = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "测试", "基线", "本次", "变化");
+        for (Map.Entry<String, Score> entry : new TreeMap<>(current).entrySet()) {
+            Score now = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.3f %9s%n", entry.getKey(), "-", now.score, "新增");
+                continue;
+            }
+            compared++;
+            double change = (now.score - before.score) / before.score * 100;
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean regressed = worse > threshold
+                    && Math.abs(now.score - before.score) > now.error + before.error;
+            if (regressed) regressions++;
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%s %s%n", entry.getKey(), before.score, now.score,
+                    change, regressed ? " 退化" : "", now.unit);
+        }
+
+        if (compared == 0) {
+            System.out.println("本次结果与基线没有相同的测试，无法比较");
+            System.exit(2);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " 项测试退化超过 " + threshold + "%");
+            System.exit(1);
+        }
+        System.out.println("没有超过 " + threshold + "% 的退化");
+    }
+
+    /**
+     * 读取JMH结果或精简的基线，文件缺失或格式不对时返回空表
+     */
+    private static Map<String, Score> load(Path file) throws Exception {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        JsonElement root = readJson(file);
+        JsonArray results;
+        if (root != null && root.isJsonArray()) {
+            results = root.getAsJsonArray();
+        } else if (root != null && root.isJsonObject() && root.getAsJsonObject().has("results")) {
+            results = root.getAsJsonObject().getAsJsonArray("results");
+        } else {
+            return scores;
+        }
+        for (JsonElement element : results) {
+            JsonObject result = element.getAsJsonObject();
+            // JMH原样输出的分数在 primaryMetric 中，精简的基线直接放在结果上
+            JsonObject metric = result.has("primaryMetric") ? result.getAsJsonObject("primaryMetric") : result;
+            JsonElement scoreError = metric.get("scoreError");
+            double error = scoreError != null && scoreError.isJsonPrimitive()
+                    && scoreError.getAsJsonPrimitive().isNumber() ? scoreError.getAsDouble() : 0;
+            String unit = metric.has("scoreUnit") ? metric.get("scoreUnit").getAsString() : "";
+            scores.put(key(result), new Score(result.get("benchmark").getAsString(), result.get("mode").getAsString(),
+                    result.has("params") ? result.getAsJsonObject("params") : null,
+                    metric.get("score").getAsDouble(), error, unit));
+        }
+        return scores;
+    }
+
+    private static JsonElement readJson(Path file) throws Exception {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return JsonParser.parseReader(reader);
+        }
+    }
+
+    /**
+     * 把JMH结果写成精简的基线，运行环境取自结果中的JVM信息和当前机器，结果为空时返回false
+     */
+    private static boolean writeBaseline(Path resultsFile, Path baselineFile) throws Exception {
+        Map<String, Score> scores = load(resultsFile);
+        if (scores.isEmpty()) {
+            return false;
+        }
+        JsonObject environment = new JsonObject();
+        JsonElement root = readJson(resultsFile);
+        if (root.isJsonArray()) {
+            JsonObject first = root.getAsJsonArray().get(0).getAsJsonObject();
+            for (String field : new String[] {"jmhVersion", "jdkVersion", "vmName", "vmVersion", "jvmArgs", "forks",
+                    "warmupIterations", "warmupTime", "measurementIterations", "measurementTime"}) {
+                if (first.has(field)) environment.add(field, first.get(field));
+            }
+        } else if (root.getAsJsonObject().has("environment")) {
+            environment = root.getAsJsonObject().getAsJsonObject("environment");
+        }
+        if (!environment.has("availableProcessors")) {
+            environment.addProperty("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+            environment.addProperty("availableProcessors", Runtime.getRuntime().availableProcessors());
+            environment.addProperty("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+
+        JsonArray results = new JsonArray();
+        for (Score score : scores.values()) {
+            JsonObject result = new JsonObject();
+            result.addProperty("benchmark", score.benchmark);
+            result.addProperty("mode", score.mode);
+            if (score.params != null) result.add("params", score.params);
+            result.addProperty("score", score.score);
+            result.addProperty("scoreError", score.error);
+            results.add(result);
+        }
+        JsonObject baseline = new JsonObject();
+        baseline.add("environment", environment);
+        baseline.add("results", results);
+        try (Writer writer = Files.newBufferedWriter(baselineFile, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(baseline, writer);
+        }
+        return true;
+    }
+
+    /**
+     * 测试名 + 模式 + 参数，如 MessageCodecBenchmark.serialize[avgt,contentLength=256]
+     */
+    private static String key(JsonObject result) {
+        String benchmark = result.get("benchmark").getAsString();
+        String shortName = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        StringBuilder key = new StringBuilder(shortName).append('[').append(result.get("mode").getAsString());
+        if (result.has("params")) {
+            for (Map.Entry<String, JsonElement> param : new TreeMap<>(result.getAsJsonObject("params").asMap()).entrySet()) {
+                key.append(',').append(param.getKey()).append('=').append(param.getValue().getAsString());
+            }
+        }
+        return key.append(']').toString();
+    }
+}
@@ -0,0 +1,39 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.Node;
+import com.group7.chat.logging.Level;
+import com.group7.chat.logging.Logger;
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 各性能测试共用的辅助方法
+ */
+final class BenchmarkSupport {
+
+    static final int ID_BITS = 256;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 生成随机的256位十六进制节点ID
+     */
+    static String randomHexId() {
+        return randomId().toString(16);
+    }
+
+    static BigInteger randomId() {
+        byte[] bytes = new byte[ID_BITS / 8];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * 创建不监听端口的节点，测量期间关闭日志输出
+     */
+    static Node createNode() {
+        Logger.setLevel(Level.OFF);
+        return new Node(0);
+    }
+}
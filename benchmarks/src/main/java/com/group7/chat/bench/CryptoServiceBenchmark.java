@@ -0,0 +1,69 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.security.CryptoService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CryptoService 的对称加密、HMAC 和哈希操作（RSA 见 RsaBenchmark）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoServiceBenchmark {
+
+    // 不测小于32字节的负载：CryptoService 对短数据使用计数器IV，走的是另一条路径
+    @Param({"64", "1024", "65536"})
+    public int payloadSize;
+
+    private CryptoService cryptoService;
+    private SecretKey aesKey;
+    private byte[] payload;
+    private CryptoService.EncryptionResult aesCiphertext;
+    private byte[] hmac;
+
+    @Setup
+    public void setup() throws Exception {
+        cryptoService = new CryptoService();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        aesKey = keyGenerator.generateKey();
+
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+
+        aesCiphertext = cryptoService.encryptWithAES(payload, aesKey);
+        hmac = cryptoService.createHMAC(payload, aesKey);
+    }
+
+    @Benchmark
+    public CryptoService.EncryptionResult aesGcmEncrypt() throws Exception {
+        return cryptoService.encryptWithAES(payload, aesKey);
+    }
+
+    @Benchmark
+    public byte[] aesGcmDecrypt() throws Exception {
+        return cryptoService.decryptWithAESToBytes(aesCiphertext, aesKey);
+    }
+
+    @Benchmark
+    public byte[] hmacCreate() throws Exception {
+        return cryptoService.createHMAC(payload, aesKey);
+    }
+
+    @Benchmark
+    public boolean hmacVerify() throws Exception {
+        return cryptoService.verifyHMAC(payload, hmac, aesKey);
+    }
+
+    @Benchmark
+    public byte[] sha256() throws Exception {
+        return cryptoService.hash(payload);
+    }
+}
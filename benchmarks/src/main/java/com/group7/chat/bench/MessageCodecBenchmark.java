@@ -0,0 +1,58 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.Message;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 消息编解码：文本格式 serialize/deserialize 与二进制格式 toBytes/fromBytes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageCodecBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int contentLength;
+
+    private Message message;
+    private String serialized;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        StringBuilder content = new StringBuilder(contentLength);
+        for (int i = 0; i < contentLength; i++) {
+            content.append(i % 7 == 0 ? '聊' : (char) ('a' + i % 26));
+        }
+        String senderId = BenchmarkSupport.randomHexId();
+        String targetId = BenchmarkSupport.randomHexId();
+        message = new Message(Message.Type.PRIVATE_CHAT, senderId, content.toString(), targetId);
+        serialized = message.serialize();
+        binary = message.toBytes();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return message.serialize();
+    }
+
+    @Benchmark
+    public Message deserialize() {
+        return Message.deserialize(serialized);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public Message fromBytes() {
+        return Message.fromBytes(ByteBuffer.wrap(binary));
+    }
+}
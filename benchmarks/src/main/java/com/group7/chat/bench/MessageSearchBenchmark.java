@@ -0,0 +1,86 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.store.MessageStore;
+import com.group7.chat.store.StoredMessage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MessageStore.search 在百万级聊天记录上的查询耗时
+ *
+ * 记录由中英文常用词随机组成：单个常用词、两个词的组合、中文短语，以及只出现一次的词。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageSearchBenchmark {
+
+    private static final String[] ENGLISH = {"hello", "world", "meeting", "tomorrow", "file", "transfer",
+            "network", "peer", "latency", "coffee", "lunch", "deploy", "bug", "fix", "release"};
+    private static final String[] CHINESE = {"你好", "世界", "明天", "开会", "文件", "传输",
+            "网络", "节点", "延迟", "咖啡", "午饭", "部署", "问题", "修复", "发布"};
+    private static final int LIMIT = 50;
+
+    @Param({"1000000"})
+    public int messages;
+
+    private Path dir;
+    private MessageStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("search-bench");
+        store = new MessageStore(dir);
+        Random random = new Random(42);
+        for (int i = 0; i < messages; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < 6; w++) {
+                if (random.nextBoolean()) {
+                    content.append(ENGLISH[random.nextInt(ENGLISH.length)]).append(' ');
+                } else {
+                    content.append(CHINESE[random.nextInt(CHINESE.length)]);
+                }
+            }
+            if (i == messages / 3) content.append(" needle 独一无二");
+            store.append(MessageStore.GROUP_CONVERSATION, "node" + (i % 50), content.toString(), false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<StoredMessage> commonWord() {
+        return store.search("hello", LIMIT);
+    }
+
+    @Benchmark
+    public List<StoredMessage> twoWords() {
+        return store.search("coffee 部署", LIMIT);
+    }
+
+    @Benchmark
+    public List<StoredMessage> chinesePhrase() {
+        return store.search("明天开会", LIMIT);
+    }
+
+    @Benchmark
+    public List<StoredMessage> rareWord() {
+        return store.search("needle", LIMIT);
+    }
+}
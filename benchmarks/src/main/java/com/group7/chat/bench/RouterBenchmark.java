@@ -0,0 +1,82 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.Message;
+import com.group7.chat.MessageRouter;
+import com.group7.chat.Node;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MessageRouter.handleMessage 的分发和去重开销
+ *
+ * 去重缓存随处理的消息增长，因此新消息的测试采用单次计时：每轮迭代前重建路由器并预填充
+ * dedupSize 条消息ID，然后计时处理一批新消息，结果是在该缓存规模下每批的耗时。
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1000", "10000"})
+    public int dedupSize;
+
+    private Node node;
+    private MessageRouter router;
+    private String senderId;
+    private Message duplicate;
+    private Message[] fresh;
+
+    @Setup(Level.Trial)
+    public void setupNode() {
+        node = BenchmarkSupport.createNode();
+        senderId = BenchmarkSupport.randomHexId();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupRouter() {
+        router = new MessageRouter(node);
+        for (int i = 0; i < dedupSize; i++) {
+            router.handleMessage(null, new Message(Message.Type.PONG, senderId, "pong"));
+        }
+        duplicate = new Message(Message.Type.PONG, senderId, "pong");
+        router.handleMessage(null, duplicate);
+
+        // 新消息提前构造，不计入测量
+        fresh = new Message[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            fresh[i] = new Message(Message.Type.CHAT, senderId, "hello " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        node.stop();
+    }
+
+    /**
+     * 重复消息：只经过去重检查就返回
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void dispatchDuplicate() {
+        router.handleMessage(null, duplicate);
+    }
+
+    /**
+     * 新的群聊消息：去重登记、类型分发、无连接时的转发
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void dispatchFreshBatch() {
+        for (Message message : fresh) {
+            router.handleMessage(null, message);
+        }
+    }
+}
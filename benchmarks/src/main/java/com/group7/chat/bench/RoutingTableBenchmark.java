@@ -0,0 +1,69 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.Node;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Node.findClosestNodes 在不同路由表规模下的查找耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingTableBenchmark {
+
+    private static final int TARGETS = 1024;
+
+    @Param({"20", "200", "1000"})
+    public int tableSize;
+
+    private Node node;
+    private BigInteger[] targets;
+    private int next;
+
+    @Setup
+    public void setup() {
+        node = BenchmarkSupport.createNode();
+        fillRoutingTable();
+        targets = new BigInteger[TARGETS];
+        for (int i = 0; i < TARGETS; i++) {
+            targets[i] = BenchmarkSupport.randomId();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        node.stop();
+    }
+
+    @Benchmark
+    public List<Node.NodeInfo> findClosestNodes() {
+        BigInteger target = targets[next++ & (TARGETS - 1)];
+        return node.findClosestNodes(target, Node.K_VALUE);
+    }
+
+    /**
+     * 按桶逐个生成节点，每个桶最多放K个，避免桶满时触发PING
+     */
+    private void fillRoutingTable() {
+        BigInteger self = node.getNodeId();
+        int added = 0;
+        for (int bucket = 0; bucket < BenchmarkSupport.ID_BITS && added < tableSize; bucket++) {
+            int distanceBits = BenchmarkSupport.ID_BITS - bucket;
+            // 距离为 distanceBits 位的节点最多有 2^(distanceBits-1) 个
+            int capacity = distanceBits > 5 ? Node.K_VALUE : Math.min(Node.K_VALUE, 1 << (distanceBits - 1));
+            for (int i = 0; i < capacity && added < tableSize; i++) {
+                BigInteger distance = new BigInteger(distanceBits - 1, ThreadLocalRandom.current())
+                        .setBit(distanceBits - 1);
+                node.updateRoutingTable(new Node.NodeInfo(self.xor(distance), "127.0.0.1", 20000 + added));
+                added++;
+            }
+        }
+    }
+}
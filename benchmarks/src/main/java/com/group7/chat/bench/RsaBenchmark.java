@@ -0,0 +1,61 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.security.CryptoService;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CryptoService 的 RSA-2048 操作：包装/解包会话密钥、签名和验签
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RsaBenchmark {
+
+    private CryptoService cryptoService;
+    private KeyPair keyPair;
+    private byte[] sessionKey;
+    private byte[] wrappedKey;
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws Exception {
+        cryptoService = new CryptoService();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+
+        sessionKey = cryptoService.generateRandomBytes(32);
+        wrappedKey = cryptoService.encryptWithRSA(sessionKey, keyPair.getPublic());
+        data = new byte[256];
+        ThreadLocalRandom.current().nextBytes(data);
+        signature = cryptoService.sign(data, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] wrapSessionKey() throws Exception {
+        return cryptoService.encryptWithRSA(sessionKey, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] unwrapSessionKey() throws Exception {
+        return cryptoService.decryptWithRSA(wrappedKey, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return cryptoService.sign(data, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return cryptoService.verifySignature(data, signature, keyPair.getPublic());
+    }
+}
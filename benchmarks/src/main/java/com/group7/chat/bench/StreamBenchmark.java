@@ -0,0 +1,137 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.PeerConnection;
+import com.group7.chat.PeerStream;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.transport.Channel;
+import com.group7.chat.transport.Transport;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 同一条连接上复用流 (PeerStream) 的批量吞吐，以及批量数据占满连接时聊天消息的往返延迟
+ *
+ * streamTransfer 在一条新流上发送 TRANSFER_BYTES 字节，直到接收方读完。
+ * chatRoundTrip 发送一条消息帧并等待对端回显；background=true 时另有一个线程不停地向同一连接写流数据，
+ * 结果反映文件传输期间聊天消息的排队延迟。
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    private static final int TRANSFER_BYTES = 16 * 1024 * 1024;
+    private static final int BASE_PORT = 47200;
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    @Param({"false", "true"})
+    public boolean background;
+
+    private Transport server;
+    private Transport client;
+    private PeerConnection local;
+    private PeerConnection remote;
+    private final byte[] chunk = new byte[64 * 1024];
+    private final AtomicReference<CountDownLatch> transferDone = new AtomicReference<>();
+    private final BlockingQueue<byte[]> echoes = new ArrayBlockingQueue<>(16);
+    private Thread backgroundWriter;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Logger.setLevel(com.group7.chat.logging.Level.OFF);
+        int port = BASE_PORT + ("tcp".equals(transport) ? 10 : 0) + (background ? 1 : 0);
+        AtomicReference<PeerConnection> accepted = new AtomicReference<>();
+        CountDownLatch connected = new CountDownLatch(1);
+
+        server = Transport.create(transport);
+        server.listen(port, channel -> {
+            PeerConnection connection = new PeerConnection(channel, channel.getRemoteAddress(), true);
+            // 消息帧原样回显，流交给读取线程读到结束
+            connection.start(frame -> connection.sendFrame(frame.getType(), frame.getPayload(), PeerConnection.Lane.INTERACTIVE),
+                    stream -> new Thread(() -> drain(stream), "stream-reader").start(),
+                    () -> { });
+            accepted.set(connection);
+            connected.countDown();
+        });
+        client = Transport.create(transport);
+        Channel channel = client.dial("localhost", port);
+        local = new PeerConnection(channel, "localhost:" + port, false);
+        local.start(frame -> echoes.offer(frame.getPayload()), () -> { });
+        connected.await();
+        remote = accepted.get();
+
+        if (background) {
+            running = true;
+            backgroundWriter = new Thread(() -> {
+                try (PeerStream stream = local.openStream("bench")) {
+                    OutputStream out = stream.getOutputStream();
+                    while (running) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    // 连接在测试结束时关闭
+                }
+            }, "stream-writer");
+            backgroundWriter.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        if (backgroundWriter != null) backgroundWriter.join(5000);
+        local.close();
+        remote.close();
+        client.close();
+        server.close();
+    }
+
+    private void drain(PeerStream stream) {
+        try (stream) {
+            InputStream in = stream.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // 丢弃
+            }
+        } catch (IOException e) {
+            // 连接关闭
+        }
+        CountDownLatch latch = transferDone.get();
+        if (latch != null) latch.countDown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void streamTransfer() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        transferDone.set(latch);
+        try (PeerStream stream = local.openStream("bench")) {
+            OutputStream out = stream.getOutputStream();
+            for (int sent = 0; sent < TRANSFER_BYTES; sent += chunk.length) {
+                out.write(chunk);
+            }
+            stream.closeOutput();
+            latch.await();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] chatRoundTrip() throws Exception {
+        local.sendFrame(PeerConnection.FRAME_MESSAGE, new byte[200], PeerConnection.Lane.INTERACTIVE);
+        return echoes.take();
+    }
+}
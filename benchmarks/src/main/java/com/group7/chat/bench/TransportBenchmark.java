@@ -0,0 +1,152 @@
+package com.group7.chat.bench;
+
+import com.group7.chat.Message;
+import com.group7.chat.MessageListener;
+import com.group7.chat.Node;
+import com.group7.chat.PeerConnection;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.transport.Channel;
+import com.group7.chat.transport.FrameHandler;
+import com.group7.chat.transport.Transport;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 各传输层实现的吞吐量，以及经过完整接收路径（解码、加密工作线程、MessageRouter）的消息吞吐量
+ *
+ * rawFrames 只测传输层：向只计数的监听端发送一批帧，直到全部到达。
+ * routedMessages 向一个已启动的节点发送一批新的群聊消息，直到全部交给 MessageListener；
+ * memory 传输下的结果即路由层本身的吞吐上限。节点的去重缓存在迭代之间持续增长，结果包含这部分开销。
+ * 两者都以单次计时测量一批 BATCH 条的耗时。节点关闭了入站限速 (见 RateLimiter)，否则整批消息会被限速丢弃。
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+
+    private static final int BATCH = 1000;
+    private static final int BASE_PORT = 47100;
+
+    @Param({"memory", "nio", "tcp"})
+    public String transport;
+
+    private Node node;
+    private Transport rawListener;
+    private Transport client;
+    private Channel nodeChannel;
+    private Channel rawChannel;
+    private byte[] frame;
+    private byte[][] chatFrames;
+    private final AtomicReference<CountDownLatch> pending = new AtomicReference<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = BASE_PORT + transportOffset();
+        Logger.setLevel(com.group7.chat.logging.Level.OFF);
+        System.setProperty("group7.ratelimit", "false");
+
+        node = new Node(port, Transport.create(transport));
+        node.setMessageListener(new CountingListener());
+        node.start();
+
+        rawListener = Transport.create(transport);
+        rawListener.listen(port + 1, channel -> channel.start(new FrameHandler() {
+            @Override
+            public void onFrame(byte type, byte[] payload) {
+                pending.get().countDown();
+            }
+
+            @Override
+            public void onClosed() {
+            }
+        }));
+
+        client = Transport.create(transport);
+        nodeChannel = client.dial("localhost", port);
+        rawChannel = client.dial("localhost", port + 1);
+        FrameHandler ignore = new FrameHandler() {
+            @Override
+            public void onFrame(byte type, byte[] payload) {
+            }
+
+            @Override
+            public void onClosed() {
+            }
+        };
+        nodeChannel.start(ignore);
+        rawChannel.start(ignore);
+
+        String senderId = BenchmarkSupport.randomHexId();
+        frame = new Message(Message.Type.CHAT, senderId, "hello").serialize().getBytes(StandardCharsets.UTF_8);
+        chatFrames = new byte[BATCH][];
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareBatch() {
+        // 每批使用新的消息ID，避免被去重丢弃；TTL为0，节点不再转发
+        String senderId = BenchmarkSupport.randomHexId();
+        for (int i = 0; i < BATCH; i++) {
+            Message message = new Message(UUID.randomUUID().toString(), Message.Type.CHAT, senderId,
+                    "hello " + i, System.currentTimeMillis(), 0, null);
+            chatFrames[i] = message.serialize().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        nodeChannel.close();
+        rawChannel.close();
+        client.close();
+        rawListener.close();
+        node.stop();
+    }
+
+    @Benchmark
+    public void rawFrames() throws Exception {
+        CountDownLatch latch = new CountDownLatch(BATCH);
+        pending.set(latch);
+        for (int i = 0; i < BATCH; i++) {
+            rawChannel.send(PeerConnection.FRAME_MESSAGE, frame);
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    public void routedMessages() throws Exception {
+        CountDownLatch latch = new CountDownLatch(BATCH);
+        pending.set(latch);
+        for (byte[] chat : chatFrames) {
+            nodeChannel.send(PeerConnection.FRAME_MESSAGE, chat);
+        }
+        latch.await();
+    }
+
+    private int transportOffset() {
+        switch (transport) {
+            case "nio": return 10;
+            case "tcp": return 20;
+            default: return 0;
+        }
+    }
+
+    private class CountingListener implements MessageListener {
+        @Override
+        public void onChatMessageReceived(String senderId, String content) {
+            pending.get().countDown();
+        }
+
+        @Override public void onPrivateChatMessageReceived(String senderId, String content) { }
+        @Override public void onFileTransferRequest(String senderId, String fileName, long fileSize) { }
+        @Override public void onConnectionStatusChanged(int connectionCount) { }
+        @Override public void onSystemMessage(String message) { }
+        @Override public void onMemberJoined(String nodeId, String address) { }
+        @Override public void onMemberLeft(String nodeId) { }
+    }
+}
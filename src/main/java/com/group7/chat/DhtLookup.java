@@ -0,0 +1,176 @@
+package com.group7.chat;
+
+import com.group7.chat.Node.NodeInfo;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Kademlia迭代查找：同时向最多 ALPHA 个尚未询问的最近候选节点发送 FIND_NODE 或 FIND_VALUE，
+ * 把响应中的节点加入候选，直到离目标最近的K个候选都已询问过为止，每一跳都更接近目标
+ *
+ * FIND_VALUE 查找收到值时立即结束，并把值缓存到已响应但没有该值的最近节点上，
+ * 之后对同一个键的查找更早遇到缓存。
+ *
+ * 跳数：本节点路由表中的候选为第1跳，第n跳节点响应中的新候选为第n+1跳；
+ * 查找的跳数为给出值的节点，或最终离目标最近的已响应节点所在的跳。
+ */
+class DhtLookup {
+
+    static final int ALPHA = 3;
+
+    /**
+     * 查找结果：已响应的最近节点（从近到远，最多K个），FIND_VALUE 找到值时 value 不为null；没有节点响应时跳数为0
+     */
+    static final class Result {
+        final List<NodeInfo> closest;
+        final DhtValueStore.Value value;
+        final int hops;
+
+        Result(List<NodeInfo> closest, DhtValueStore.Value value, int hops) {
+            this.closest = closest;
+            this.value = value;
+            this.hops = hops;
+        }
+    }
+
+    private final Node node;
+    private final DhtRpc rpc;
+    private final BigInteger target;
+    private final boolean findValue;
+    // 按与目标的距离排序
+    private final TreeMap<BigInteger, NodeInfo> candidates = new TreeMap<>();
+    private final TreeMap<BigInteger, NodeInfo> responded = new TreeMap<>();
+    private final Set<BigInteger> contacted = new HashSet<>();
+    // 每个候选节点是在第几跳发现的
+    private final Map<BigInteger, Integer> hopsTo = new HashMap<>();
+    private final CompletableFuture<Result> future = new CompletableFuture<>();
+    private int inFlight = 0;
+    private boolean done = false;
+
+    DhtLookup(Node node, DhtRpc rpc, BigInteger target, boolean findValue) {
+        this.node = node;
+        this.rpc = rpc;
+        this.target = target;
+        this.findValue = findValue;
+    }
+
+    CompletableFuture<Result> start() {
+        synchronized (this) {
+            for (NodeInfo info : node.findClosestNodes(target, Node.K_VALUE)) {
+                addCandidate(info, 1);
+            }
+        }
+        queryNext();
+        return future;
+    }
+
+    private void addCandidate(NodeInfo info, int hops) {
+        if (info.getNodeId().equals(node.getNodeId())) return;
+        candidates.putIfAbsent(info.getNodeId().xor(target), info);
+        hopsTo.putIfAbsent(info.getNodeId(), hops);
+    }
+
+    /**
+     * 补足并发请求；最近的K个候选都已询问且没有未完成的请求时结束
+     */
+    private void queryNext() {
+        List<NodeInfo> toQuery = new ArrayList<>();
+        synchronized (this) {
+            if (done) return;
+            int examined = 0;
+            for (NodeInfo info : candidates.values()) {
+                if (examined++ >= Node.K_VALUE || inFlight + toQuery.size() >= ALPHA) break;
+                if (contacted.add(info.getNodeId())) toQuery.add(info);
+            }
+            inFlight += toQuery.size();
+            if (inFlight == 0) {
+                done = true;
+                future.complete(new Result(closestResponded(), null, closestHops()));
+                return;
+            }
+        }
+        for (NodeInfo info : toQuery) {
+            query(info);
+        }
+    }
+
+    private void query(NodeInfo info) {
+        Message request = new Message(findValue ? Message.Type.FIND_VALUE : Message.Type.FIND_NODE,
+                node.getNodeIdString(), "", target.toString(16));
+        node.getMessageRouter().recordSent(request.getType());
+        rpc.call(info.getHost(), info.getPort(), request, response -> onResponse(info, response));
+    }
+
+    private void onResponse(NodeInfo info, Message response) {
+        BigInteger distance = info.getNodeId().xor(target);
+        List<NodeInfo> found = new ArrayList<>();
+        DhtValueStore.Value value = null;
+        NodeInfo cacheAt = null;
+        int hops = 0;
+        if (response == null) {
+            // 查找已结束后才超时的节点同样需要确认是否已离线
+            node.checkLiveness(info);
+        }
+        synchronized (this) {
+            inFlight--;
+            if (done) return;
+            if (response == null) {
+                // 无响应的节点不计入最近的K个
+                candidates.remove(distance);
+            } else if (findValue && response.getType() == Message.Type.VALUE) {
+                value = DhtValueStore.decode(response.getContent());
+                if (value != null) {
+                    done = true;
+                    hops = hopsTo.getOrDefault(info.getNodeId(), 1);
+                    Map.Entry<BigInteger, NodeInfo> nearest = responded.firstEntry();
+                    cacheAt = nearest != null ? nearest.getValue() : null;
+                }
+            } else if (response.getType() == Message.Type.NEIGHBORS) {
+                responded.put(distance, info);
+                found = MessageRouter.parseNeighbors(response.getContent());
+                int nextHop = hopsTo.getOrDefault(info.getNodeId(), 1) + 1;
+                for (NodeInfo neighbor : found) {
+                    addCandidate(neighbor, nextHop);
+                }
+            }
+        }
+        for (NodeInfo neighbor : found) {
+            node.updateRoutingTable(neighbor);
+        }
+        if (value != null) {
+            if (cacheAt != null) cache(cacheAt, value);
+            future.complete(new Result(closestResponded(), value, hops));
+        } else {
+            queryNext();
+        }
+    }
+
+    private void cache(NodeInfo holder, DhtValueStore.Value value) {
+        long ttl = Math.min(value.remainingTtl(System.currentTimeMillis()), DhtValueStore.CACHE_TTL_MS);
+        Message store = new Message(Message.Type.STORE_VALUE, node.getNodeIdString(),
+                DhtValueStore.encode(value.getValue(), value.getVersion(), ttl, true), target.toString(16));
+        node.getMessageRouter().recordSent(store.getType());
+        rpc.call(holder.getHost(), holder.getPort(), store, response -> { });
+    }
+
+    private synchronized int closestHops() {
+        Map.Entry<BigInteger, NodeInfo> nearest = responded.firstEntry();
+        return nearest != null ? hopsTo.getOrDefault(nearest.getValue().getNodeId(), 1) : 0;
+    }
+
+    private synchronized List<NodeInfo> closestResponded() {
+        List<NodeInfo> closest = new ArrayList<>();
+        for (NodeInfo info : responded.values()) {
+            if (closest.size() >= Node.K_VALUE) break;
+            closest.add(info);
+        }
+        return closest;
+    }
+}
@@ -0,0 +1,231 @@
+package com.group7.chat;
+
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
+import com.group7.chat.transport.DatagramEndpoint;
+import com.group7.chat.transport.Transport;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于UDP的DHT控制RPC：PING、FIND_NODE 这类小的请求/响应不需要为每个对端建立TCP连接
+ *
+ * 数据报格式: [种类(1): 1请求 2响应][请求ID(8)][Message.toBytes()]。
+ * 请求在 TIMEOUT_MS 内没有响应时重发，共尝试 MAX_ATTEMPTS 次，仍无响应时以null回调。
+ * UDP与TCP监听使用同一个端口号，请求的源地址即对端节点的地址。数据报端点由传输层提供 (Transport.bindDatagram)，
+ * 内存传输层下DHT控制消息同样在进程内收发。
+ *
+ * 请求ID每次从SecureRandom取得，收到请求的节点无法据此推测其他请求的ID；
+ * 响应只有在源地址与请求的目标地址一致时才被接受，其他主机无法伪造NEIGHBORS或PONG。
+ */
+public class DhtRpc {
+
+    private static final Logger log = Logger.getLogger(DhtRpc.class);
+
+    public static final long TIMEOUT_MS = 1000;
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final byte KIND_REQUEST = 1;
+    private static final byte KIND_RESPONSE = 2;
+
+    /**
+     * 处理收到的请求，返回响应消息；返回null表示不响应
+     */
+    public interface RequestHandler {
+        Message handle(Message request, InetSocketAddress source);
+    }
+
+    private static class PendingCall {
+        final InetSocketAddress target;
+        final byte[] datagram;
+        final Consumer<Message> callback;
+        final long startNanos = System.nanoTime();
+        int attempts = 0;
+        ScheduledFuture<?> timeout;
+
+        PendingCall(InetSocketAddress target, byte[] datagram, Consumer<Message> callback) {
+            this.target = target;
+            this.datagram = datagram;
+            this.callback = callback;
+        }
+    }
+
+    private final int port;
+    private final Transport transport;
+    private final RequestHandler handler;
+    private final Map<Long, PendingCall> pending = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dht-rpc-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private DatagramEndpoint channel;
+    private volatile boolean running = false;
+
+    private final Counter callsSucceeded;
+    private final Counter callsTimedOut;
+    private final Counter retries;
+    private final Counter requestsServed;
+    private final Counter datagramsDropped;
+    private final Histogram callTimer;
+
+    public DhtRpc(int port, Transport transport, RequestHandler handler, MetricsRegistry metrics) {
+        this.port = port;
+        this.transport = transport;
+        this.handler = handler;
+        this.callsSucceeded = metrics.counter("chat_rpc_calls_total", "发出的UDP RPC请求数", "result", "ok");
+        this.callsTimedOut = metrics.counter("chat_rpc_calls_total", "发出的UDP RPC请求数", "result", "timeout");
+        this.retries = metrics.counter("chat_rpc_retries_total", "超时后重发的请求数");
+        this.requestsServed = metrics.counter("chat_rpc_requests_served_total", "收到并响应的UDP RPC请求数");
+        this.datagramsDropped = metrics.counter("chat_rpc_datagrams_dropped_total", "无法解码的数据报数");
+        this.callTimer = metrics.timer("chat_rpc_seconds", "UDP RPC从首次发送到收到响应的耗时");
+        metrics.gauge("chat_rpc_pending", "等待响应的UDP RPC请求数", pending::size);
+    }
+
+    /**
+     * 通过传输层绑定数据报端口并开始接收，端口不可用时返回false
+     */
+    public boolean start() {
+        try {
+            channel = transport.bindDatagram(port);
+            running = true;
+            new Thread(this::receiveLoop, "dht-rpc-" + port).start();
+            log.info("DHT RPC 启动，UDP端口: " + port);
+            return true;
+        } catch (IOException e) {
+            log.warn("无法绑定UDP端口 " + port + "，DHT控制消息改用TCP: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        timer.shutdownNow();
+        if (channel != null) channel.close();
+        pending.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 发送请求，收到响应时以响应消息回调，所有重试都超时或发送失败时以null回调
+     */
+    public void call(String host, int targetPort, Message request, Consumer<Message> callback) {
+        InetSocketAddress target = new InetSocketAddress(host, targetPort);
+        if (!running || target.isUnresolved()) {
+            callback.accept(null);
+            return;
+        }
+        long requestId;
+        PendingCall call;
+        do {
+            requestId = random.nextLong();
+            call = new PendingCall(target, encode(KIND_REQUEST, requestId, request), callback);
+        } while (pending.putIfAbsent(requestId, call) != null);
+        transmit(requestId, call);
+    }
+
+    private void transmit(long requestId, PendingCall call) {
+        call.attempts++;
+        try {
+            channel.send(ByteBuffer.wrap(call.datagram), call.target);
+            call.timeout = timer.schedule(() -> onTimeout(requestId), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.debug(() -> "发送RPC请求到 " + call.target + " 失败: " + e.getMessage());
+            if (pending.remove(requestId) != null) {
+                callsTimedOut.increment();
+                call.callback.accept(null);
+            }
+        }
+    }
+
+    private void onTimeout(long requestId) {
+        PendingCall call = pending.get(requestId);
+        if (call == null) return;
+        if (call.attempts < MAX_ATTEMPTS) {
+            retries.increment();
+            transmit(requestId, call);
+        } else if (pending.remove(requestId) != null) {
+            callsTimedOut.increment();
+            call.callback.accept(null);
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (running) {
+            try {
+                buffer.clear();
+                InetSocketAddress source = channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < 9) {
+                    datagramsDropped.increment();
+                    continue;
+                }
+                byte kind = buffer.get();
+                long requestId = buffer.getLong();
+                Message message = Message.fromBytes(buffer);
+                if (kind == KIND_REQUEST) {
+                    handleRequest(source, requestId, message);
+                } else if (kind == KIND_RESPONSE) {
+                    handleResponse(source, requestId, message);
+                } else {
+                    datagramsDropped.increment();
+                }
+            } catch (IllegalArgumentException e) {
+                datagramsDropped.increment();
+            } catch (RuntimeException e) {
+                // 单个数据报的处理错误不能终止接收线程，否则之后的所有RPC都会超时
+                datagramsDropped.increment();
+                log.warn("处理RPC数据报时发生错误: " + e);
+            } catch (IOException e) {
+                if (running) log.error("接收RPC数据报时发生错误: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleRequest(InetSocketAddress source, long requestId, Message request) throws IOException {
+        Message response = handler.handle(request, source);
+        if (response == null) return;
+        requestsServed.increment();
+        channel.send(ByteBuffer.wrap(encode(KIND_RESPONSE, requestId, response)), source);
+    }
+
+    private void handleResponse(InetSocketAddress source, long requestId, Message response) {
+        PendingCall call = pending.get(requestId);
+        if (call == null) return; // 已超时，或重发请求的重复响应
+        if (!call.target.getAddress().equals(source.getAddress()) || call.target.getPort() != source.getPort()) {
+            // 不是请求的目标发来的：丢弃，请求继续等待真正的响应
+            datagramsDropped.increment();
+            log.debug(() -> "丢弃来自 " + source + " 的RPC响应，请求的目标是 " + call.target);
+            return;
+        }
+        if (!pending.remove(requestId, call)) return;
+        if (call.timeout != null) call.timeout.cancel(false);
+        callsSucceeded.increment();
+        callTimer.recordSince(call.startNanos);
+        call.callback.accept(response);
+    }
+
+    private static byte[] encode(byte kind, long requestId, Message message) {
+        byte[] body = message.toBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(9 + body.length);
+        buffer.put(kind).putLong(requestId).put(body);
+        return buffer.array();
+    }
+}
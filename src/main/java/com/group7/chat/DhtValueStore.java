@@ -0,0 +1,252 @@
+package com.group7.chat;
+
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.MetricsRegistry;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DHT键值存储的本地部分：保存本节点发布的值、离键最近的节点收到的副本，以及查找路径上缓存的值
+ *
+ * 键是256位ID（通常为名称的SHA-256，见 keyFor），每个键只保存版本最新的一个值。版本是发布时间，
+ * 超前本地时间 MAX_VERSION_SKEW_MS 以上的版本被拒绝。能证明自己属于该键的值 (如签名的公钥记录，见 Validator)
+ * 以签名中的时间为版本，并且总是优先于不能证明的值，伪造的高版本值因此不能挡住真正发布者的值。
+ * 副本和缓存在TTL到期后删除，缓存的TTL不超过 CACHE_TTL_MS；本节点发布的值不过期，
+ * 每隔TTL的一半由 Node 重新发布到当前离键最近的K个节点 (dueForRepublish)。
+ * 存储已满时先淘汰缓存，没有缓存可淘汰时拒绝新的副本。
+ */
+public class DhtValueStore {
+
+    public static final long DEFAULT_TTL_MS = 60 * 60 * 1000;
+    public static final long MAX_TTL_MS = 24 * 60 * 60 * 1000;
+    static final long CACHE_TTL_MS = 10 * 60 * 1000;
+    static final int MAX_VALUES = 10_000;
+    public static final int MAX_VALUE_CHARS = 8 * 1024;
+    static final long MAX_VERSION_SKEW_MS = 5 * 60 * 1000;
+    public static final long UNVERIFIED = -1;
+
+    /**
+     * 有类型的值的验证
+     */
+    public interface Validator {
+        /**
+         * 值能证明属于该键时返回其签名中的版本，否则返回 UNVERIFIED
+         */
+        long verifiedVersion(BigInteger key, String value);
+    }
+
+    /**
+     * 值的来源
+     */
+    public enum Kind {
+        ORIGINAL, // 本节点发布
+        REPLICA,  // 作为离键最近的节点之一收到的STORE
+        CACHED    // 查找路径上的缓存
+    }
+
+    public static final class Value {
+        private final String value;
+        private final long version;
+        private final long ttlMs;
+        private final Kind kind;
+        private final boolean verified;
+        private final long expiresAt;
+        private long lastPublished;
+
+        Value(String value, long version, long ttlMs, Kind kind, long now) {
+            this(value, version, ttlMs, kind, false, now);
+        }
+
+        Value(String value, long version, long ttlMs, Kind kind, boolean verified, long now) {
+            this.value = value;
+            this.version = version;
+            this.ttlMs = ttlMs;
+            this.kind = kind;
+            this.verified = verified;
+            this.expiresAt = kind == Kind.ORIGINAL ? Long.MAX_VALUE : now + ttlMs;
+            this.lastPublished = now;
+        }
+
+        public String getValue() { return value; }
+        public long getVersion() { return version; }
+        public long getTtlMs() { return ttlMs; }
+        public Kind getKind() { return kind; }
+        public boolean isVerified() { return verified; }
+
+        /**
+         * 发给其他节点时使用的剩余TTL
+         */
+        public long remainingTtl(long now) {
+            return kind == Kind.ORIGINAL ? ttlMs : Math.max(0, expiresAt - now);
+        }
+    }
+
+    private final Map<BigInteger, Value> values = new HashMap<>();
+    private final Validator validator;
+
+    private final Counter storedReplicas;
+    private final Counter storedCached;
+    private final Counter rejected;
+    private final Counter expired;
+
+    /**
+     * 创建存储，validator 为null时所有值都视为未经验证
+     */
+    public DhtValueStore(MetricsRegistry metrics, Validator validator) {
+        this.validator = validator;
+        this.storedReplicas = metrics.counter("chat_dht_values_stored_total", "收到并保存的DHT值", "kind", "replica");
+        this.storedCached = metrics.counter("chat_dht_values_stored_total", "收到并保存的DHT值", "kind", "cached");
+        this.rejected = metrics.counter("chat_dht_values_rejected_total", "因格式、大小、版本或容量被拒绝的DHT值");
+        this.expired = metrics.counter("chat_dht_values_expired_total", "过期删除的DHT值");
+        metrics.gauge("chat_dht_values", "本地保存的DHT值数", this::size);
+    }
+
+    /**
+     * 名称对应的键
+     */
+    public static BigInteger keyFor(String name) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return new BigInteger(1, md.digest(name.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+
+    /**
+     * 保存一个值，版本不比已有的新、版本超前、超出大小或存储已满时返回false；
+     * 本节点发布的值不会被其他节点的副本覆盖，经过验证的值不会被未经验证的值覆盖
+     */
+    public synchronized boolean put(BigInteger key, String value, long version, long ttlMs, Kind kind) {
+        long now = System.currentTimeMillis();
+        if (value.length() > MAX_VALUE_CHARS || ttlMs <= 0) {
+            rejected.increment();
+            return false;
+        }
+        long verifiedVersion = validator != null ? validator.verifiedVersion(key, value) : UNVERIFIED;
+        boolean verified = verifiedVersion != UNVERIFIED;
+        if (verified) version = verifiedVersion;
+        if (version > now + MAX_VERSION_SKEW_MS) {
+            rejected.increment();
+            return false;
+        }
+        ttlMs = Math.min(ttlMs, kind == Kind.CACHED ? CACHE_TTL_MS : MAX_TTL_MS);
+        Value existing = values.get(key);
+        if (existing != null && existing.expiresAt > now) {
+            boolean newer = version > existing.version;
+            boolean sameVersionRefresh = version == existing.version && kind.ordinal() <= existing.kind.ordinal();
+            boolean replaces = verified != existing.verified ? verified : newer || sameVersionRefresh;
+            if ((existing.kind == Kind.ORIGINAL && kind != Kind.ORIGINAL) || !replaces) {
+                rejected.increment();
+                return false;
+            }
+        } else if (values.size() >= MAX_VALUES && !evictOne()) {
+            rejected.increment();
+            return false;
+        }
+        values.put(key, new Value(value, version, ttlMs, kind, verified, now));
+        if (kind == Kind.REPLICA) storedReplicas.increment();
+        if (kind == Kind.CACHED) storedCached.increment();
+        return true;
+    }
+
+    /**
+     * 未过期的值，没有时返回null
+     */
+    public synchronized Value get(BigInteger key) {
+        Value value = values.get(key);
+        if (value == null) return null;
+        if (value.expiresAt <= System.currentTimeMillis()) {
+            values.remove(key);
+            expired.increment();
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * 删除本节点发布的值，之后不再重新发布
+     */
+    public synchronized boolean removeOriginal(BigInteger key) {
+        Value value = values.get(key);
+        if (value == null || value.kind != Kind.ORIGINAL) return false;
+        values.remove(key);
+        return true;
+    }
+
+    /**
+     * 距上次发布已超过TTL一半的本节点发布的值，返回时即记为已发布
+     */
+    public synchronized List<Map.Entry<BigInteger, Value>> dueForRepublish() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<BigInteger, Value>> due = new ArrayList<>();
+        for (Map.Entry<BigInteger, Value> entry : values.entrySet()) {
+            Value value = entry.getValue();
+            if (value.kind == Kind.ORIGINAL && now - value.lastPublished >= value.ttlMs / 2) {
+                value.lastPublished = now;
+                due.add(Map.entry(entry.getKey(), value));
+            }
+        }
+        return due;
+    }
+
+    /**
+     * 删除过期的副本和缓存
+     */
+    public synchronized void cleanup() {
+        long now = System.currentTimeMillis();
+        Iterator<Value> it = values.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                expired.increment();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    private boolean evictOne() {
+        cleanup();
+        if (values.size() < MAX_VALUES) return true;
+        Iterator<Value> it = values.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().kind == Kind.CACHED) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 编码STORE_VALUE和VALUE消息的内容: [c或r]\n[TTL毫秒]\n[版本]\n[值]，c表示缓存
+     */
+    public static String encode(String value, long version, long ttlMs, boolean cached) {
+        return (cached ? "c" : "r") + "\n" + ttlMs + "\n" + version + "\n" + value;
+    }
+
+    /**
+     * 解码消息内容，格式错误时返回null；返回的值的kind为REPLICA或CACHED
+     */
+    public static Value decode(String content) {
+        if (content == null) return null;
+        String[] parts = content.split("\n", 4);
+        if (parts.length != 4 || !(parts[0].equals("c") || parts[0].equals("r"))) return null;
+        try {
+            Kind kind = parts[0].equals("c") ? Kind.CACHED : Kind.REPLICA;
+            return new Value(parts[3], Long.parseLong(parts[2]), Long.parseLong(parts[1]), kind, System.currentTimeMillis());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,47 +1,72 @@
 package com.group7.chat;
 
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
 import java.io.*;
-import java.net.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * 文件传输服务类，负责实际的文件数据传输
+ *
+ * 文件数据在与目标节点的现有连接上以一条复用流 (协议名 "file") 发送，流内容为
+ * [头长度(4)][头 "SEND:会话:文件名:大小:保存路径" (UTF-8)][文件数据]。
+ * 发送由 TransferScheduler 排队并限制并发数和带宽，接收不经过调度。
  */
 public class FileTransferService {
+
+    private static final Logger log = Logger.getLogger(FileTransferService.class);
+
+    /** 文件流的协议名 (见 PeerStream.getProtocol) */
+    public static final String PROTOCOL = "file";
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
     private final Node node;
     private final ExecutorService transferExecutor;
     private final ConcurrentHashMap<String, FileTransferSession> activeSessions;
-    private ServerSocket fileTransferServer;
-    private final int fileTransferPort;
-    private boolean running = false;
+    private final TransferScheduler scheduler;
+    private volatile boolean running = false;
+
+    private final Counter bytesSent;
+    private final Counter bytesReceived;
+    private final Counter sendsCompleted;
+    private final Counter sendsFailed;
+    private final Counter receivesCompleted;
+    private final Counter receivesFailed;
+    private final Histogram sendTimer;
+    private final Histogram receiveTimer;
     
     public FileTransferService(Node node) {
         this.node = node;
         this.transferExecutor = Executors.newCachedThreadPool();
         this.activeSessions = new ConcurrentHashMap<>();
-        this.fileTransferPort = node.getPort() + 1000; // 使用主端口+1000作为文件传输端口
+
+        MetricsRegistry metrics = node.getMetrics();
+        this.scheduler = new TransferScheduler(transferExecutor, metrics);
+        this.bytesSent = metrics.counter("chat_file_bytes_total", "文件传输的数据字节数", "direction", "out");
+        this.bytesReceived = metrics.counter("chat_file_bytes_total", "文件传输的数据字节数", "direction", "in");
+        this.sendsCompleted = metrics.counter("chat_file_transfers_total", "文件传输次数", "direction", "out", "result", "ok");
+        this.sendsFailed = metrics.counter("chat_file_transfers_total", "文件传输次数", "direction", "out", "result", "error");
+        this.receivesCompleted = metrics.counter("chat_file_transfers_total", "文件传输次数", "direction", "in", "result", "ok");
+        this.receivesFailed = metrics.counter("chat_file_transfers_total", "文件传输次数", "direction", "in", "result", "error");
+        this.sendTimer = metrics.timer("chat_file_transfer_seconds", "单个文件传输耗时", "direction", "out");
+        this.receiveTimer = metrics.timer("chat_file_transfer_seconds", "单个文件传输耗时", "direction", "in");
+        metrics.gauge("chat_file_sessions", "进行中的文件传输会话数", activeSessions::size);
     }
     
     /**
      * 启动文件传输服务
      */
     public void start() {
-        try {
-            fileTransferServer = new ServerSocket(fileTransferPort);
-            running = true;
-            
-            // 启动文件传输服务器线程
-            transferExecutor.submit(this::acceptFileTransferConnections);
-            
-            System.out.println("文件传输服务启动，端口: " + fileTransferPort);
-        } catch (IOException e) {
-            System.err.println("无法启动文件传输服务: " + e.getMessage());
-        }
+        running = true;
+        log.info("文件传输服务启动，通过对等连接上的复用流收发文件");
     }
     
     /**
@@ -49,74 +74,45 @@ public class FileTransferService {
      */
     public void stop() {
         running = false;
-        try {
-            if (fileTransferServer != null && !fileTransferServer.isClosed()) {
-                fileTransferServer.close();
-            }
-            transferExecutor.shutdown();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        transferExecutor.shutdown();
     }
     
     /**
-     * 接受文件传输连接
+     * 接受对端打开的文件流，读取和写盘交给传输线程，不占用连接的收帧线程
      */
-    private void acceptFileTransferConnections() {
-        while (running) {
-            try {
-                Socket clientSocket = fileTransferServer.accept();
-                transferExecutor.submit(() -> handleFileTransferConnection(clientSocket));
-            } catch (IOException e) {
-                if (running) {
-                    System.err.println("接受文件传输连接时发生错误: " + e.getMessage());
-                }
-            }
+    public void acceptStream(PeerStream stream) {
+        if (!running) {
+            stream.close();
+            return;
+        }
+        try {
+            transferExecutor.submit(() -> handleFileTransferStream(stream));
+        } catch (RejectedExecutionException e) {
+            stream.close();
         }
     }
     
     /**
-     * 处理文件传输连接
+     * 处理文件传输流
      */
-    private void handleFileTransferConnection(Socket socket) {
-        try {
-            System.out.println("[文件传输] 接受新的文件传输连接");
+    private void handleFileTransferStream(PeerStream stream) {
+        try (stream) {
+            log.debug(() -> "[文件传输] 接受新的文件流 " + stream.getId() + " 来自 " + stream.getRemoteNodeId());
             
-            // 获取输入流
-            InputStream inputStream = socket.getInputStream();
+            DataInputStream inputStream = new DataInputStream(stream.getInputStream());
             
-            // 读取4字节的头长度
-            byte[] lengthBytes = new byte[4];
-            int bytesRead = 0;
-            while (bytesRead < 4) {
-                int read = inputStream.read(lengthBytes, bytesRead, 4 - bytesRead);
-                if (read == -1) {
-                    throw new IOException("连接意外关闭");
-                }
-                bytesRead += read;
+            // 读取4字节的头长度和头信息
+            int headerLength = inputStream.readInt();
+            if (headerLength <= 0 || headerLength > MAX_HEADER_SIZE) {
+                throw new IOException("无效的传输头长度: " + headerLength);
             }
+            log.debug(() -> "[文件传输] 头信息长度: " + headerLength);
             
-            // 解析头长度
-            int headerLength = ((lengthBytes[0] & 0xFF) << 24) |
-                              ((lengthBytes[1] & 0xFF) << 16) |
-                              ((lengthBytes[2] & 0xFF) << 8) |
-                              (lengthBytes[3] & 0xFF);
-            
-            System.out.println("[文件传输] 头信息长度: " + headerLength);
-            
-            // 读取头信息
             byte[] headerBytes = new byte[headerLength];
-            bytesRead = 0;
-            while (bytesRead < headerLength) {
-                int read = inputStream.read(headerBytes, bytesRead, headerLength - bytesRead);
-                if (read == -1) {
-                    throw new IOException("连接意外关闭");
-                }
-                bytesRead += read;
-            }
+            inputStream.readFully(headerBytes);
             
-            String header = new String(headerBytes, "UTF-8");
-            System.out.println("[文件传输] 收到传输头: " + header);
+            String header = new String(headerBytes, StandardCharsets.UTF_8);
+            log.debug(() -> "[文件传输] 收到传输头: " + header);
             
             // 使用限制分割次数的方式解析，避免路径中的冒号被错误分割
             String[] parts = header.split(":", 5);
@@ -127,7 +123,7 @@ public class FileTransferService {
                 long fileSize = Long.parseLong(parts[3]);
                 String savePath = parts[4]; // 这里包含完整路径，包括可能的冒号
                 
-                System.out.println("[文件传输] 解析结果 - 动作: " + action + ", 会话: " + sessionId + 
+                log.debug(() -> "[文件传输] 解析结果 - 动作: " + action + ", 会话: " + sessionId + 
                                  ", 文件名: " + fileName + ", 大小: " + fileSize + ", 路径: " + savePath);
                 
                 if ("SEND".equals(action)) {
@@ -137,182 +133,136 @@ public class FileTransferService {
             }
             
         } catch (Exception e) {
-            System.err.println("处理文件传输连接时发生错误: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // 忽略关闭异常
-            }
+            log.error("处理文件传输流时发生错误: " + e.getMessage());
         }
     }
     
     /**
-     * 发送文件到指定节点
+     * 发送文件到指定节点：先进入发送调度队列，轮到时在与目标节点的连接上打开流发送
      */
     public void sendFile(String targetNodeId, File file, String savePath) {
-        transferExecutor.submit(() -> {
-            try {
-                System.out.println("[文件传输] 开始处理文件发送请求");
-                System.out.println("[文件传输] 目标节点ID: " + targetNodeId);
-                System.out.println("[文件传输] 文件: " + file.getName() + " (" + file.length() + " bytes)");
-                System.out.println("[文件传输] 保存路径: " + savePath);
-                
-                // 获取目标节点的连接信息
-                String targetAddress = null;
-                
-                // 如果是广播，发送给第一个连接的节点
-                if ("broadcast".equals(targetNodeId)) {
-                    var connections = node.getConnections();
-                    System.out.println("[文件传输] 广播模式，当前连接数: " + connections.size());
-                    if (!connections.isEmpty()) {
-                        var firstConnection = connections.values().iterator().next();
-                        targetAddress = firstConnection.getRemoteAddress();
-                        System.out.println("[文件传输] 广播模式，选择连接: " + targetAddress);
-                        System.out.println("[文件传输] 连接的远程节点ID: " + firstConnection.getRemoteNodeId());
-                    } else {
-                        System.out.println("[文件传输] 广播模式失败：没有可用连接");
-                    }
-                } else {
-                    // 查找特定目标节点的连接
-                    for (var connection : node.getConnections().values()) {
-                        if (targetNodeId.equals(connection.getRemoteNodeId())) {
-                            targetAddress = connection.getRemoteAddress();
-                            break;
-                        }
-                    }
-                }
-                
-                if (targetAddress == null) {
-                    System.err.println("找不到目标节点连接: " + targetNodeId);
-                    if (node.getMessageRouter().getMessageListener() != null) {
-                        node.getMessageRouter().getMessageListener().onSystemMessage(
-                            "文件发送失败: 找不到目标节点 " + targetNodeId);
-                    }
-                    return;
-                }
-                
-                // 解析地址和端口
-                String normalizedAddress = targetAddress.replace("localhost", "127.0.0.1");
-                
-                // 移除所有前缀斜杠，处理如 "/127.0.0.1:8080" 或 "localhost/127.0.0.1:9081" 的格式
-                while (normalizedAddress.startsWith("/")) {
-                    normalizedAddress = normalizedAddress.substring(1);
-                }
-                
-                // 处理可能的复杂地址格式，如 "localhost/127.0.0.1:9081"
-                if (normalizedAddress.contains("/")) {
-                    // 取斜杠后面的部分
-                    normalizedAddress = normalizedAddress.substring(normalizedAddress.lastIndexOf("/") + 1);
-                }
-                
-                String[] addressParts = normalizedAddress.split(":");
-                
-                if (addressParts.length != 2) {
-                    String errorMsg = "无效的目标地址格式: " + targetAddress + " (标准化后: " + normalizedAddress + ")";
-                    System.err.println("[文件传输] " + errorMsg);
-                    if (node.getMessageRouter().getMessageListener() != null) {
-                        node.getMessageRouter().getMessageListener().onSystemMessage(
-                            "文件发送失败: " + errorMsg);
-                    }
-                    return;
-                }
-                
-                String host = addressParts[0];
-                int basePort;
-                try {
-                    basePort = Integer.parseInt(addressParts[1]);
-                } catch (NumberFormatException e) {
-                    String errorMsg = "无效的端口号: " + addressParts[1] + " (地址: " + targetAddress + ")";
-                    System.err.println("[文件传输] " + errorMsg);
-                    if (node.getMessageRouter().getMessageListener() != null) {
-                        node.getMessageRouter().getMessageListener().onSystemMessage(
-                            "文件发送失败: " + errorMsg);
-                    }
-                    return;
+        log.debug("[文件传输] 开始处理文件发送请求");
+        log.debug(() -> "[文件传输] 目标节点ID: " + targetNodeId);
+        log.debug(() -> "[文件传输] 文件: " + file.getName() + " (" + file.length() + " bytes)");
+        log.debug(() -> "[文件传输] 保存路径: " + savePath);
+        
+        String peerId = targetNodeId;
+        
+        // 如果是广播，发送给第一个连接的节点
+        if ("broadcast".equals(targetNodeId)) {
+            peerId = null;
+            var connections = node.getConnections();
+            log.debug(() -> "[文件传输] 广播模式，当前连接数: " + connections.size());
+            for (var connection : connections.values()) {
+                if (connection.isConnected() && connection.getRemoteNodeId() != null) {
+                    peerId = connection.getRemoteNodeId();
+                    break;
                 }
-                int targetPort = basePort + 1000; // 文件传输端口
-                
-                String sessionId = generateSessionId();
-                
-                System.out.println("[文件传输] 开始发送文件到 " + targetNodeId + " (" + host + ":" + targetPort + ")");
-                System.out.println("[文件传输] 原始地址: " + targetAddress + ", 标准化地址: " + normalizedAddress);
-                System.out.println("[文件传输] 解析结果 - 主机: " + host + ", 基础端口: " + basePort + ", 文件传输端口: " + targetPort);
-                System.out.println("[文件传输] 准备连接到: " + host + ":" + targetPort);
+            }
+            if (peerId == null) {
+                log.info("[文件传输] 广播模式失败：没有可用连接");
+                notifyTargetMissing(targetNodeId);
+                return;
+            }
+        }
+        
+        String target = peerId;
+        TransferScheduler.Transfer transfer = scheduler.submit(target, file.getName(), file.length(),
+                queued -> sendQueuedFile(queued, target, file, savePath));
+        if (transfer.getState() == TransferScheduler.State.QUEUED) {
+            log.info("[文件传输] 文件进入发送队列: " + file.getName() + " (排队 " + scheduler.getQueuedCount() + ")");
+        }
+    }
+    
+    /**
+     * 轮到发送时由调度器调用，失败时抛出IOException
+     */
+    private void sendQueuedFile(TransferScheduler.Transfer transfer, String targetNodeId, File file, String savePath)
+            throws IOException {
+        PeerStream stream = node.openStream(targetNodeId, PROTOCOL);
+        if (stream == null) {
+            sendsFailed.increment();
+            notifyTargetMissing(targetNodeId);
+            throw new IOException("找不到目标节点连接: " + targetNodeId);
+        }
+        
+        String sessionId = generateSessionId();
+        
+        log.info("[文件传输] 开始发送文件到 " + targetNodeId + " (流 " + stream.getId() + ")");
+        
+        long transferStart = System.nanoTime();
+        try (stream;
+             FileInputStream fileInput = new FileInputStream(file)) {
+            
+            DataOutputStream outputStream = new DataOutputStream(stream.getOutputStream());
+            
+            // 准备传输头
+            String header = String.format("SEND:%s:%s:%d:%s", sessionId, file.getName(), file.length(), savePath);
+            byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+            
+            // 发送头长度（4字节）和头信息
+            outputStream.writeInt(headerBytes.length);
+            outputStream.write(headerBytes);
+            
+            log.debug(() -> "[文件传输] 发送头信息: " + header);
+            log.debug(() -> "[文件传输] 头信息长度: " + headerBytes.length);
+            
+            // 发送文件数据，流按接收方归还的额度分块写出，与聊天消息交错
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            long totalSent = 0;
+            
+            while ((bytesRead = fileInput.read(buffer)) != -1) {
+                scheduler.throttle(transfer, bytesRead);
+                outputStream.write(buffer, 0, bytesRead);
+                totalSent += bytesRead;
+                bytesSent.add(bytesRead);
                 
-                try (Socket socket = new Socket(host, targetPort);
-                     FileInputStream fileInput = new FileInputStream(file)) {
-                    
-                    // 获取输出流
-                    OutputStream outputStream = socket.getOutputStream();
-                    
-                    // 准备传输头
-                    String header = String.format("SEND:%s:%s:%d:%s", sessionId, file.getName(), file.length(), savePath);
-                    byte[] headerBytes = header.getBytes("UTF-8");
-                    
-                    // 发送头长度（4字节）
-                    outputStream.write((headerBytes.length >> 24) & 0xFF);
-                    outputStream.write((headerBytes.length >> 16) & 0xFF);
-                    outputStream.write((headerBytes.length >> 8) & 0xFF);
-                    outputStream.write(headerBytes.length & 0xFF);
-                    
-                    // 发送头信息
-                    outputStream.write(headerBytes);
-                    outputStream.flush();
-                    
-                    System.out.println("[文件传输] 发送头信息: " + header);
-                    System.out.println("[文件传输] 头信息长度: " + headerBytes.length);
-                    
-                    // 发送文件数据
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    long totalSent = 0;
-                    
-                    while ((bytesRead = fileInput.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                        totalSent += bytesRead;
-                        
-                        // 显示进度
-                        int progress = (int) ((totalSent * 100) / file.length());
-                        if (totalSent % (8192 * 10) == 0 || totalSent == file.length()) { // 每传输约80KB或完成时显示进度
-                            System.out.println("[文件传输] 发送进度: " + progress + "% (" + totalSent + "/" + file.length() + " bytes)");
-                        }
-                    }
-                    
-                    outputStream.flush();
-                    System.out.println("[文件传输] 文件发送完成: " + file.getName() + " (" + totalSent + " bytes)");
-                    
-                    // 通知GUI
-                    if (node.getMessageRouter().getMessageListener() != null) {
-                        node.getMessageRouter().getMessageListener().onSystemMessage(
-                            "文件发送完成: " + file.getName() + " → " + targetNodeId);
-                    }
-                    
-                } catch (IOException e) {
-                    String errorMsg = "发送文件失败: " + e.getMessage() + " (目标: " + host + ":" + targetPort + ")";
-                    System.err.println("[文件传输] " + errorMsg);
-                    e.printStackTrace();
-                    if (node.getMessageRouter().getMessageListener() != null) {
-                        node.getMessageRouter().getMessageListener().onSystemMessage(
-                            "文件发送失败: " + file.getName() + " → " + targetNodeId + " - " + e.getMessage());
-                    }
+                // 显示进度
+                if (log.isDebugEnabled() && (totalSent % (65536 * 16) == 0 || totalSent == file.length())) { // 每传输约1MB或完成时显示进度
+                    int progress = (int) ((totalSent * 100) / file.length());
+                    log.debug("[文件传输] 发送进度: " + progress + "% (" + totalSent + "/" + file.length() + " bytes)");
                 }
-                
-            } catch (Exception e) {
-                System.err.println("文件传输异常: " + e.getMessage());
-                e.printStackTrace();
             }
-        });
+            
+            stream.closeOutput();
+            sendsCompleted.increment();
+            sendTimer.recordSince(transferStart);
+            log.info("[文件传输] 文件发送完成: " + file.getName() + " (" + totalSent + " bytes)");
+            
+            // 通知GUI
+            if (node.getMessageRouter().getMessageListener() != null) {
+                node.getMessageRouter().getMessageListener().onSystemMessage(
+                    "文件发送完成: " + file.getName() + " → " + targetNodeId);
+            }
+            
+        } catch (IOException e) {
+            sendsFailed.increment();
+            log.warn("[文件传输] 发送文件失败: " + e.getMessage() + " (目标: " + targetNodeId + ")");
+            if (node.getMessageRouter().getMessageListener() != null) {
+                node.getMessageRouter().getMessageListener().onSystemMessage(
+                    "文件发送失败: " + file.getName() + " → " + targetNodeId + " - " + e.getMessage());
+            }
+            throw e;
+        }
+    }
+    
+    private void notifyTargetMissing(String targetNodeId) {
+        log.warn("找不到目标节点连接: " + targetNodeId);
+        if (node.getMessageRouter().getMessageListener() != null) {
+            node.getMessageRouter().getMessageListener().onSystemMessage(
+                "文件发送失败: 找不到目标节点 " + targetNodeId);
+        }
     }
     
     /**
      * 使用二进制协议接收文件数据
      */
     private void receiveFileWithBinaryProtocol(InputStream inputStream, String sessionId, String fileName, long fileSize, String savePath) {
+        long transferStart = System.nanoTime();
         try {
-            System.out.println("[文件传输] 开始接收文件: " + fileName + " → " + savePath);
-            System.out.println("[文件传输] 期望文件大小: " + fileSize + " bytes");
+            log.info("[文件传输] 开始接收文件: " + fileName + " → " + savePath);
+            log.debug(() -> "[文件传输] 期望文件大小: " + fileSize + " bytes");
             
             // 创建目标文件
             File targetFile = new File(savePath);
@@ -321,7 +271,7 @@ public class FileTransferService {
             }
             
             try (FileOutputStream fileOutput = new FileOutputStream(targetFile)) {
-                byte[] buffer = new byte[8192];
+                byte[] buffer = new byte[65536];
                 int bytesRead;
                 long totalReceived = 0;
                 
@@ -331,36 +281,40 @@ public class FileTransferService {
                     bytesRead = inputStream.read(buffer, 0, remainingBytes);
                     
                     if (bytesRead == -1) {
-                        System.err.println("[文件传输] 连接意外关闭，已接收: " + totalReceived + "/" + fileSize + " bytes");
+                        log.warn("[文件传输] 文件流意外结束，已接收: " + totalReceived + "/" + fileSize + " bytes");
                         break;
                     }
                     
                     fileOutput.write(buffer, 0, bytesRead);
                     totalReceived += bytesRead;
+                    bytesReceived.add(bytesRead);
                     
                     // 显示进度
-                    int progress = (int) ((totalReceived * 100) / fileSize);
-                    if (totalReceived % (8192 * 5) == 0 || totalReceived == fileSize) { // 每接收约40KB或完成时显示进度
-                        System.out.println("[文件传输] 接收进度: " + progress + "% (" + totalReceived + "/" + fileSize + " bytes)");
+                    if (log.isDebugEnabled() && (totalReceived % (65536 * 16) == 0 || totalReceived == fileSize)) { // 每接收约1MB或完成时显示进度
+                        int progress = (int) ((totalReceived * 100) / fileSize);
+                        log.debug("[文件传输] 接收进度: " + progress + "% (" + totalReceived + "/" + fileSize + " bytes)");
                     }
                 }
                 
                 fileOutput.flush();
-                System.out.println("[文件传输] 文件接收完成: " + fileName + " (" + totalReceived + " bytes)");
-                System.out.println("[文件传输] 保存位置: " + savePath);
+                log.info("[文件传输] 文件接收完成: " + fileName + " (" + totalReceived + " bytes)");
+                log.debug(() -> "[文件传输] 保存位置: " + savePath);
                 
                 // 验证文件大小
                 if (totalReceived != fileSize) {
-                    System.err.println("[文件传输] 警告：接收的文件大小不匹配！期望: " + fileSize + ", 实际: " + totalReceived);
+                    receivesFailed.increment();
+                    log.warn("[文件传输] 警告：接收的文件大小不匹配！期望: " + fileSize + ", 实际: " + totalReceived);
                 } else {
-                    System.out.println("[文件传输] 文件大小验证通过");
+                    receivesCompleted.increment();
+                    receiveTimer.recordSince(transferStart);
+                    log.debug("[文件传输] 文件大小验证通过");
                 }
                 
                 // 验证文件是否真的存在
                 if (targetFile.exists() && targetFile.length() == totalReceived) {
-                    System.out.println("[文件传输] 文件成功保存，大小: " + targetFile.length() + " bytes");
+                    log.debug(() -> "[文件传输] 文件成功保存，大小: " + targetFile.length() + " bytes");
                 } else {
-                    System.err.println("[文件传输] 文件保存失败或大小不匹配");
+                    log.error("[文件传输] 文件保存失败或大小不匹配");
                 }
                 
                 // 通知GUI
@@ -375,8 +329,8 @@ public class FileTransferService {
             }
             
         } catch (Exception e) {
-            System.err.println("接收文件失败: " + e.getMessage());
-            e.printStackTrace();
+            receivesFailed.increment();
+            log.error("接收文件失败: " + fileName, e);
             if (node.getMessageRouter().getMessageListener() != null) {
                 node.getMessageRouter().getMessageListener().onSystemMessage(
                     "文件接收失败: " + fileName + " - " + e.getMessage());
@@ -384,13 +338,20 @@ public class FileTransferService {
         }
     }
     
+    /**
+     * 获取发送调度器，用于显示发送队列
+     */
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+    
     /**
      * 创建文件传输会话
      */
     public void createTransferSession(String sessionId, String fileName, String savePath) {
         FileTransferSession session = new FileTransferSession(sessionId, fileName, savePath);
         activeSessions.put(sessionId, session);
-        System.out.println("[文件传输] 创建传输会话: " + sessionId + " → " + savePath);
+        log.debug(() -> "[文件传输] 创建传输会话: " + sessionId + " → " + savePath);
     }
     
     /**
@@ -400,13 +361,6 @@ public class FileTransferService {
         return "transfer_" + System.currentTimeMillis() + "_" + (int)(Math.random() * 1000);
     }
     
-    /**
-     * 获取文件传输端口
-     */
-    public int getFileTransferPort() {
-        return fileTransferPort;
-    }
-    
     /**
      * 文件传输会话类
      */
@@ -436,7 +390,7 @@ public class FileTransferService {
     }
     
     public void acceptFileTransfer(String senderId, String fileName, String savePath) {
-        System.out.println("接受文件传输: " + fileName + " 来自 " + senderId);
+        log.info("接受文件传输: " + fileName + " 来自 " + senderId);
         
         // 通知发送方开始传输文件
         transferExecutor.submit(() -> {
@@ -444,25 +398,24 @@ public class FileTransferService {
                 // 查找发送方的文件
                 File fileToSend = node.getPendingFile(fileName);
                 if (fileToSend != null && fileToSend.exists()) {
-                    System.out.println("[文件传输] 找到待发送文件: " + fileName);
+                    log.debug(() -> "[文件传输] 找到待发送文件: " + fileName);
                     // 直接发送文件到接收方
                     sendFile(senderId, fileToSend, savePath);
                 } else {
-                    System.err.println("[文件传输] 找不到待发送文件: " + fileName);
+                    log.warn("[文件传输] 找不到待发送文件: " + fileName);
                     if (node.getMessageRouter().getMessageListener() != null) {
                         node.getMessageRouter().getMessageListener().onSystemMessage(
                             "文件传输失败: 找不到文件 " + fileName);
                     }
                 }
             } catch (Exception e) {
-                System.err.println("[文件传输] 接受文件传输时发生错误: " + e.getMessage());
-                e.printStackTrace();
+                log.error("[文件传输] 接受文件传输时发生错误: " + fileName, e);
             }
         });
     }
     
     public void rejectFileTransfer(String senderId, String fileName) {
         // 简化实现
-        System.out.println("拒绝文件传输: " + fileName + " 来自 " + senderId);
+        log.info("拒绝文件传输: " + fileName + " 来自 " + senderId);
     }
 }
@@ -0,0 +1,208 @@
+package com.group7.chat;
+
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.MetricsRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 离线信箱：接收方不在线时，私聊消息暂存在离接收方ID最近的K个节点上 (STORE)，接收方上线后分批取回 (FETCH)
+ *
+ * 每个接收方最多保存 MAX_PER_RECIPIENT 条，超出时丢弃最旧的；消息保存 TTL_MS 后过期。
+ * 所有暂存消息合计不超过 MAX_TOTAL_BYTES，同一发送方暂存的消息合计不超过 MAX_PER_SENDER_BYTES，
+ * 超出时拒绝新消息而不是挤掉已暂存的，一个发送方无法用大量消息占满信箱节点的内存。
+ * FETCH 请求携带上一批最后一条消息的序号作为确认，持有节点先删除已确认的消息再返回之后的一批，
+ * 响应丢失而重发的请求会再次得到同一批消息，接收方按消息ID去重。STORE 和 FETCH 请求都由请求者的身份密钥签名
+ * (见 MessageRouter.handleStoreRequest / handleFetchRequest)，只有信箱的主人才能确认并删除其中的消息。
+ */
+public class MailboxStore {
+
+    static final int MAX_PER_RECIPIENT = 200;
+    static final int MAX_RECIPIENTS = 10_000;
+    static final long MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+    static final long MAX_PER_SENDER_BYTES = 1024 * 1024;
+    static final long TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    static final int BATCH_SIZE = 20;
+    // 一批消息的总长度上限，保证FETCH响应能放进一个UDP数据报
+    static final int MAX_BATCH_CHARS = 16 * 1024;
+
+    private static final class Entry {
+        final long seq;
+        final String senderId;
+        final String message;
+        final long storedAt;
+
+        Entry(long seq, String senderId, String message, long storedAt) {
+            this.seq = seq;
+            this.senderId = senderId;
+            this.message = message;
+            this.storedAt = storedAt;
+        }
+
+        /**
+         * 按Java字符串占用的内存计算
+         */
+        long bytes() {
+            return 2L * message.length();
+        }
+    }
+
+    /**
+     * 一批取回的消息，lastSeq 是最后一条的序号，下次FETCH时作为确认
+     */
+    public static final class Batch {
+        private final long lastSeq;
+        private final List<String> messages;
+
+        Batch(long lastSeq, List<String> messages) {
+            this.lastSeq = lastSeq;
+            this.messages = messages;
+        }
+
+        public long getLastSeq() { return lastSeq; }
+        public List<String> getMessages() { return messages; }
+    }
+
+    private final Map<String, Deque<Entry>> mailboxes = new HashMap<>();
+    private final Map<String, Long> senderBytes = new HashMap<>();
+    private long nextSeq = 1;
+    private int total = 0;
+    private long totalBytes = 0;
+
+    private final Counter stored;
+    private final Counter rejected;
+    private final Counter evicted;
+    private final Counter fetched;
+
+    public MailboxStore(MetricsRegistry metrics) {
+        this.stored = metrics.counter("chat_mailbox_stored_total", "为离线节点暂存的消息数", "result", "ok");
+        this.rejected = metrics.counter("chat_mailbox_stored_total", "为离线节点暂存的消息数", "result", "rejected");
+        this.evicted = metrics.counter("chat_mailbox_evicted_total", "因超出容量或过期而丢弃的暂存消息数");
+        this.fetched = metrics.counter("chat_mailbox_fetched_total", "被接收方取回的暂存消息数");
+        metrics.gauge("chat_mailbox_messages", "当前暂存的消息数", this::size);
+        metrics.gauge("chat_mailbox_bytes", "当前暂存的消息占用的字节数", this::bytes);
+    }
+
+    /**
+     * 为接收方暂存发送方的一条序列化消息，跟踪的接收方已满或超出字节预算时返回false
+     */
+    public synchronized boolean store(String recipientId, String senderId, String message) {
+        Entry entry = new Entry(nextSeq, senderId, message, System.currentTimeMillis());
+        Deque<Entry> mailbox = mailboxes.get(recipientId);
+        if ((mailbox == null && mailboxes.size() >= MAX_RECIPIENTS)
+                || totalBytes + entry.bytes() > MAX_TOTAL_BYTES
+                || senderBytes.getOrDefault(senderId, 0L) + entry.bytes() > MAX_PER_SENDER_BYTES) {
+            rejected.increment();
+            return false;
+        }
+        if (mailbox == null) {
+            mailbox = new ArrayDeque<>();
+            mailboxes.put(recipientId, mailbox);
+        }
+        if (mailbox.size() >= MAX_PER_RECIPIENT) {
+            removeFirst(mailbox);
+            evicted.increment();
+        }
+        nextSeq++;
+        mailbox.addLast(entry);
+        total++;
+        totalBytes += entry.bytes();
+        senderBytes.merge(senderId, entry.bytes(), Long::sum);
+        stored.increment();
+        return true;
+    }
+
+    private void removeFirst(Deque<Entry> mailbox) {
+        Entry entry = mailbox.pollFirst();
+        total--;
+        totalBytes -= entry.bytes();
+        long remaining = senderBytes.get(entry.senderId) - entry.bytes();
+        if (remaining > 0) {
+            senderBytes.put(entry.senderId, remaining);
+        } else {
+            senderBytes.remove(entry.senderId);
+        }
+    }
+
+    /**
+     * 删除序号不大于 ackedSeq 的消息，返回之后的一批
+     */
+    public synchronized Batch fetch(String recipientId, long ackedSeq) {
+        Deque<Entry> mailbox = mailboxes.get(recipientId);
+        List<String> messages = new ArrayList<>();
+        if (mailbox == null) return new Batch(ackedSeq, messages);
+
+        while (!mailbox.isEmpty() && mailbox.peekFirst().seq <= ackedSeq) {
+            removeFirst(mailbox);
+            fetched.increment();
+        }
+        long lastSeq = ackedSeq;
+        int chars = 0;
+        for (Entry entry : mailbox) {
+            if (messages.size() >= BATCH_SIZE) break;
+            if (!messages.isEmpty() && chars + entry.message.length() > MAX_BATCH_CHARS) break;
+            messages.add(entry.message);
+            chars += entry.message.length();
+            lastSeq = entry.seq;
+        }
+        if (mailbox.isEmpty()) mailboxes.remove(recipientId);
+        return new Batch(lastSeq, messages);
+    }
+
+    /**
+     * 删除过期的消息
+     */
+    public synchronized void cleanup() {
+        long cutoff = System.currentTimeMillis() - TTL_MS;
+        Iterator<Deque<Entry>> it = mailboxes.values().iterator();
+        while (it.hasNext()) {
+            Deque<Entry> mailbox = it.next();
+            while (!mailbox.isEmpty() && mailbox.peekFirst().storedAt < cutoff) {
+                removeFirst(mailbox);
+                evicted.increment();
+            }
+            if (mailbox.isEmpty()) it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return total;
+    }
+
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 编码FETCH响应的内容: 第一行为最后一条的序号，之后每行一条序列化的消息（Message.serialize 已转义换行）
+     */
+    public static String encodeBatch(Batch batch) {
+        StringBuilder sb = new StringBuilder(Long.toString(batch.getLastSeq()));
+        for (String message : batch.getMessages()) {
+            sb.append('\n').append(message);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 解码FETCH响应的内容，格式错误时返回null
+     */
+    public static Batch decodeBatch(String content) {
+        if (content == null || content.isEmpty()) return null;
+        String[] lines = content.split("\n");
+        try {
+            List<String> messages = new ArrayList<>(lines.length - 1);
+            for (int i = 1; i < lines.length; i++) {
+                messages.add(lines[i]);
+            }
+            return new Batch(Long.parseLong(lines[0]), messages);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.group7.chat;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 /**
@@ -23,7 +26,27 @@ public class Message {
         PONG,           // 对PING的响应
         FIND_NODE,      // 请求获取离目标ID最近的节点列表
         NEIGHBORS,      // 对FIND_NODE的响应，包含节点列表
-        SECURE_MESSAGE  // 安全消息类型
+        SECURE_MESSAGE, // 安全消息类型
+
+        // --- 群组密钥 ---
+        SENDER_KEY,     // 发送者密钥分发 (只能通过安全信封发送)
+
+        // --- 离线信箱 (只通过UDP RPC发送，见 MailboxStore) ---
+        STORE,          // 请求为离线的接收方暂存一条私聊消息
+        FETCH,          // 接收方取回暂存的消息，响应中为一批消息
+
+        // --- DHT键值存储 (只通过UDP RPC发送，见 DhtValueStore) ---
+        STORE_VALUE,    // 把值保存到离键最近的节点
+        FIND_VALUE,     // 查找键对应的值，没有该值的节点以NEIGHBORS响应
+        VALUE,          // 对FIND_VALUE的响应，包含值
+
+        // --- 在线状态 (只在直接连接的邻居之间交换，不转发，见 PresenceService) ---
+        PRESENCE_SYNC,   // 拉取某序号之后的在线状态变化，或指定桶中的全部记录
+        PRESENCE_DELTA,  // 在线记录的增量
+        PRESENCE_DIGEST, // 按桶汇总的在线记录摘要，用于反熵
+
+        // --- 群组密钥 (续，新类型只能追加在末尾，序列化按序号编码) ---
+        SEALED_SENDER_KEY // 端到端加密给某个成员的发送者密钥，可经中继转发
     }
 
     private final String messageId;
@@ -94,6 +117,73 @@ public class Message {
         }
     }
 
+    /**
+     * 二进制编码 (用于安全信封的明文，避免文本转义)
+     * 格式: [类型(1)][TTL(4)][时间戳(8)][messageId][senderId][targetId][content]
+     * 字符串字段均为 [长度(4)][UTF-8字节]，长度为-1表示null
+     */
+    public byte[] toBytes() {
+        byte[] idBytes = messageId.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = senderId.getBytes(StandardCharsets.UTF_8);
+        byte[] targetBytes = targetId != null ? targetId.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] contentBytes = content != null ? content.getBytes(StandardCharsets.UTF_8) : null;
+
+        int length = 1 + 4 + 8 + 16 + idBytes.length + senderBytes.length
+            + (targetBytes != null ? targetBytes.length : 0)
+            + (contentBytes != null ? contentBytes.length : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) type.ordinal());
+        buffer.putInt(ttl);
+        buffer.putLong(timestamp);
+        putBytes(buffer, idBytes);
+        putBytes(buffer, senderBytes);
+        putBytes(buffer, targetBytes);
+        putBytes(buffer, contentBytes);
+        return buffer.array();
+    }
+
+    public static Message fromBytes(ByteBuffer buffer) {
+        try {
+            int typeIndex = buffer.get() & 0xFF;
+            Type[] types = Type.values();
+            if (typeIndex >= types.length) {
+                throw new IllegalArgumentException("Unknown message type: " + typeIndex);
+            }
+            int ttl = buffer.getInt();
+            long timestamp = buffer.getLong();
+            String messageId = getString(buffer);
+            String senderId = getString(buffer);
+            String targetId = getString(buffer);
+            String content = getString(buffer);
+            if (messageId == null || senderId == null) {
+                throw new IllegalArgumentException("Missing message id or sender");
+            }
+            return new Message(messageId, types[typeIndex], senderId, content != null ? content : "", timestamp, ttl, targetId);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary message", e);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid field length: " + length);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
     // 内容编解码 (保持不变)
     private static String encodeContent(String content) {
         if (content == null) return "";
@@ -1,8 +1,14 @@
 package com.group7.chat;
 
+import com.group7.chat.logging.Logger;
 import com.group7.chat.Node.NodeInfo;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
+import com.group7.chat.security.SecurityManager;
 import java.io.File;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -11,16 +17,52 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * 消息路由器，负责处理DOP协议消息和应用层消息的路由
  */
 public class MessageRouter {
+
+    private static final Logger log = Logger.getLogger(MessageRouter.class);
+
     private final Node node;
     private final Set<String> processedMessages = new CopyOnWriteArraySet<>();
     private final Map<String, Long> messageTimestamps = new ConcurrentHashMap<>();
     private MessageListener messageListener;
+    private final RateLimiter rateLimiter;
+    private final MailboxStore mailboxes;
+    // 最近处理过的FETCH证明及其响应，证明过期 (RequestProof.MAX_SKEW_MS) 前重发的请求得到相同的响应
+    private final Map<String, String> fetchResponses = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FETCH_RESPONSES;
+        }
+    };
+
+    private final Map<Message.Type, Counter> receivedByType = new EnumMap<>(Message.Type.class);
+    private final Map<Message.Type, Counter> sentByType = new EnumMap<>(Message.Type.class);
+    private final Counter duplicateMessages;
+    private final Counter forwardedMessages;
+    private final Histogram forwardFanout;
 
     private static final long CLEANUP_INTERVAL = 300000; // 5分钟
     private static final long MESSAGE_EXPIRE_TIME = 600000; // 10分钟
+    private static final int MAX_FETCH_RESPONSES = 256;
+
+    // 信箱请求证明的用途，签名时与请求内容绑定
+    static final String MAILBOX_STORE = "mailbox-store";
+    static final String MAILBOX_FETCH = "mailbox-fetch";
 
     public MessageRouter(Node node) {
         this.node = node;
+
+        MetricsRegistry metrics = node.getMetrics();
+        for (Message.Type type : Message.Type.values()) {
+            receivedByType.put(type, metrics.counter("chat_messages_received_total", "按类型统计的收到消息数", "type", type.name()));
+            sentByType.put(type, metrics.counter("chat_messages_sent_total", "按类型统计的发出消息数（每个接收连接计一次）", "type", type.name()));
+        }
+        this.duplicateMessages = metrics.counter("chat_messages_duplicate_total", "因重复而丢弃的消息数");
+        this.forwardedMessages = metrics.counter("chat_messages_forwarded_total", "转发或广播的消息数");
+        this.forwardFanout = metrics.histogram("chat_forward_fanout", "每次转发发往的连接数");
+        metrics.gauge("chat_dedup_cache_size", "去重缓存中的消息ID数", messageTimestamps::size);
+        this.rateLimiter = new RateLimiter(metrics);
+        this.mailboxes = new MailboxStore(metrics);
+
         startCleanupTask();
     }
 
@@ -36,10 +78,18 @@ public class MessageRouter {
      * 处理接收到的所有消息
      */
     public void handleMessage(PeerConnection source, Message message) {
+        // 先按连接限速，超限的消息不做去重和路由
+        if (source != null && !admit(source, message)) return;
         if (isMessageProcessed(message)) {
+            duplicateMessages.increment();
             return; // 忽略重复消息
         }
+        // 再按原始发送者限速，同一消息经多条路径到达的副本已在上面被去重
+        if (source != null && !rateLimiter.admitFromSender(message)) return;
         markMessageAsProcessed(message);
+        if (source != null) {
+            receivedByType.get(message.getType()).increment();
+        }
 
         // 更新发送方节点的路由信息
         updateSenderNodeInfo(message);
@@ -66,7 +116,11 @@ public class MessageRouter {
             case CHAT:
                 handleChatMessage(source, message);
                 break;
+            case SECURE_CHAT:
+                handleSecureChatMessage(source, message);
+                break;
             case PRIVATE_CHAT:
+            case SECURE_PRIVATE_CHAT:
                 handlePrivateChatMessage(source, message);
                 break;
             case FILE_REQUEST:
@@ -77,6 +131,27 @@ public class MessageRouter {
                 // 文件传输响应也需要路由
                 routeAppMessage(source, message);
                 break;
+            case PRESENCE_SYNC:
+            case PRESENCE_DELTA:
+            case PRESENCE_DIGEST:
+                handlePresenceMessage(source, message);
+                break;
+            case SEALED_SENDER_KEY:
+                // 发给本节点的发送者密钥直接安装，不依赖界面监听器；其他的像私聊一样转发
+                if (node.getNodeIdString().equals(message.getTargetId())) {
+                    node.installSealedSenderKey(message);
+                } else if (message.getTargetId() != null) {
+                    routeAppMessage(source, message);
+                }
+                break;
+            case STORE:
+            case FETCH:
+            case STORE_VALUE:
+            case FIND_VALUE:
+            case VALUE:
+                // 信箱和键值存储请求只通过UDP RPC处理，不在TCP连接上转发
+                log.debug(() -> "忽略TCP连接上的DHT请求: " + message.getType());
+                break;
 
             default:
                 // 对于其他应用层消息，统一进行路由
@@ -84,27 +159,46 @@ public class MessageRouter {
         }
     }
 
+    private boolean admit(PeerConnection source, Message message) {
+        switch (rateLimiter.admitFromConnection(source, message)) {
+            case ACCEPT:
+                return true;
+            case DISCONNECT:
+                source.close();
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 连接关闭时清除该连接的限速状态
+     */
+    public void onConnectionClosed(PeerConnection connection) {
+        rateLimiter.forget(connection);
+    }
+
     /**
      * 路由应用层消息 (如 CHAT, PRIVATE_CHAT)
      */
     private void routeAppMessage(PeerConnection source, Message message) {
-        System.out.println("路由应用消息: " + message.getType() + ", 目标: " + 
+        log.debug(() -> "路由应用消息: " + message.getType() + ", 目标: " + 
             (message.getTargetId() != null ? message.getTargetId().substring(0, 8) + "..." : "null") + 
             ", 我的ID: " + node.getNodeIdString().substring(0, 8) + "...");
         
         // 检查消息是否是发给自己的
         if (message.getTargetId() != null && message.getTargetId().equals(node.getNodeIdString())) {
-            System.out.println("消息是发给我的，本地处理");
+            log.debug("消息是发给我的，本地处理");
             // 是发给我的，本地处理
             processLocalAppMessage(message);
         } else {
-            System.out.println("消息不是发给我的，检查是否可以转发: " + message.canForward());
+            log.debug(() -> "消息不是发给我的，检查是否可以转发: " + message.canForward());
             // 不是发给我的，或者需要广播，进行转发
             if (message.canForward()) {
-                System.out.println("开始转发消息");
+                log.debug("开始转发消息");
                 forwardMessage(source, message);
             } else {
-                System.out.println("消息不能转发 (TTL=" + message.getTtl() + ")");
+                log.debug(() -> "消息不能转发 (TTL=" + message.getTtl() + ")");
             }
         }
     }
@@ -117,9 +211,12 @@ public class MessageRouter {
 
         switch (message.getType()) {
             case PRIVATE_CHAT:
-                System.out.println("处理本地私聊消息: " + message.getSenderId().substring(0, 8) + "... -> " + node.getDisplayName() + ": " + message.getContent());
+                log.debug(() -> "处理本地私聊消息: " + message.getSenderId().substring(0, 8) + "... -> " + node.getDisplayName() + ": " + message.getContent());
                 messageListener.onPrivateChatMessageReceived(message.getSenderId(), message.getContent());
                 break;
+            case SECURE_PRIVATE_CHAT:
+                openSecurePrivateMessage(message);
+                break;
             case FILE_REQUEST:
                 handleFileTransferRequest(null, message);
                 break;
@@ -130,6 +227,24 @@ public class MessageRouter {
         }
     }
 
+    /**
+     * 解密发给本节点的端到端加密私聊，没有发送方公钥时先从DHT查询其公钥记录
+     */
+    private void openSecurePrivateMessage(Message message) {
+        SecurityManager securityManager = node.getSecurityManager();
+        if (securityManager == null) return;
+        node.resolvePeerKey(message.getSenderId()).thenAccept(found -> {
+            String content = found ? securityManager.openPrivateMessage(message) : null;
+            if (content == null) {
+                log.warn("无法解密来自 " + message.getSenderId().substring(0, 8) + " 的私聊消息");
+                return;
+            }
+            if (messageListener != null) {
+                messageListener.onPrivateChatMessageReceived(message.getSenderId(), content);
+            }
+        });
+    }
+
     /**
      * 广播消息到网络（用于自己发起的群聊等）
      */
@@ -144,12 +259,14 @@ public class MessageRouter {
     private void forwardMessage(PeerConnection source, Message message) {
         Message forwardMessage = message.createForwardCopy();
         String serialized = forwardMessage.serialize();
+        int fanout = 0;
 
         // 如果是广播或群聊消息，发送给所有邻居
         if (message.getTargetId() == null) {
             for (PeerConnection connection : node.getConnections().values()) {
                 if (connection != source && connection.isConnected()) {
-                    connection.sendMessage(serialized);
+                    node.sendToPeer(connection, forwardMessage, serialized);
+                    fanout++;
                 }
             }
         } else {
@@ -157,17 +274,18 @@ public class MessageRouter {
             String targetNodeId = message.getTargetId();
             boolean sentDirectly = false;
             
-            System.out.println("转发私聊消息，目标: " + targetNodeId.substring(0, 8) + "..., 当前连接数: " + node.getConnections().size());
+            log.debug(() -> "转发私聊消息，目标: " + targetNodeId.substring(0, 8) + "..., 当前连接数: " + node.getConnections().size());
             
             // 检查是否有直接连接到目标节点
             for (PeerConnection connection : node.getConnections().values()) {
                 String remoteId = connection.getRemoteNodeId();
-                System.out.println("检查连接: " + connection.getAddress() + ", 远程ID: " + (remoteId != null ? remoteId.substring(0, 8) + "..." : "null"));
+                log.debug(() -> "检查连接: " + connection.getAddress() + ", 远程ID: " + (remoteId != null ? remoteId.substring(0, 8) + "..." : "null"));
                 
                 if (connection != source && connection.isConnected() && 
                     targetNodeId.equals(connection.getRemoteNodeId())) {
-                    System.out.println("找到直接连接，发送私聊消息到: " + connection.getAddress());
-                    connection.sendMessage(serialized);
+                    log.debug(() -> "找到直接连接，发送私聊消息到: " + connection.getAddress());
+                    node.sendToPeer(connection, forwardMessage, serialized);
+                    fanout++;
                     sentDirectly = true;
                     break;
                 }
@@ -175,14 +293,40 @@ public class MessageRouter {
             
             // 如果没有直接连接，则转发给所有邻居（洪泛方式）
             if (!sentDirectly) {
-                System.out.println("没有找到目标节点的直接连接，使用洪泛转发私聊消息");
+                log.debug("没有找到目标节点的直接连接，使用洪泛转发私聊消息");
                 for (PeerConnection connection : node.getConnections().values()) {
                     if (connection != source && connection.isConnected()) {
-                        connection.sendMessage(serialized);
+                        node.sendToPeer(connection, forwardMessage, serialized);
+                        fanout++;
                     }
                 }
             }
         }
+
+        forwardedMessages.increment();
+        forwardFanout.record(fanout);
+    }
+
+    /**
+     * 直接回复来源连接（明文帧）
+     */
+    private void reply(PeerConnection source, Message message) {
+        recordSent(message.getType());
+        source.sendMessage(message.serialize(), PeerConnection.Lane.of(message.getType()));
+    }
+
+    /**
+     * 统计一条发出的消息
+     */
+    public void recordSent(Message.Type type) {
+        sentByType.get(type).increment();
+    }
+
+    /**
+     * 已发出的某类型消息数
+     */
+    public long getSentCount(Message.Type type) {
+        return sentByType.get(type).get();
     }
 
     // --- DOP 消息处理器 ---
@@ -190,21 +334,209 @@ public class MessageRouter {
     private void handlePingMessage(PeerConnection source, Message message) {
         // 回复PONG消息
         Message pongMessage = new Message(Message.Type.PONG, node.getNodeIdString(), "pong");
-        source.sendMessage(pongMessage.serialize());
+        reply(source, pongMessage);
     }
 
     private void handlePongMessage(PeerConnection source, Message message) {
         // PONG消息确认对方在线，其信息已在 handleMessage 开始时通过 updateSenderNodeInfo 更新
-        System.out.println("收到来自 " + message.getSenderId().substring(0, 8) + " 的 PONG");
+        log.debug(() -> "收到来自 " + message.getSenderId().substring(0, 8) + " 的 PONG");
     }
 
     private void handleFindNodeMessage(PeerConnection source, Message message) {
         String targetIdStr = message.getTargetId();
         if (targetIdStr == null) return;
 
-        System.out.println("收到来自 " + message.getSenderId().substring(0, 8) + " 的 FIND_NODE 请求");
+        log.debug(() -> "收到来自 " + message.getSenderId().substring(0, 8) + " 的 FIND_NODE 请求");
 
-        BigInteger targetId = new BigInteger(targetIdStr, 16);
+        reply(source, createNeighborsMessage(new BigInteger(targetIdStr, 16)));
+    }
+
+    private void handleNeighborsMessage(PeerConnection source, Message message) {
+        log.debug(() -> "收到来自 " + message.getSenderId().substring(0, 8) + " 的 NEIGHBORS 列表");
+        for (NodeInfo newNode : parseNeighbors(message.getContent())) {
+            node.updateRoutingTable(newNode);
+
+            // 尝试连接到新发现的节点以丰富连接
+            if (!node.getConnections().containsKey(newNode.getAddress())) {
+                node.connectToPeer(newNode.getAddress());
+            }
+        }
+    }
+
+    /**
+     * 处理通过UDP收到的DHT控制请求 (见 DhtRpc)，返回响应消息，不支持的类型返回null
+     *
+     * 请求按源地址限速。请求的源地址即发送方节点的地址，但UDP源地址可以伪造，
+     * 发送方要先响应本节点的PING才会加入路由表 (见 Node.addContactAfterPing)；
+     * 响应的NEIGHBORS只更新路由表，不建立TCP连接。
+     */
+    public Message handleRpcRequest(Message request, InetSocketAddress source) {
+        if (!rateLimiter.admitFromAddress(source, request)) return null;
+        BigInteger senderId = parseNodeId(request.getSenderId());
+        if (senderId == null) return null;
+        receivedByType.get(request.getType()).increment();
+        node.addContactAfterPing(new NodeInfo(senderId, source.getHostString(), source.getPort()));
+
+        Message response;
+        switch (request.getType()) {
+            case PING:
+                response = new Message(Message.Type.PONG, node.getNodeIdString(), "pong");
+                break;
+            case FIND_NODE:
+                if (request.getTargetId() == null) return null;
+                response = createNeighborsMessage(new BigInteger(request.getTargetId(), 16));
+                break;
+            case STORE:
+                response = handleStoreRequest(request);
+                break;
+            case FETCH:
+                response = handleFetchRequest(request);
+                break;
+            case STORE_VALUE:
+                response = handleStoreValueRequest(request);
+                break;
+            case FIND_VALUE:
+                response = handleFindValueRequest(request);
+                break;
+            default:
+                return null;
+        }
+        if (response == null) return null;
+        recordSent(response.getType());
+        return response;
+    }
+
+    /**
+     * 解析十六进制的节点ID，不是合法的256位ID时返回null
+     */
+    static BigInteger parseNodeId(String id) {
+        if (id == null || id.isEmpty() || id.length() > RoutingTable.ID_LENGTH / 4) return null;
+        try {
+            BigInteger value = new BigInteger(id, 16);
+            return value.signum() >= 0 ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 日志中显示的节点ID前缀，ID可能来自未验证的请求，长度不足8时原样返回
+     */
+    private static String shortId(String id) {
+        return id.length() > 8 ? id.substring(0, 8) : id;
+    }
+
+    /**
+     * 暂存发给离线节点的私聊消息：请求内容为 证明\n内层消息，证明须由请求者的身份密钥签发 (见 RequestProof)，
+     * 内层消息必须是请求者本人发给 targetId 的私聊
+     */
+    private Message handleStoreRequest(Message request) {
+        String recipientId = request.getTargetId();
+        SecurityManager securityManager = node.getSecurityManager();
+        int split = request.getContent().indexOf('\n');
+        if (recipientId == null || securityManager == null || split < 0) return null;
+        String proof = request.getContent().substring(0, split);
+        String serialized = request.getContent().substring(split + 1);
+        Message inner;
+        try {
+            inner = Message.deserialize(serialized);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!isPrivateChat(inner) || !recipientId.equals(inner.getTargetId())
+                || !request.getSenderId().equals(inner.getSenderId())) {
+            log.warn("拒绝格式不正确的信箱请求，来自 " + shortId(request.getSenderId()));
+            return null;
+        }
+        if (!securityManager.verifyRequest(proof, MAILBOX_STORE, request.getSenderId(), recipientId, serialized)) {
+            log.warn("拒绝未通过身份验证的信箱暂存请求，来自 " + shortId(request.getSenderId()));
+            return null;
+        }
+        boolean accepted = mailboxes.store(recipientId, request.getSenderId(), serialized);
+        return new Message(Message.Type.STORE, node.getNodeIdString(), accepted ? "ok" : "full");
+    }
+
+    /**
+     * 返回请求者信箱中的下一批消息，请求内容为 确认序号\n证明：确认序号是上一批最后一条的序号（首次为0），
+     * 证明由请求者的身份密钥对本节点ID和确认序号签发，验证通过后才删除已确认的消息。
+     * 同一证明重发时返回第一次的响应，截获的请求不能用来取走之后到达的消息。
+     */
+    private Message handleFetchRequest(Message request) {
+        SecurityManager securityManager = node.getSecurityManager();
+        int split = request.getContent().indexOf('\n');
+        if (securityManager == null || split < 0) return null;
+        String ack = request.getContent().substring(0, split);
+        String proof = request.getContent().substring(split + 1);
+        long acked;
+        try {
+            acked = Long.parseLong(ack);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!securityManager.verifyRequest(proof, MAILBOX_FETCH, request.getSenderId(), node.getNodeIdString(), ack)) {
+            log.warn("拒绝未通过身份验证的信箱取回请求，来自 " + shortId(request.getSenderId()));
+            return null;
+        }
+        synchronized (fetchResponses) {
+            String previous = fetchResponses.get(proof);
+            if (previous == null) {
+                previous = MailboxStore.encodeBatch(mailboxes.fetch(request.getSenderId(), acked));
+                fetchResponses.put(proof, previous);
+            }
+            return new Message(Message.Type.FETCH, node.getNodeIdString(), previous);
+        }
+    }
+
+    /**
+     * 保存其他节点发布或缓存的值
+     */
+    private Message handleStoreValueRequest(Message request) {
+        if (request.getTargetId() == null) return null;
+        DhtValueStore.Value value = DhtValueStore.decode(request.getContent());
+        if (value == null) return null;
+        boolean accepted = node.getValueStore().put(new BigInteger(request.getTargetId(), 16),
+                value.getValue(), value.getVersion(), value.getTtlMs(), value.getKind());
+        return new Message(Message.Type.STORE_VALUE, node.getNodeIdString(), accepted ? "ok" : "rejected");
+    }
+
+    /**
+     * 有该键的值时以VALUE响应，否则与FIND_NODE一样返回离键最近的K个节点
+     */
+    private Message handleFindValueRequest(Message request) {
+        if (request.getTargetId() == null) return null;
+        BigInteger key = new BigInteger(request.getTargetId(), 16);
+        DhtValueStore.Value value = node.getValueStore().get(key);
+        if (value == null) return createNeighborsMessage(key);
+        long ttl = value.remainingTtl(System.currentTimeMillis());
+        return new Message(Message.Type.VALUE, node.getNodeIdString(), DhtValueStore.encode(value.getValue(),
+                value.getVersion(), ttl, value.getKind() == DhtValueStore.Kind.CACHED));
+    }
+
+    /**
+     * 投递从信箱取回的消息，只接受发给本节点的私聊；已处理过的消息由去重缓存过滤
+     */
+    public void deliverFromMailbox(String serialized) {
+        Message message;
+        try {
+            message = Message.deserialize(serialized);
+        } catch (IllegalArgumentException e) {
+            log.warn("信箱中的消息无法解析，已丢弃");
+            return;
+        }
+        if (!isPrivateChat(message) || !node.getNodeIdString().equals(message.getTargetId())) {
+            return;
+        }
+        handleMessage(null, message);
+    }
+
+    private static boolean isPrivateChat(Message message) {
+        return message.getType() == Message.Type.PRIVATE_CHAT || message.getType() == Message.Type.SECURE_PRIVATE_CHAT;
+    }
+
+    /**
+     * 构造包含离目标最近的K个节点的NEIGHBORS消息
+     */
+    private Message createNeighborsMessage(BigInteger targetId) {
         List<NodeInfo> closestNodes = node.findClosestNodes(targetId, Node.K_VALUE);
 
         // 将节点信息序列化为 Content
@@ -214,37 +546,27 @@ public class MessageRouter {
                           .append(info.getHost()).append(",")
                           .append(info.getPort()).append(";");
         }
-
-        Message neighborsMessage = new Message(Message.Type.NEIGHBORS, node.getNodeIdString(), contentBuilder.toString());
-        source.sendMessage(neighborsMessage.serialize());
+        return new Message(Message.Type.NEIGHBORS, node.getNodeIdString(), contentBuilder.toString());
     }
 
-    private void handleNeighborsMessage(PeerConnection source, Message message) {
-        System.out.println("收到来自 " + message.getSenderId().substring(0, 8) + " 的 NEIGHBORS 列表");
-        String content = message.getContent();
-        if (content.isEmpty()) return;
+    /**
+     * 解析NEIGHBORS消息的内容，跳过格式错误的条目
+     */
+    public static List<NodeInfo> parseNeighbors(String content) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        if (content == null || content.isEmpty()) return nodes;
 
-        String[] nodesStr = content.split(";");
-        for (String nodeStr : nodesStr) {
+        for (String nodeStr : content.split(";")) {
             String[] parts = nodeStr.split(",");
             if (parts.length == 3) {
                 try {
-                    BigInteger nodeId = new BigInteger(parts[0], 16);
-                    String host = parts[1];
-                    int port = Integer.parseInt(parts[2]);
-
-                    NodeInfo newNode = new NodeInfo(nodeId, host, port);
-                    node.updateRoutingTable(newNode);
-
-                    // 尝试连接到新发现的节点以丰富连接
-                    if (!node.getConnections().containsKey(newNode.getAddress())) {
-                        node.connectToPeer(newNode.getAddress());
-                    }
+                    nodes.add(new NodeInfo(new BigInteger(parts[0], 16), parts[1], Integer.parseInt(parts[2])));
                 } catch (NumberFormatException e) {
-                    System.err.println("解析NEIGHBORS消息失败: " + nodeStr);
+                    log.error("解析NEIGHBORS消息失败: " + nodeStr);
                 }
             }
         }
+        return nodes;
     }
 
     // --- 应用层消息处理器 (部分保留) ---
@@ -252,25 +574,37 @@ public class MessageRouter {
     private void handleHelloMessage(PeerConnection source, Message message) {
         // HELLO 消息在DOP中主要用于初始连接和信息交换
         // 节点信息已在 handleMessage 开始时更新
-        System.out.println("收到来自 " + message.getSenderId().substring(0, 8) + " 的 HELLO");
+        log.info("收到来自 " + message.getSenderId().substring(0, 8) + " 的 HELLO");
 
         // 设置连接的远程节点ID
         source.setRemoteNodeId(message.getSenderId());
 
-        // 通知GUI有新成员加入
-        if (messageListener != null) {
-            messageListener.onMemberJoined(message.getSenderId(), message.getContent());
-        }
+        // 新成员加入时分发本节点的发送者密钥
+        node.distributeSenderKey(source);
+
+        // 直接连接的邻居记为在线，并从它同步整个网络的在线状态
+        node.getPresence().onNeighborHello(source, message.getSenderId(), message.getContent());
 
         // 回复一个HELLO，确认连接
         if (source.isInbound()) {
             Message replyHello = new Message(Message.Type.HELLO, node.getNodeIdString(), node.getAddress());
-            source.sendMessage(replyHello.serialize());
+            reply(source, replyHello);
         }
 
         // 向新节点发起节点发现请求，以获取其邻居
         Message findNodeMessage = new Message(Message.Type.FIND_NODE, node.getNodeIdString(), "", message.getSenderId());
-        source.sendMessage(findNodeMessage.serialize());
+        reply(source, findNodeMessage);
+    }
+
+    /**
+     * 在线状态消息只在邻居之间交换，回复同一连接，不转发
+     */
+    private void handlePresenceMessage(PeerConnection source, Message message) {
+        if (source == null) return;
+        Message response = node.getPresence().handle(source, message);
+        if (response != null) {
+            node.sendToPeer(source, response, response.serialize());
+        }
     }
 
     private void handleChatMessage(PeerConnection source, Message message) {
@@ -283,8 +617,22 @@ public class MessageRouter {
         }
     }
 
+    private void handleSecureChatMessage(PeerConnection source, Message message) {
+        SecurityManager securityManager = node.getSecurityManager();
+        if (messageListener != null && securityManager != null) {
+            String content = securityManager.openGroupMessage(message);
+            if (content != null) {
+                messageListener.onChatMessageReceived(message.getSenderId(), content);
+            }
+        }
+        // 密文原样转发，即使本节点尚未收到发送者密钥
+        if (message.canForward()) {
+            forwardMessage(source, message);
+        }
+    }
+
     private void handlePrivateChatMessage(PeerConnection source, Message message) {
-        System.out.println("处理私聊消息: " + message.getSenderId().substring(0, 8) + "... -> " + 
+        log.debug(() -> "处理私聊消息: " + message.getSenderId().substring(0, 8) + "... -> " + 
             (message.getTargetId() != null ? message.getTargetId().substring(0, 8) + "..." : "null"));
         // 私聊消息需要通过路由系统处理
         routeAppMessage(source, message);
@@ -299,7 +647,7 @@ public class MessageRouter {
                 long fileSize = Long.parseLong(parts[1]);
                 messageListener.onFileTransferRequest(message.getSenderId(), fileName, fileSize);
             } catch (NumberFormatException e) {
-                System.err.println("解析文件大小失败: " + parts[1]);
+                log.error("解析文件大小失败: " + parts[1]);
             }
         }
     }
@@ -340,7 +688,7 @@ public class MessageRouter {
                 node.updateRoutingTable(senderInfo);
             }
         } catch (Exception e) {
-            // System.err.println("更新发送者节点信息失败: " + e.getMessage());
+            log.debug(() -> "更新发送者节点信息失败: " + e.getMessage());
         }
     }
 
@@ -361,6 +709,8 @@ public class MessageRouter {
                 long currentTime = System.currentTimeMillis();
                 messageTimestamps.entrySet().removeIf(entry -> currentTime - entry.getValue() > MESSAGE_EXPIRE_TIME);
                 processedMessages.retainAll(messageTimestamps.keySet());
+                rateLimiter.cleanup();
+                mailboxes.cleanup();
             }
         }, CLEANUP_INTERVAL, CLEANUP_INTERVAL);
     }
@@ -371,7 +721,7 @@ public class MessageRouter {
             node.getFileTransferService().sendFile(targetNodeId, fileToSend, savePath);
             node.removePendingFile(fileName);
         } else {
-            System.err.println("找不到要发送的文件: " + fileName);
+            log.warn("找不到要发送的文件: " + fileName);
         }
     }
     
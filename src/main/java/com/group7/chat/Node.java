@@ -1,37 +1,60 @@
 package com.group7.chat;
 
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
+import com.group7.chat.metrics.MetricsServer;
+import com.group7.chat.security.CryptoPipeline;
+import com.group7.chat.security.KeyRecord;
+import com.group7.chat.security.SecureFileTransferService;
 import com.group7.chat.security.SecurityManager;
+import com.group7.chat.store.MessageStore;
+import com.group7.chat.transport.Channel;
+import com.group7.chat.transport.Transport;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * P2P聊天网络中的节点类 (已更新为支持Kademlia风格的路由)
  */
 public class Node {
+
+    private static final Logger log = Logger.getLogger(Node.class);
+
     // --- Kademlia 常量 ---
     public static final int K_VALUE = 20; // 每个K-桶的大小
-    private static final int ID_LENGTH = 256; // 节点ID的位数 (SHA-256)
+    private static final long SNAPSHOT_INTERVAL_MINUTES = 5; // 路由表快照的保存间隔
+    private static final long MAILBOX_FETCH_DELAY_SECONDS = 2; // 引导后等待节点查找结果再取回离线消息
+    private static final int MAX_MAILBOX_BATCHES = 100; // 每个信箱节点最多取回的批数
+    private static final long REPUBLISH_CHECK_MINUTES = 1; // 检查需要重新发布的DHT值的间隔
+    private static final long KEY_LOOKUP_TIMEOUT_MS = 3000; // 发送私聊前查询对端公钥记录的最长等待
+    private static final int MAX_CONTACT_CHECKS = 64; // 同时等待PONG验证的UDP来源节点数
+    private static final long SENDER_KEY_RETRY_SECONDS = 3; // 查不到成员公钥时重试分发发送者密钥的间隔
+    private static final int SENDER_KEY_ATTEMPTS = 4; // 分发发送者密钥的最多尝试次数，新节点的公钥记录在引导后才发布
 
     // --- 节点核心属性 ---
     private final int port;
     private final BigInteger nodeId;
-    private ServerSocket serverSocket;
+    private final Transport transport;
     private boolean running = false;
 
     // --- Kademlia 路由表 ---
-    private final List<Map<BigInteger, NodeInfo>> routingTable;
+    private final RoutingTable routingTable;
+    private final Path snapshotPath;
 
     // --- 连接和状态管理 ---
     private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
@@ -42,8 +65,29 @@ public class Node {
     private MessageRouter messageRouter;
     private FileTransferService fileTransferService;
     private SecurityManager securityManager;
+    private final DhtRpc dhtRpc;
+    private final DhtValueStore valueStore;
+    private final PresenceService presence;
+    private MessageStore messageStore; // 首次使用时打开，无界面的节点不创建
 
     private final Map<String, File> pendingFiles = new ConcurrentHashMap<>();
+    // 每个目标节点最后一条尚未发出的私聊，后续私聊排在它之后，查询公钥期间的发送顺序不变
+    private final Map<String, CompletableFuture<Void>> pendingPrivateSends = new ConcurrentHashMap<>();
+    // 只通过UDP请求得知、正在等待PONG验证的节点
+    private final Set<BigInteger> pendingContactChecks = ConcurrentHashMap.newKeySet();
+    // 查找时没有响应、正在用PING确认是否离线的路由表节点
+    private final Set<BigInteger> pendingLivenessChecks = ConcurrentHashMap.newKeySet();
+
+    // 每个节点一个指标注册表，组件在构造时从这里取得各自的计数器
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Counter connectionsOpened;
+    private final Counter connectionsClosed;
+    private final Counter plaintextPrivateMessages;
+    private final Counter framesDropped;
+    private final Histogram frameDispatchTimer;
+    private final Histogram lookupHops;
+    private final Counter routingEvictions;
+    private MetricsServer metricsServer;
 
     public static class NodeInfo {
         private final BigInteger nodeId;
@@ -69,27 +113,75 @@ public class Node {
         public long getLastSeen() { return lastSeen; }
     }
 
-    public Node(int port) {
-        this.port = port;
-        this.nodeId = generateNodeId();
-        this.messageRouter = new MessageRouter(this);
-        this.fileTransferService = new FileTransferService(this);
+    /**
+     * 一次值查找的结果：找不到时 value 为null，hops 为查找经过的跳数 (本地命中为0，见 DhtLookup)
+     */
+    public static final class ValueLookup {
+        private final String value;
+        private final int hops;
 
-        this.routingTable = new ArrayList<>(ID_LENGTH);
-        for (int i = 0; i < ID_LENGTH; i++) {
-            routingTable.add(new ConcurrentHashMap<>());
+        ValueLookup(String value, int hops) {
+            this.value = value;
+            this.hops = hops;
         }
 
+        public String getValue() { return value; }
+        public int getHops() { return hops; }
+    }
+
+    /**
+     * 创建节点，传输层由系统属性 group7.transport 选择 (tcp/nio/memory)，默认tcp
+     */
+    public Node(int port) {
+        this(port, Transport.create(System.getProperty("group7.transport")));
+    }
+
+    public Node(int port, Transport transport) {
+        this.port = port;
+        this.transport = transport;
+
+        // 节点ID由持久化的长期公钥派生，重启后保持不变；安全组件不可用时退回随机ID
         try {
-            this.securityManager = new SecurityManager(nodeId.toString(16), port);
+            this.securityManager = new SecurityManager(port);
         } catch (Exception e) {
-            System.err.println("安全管理器初始化失败: " + e.getMessage());
+            log.error("安全管理器初始化失败: " + e.getMessage());
             this.securityManager = null;
         }
+        this.nodeId = securityManager != null
+                ? new BigInteger(securityManager.getKeyManager().getNodeId(), 16)
+                : generateNodeId();
+        this.connectionsOpened = metrics.counter("chat_connections_opened_total", "建立的连接数");
+        this.connectionsClosed = metrics.counter("chat_connections_closed_total", "断开的连接数");
+        this.plaintextPrivateMessages = metrics.counter("chat_private_plaintext_total", "因没有对端公钥而以明文发出的私聊数");
+        this.framesDropped = metrics.counter("chat_frames_dropped_total", "无法解码或被拒绝的帧数");
+        this.frameDispatchTimer = metrics.timer("chat_frame_dispatch_seconds", "单帧解码和路由处理耗时");
+        this.lookupHops = metrics.histogram("chat_dht_lookup_hops", "每次DHT迭代查找的跳数");
+        this.routingEvictions = metrics.counter("chat_routing_evicted_total", "PING无响应而从路由表移除的节点数");
+        this.valueStore = new DhtValueStore(metrics, this::verifiedValueVersion);
+        this.messageRouter = new MessageRouter(this);
+        this.presence = new PresenceService(this, metrics);
+        this.fileTransferService = new FileTransferService(this);
+
+        this.routingTable = new RoutingTable(nodeId, K_VALUE);
+        this.snapshotPath = RoutingTableSnapshot.defaultPath(port);
+        this.dhtRpc = new DhtRpc(port, transport, messageRouter::handleRpcRequest, metrics);
+
+        if (securityManager != null) {
+            securityManager.bindMetrics(metrics);
+            securityManager.getKeyManager().addSessionKeyListener((peerId, keyId, previousKeyId) -> onSessionKeyStored(peerId));
+            securityManager.getSecureFileTransferService()
+                    .setStreamOpener(peerId -> openStream(peerId, SecureFileTransferService.PROTOCOL));
+        }
 
-        System.out.println("节点创建完成，ID: " + nodeId.toString(16).substring(0, 12) + "..., 端口: " + port);
+        metrics.gauge("chat_connections", "当前连接数", connections::size);
+        metrics.gauge("chat_routing_table_nodes", "路由表中的节点总数", routingTable::size);
+
+        log.info("节点创建完成，ID: " + nodeId.toString(16).substring(0, 12) + "..., 端口: " + port);
     }
 
+    /**
+     * 生成一个随机节点ID（仅在无法加载长期密钥时使用，每次启动都会变化）
+     */
     private BigInteger generateNodeId() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
@@ -101,23 +193,14 @@ public class Node {
         }
     }
 
-    private BigInteger getDistance(BigInteger id1, BigInteger id2) {
-        return id1.xor(id2);
-    }
-
-    private int getBucketIndex(BigInteger targetNodeId) {
-        BigInteger distance = getDistance(this.nodeId, targetNodeId);
-        if (distance.equals(BigInteger.ZERO)) return 0;
-        return ID_LENGTH - distance.bitLength();
-    }
-
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
+            transport.listen(port, this::acceptConnection);
             running = true;
-            System.out.println("节点 " + getNodeIdString().substring(0, 8) + " 启动成功，监听端口: " + port);
+            log.info("节点 " + getNodeIdString().substring(0, 8) + " 启动成功，监听端口: " + port + " (" + transport.getName() + ")");
 
-            new Thread(this::acceptConnections).start();
+            dhtRpc.start();
+            restoreRoutingTable();
             startMaintenanceTasks();
             fileTransferService.start();
 
@@ -125,28 +208,39 @@ public class Node {
                 securityManager.start();
             }
 
+            Integer metricsPort = Integer.getInteger("group7.metrics.port");
+            if (metricsPort != null) {
+                startMetricsServer(metricsPort);
+            }
+
             bootstrap();
 
         } catch (Exception e) {
-            System.err.println("无法启动节点: " + e.getMessage());
+            log.error("无法启动节点: " + e.getMessage());
         }
     }
 
     public void stop() {
+        if (running) {
+            saveRoutingTable();
+            presence.leave();
+        }
         running = false;
         scheduler.shutdownNow();
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
-            if (fileTransferService != null) fileTransferService.stop();
-            if (securityManager != null) securityManager.stop();
-            for (PeerConnection connection : connections.values()) {
-                connection.close();
-            }
-            connections.clear();
-            System.out.println("节点 " + getNodeIdString().substring(0, 8) + " 已停止");
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (metricsServer != null) metricsServer.stop();
+        transport.close();
+        dhtRpc.stop();
+        if (fileTransferService != null) fileTransferService.stop();
+        if (securityManager != null) securityManager.stop();
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+        synchronized (this) {
+            if (messageStore != null) messageStore.close();
+            messageStore = null;
         }
+        log.info("节点 " + getNodeIdString().substring(0, 8) + " 已停止");
     }
 
     public void addBootstrapPeer(String address) {
@@ -155,17 +249,190 @@ public class Node {
         }
     }
 
+    /**
+     * 加载上次保存的路由表快照，并行PING其中的节点：无响应的移除，在线的节点在连接数不足K时建立连接
+     *
+     * UDP RPC不可用时只加载，由定期维护任务验证。
+     */
+    private void restoreRoutingTable() {
+        List<NodeInfo> saved = RoutingTableSnapshot.load(snapshotPath);
+        if (saved.isEmpty()) return;
+        for (NodeInfo info : saved) {
+            updateRoutingTable(info);
+        }
+        log.info("从快照恢复了 " + saved.size() + " 个路由表节点");
+        if (!dhtRpc.isRunning()) return;
+
+        AtomicInteger remaining = new AtomicInteger(saved.size());
+        AtomicInteger alive = new AtomicInteger();
+        for (NodeInfo info : saved) {
+            sendPing(info, isAlive -> {
+                if (isAlive) {
+                    alive.incrementAndGet();
+                    if (running && connections.size() < K_VALUE) {
+                        scheduler.execute(() -> connectToPeer(info.getAddress()));
+                    }
+                } else {
+                    routingTable.remove(info.getNodeId());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    log.info("快照节点验证完成: " + alive.get() + "/" + saved.size() + " 在线");
+                }
+            });
+        }
+    }
+
+    /**
+     * 保存路由表快照，路由表为空时不覆盖已有快照
+     */
+    private void saveRoutingTable() {
+        List<NodeInfo> nodes = routingTable.getAllNodes();
+        if (nodes.isEmpty()) return;
+        if (RoutingTableSnapshot.save(nodes, snapshotPath)) {
+            log.debug(() -> "已保存路由表快照 (" + nodes.size() + " 个节点)");
+        }
+    }
+
     private void bootstrap() {
         scheduler.schedule(() -> {
-            System.out.println("开始引导过程...");
+            log.info("开始引导过程...");
             for (String peerAddress : bootstrapPeers) {
                 connectToPeer(peerAddress);
             }
             // 发起对自己的FIND_NODE请求，以填充邻近的K-桶
             lookupNodes(this.nodeId);
+            scheduler.schedule(() -> {
+                publishKeyRecord();
+                fetchMailboxes();
+            }, MAILBOX_FETCH_DELAY_SECONDS, TimeUnit.SECONDS);
         }, 1, TimeUnit.SECONDS);
     }
 
+    /**
+     * 把本节点签名的公钥记录发布到DHT，其他节点不必先握手即可向本节点发送加密私聊
+     */
+    private void publishKeyRecord() {
+        if (securityManager == null || !securityManager.isSecurityEnabled()) return;
+        String record = securityManager.issueKeyRecord();
+        if (record == null) return;
+        putValue(keyRecordKey(getNodeIdString()), record, DhtValueStore.DEFAULT_TTL_MS)
+                .thenAccept(stored -> log.info("公钥记录已发布到 " + stored + " 个节点"));
+    }
+
+    /**
+     * 节点公钥记录在DHT中的键
+     */
+    private static BigInteger keyRecordKey(String nodeId) {
+        return DhtValueStore.keyFor("pubkey:" + nodeId);
+    }
+
+    /**
+     * DHT值的验证 (见 DhtValueStore.Validator)：存放在对应节点键下、签名有效的公钥记录以签发时间为版本
+     */
+    private long verifiedValueVersion(BigInteger key, String value) {
+        String nodeId = KeyRecord.claimedNodeId(value);
+        if (nodeId == null || securityManager == null || !keyRecordKey(nodeId).equals(key)) {
+            return DhtValueStore.UNVERIFIED;
+        }
+        long issuedAt = securityManager.verifyKeyRecord(value, nodeId);
+        return issuedAt >= 0 ? issuedAt : DhtValueStore.UNVERIFIED;
+    }
+
+    /**
+     * 确保有对端节点的X25519公钥：本地没有时从DHT查询其公钥记录并验证，结果为是否可用
+     */
+    public CompletableFuture<Boolean> resolvePeerKey(String peerId) {
+        if (securityManager == null) return CompletableFuture.completedFuture(false);
+        if (securityManager.hasAgreementKeyFor(peerId)) return CompletableFuture.completedFuture(true);
+        return findValue(keyRecordKey(peerId))
+                .thenApply(record -> record != null && securityManager.importKeyRecord(record, peerId))
+                .completeOnTimeout(false, KEY_LOOKUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 从离本节点ID最近的K个节点取回离线期间暂存的私聊消息
+     */
+    private void fetchMailboxes() {
+        if (!dhtRpc.isRunning() || securityManager == null) return;
+        for (NodeInfo holder : findClosestNodes(nodeId, K_VALUE)) {
+            fetchMailbox(holder, 0, 0);
+        }
+    }
+
+    /**
+     * 取回一批消息，ackedSeq 确认上一批；批次非空时继续取下一批
+     */
+    private void fetchMailbox(NodeInfo holder, long ackedSeq, int batches) {
+        String ack = Long.toString(ackedSeq);
+        String proof = securityManager.signRequest(MessageRouter.MAILBOX_FETCH, holder.getNodeId().toString(16), ack);
+        if (proof == null) return;
+        Message fetch = new Message(Message.Type.FETCH, getNodeIdString(), ack + "\n" + proof);
+        messageRouter.recordSent(fetch.getType());
+        dhtRpc.call(holder.getHost(), holder.getPort(), fetch, response -> {
+            if (response == null || response.getType() != Message.Type.FETCH) return;
+            MailboxStore.Batch batch = MailboxStore.decodeBatch(response.getContent());
+            if (batch == null || batch.getMessages().isEmpty()) return;
+            log.info("从 " + holder.getAddress() + " 取回 " + batch.getMessages().size() + " 条离线消息");
+            for (String serialized : batch.getMessages()) {
+                messageRouter.deliverFromMailbox(serialized);
+            }
+            if (batches + 1 < MAX_MAILBOX_BATCHES) {
+                fetchMailbox(holder, batch.getLastSeq(), batches + 1);
+            }
+        });
+    }
+
+    /**
+     * 目标节点没有直接连接且确认不可达时，把私聊消息暂存到离目标ID最近的K个节点的信箱
+     *
+     * 洪泛照常进行。在线状态显示目标在线时不暂存；目标在路由表中时用PING确认，
+     * 不在路由表中时对目标ID做一次节点查找，目标本身响应了查找即视为在线。
+     * 信箱请求须附带身份密钥签发的证明，没有安全管理器时不使用信箱。
+     */
+    private void storeIfOffline(Message message) {
+        if (!dhtRpc.isRunning() || securityManager == null) return;
+        String targetId = message.getTargetId();
+        if (findConnection(targetId) != null || presence.isOnline(targetId)) return;
+        BigInteger target = MessageRouter.parseNodeId(targetId);
+        if (target == null) return;
+        NodeInfo known = routingTable.get(target);
+        if (known != null) {
+            sendPing(known, isAlive -> {
+                if (!isAlive) storeInMailboxes(target, message);
+            });
+            return;
+        }
+        startLookup(target, false).whenComplete((result, e) -> {
+            boolean reached = result != null
+                    && result.closest.stream().anyMatch(info -> info.getNodeId().equals(target));
+            if (!reached) storeInMailboxes(target, message);
+        });
+    }
+
+    private void storeInMailboxes(BigInteger target, Message message) {
+        List<NodeInfo> holders = findClosestNodes(target, K_VALUE);
+        holders.removeIf(info -> info.getNodeId().equals(target));
+        if (holders.isEmpty()) {
+            log.warn("没有可用的信箱节点，发往 " + message.getTargetId().substring(0, 8) + " 的离线消息无法暂存");
+            return;
+        }
+        String serialized = message.serialize();
+        String proof = securityManager.signRequest(MessageRouter.MAILBOX_STORE, message.getTargetId(), serialized);
+        if (proof == null) return;
+        Message store = new Message(Message.Type.STORE, getNodeIdString(), proof + "\n" + serialized, message.getTargetId());
+        AtomicInteger remaining = new AtomicInteger(holders.size());
+        AtomicInteger accepted = new AtomicInteger();
+        for (NodeInfo holder : holders) {
+            messageRouter.recordSent(store.getType());
+            dhtRpc.call(holder.getHost(), holder.getPort(), store, response -> {
+                if (response != null && "ok".equals(response.getContent())) accepted.incrementAndGet();
+                if (remaining.decrementAndGet() == 0) {
+                    log.info("离线消息已暂存到 " + accepted.get() + "/" + holders.size() + " 个信箱节点");
+                }
+            });
+        }
+    }
+
     public boolean connectToPeer(String address) {
         if (connections.containsKey(address)) return true;
         try {
@@ -175,96 +442,357 @@ public class Node {
 
             if (host.equals("localhost") && peerPort == this.port) return false;
 
-            Socket socket = new Socket(host, peerPort);
-            PeerConnection connection = new PeerConnection(socket, address, false);
+            Channel channel = transport.dial(host, peerPort);
+            PeerConnection connection = new PeerConnection(channel, address, false, metrics);
             connections.put(address, connection);
+            connectionsOpened.increment();
 
-            new Thread(() -> handlePeerConnection(connection)).start();
-            System.out.println("成功连接到节点: " + address);
+            startReading(connection);
+            log.info("成功连接到节点: " + address);
 
             Message helloMessage = new Message(Message.Type.HELLO, getNodeIdString(), getAddress());
-            connection.sendMessage(helloMessage.serialize());
+            messageRouter.recordSent(helloMessage.getType());
+            connection.sendMessage(helloMessage.serialize(), PeerConnection.Lane.CONTROL);
 
             return true;
         } catch (Exception e) {
-            System.err.println("连接到节点 " + address + " 失败: " + e.getMessage());
+            log.error("连接到节点 " + address + " 失败: " + e.getMessage());
             connections.remove(address);
             return false;
         }
     }
 
-    private void acceptConnections() {
-        while (running) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                String remoteAddress = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-                PeerConnection connection = new PeerConnection(clientSocket, remoteAddress, true);
-                connections.put(remoteAddress, connection);
-                new Thread(() -> handlePeerConnection(connection)).start();
-            } catch (IOException e) {
-                if (running) System.err.println("接受连接时发生错误: " + e.getMessage());
+    private void acceptConnection(Channel channel) {
+        String remoteAddress = channel.getRemoteAddress();
+        PeerConnection connection = new PeerConnection(channel, remoteAddress, true, metrics);
+        connections.put(remoteAddress, connection);
+        connectionsOpened.increment();
+        startReading(connection);
+    }
+
+    private void startReading(PeerConnection connection) {
+        if (securityManager == null) {
+            connection.start(frame -> dispatchFrame(connection, frame), this::acceptStream,
+                    () -> onConnectionClosed(connection));
+            return;
+        }
+        // 解密和处理交给加密工作线程，传输层线程只负责收帧。同一连接的帧和关闭事件进入同一通道，
+        // 按到达顺序处理，关闭总在该对端已收到的帧之后；通道饱和时只丢弃安全信封，明文帧和关闭不会丢失。
+        // 排序键用底层连接的对端地址，握手后 setAddress 修改连接地址也不会换到其他通道。
+        // 收帧线程由多个连接共用时 (NIO) 不能等待通道空位：饱和时安全信封立即丢弃，
+        // 明文帧照常入队并暂停该连接的读取，通道腾出空位后恢复；独占的收帧线程在明文帧上阻塞等待
+        CryptoPipeline pipeline = securityManager.getCryptoPipeline();
+        String orderingKey = connection.getRemoteAddress();
+        boolean sharedReceiver = connection.hasSharedReceiver();
+        connection.start(frame -> {
+            if (frame.getType() == PeerConnection.FRAME_SECURE) {
+                Runnable dispatch = () -> dispatchFrame(connection, frame);
+                if (sharedReceiver) {
+                    pipeline.trySubmit(orderingKey, dispatch);
+                } else {
+                    pipeline.submit(orderingKey, dispatch);
+                }
+            } else if (sharedReceiver) {
+                if (!pipeline.offer(orderingKey, () -> dispatchFrame(connection, frame), connection::resumeReading)) {
+                    connection.pauseReading();
+                }
+            } else {
+                pipeline.put(orderingKey, () -> dispatchFrame(connection, frame));
             }
+        }, this::acceptStream, () -> pipeline.execute(orderingKey, () -> onConnectionClosed(connection)));
+    }
+
+    /**
+     * 按协议名把对端打开的流交给对应的服务，未知协议直接关闭
+     */
+    private void acceptStream(PeerStream stream) {
+        if (FileTransferService.PROTOCOL.equals(stream.getProtocol())) {
+            fileTransferService.acceptStream(stream);
+        } else if (SecureFileTransferService.PROTOCOL.equals(stream.getProtocol()) && securityManager != null) {
+            securityManager.getSecureFileTransferService().acceptStream(stream);
+        } else {
+            log.warn("拒绝未知协议的流: " + stream.getProtocol());
+            stream.close();
         }
     }
 
-    private void handlePeerConnection(PeerConnection connection) {
-        try {
-            String line;
-            while ((line = connection.readMessage()) != null) {
+    /**
+     * 在与指定节点的直接连接上打开一条流，没有直接连接时返回null
+     */
+    public PeerStream openStream(String peerId, String protocol) {
+        PeerConnection connection = findConnection(peerId);
+        return connection != null ? connection.openStream(protocol) : null;
+    }
+
+    /**
+     * 与指定节点的直接连接，没有时返回null
+     */
+    private PeerConnection findConnection(String peerId) {
+        for (PeerConnection connection : connections.values()) {
+            if (connection.isConnected() && peerId.equals(connection.getRemoteNodeId())) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void onConnectionClosed(PeerConnection connection) {
+        log.info("与节点 " + connection.getAddress() + " 的连接断开");
+        connections.remove(connection.getAddress());
+        connectionsClosed.increment();
+        messageRouter.onConnectionClosed(connection);
+        
+        // 成员是否离开由在线状态决定：对方可能仍可经其他邻居到达，正常退出时会广播离线记录
+        if (connection.getRemoteNodeId() != null) {
+            presence.onNeighborClosed(connection.getRemoteNodeId());
+        }
+
+        // 成员变化后群组密钥换代，离开的成员无法解密之后的群聊消息
+        if (connection.getRemoteNodeId() != null && securityManager != null
+                && securityManager.isGroupEncryptionEnabled()) {
+            securityManager.onMemberLeft(connection.getRemoteNodeId());
+            distributeSenderKeys();
+        }
+        
+        // 注意：不在这里从路由表移除节点，而是通过PING失败来确认节点下线
+        BigInteger remoteId = MessageRouter.parseNodeId(connection.getRemoteNodeId());
+        NodeInfo known = remoteId != null ? routingTable.get(remoteId) : null;
+        if (known != null) checkLiveness(known);
+    }
+
+    private void dispatchFrame(PeerConnection connection, PeerConnection.Frame frame) {
+        long start = System.nanoTime();
+        Message message = decodeFrame(connection, frame);
+        if (message != null) {
+            messageRouter.handleMessage(connection, message);
+        }
+        frameDispatchTimer.recordSince(start);
+    }
+
+    /**
+     * 将收到的帧解码为消息，无法解码时返回null
+     */
+    private Message decodeFrame(PeerConnection connection, PeerConnection.Frame frame) {
+        switch (frame.getType()) {
+            case PeerConnection.FRAME_MESSAGE:
+                String line = frame.getText();
                 try {
                     Message message = Message.deserialize(line);
-                    messageRouter.handleMessage(connection, message);
+                    if (message.getType() == Message.Type.SENDER_KEY) {
+                        log.warn("拒绝通过明文帧分发的发送者密钥: " + connection.getAddress());
+                        framesDropped.increment();
+                        return null;
+                    }
+                    return message;
                 } catch (IllegalArgumentException e) {
-                    System.err.println("收到无效消息格式: " + line);
+                    log.warn("收到无效消息格式: " + line);
+                    framesDropped.increment();
+                    return null;
+                }
+            case PeerConnection.FRAME_SECURE:
+                if (securityManager == null) {
+                    log.warn("安全功能不可用，丢弃来自 " + connection.getAddress() + " 的安全信封");
+                    framesDropped.increment();
+                    return null;
                 }
+                Message opened = securityManager.openEnvelope(frame.getPayload(), connection.getRemoteNodeId());
+                if (opened == null) {
+                    framesDropped.increment();
+                } else if (opened.getType() == Message.Type.SENDER_KEY) {
+                    // 发送者密钥只在两两会话之间传递，不进入路由
+                    securityManager.installSenderKey(opened);
+                    return null;
+                }
+                return opened;
+            default:
+                log.warn("收到未知类型的帧: " + frame.getType());
+                framesDropped.increment();
+                return null;
+        }
+    }
+
+    /**
+     * 向对等节点发送消息：已与对端建立会话密钥时使用二进制安全信封，否则发送明文帧
+     */
+    public void sendToPeer(PeerConnection connection, Message message, String serialized) {
+        messageRouter.recordSent(message.getType());
+        PeerConnection.Lane lane = PeerConnection.Lane.of(message.getType());
+        String peerId = connection.getRemoteNodeId();
+        if (securityManager != null && securityManager.canSealFor(peerId)) {
+            byte[] envelope = securityManager.sealMessage(message, peerId);
+            if (envelope != null) {
+                connection.sendFrame(PeerConnection.FRAME_SECURE, envelope, lane);
+                return;
             }
-        } catch (IOException e) {
-            // 连接断开
-        } finally {
-            System.out.println("与节点 " + connection.getAddress() + " 的连接断开");
-            connections.remove(connection.getAddress());
-            
-            // 通知GUI成员离开
-            if (connection.getRemoteNodeId() != null && messageRouter.getMessageListener() != null) {
-                messageRouter.getMessageListener().onMemberLeft(connection.getRemoteNodeId());
+        }
+        connection.sendMessage(serialized, lane);
+    }
+
+    /**
+     * 向新连接的邻居分发本节点的发送者密钥：已有会话密钥时走安全信封，否则端到端加密后发出
+     */
+    public void distributeSenderKey(PeerConnection connection) {
+        if (!groupEncryptionEnabled()) return;
+        String peerId = connection.getRemoteNodeId();
+        if (peerId == null) return;
+        if (!securityManager.canSealFor(peerId)) {
+            sendSealedSenderKey(peerId);
+            return;
+        }
+        Message keyMessage = securityManager.createSenderKeyMessage(getNodeIdString(), peerId);
+        byte[] envelope = securityManager.sealMessage(keyMessage, peerId);
+        if (envelope != null) {
+            connection.sendFrame(PeerConnection.FRAME_SECURE, envelope, PeerConnection.Lane.CONTROL);
+        }
+    }
+
+    /**
+     * 换代后重新分发发送者密钥：直连的邻居走安全信封，经中继才能到达的在线成员端到端加密后路由过去
+     */
+    public void distributeSenderKeys() {
+        if (!groupEncryptionEnabled()) return;
+        Set<String> direct = new HashSet<>();
+        for (PeerConnection connection : connections.values()) {
+            if (connection.isConnected() && connection.getRemoteNodeId() != null) {
+                direct.add(connection.getRemoteNodeId());
+                distributeSenderKey(connection);
+            }
+        }
+        for (String memberId : presence.onlineMemberIds()) {
+            if (!direct.contains(memberId)) {
+                sendSealedSenderKey(memberId);
             }
-            
-            // 注意：不在这里从路由表移除节点，而是通过PING失败来确认节点下线
         }
     }
 
+    /**
+     * 在线状态发现新成员时分发发送者密钥，直连的邻居已在HELLO时收到
+     */
+    void onMemberOnline(String memberId) {
+        if (groupEncryptionEnabled() && findConnection(memberId) == null) {
+            sendSealedSenderKey(memberId);
+        }
+    }
+
+    /**
+     * 与对端建立会话密钥后补发发送者密钥。回调发生在密钥交换过程中，对端可能尚未存好会话密钥，
+     * 所以不走安全信封，而是端到端加密后发出
+     */
+    private void onSessionKeyStored(String peerId) {
+        if (groupEncryptionEnabled() && running) {
+            scheduler.execute(() -> sendSealedSenderKey(peerId));
+        }
+    }
+
+    /**
+     * 把发送者密钥用成员的静态X25519公钥加密后路由给它，没有公钥时先从DHT查询，查不到时稍后重试
+     */
+    private void sendSealedSenderKey(String memberId) {
+        sendSealedSenderKey(memberId, SENDER_KEY_ATTEMPTS);
+    }
+
+    private void sendSealedSenderKey(String memberId, int attemptsLeft) {
+        resolvePeerKey(memberId).exceptionally(e -> false).thenAccept(found -> {
+            if (!found && attemptsLeft > 1 && running) {
+                scheduler.schedule(() -> sendSealedSenderKey(memberId, attemptsLeft - 1),
+                        SENDER_KEY_RETRY_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            Message sealed = found ? securityManager.sealSenderKeyFor(getNodeIdString(), memberId) : null;
+            if (sealed == null) {
+                log.warn("无法向 " + memberId.substring(0, 8) + " 分发发送者密钥：查不到公钥或加密失败");
+                return;
+            }
+            messageRouter.handleMessage(null, sealed);
+        });
+    }
+
+    /**
+     * 安装发给本节点的端到端加密发送者密钥，没有发送方公钥时先从DHT查询，查不到时稍后重试
+     */
+    void installSealedSenderKey(Message message) {
+        if (groupEncryptionEnabled()) {
+            installSealedSenderKey(message, SENDER_KEY_ATTEMPTS);
+        }
+    }
+
+    private void installSealedSenderKey(Message message, int attemptsLeft) {
+        resolvePeerKey(message.getSenderId()).exceptionally(e -> false).thenAccept(found -> {
+            if (!found && attemptsLeft > 1 && running) {
+                scheduler.schedule(() -> installSealedSenderKey(message, attemptsLeft - 1),
+                        SENDER_KEY_RETRY_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            if (!found || !securityManager.installSealedSenderKey(message)) {
+                log.warn("无法安装来自 " + message.getSenderId().substring(0, 8) + " 的发送者密钥");
+            }
+        });
+    }
+
+    private boolean groupEncryptionEnabled() {
+        return securityManager != null && securityManager.isGroupEncryptionEnabled();
+    }
+
     public void updateRoutingTable(NodeInfo nodeInfo) {
         if (nodeInfo.getNodeId().equals(this.nodeId)) return;
 
-        int bucketIndex = getBucketIndex(nodeInfo.getNodeId());
-        Map<BigInteger, NodeInfo> bucket = routingTable.get(bucketIndex);
-
-        if (bucket.containsKey(nodeInfo.getNodeId())) {
-            bucket.get(nodeInfo.getNodeId()).updateLastSeen();
-        } else if (bucket.size() < K_VALUE) {
-            bucket.put(nodeInfo.getNodeId(), nodeInfo);
+        NodeInfo oldestNode = routingTable.update(nodeInfo);
+        if (oldestNode == null) {
+            // 只为出现过节点的桶注册仪表，避免导出256条空序列
+            int bucketIndex = routingTable.getBucketIndex(nodeInfo.getNodeId());
+            metrics.gauge("chat_routing_bucket_nodes", "各K-桶中的节点数", () -> routingTable.getBucketSize(bucketIndex),
+                    "bucket", String.valueOf(bucketIndex));
         } else {
             // 桶已满，尝试PING最旧的节点
-            NodeInfo oldestNode = bucket.values().stream().min(Comparator.comparingLong(NodeInfo::getLastSeen)).orElse(null);
-            if (oldestNode != null) {
-                sendPing(oldestNode, (isAlive) -> {
-                    if (!isAlive) {
-                        bucket.remove(oldestNode.getNodeId());
-                        bucket.put(nodeInfo.getNodeId(), nodeInfo);
-                    }
-                });
-            }
+            sendPing(oldestNode, (isAlive) -> {
+                if (!isAlive) {
+                    routingTable.replace(oldestNode, nodeInfo);
+                }
+            });
+        }
+    }
+
+    /**
+     * 处理UDP请求的来源节点：已在路由表中且地址相同时刷新，否则先PING该地址，
+     * 收到该节点本身的PONG后才加入路由表，伪造的源地址无法把节点塞进路由表
+     */
+    public void addContactAfterPing(NodeInfo nodeInfo) {
+        if (nodeInfo.getNodeId().equals(this.nodeId)) return;
+        NodeInfo known = routingTable.get(nodeInfo.getNodeId());
+        if (known != null && known.getAddress().equals(nodeInfo.getAddress())) {
+            updateRoutingTable(nodeInfo);
+            return;
         }
+        if (pendingContactChecks.size() >= MAX_CONTACT_CHECKS || !pendingContactChecks.add(nodeInfo.getNodeId())) {
+            return;
+        }
+        sendPing(nodeInfo, isAlive -> {
+            pendingContactChecks.remove(nodeInfo.getNodeId());
+            if (isAlive) updateRoutingTable(nodeInfo);
+        });
     }
 
     public void lookupNodes(BigInteger targetId) {
-        System.out.println("开始为目标 " + targetId.toString(16).substring(0, 8) + " 查找节点...");
+        log.debug(() -> "开始为目标 " + targetId.toString(16).substring(0, 8) + " 查找节点...");
         List<NodeInfo> closest = findClosestNodes(targetId, K_VALUE);
         for (NodeInfo info : closest) {
+            if (dhtRpc.isRunning()) {
+                Message findNodeMsg = new Message(Message.Type.FIND_NODE, getNodeIdString(), "", targetId.toString(16));
+                messageRouter.recordSent(findNodeMsg.getType());
+                dhtRpc.call(info.getHost(), info.getPort(), findNodeMsg, response -> {
+                    if (response == null || response.getType() != Message.Type.NEIGHBORS) return;
+                    // UDP查找的结果只进入路由表，不为每个节点建立TCP连接
+                    for (NodeInfo found : MessageRouter.parseNeighbors(response.getContent())) {
+                        updateRoutingTable(found);
+                    }
+                });
+                continue;
+            }
             PeerConnection conn = getOrCreateConnection(info);
             if (conn != null) {
-                Message findNodeMsg = new Message(Message.Type.FIND_NODE, getNodeIdString(), "", info.getNodeId().toString(16));
-                conn.sendMessage(findNodeMsg.serialize());
+                Message findNodeMsg = new Message(Message.Type.FIND_NODE, getNodeIdString(), "", targetId.toString(16));
+                messageRouter.recordSent(findNodeMsg.getType());
+                conn.sendMessage(findNodeMsg.serialize(), PeerConnection.Lane.CONTROL);
             }
         }
     }
@@ -272,35 +800,58 @@ public class Node {
     private void startMaintenanceTasks() {
         // 定期PING路由表中的节点以检查其健康状况
         scheduler.scheduleAtFixedRate(() -> {
-            System.out.println("执行路由表维护任务...");
-            for (Map<BigInteger, NodeInfo> bucket : routingTable) {
-                for (NodeInfo info : bucket.values()) {
-                    sendPing(info, (isAlive) -> {
-                        if (!isAlive) {
-                            bucket.remove(info.getNodeId());
-                            System.out.println("节点 " + info.getNodeId().toString(16).substring(0, 8) + " 无响应，已从路由表移除");
-                        }
-                    });
-                }
+            log.debug("执行路由表维护任务...");
+            for (NodeInfo info : routingTable.getAllNodes()) {
+                sendPing(info, (isAlive) -> {
+                    if (!isAlive) evict(info.getNodeId());
+                });
             }
         }, 1, 5, TimeUnit.MINUTES); // 每5分钟执行一次
 
         // 定期刷新K-桶，特别是那些很久没有变化的
         scheduler.scheduleAtFixedRate(() -> {
-            System.out.println("执行K-桶刷新任务...");
-            for (int i = 0; i < ID_LENGTH; i++) {
+            log.debug("执行K-桶刷新任务...");
+            Random random = new Random();
+            for (int i = 0; i < RoutingTable.ID_LENGTH; i++) {
                 // 对每个桶生成一个随机ID并发起查找
-                BigInteger randomIdInBucket = generateRandomIdInBucket(i);
+                BigInteger randomIdInBucket = routingTable.randomIdInBucket(i, random);
                 lookupNodes(randomIdInBucket);
             }
         }, 10, 15, TimeUnit.MINUTES); // 每15分钟执行一次
+
+        // 重新发布本节点发布的DHT值，并删除过期的副本和缓存
+        scheduler.scheduleAtFixedRate(() -> {
+            for (Map.Entry<BigInteger, DhtValueStore.Value> entry : valueStore.dueForRepublish()) {
+                storeRemotely(entry.getKey(), entry.getValue());
+            }
+            valueStore.cleanup();
+        }, REPUBLISH_CHECK_MINUTES, REPUBLISH_CHECK_MINUTES, TimeUnit.MINUTES);
+
+        // 在线状态的心跳和邻居间增量同步
+        scheduler.scheduleAtFixedRate(presence::tick, PresenceService.SYNC_INTERVAL_MS,
+                PresenceService.SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        // 定期保存路由表快照，进程异常退出时也能用于下次启动
+        scheduler.scheduleAtFixedRate(this::saveRoutingTable,
+                SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
     }
 
     private void sendPing(NodeInfo target, java.util.function.Consumer<Boolean> callback) {
+        if (dhtRpc.isRunning()) {
+            // UDP PING 等待真正的PONG，且响应者必须是目标节点本身
+            String targetId = target.getNodeId().toString(16);
+            Message pingMsg = new Message(Message.Type.PING, getNodeIdString(), "ping", targetId);
+            messageRouter.recordSent(pingMsg.getType());
+            dhtRpc.call(target.getHost(), target.getPort(), pingMsg, response -> callback.accept(
+                    response != null && response.getType() == Message.Type.PONG
+                            && targetId.equals(response.getSenderId())));
+            return;
+        }
         PeerConnection conn = getOrCreateConnection(target);
         if (conn != null) {
             Message pingMsg = new Message(Message.Type.PING, getNodeIdString(), "ping", target.getNodeId().toString(16));
-            conn.sendMessage(pingMsg.serialize());
+            messageRouter.recordSent(pingMsg.getType());
+            conn.sendMessage(pingMsg.serialize(), PeerConnection.Lane.CONTROL);
             // 简单实现：假设如果在一定时间内没有收到PONG，则认为节点离线
             // 一个更健壮的实现需要一个回调管理器
             scheduler.schedule(() -> callback.accept(false), 5, TimeUnit.SECONDS); // 5秒超时
@@ -320,22 +871,151 @@ public class Node {
         return null;
     }
 
-    private BigInteger generateRandomIdInBucket(int bucketIndex) {
-        BigInteger base = BigInteger.ONE.shiftLeft(ID_LENGTH - 1 - bucketIndex);
-        BigInteger randomComponent = new BigInteger(ID_LENGTH - 1 - bucketIndex, new Random());
-        return this.nodeId.xor(base.or(randomComponent));
+
+    /**
+     * 发布一个值：保存在本地，并通过迭代查找存到离键最近的K个节点，之后每隔TTL的一半重新发布；
+     * 结果为保存成功的远程节点数
+     */
+    public CompletableFuture<Integer> putValue(BigInteger key, String value, long ttlMs) {
+        if (!valueStore.put(key, value, System.currentTimeMillis(), ttlMs, DhtValueStore.Kind.ORIGINAL)) {
+            return CompletableFuture.completedFuture(0);
+        }
+        return storeRemotely(key, valueStore.get(key));
+    }
+
+    /**
+     * 查找一个值，本地有未过期的值时直接返回，找不到时结果为null
+     */
+    public CompletableFuture<String> findValue(BigInteger key) {
+        return lookupValue(key).thenApply(ValueLookup::getValue);
+    }
+
+    /**
+     * 与 findValue 相同，同时给出查找经过的跳数
+     */
+    public CompletableFuture<ValueLookup> lookupValue(BigInteger key) {
+        DhtValueStore.Value local = valueStore.get(key);
+        if (local != null) return CompletableFuture.completedFuture(new ValueLookup(local.getValue(), 0));
+        if (!dhtRpc.isRunning()) return CompletableFuture.completedFuture(new ValueLookup(null, 0));
+        return startLookup(key, true)
+                .thenApply(result -> new ValueLookup(result.value != null ? result.value.getValue() : null, result.hops));
+    }
+
+    private CompletableFuture<DhtLookup.Result> startLookup(BigInteger target, boolean findValue) {
+        return new DhtLookup(this, dhtRpc, target, findValue).start().whenComplete((result, e) -> {
+            if (result != null && result.hops > 0) lookupHops.record(result.hops);
+        });
+    }
+
+    /**
+     * 查找时没有响应或连接断开的节点：仍在路由表中时用PING确认，确认离线后移除，避免离线节点条目一直留在路由表中
+     */
+    void checkLiveness(NodeInfo info) {
+        BigInteger id = info.getNodeId();
+        if (!running || !routingTable.contains(id)) return;
+        if (pendingLivenessChecks.size() >= MAX_CONTACT_CHECKS || !pendingLivenessChecks.add(id)) return;
+        sendPing(info, isAlive -> {
+            pendingLivenessChecks.remove(id);
+            if (!isAlive) evict(id);
+        });
+    }
+
+    private void evict(BigInteger nodeId) {
+        if (routingTable.remove(nodeId)) {
+            routingEvictions.increment();
+            log.info("节点 " + nodeId.toString(16).substring(0, 8) + " 无响应，已从路由表移除");
+        }
+    }
+
+    /**
+     * 停止重新发布本节点发布的值，其他节点上的副本在TTL到期后删除
+     */
+    public boolean removeValue(BigInteger key) {
+        return valueStore.removeOriginal(key);
+    }
+
+    private CompletableFuture<Integer> storeRemotely(BigInteger key, DhtValueStore.Value value) {
+        if (value == null || !dhtRpc.isRunning()) return CompletableFuture.completedFuture(0);
+        Message store = new Message(Message.Type.STORE_VALUE, getNodeIdString(),
+                DhtValueStore.encode(value.getValue(), value.getVersion(), value.getTtlMs(), false), key.toString(16));
+        return startLookup(key, false).thenCompose(result -> {
+            CompletableFuture<Integer> stored = new CompletableFuture<>();
+            if (result.closest.isEmpty()) {
+                stored.complete(0);
+                return stored;
+            }
+            AtomicInteger remaining = new AtomicInteger(result.closest.size());
+            AtomicInteger accepted = new AtomicInteger();
+            for (NodeInfo holder : result.closest) {
+                messageRouter.recordSent(store.getType());
+                dhtRpc.call(holder.getHost(), holder.getPort(), store, response -> {
+                    if (response != null && "ok".equals(response.getContent())) accepted.incrementAndGet();
+                    if (remaining.decrementAndGet() == 0) stored.complete(accepted.get());
+                });
+            }
+            return stored;
+        });
     }
 
     // --- 原有功能 (适配后) ---
     public void sendChatMessage(String message) {
         Message chatMessage = new Message(Message.Type.CHAT, getNodeIdString(), message);
+        if (securityManager != null && securityManager.isGroupEncryptionEnabled()) {
+            Message secureMessage = securityManager.sealGroupMessage(chatMessage);
+            if (secureMessage != null) {
+                messageRouter.broadcastMessage(secureMessage);
+                return;
+            }
+        }
         messageRouter.broadcastMessage(chatMessage);
     }
 
     public void sendPrivateMessage(String targetNodeId, String message) {
-        System.out.println("发送私聊消息: " + getDisplayName() + " -> " + targetNodeId.substring(0, 8) + "...: " + message);
+        log.debug(() -> "发送私聊消息: " + getDisplayName() + " -> " + targetNodeId.substring(0, 8) + "...: " + message);
         Message privateMessage = new Message(Message.Type.PRIVATE_CHAT, getNodeIdString(), message, targetNodeId);
+        if (securityManager == null || !securityManager.isSecurityEnabled()) {
+            routePrivateMessage(privateMessage);
+            return;
+        }
+        // 有对端公钥时端到端加密；第一次发送前从DHT查询公钥记录，发给同一节点的私聊按调用顺序依次发出
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = pendingPrivateSends.put(targetNodeId, turn);
+        (previous != null ? previous : CompletableFuture.<Void>completedFuture(null))
+                .thenCompose(ignored -> resolvePeerKey(targetNodeId))
+                .exceptionally(e -> false)
+                .thenAccept(found -> sendResolvedPrivateMessage(privateMessage, found))
+                .whenComplete((result, e) -> {
+                    pendingPrivateSends.remove(targetNodeId, turn);
+                    turn.complete(null);
+                });
+    }
+
+    /**
+     * 加密后发出私聊；查不到对端公钥或加密失败时记录警告并通知用户，严格模式下不发送，否则以明文发送
+     */
+    private void sendResolvedPrivateMessage(Message privateMessage, boolean keyFound) {
+        Message sealed = keyFound ? securityManager.sealPrivateMessage(privateMessage) : null;
+        if (sealed != null) {
+            routePrivateMessage(sealed);
+            return;
+        }
+        String target = privateMessage.getTargetId().substring(0, 8);
+        String reason = keyFound ? "加密失败" : "查不到对方的公钥";
+        MessageListener listener = messageRouter.getMessageListener();
+        if (securityManager.isStrictMode()) {
+            log.warn("发往 " + target + " 的私聊" + reason + "，严格模式下不发送");
+            if (listener != null) listener.onSystemMessage("发往 " + target + " 的私聊消息未发送：" + reason);
+            return;
+        }
+        log.warn("发往 " + target + " 的私聊" + reason + "，以明文发送");
+        plaintextPrivateMessages.increment();
+        if (listener != null) listener.onSystemMessage("发往 " + target + " 的私聊消息未加密：" + reason);
+        routePrivateMessage(privateMessage);
+    }
+
+    private void routePrivateMessage(Message privateMessage) {
         messageRouter.handleMessage(null, privateMessage);
+        storeIfOffline(privateMessage);
     }
 
     public void sendFileRequest(String targetNodeId, File file) {
@@ -367,15 +1047,13 @@ public class Node {
     public BigInteger getNodeId() { return nodeId; }
     public String getAddress() { return "localhost:" + port; }
     public Map<String, PeerConnection> getConnections() { return connections; }
-    public void setMessageListener(MessageListener listener) { messageRouter.setMessageListener(listener); }
+    public void setMessageListener(MessageListener listener) {
+        messageRouter.setMessageListener(listener);
+        presence.announceOnlineMembers(listener);
+    }
 
     public List<NodeInfo> findClosestNodes(BigInteger targetId, int count) {
-        List<NodeInfo> allNodes = new ArrayList<>();
-        for (Map<BigInteger, NodeInfo> bucket : routingTable) {
-            allNodes.addAll(bucket.values());
-        }
-        allNodes.sort(Comparator.comparing(node -> getDistance(node.getNodeId(), targetId)));
-        return allNodes.subList(0, Math.min(allNodes.size(), count));
+        return routingTable.findClosest(targetId, count);
     }
 
     public int getPort() { return port; }
@@ -384,7 +1062,23 @@ public class Node {
     public File getPendingFile(String fileName) { return pendingFiles.get(fileName); }
     public void removePendingFile(String fileName) { pendingFiles.remove(fileName); }
     public SecurityManager getSecurityManager() { return securityManager; }
+    public PresenceService getPresence() { return presence; }
+    public DhtValueStore getValueStore() { return valueStore; }
     public boolean isSecurityEnabled() { return securityManager != null && securityManager.isSecurityEnabled(); }
+
+    /**
+     * 获取本节点的聊天记录，首次调用时打开 data/messages-<端口>/，无法打开时返回null
+     */
+    public synchronized MessageStore getMessageStore() {
+        if (messageStore == null) {
+            try {
+                messageStore = new MessageStore(RoutingTableSnapshot.dataDir().resolve("messages-" + port));
+            } catch (IOException e) {
+                log.error("无法打开聊天记录: " + e.getMessage());
+            }
+        }
+        return messageStore;
+    }
     
     // 兼容性方法 - 为了保持与旧代码的兼容性
     public void addKnownPeer(String peerAddress) {
@@ -392,6 +1086,32 @@ public class Node {
         connectToPeer(peerAddress);
     }
     
+    /**
+     * 在本机回环地址上启动指标HTTP服务，提供 /metrics
+     */
+    public boolean startMetricsServer(int metricsPort) {
+        if (metricsServer != null) return true;
+        MetricsServer server = new MetricsServer(metrics, metricsPort);
+        if (server.start()) {
+            metricsServer = server;
+            return true;
+        }
+        return false;
+    }
+
+    public MetricsRegistry getMetrics() { return metrics; }
+
+    public int getRoutingTableSize() {
+        return routingTable.size();
+    }
+
+    public RoutingTable getRoutingTable() { return routingTable; }
+
+    /**
+     * 因PING无响应从路由表移除的节点数 (chat_routing_evicted_total)
+     */
+    public long getRoutingEvictions() { return routingEvictions.get(); }
+
     public int getConnectionCount() {
         return connections.size();
     }
@@ -1,56 +1,398 @@
 package com.group7.chat;
 
-import java.io.*;
-import java.net.Socket;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
+import com.group7.chat.transport.Channel;
+import com.group7.chat.transport.FrameHandler;
+import com.group7.chat.transport.Transport;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * 表示与一个对等节点的连接
+ *
+ * 线路格式为长度前缀的帧: [类型(1字节)][长度(4字节)][负载]，由传输层 (见 Transport) 负责收发。
+ * FRAME_MESSAGE 的负载是 Message.serialize() 的UTF-8编码，
+ * FRAME_SECURE 的负载是二进制安全信封 (见 SecureEnvelope)，
+ * FRAME_STREAM 是复用在本连接上的字节流 (见 StreamMultiplexer)，文件传输通过它进行，不再另开端口。
+ *
+ * 发出的帧按 Lane 进入三条优先级队列，以字节为单位的差额轮转 (DRR) 按权重写出：
+ * 写出被阻塞时，后到的控制消息排在积压的聊天和批量数据之前，而批量数据也不会被完全饿死。
+ * 队列空闲时发送方线程直接写出自己的帧；有积压时只入队，由共用的写出线程池按DRR写出，
+ * 发送方线程不会替别的通道写出积压的批量数据。每条通道积压的字节数有上限，超出时丢弃新帧。
  */
 public class PeerConnection {
-    private final Socket socket;
-    private final BufferedReader reader;
-    private final PrintWriter writer;
+
+    private static final Logger log = Logger.getLogger(PeerConnection.class);
+
+    public static final byte FRAME_MESSAGE = 1; // 普通文本消息
+    public static final byte FRAME_SECURE = 2;  // 二进制安全信封
+    public static final byte FRAME_STREAM = 3;  // 复用流的数据和流量控制
+
+    // 每轮每个权重单位可写出的字节数
+    private static final int QUANTUM_BYTES = 16 * 1024;
+
+    // 写出积压帧的线程，所有连接共用；写出可能阻塞，每条有积压的连接各占一个线程
+    private static final ExecutorService writers = Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "peer-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * 发送优先级通道，权重决定每轮可写出的字节份额
+     */
+    public enum Lane {
+        CONTROL(8, 1024 * 1024),            // 握手、PING/PONG、DHT查找请求、密钥分发、在线状态
+        INTERACTIVE(4, 4 * 1024 * 1024),    // 群聊和私聊
+        BULK(1, 8 * 1024 * 1024);           // 文件传输请求和数据流、邻居列表和节点列表
+
+        private final int weight;
+        private final int maxQueuedBytes;
+
+        Lane(int weight, int maxQueuedBytes) {
+            this.weight = weight;
+            this.maxQueuedBytes = maxQueuedBytes;
+        }
+
+        /**
+         * 按消息类型选择通道，转发的消息与原始消息使用同一通道
+         */
+        public static Lane of(Message.Type type) {
+            switch (type) {
+                case HELLO:
+                case PING:
+                case PONG:
+                case FIND_NODE:
+                case KEY_EXCHANGE:
+                case SENDER_KEY:
+                case SEALED_SENDER_KEY:
+                case PRESENCE_SYNC:
+                case PRESENCE_DELTA:
+                case PRESENCE_DIGEST:
+                    return CONTROL;
+                case FILE_TRANSFER:
+                case FILE_REQUEST:
+                case NEIGHBORS:
+                case PEER_LIST:
+                    return BULK;
+                default:
+                    return INTERACTIVE;
+            }
+        }
+    }
+
+    /**
+     * 在发送队列中等待写出的一帧
+     */
+    private static final class Outgoing {
+        final byte type;
+        final byte[] payload;
+        final long enqueuedNanos = System.nanoTime();
+
+        Outgoing(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        int size() {
+            return Transport.FRAME_HEADER_SIZE + payload.length;
+        }
+    }
+
+    /**
+     * 从连接中读取到的一帧数据
+     */
+    public static class Frame {
+        private final byte type;
+        private final byte[] payload;
+
+        public Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() { return type; }
+        public byte[] getPayload() { return payload; }
+
+        /**
+         * 将FRAME_MESSAGE帧的负载解码为字符串
+         */
+        public String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final Channel channel;
     private String address;
     private final boolean inbound; // true表示入站连接，false表示出站连接
     private long lastActivity; // 最后活跃时间
-    private String remoteNodeId; // 存储远程节点的ID
+    private volatile String remoteNodeId; // 存储远程节点的ID（由加密工作线程写入）
+    private final Counter framesSent;
+    private final Counter framesReceived;
+    private final Counter bytesSent;
+    private final Counter bytesReceived;
+    private final Counter sendFailures;
+    private final Counter streamStalls;
+    private final Histogram[] queueDelay = new Histogram[Lane.values().length];
+    private final Counter[] queueDrops = new Counter[Lane.values().length];
+
+    // 发送队列和DRR状态由 queues 的锁保护，写出由 writeLock 串行化
+    private final List<ArrayDeque<Outgoing>> queues = new ArrayList<>();
+    private final int[] deficits = new int[Lane.values().length];
+    private final long[] queuedBytes = new long[Lane.values().length];
+    private int currentLane = 0;
+    private boolean laneCredited = false;
+    private int queuedFrames = 0;
+    private boolean writerScheduled = false;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final StreamMultiplexer streams;
     
-    public PeerConnection(Socket socket, String address, boolean inbound) throws IOException {
-        this.socket = socket;
+    public PeerConnection(Channel channel, String address, boolean inbound) {
+        this(channel, address, inbound, new MetricsRegistry());
+    }
+
+    /**
+     * 创建连接，帧和字节计数累加到节点的指标注册表（所有连接共享同一组计数器）
+     */
+    public PeerConnection(Channel channel, String address, boolean inbound, MetricsRegistry metrics) {
+        this.channel = channel;
         this.address = address;
         this.inbound = inbound;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new PrintWriter(socket.getOutputStream(), true);
         this.lastActivity = System.currentTimeMillis();
+        this.framesSent = metrics.counter("chat_frames_total", "收发的帧数", "direction", "out");
+        this.framesReceived = metrics.counter("chat_frames_total", "收发的帧数", "direction", "in");
+        this.bytesSent = metrics.counter("chat_bytes_total", "收发的字节数（含帧头）", "direction", "out");
+        this.bytesReceived = metrics.counter("chat_bytes_total", "收发的字节数（含帧头）", "direction", "in");
+        this.sendFailures = metrics.counter("chat_frame_send_failures_total", "发送失败的帧数");
+        this.streamStalls = metrics.counter("chat_stream_credit_stalls_total", "复用流因发送额度用完而等待的次数");
+        for (Lane lane : Lane.values()) {
+            queues.add(new ArrayDeque<>());
+            queueDelay[lane.ordinal()] = metrics.timer("chat_send_queue_seconds",
+                    "帧从入队到写出的等待时间", "lane", lane.name().toLowerCase());
+            queueDrops[lane.ordinal()] = metrics.counter("chat_send_queue_dropped_total",
+                    "发送队列积压超过上限而丢弃的帧数", "lane", lane.name().toLowerCase());
+        }
+        this.streams = new StreamMultiplexer(this);
     }
     
     /**
-     * 发送消息到对等节点
+     * 发送消息到对等节点（交互通道）
      */
     public void sendMessage(String message) {
-        writer.println(message);
+        sendMessage(message, Lane.INTERACTIVE);
     }
-    
+
     /**
-     * 从对等节点读取消息
+     * 通过指定通道发送消息到对等节点
      */
-    public String readMessage() throws IOException {
-        return reader.readLine();
+    public void sendMessage(String message, Lane lane) {
+        sendFrame(FRAME_MESSAGE, message.getBytes(StandardCharsets.UTF_8), lane);
     }
     
     /**
-     * 关闭连接
+     * 发送一帧数据到对等节点（交互通道）
      */
-    public void close() {
+    public void sendFrame(byte type, byte[] payload) {
+        sendFrame(type, payload, Lane.INTERACTIVE);
+    }
+
+    /**
+     * 发送一帧：没有积压且没有其他线程在写出时由本线程直接写出，否则放入指定通道的发送队列，
+     * 由写出线程池按DRR写出。通道积压超过上限时丢弃该帧并返回false
+     */
+    public boolean sendFrame(byte type, byte[] payload, Lane lane) {
+        Outgoing frame = new Outgoing(type, payload);
+        int index = lane.ordinal();
+        boolean direct = false;
+        boolean schedule = false;
+        synchronized (queues) {
+            if (queuedFrames == 0 && !writerScheduled && writeLock.tryLock()) {
+                direct = true;
+            } else {
+                if (queuedBytes[index] + frame.size() > lane.maxQueuedBytes) {
+                    queueDrops[index].increment();
+                    log.warn("发往 " + address + " 的" + lane + "通道积压超过上限，丢弃一帧");
+                    return false;
+                }
+                queues.get(index).add(frame);
+                queuedBytes[index] += frame.size();
+                queuedFrames++;
+                if (!writerScheduled) {
+                    writerScheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+        if (direct) {
+            try {
+                queueDelay[index].recordSince(frame.enqueuedNanos);
+                write(frame);
+            } finally {
+                writeLock.unlock();
+            }
+        } else if (schedule) {
+            writers.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * 在写出线程上写出所有积压的帧，队列清空后退出
+     */
+    private void drain() {
+        writeLock.lock();
+        try {
+            Outgoing next;
+            while ((next = nextFrame()) != null) {
+                write(next);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 按差额轮转选出下一帧：每个通道每轮获得 权重 × QUANTUM_BYTES 的额度，
+     * 队首帧不超过剩余额度时写出，否则轮到下一个通道，未用完的额度留到下一轮
+     */
+    private Outgoing nextFrame() {
+        synchronized (queues) {
+            if (queuedFrames == 0) {
+                writerScheduled = false;
+                return null;
+            }
+            while (true) {
+                ArrayDeque<Outgoing> queue = queues.get(currentLane);
+                if (queue.isEmpty()) {
+                    deficits[currentLane] = 0;
+                    nextLane();
+                    continue;
+                }
+                if (!laneCredited) {
+                    deficits[currentLane] += Lane.values()[currentLane].weight * QUANTUM_BYTES;
+                    laneCredited = true;
+                }
+                Outgoing head = queue.peek();
+                if (head.size() <= deficits[currentLane]) {
+                    deficits[currentLane] -= head.size();
+                    queuedBytes[currentLane] -= head.size();
+                    queue.poll();
+                    queueDelay[currentLane].recordSince(head.enqueuedNanos);
+                    if (--queuedFrames == 0) {
+                        // 队列清空后重新从控制通道开始新一轮
+                        Arrays.fill(deficits, 0);
+                        currentLane = 0;
+                        laneCredited = false;
+                    }
+                    return head;
+                }
+                nextLane();
+            }
+        }
+    }
+
+    private void nextLane() {
+        currentLane = (currentLane + 1) % queues.size();
+        laneCredited = false;
+    }
+
+    private void write(Outgoing frame) {
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
-            if (socket != null && !socket.isClosed()) socket.close();
+            channel.send(frame.type, frame.payload);
+            framesSent.increment();
+            bytesSent.add(frame.size());
         } catch (IOException e) {
-            e.printStackTrace();
+            sendFailures.increment();
+            log.error("发送帧到 " + address + " 失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取尚未写出的帧数
+     */
+    public int getQueuedFrames() {
+        synchronized (queues) {
+            return queuedFrames;
         }
     }
     
+    /**
+     * 开始接收帧：每收到一帧调用 onFrame（同一连接按顺序逐个回调），连接关闭时调用一次 onClosed；
+     * 对端打开的流全部拒绝
+     */
+    public void start(Consumer<Frame> onFrame, Runnable onClosed) {
+        start(onFrame, null, onClosed);
+    }
+
+    /**
+     * 开始接收帧，对端打开的流交给 onStream。流帧在收帧线程上直接处理，不经过 onFrame；
+     * onStream 也在收帧线程上调用，读写流需要交给其他线程
+     */
+    public void start(Consumer<Frame> onFrame, Consumer<PeerStream> onStream, Runnable onClosed) {
+        streams.setAcceptor(onStream);
+        channel.start(new FrameHandler() {
+            @Override
+            public void onFrame(byte type, byte[] payload) {
+                framesReceived.increment();
+                bytesReceived.add(Transport.FRAME_HEADER_SIZE + payload.length);
+                if (type == FRAME_STREAM) {
+                    streams.onFrame(payload);
+                } else {
+                    onFrame.accept(new Frame(type, payload));
+                }
+            }
+
+            @Override
+            public void onClosed() {
+                streams.close("与 " + address + " 的连接已断开");
+                onClosed.run();
+            }
+        });
+    }
+
+    /**
+     * 在本连接上打开一条新的复用流，连接已关闭时返回null
+     */
+    public PeerStream openStream(String protocol) {
+        return isConnected() ? streams.open(protocol) : null;
+    }
+
+    /**
+     * 获取本连接上未关闭的流的数量
+     */
+    public int getOpenStreams() {
+        return streams.getOpenStreams();
+    }
+
+    void recordStreamStall() {
+        streamStalls.increment();
+    }
+    
+    /**
+     * 关闭连接
+     */
+    public void close() {
+        channel.close();
+    }
+    
     /**
      * 获取连接地址
      */
@@ -73,17 +415,17 @@ public class PeerConnection {
     }
     
     /**
-     * 获取底层Socket对象
+     * 获取底层传输连接
      */
-    public Socket getSocket() {
-        return socket;
+    public Channel getChannel() {
+        return channel;
     }
     
     /**
      * 检查连接是否仍然活跃
      */
     public boolean isConnected() {
-        return socket != null && socket.isConnected() && !socket.isClosed();
+        return channel.isOpen();
     }
     
     /**
@@ -111,12 +453,25 @@ public class PeerConnection {
      * 获取远程地址
      */
     public String getRemoteAddress() {
-        String remoteAddr = socket.getRemoteSocketAddress().toString();
-        // 移除前缀斜杠，如 "/127.0.0.1:8080" -> "127.0.0.1:8080"
-        if (remoteAddr.startsWith("/")) {
-            remoteAddr = remoteAddr.substring(1);
-        }
-        return remoteAddr;
+        return channel.getRemoteAddress();
+    }
+
+    /**
+     * 收帧回调是否在多个连接共用的线程上运行 (见 Channel.hasSharedReceiver)
+     */
+    public boolean hasSharedReceiver() {
+        return channel.hasSharedReceiver();
+    }
+
+    /**
+     * 暂停交付新帧，只能在收帧回调中调用 (见 Channel.pauseReading)
+     */
+    public void pauseReading() {
+        channel.pauseReading();
+    }
+
+    public void resumeReading() {
+        channel.resumeReading();
     }
     
     /**
@@ -0,0 +1,280 @@
+package com.group7.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * 在对等连接上复用的一条双向字节流 (见 StreamMultiplexer)
+ *
+ * 写入的数据先在本地缓冲，攒满一块或 flush 时作为一帧发出；每个方向各有 StreamMultiplexer.WINDOW 字节的额度，
+ * 额度用完时写入方阻塞，直到对端读走数据后归还额度。接收到的数据在读取前缓存在内存中，不阻塞连接的收帧线程。
+ */
+public class PeerStream implements Closeable {
+
+    private final StreamMultiplexer mux;
+    private final int id;
+    private final String protocol;
+
+    // 以下状态由 this 保护
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int headOffset = 0;    // received 队首块已读的字节数
+    private int buffered = 0;      // 已收到未读的字节数
+    private int unacknowledged = 0; // 已读但尚未归还给对端的额度
+    private boolean remoteEnded = false;
+    private boolean readClosed = false;
+    private int credit = StreamMultiplexer.WINDOW;
+    private boolean localEnded = false;
+    private boolean remoteCancelled = false;
+    private String failure;
+
+    private final InputStream input = new Input();
+    private final Output output = new Output();
+
+    PeerStream(StreamMultiplexer mux, int id, String protocol) {
+        this.mux = mux;
+        this.id = id;
+        this.protocol = protocol;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * 打开流时声明的协议名，接收方据此把流交给对应的服务
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * 对端节点ID，握手完成前为null
+     */
+    public String getRemoteNodeId() {
+        return mux.getRemoteNodeId();
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * 写出缓冲的数据并通知对端本方向已结束，之后仍可以继续读取对端的数据
+     */
+    public void closeOutput() throws IOException {
+        output.close();
+    }
+
+    /**
+     * 关闭流：发出剩余数据和结束标记，对端尚未结束发送时通知它停止发送
+     */
+    @Override
+    public void close() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            // 连接已断开或对端已取消，剩余数据无法送达
+        }
+        boolean cancel;
+        synchronized (this) {
+            cancel = !remoteEnded && failure == null && !readClosed;
+            readClosed = true;
+            received.clear();
+            buffered = 0;
+            notifyAll();
+        }
+        if (cancel) mux.sendCancel(id);
+        mux.remove(id);
+    }
+
+    // --- 由 StreamMultiplexer 在收帧线程调用，不阻塞 ---
+
+    /**
+     * 缓存收到的数据，超出窗口 (对端没有遵守额度) 时返回false
+     */
+    synchronized boolean onData(byte[] data) {
+        if (readClosed) return true;
+        if (remoteEnded || buffered + data.length > StreamMultiplexer.WINDOW) return false;
+        received.add(data);
+        buffered += data.length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 收回对端归还的额度，增量不为正或归还后超过窗口 (对端归还了未发出的额度) 时返回false
+     */
+    synchronized boolean onCredit(int increment) {
+        if (increment <= 0 || (long) credit + increment > StreamMultiplexer.WINDOW) return false;
+        credit += increment;
+        notifyAll();
+        return true;
+    }
+
+    synchronized void onEnd() {
+        remoteEnded = true;
+        notifyAll();
+    }
+
+    synchronized void onCancel() {
+        remoteCancelled = true;
+        notifyAll();
+    }
+
+    synchronized void fail(String reason) {
+        if (failure == null) failure = reason;
+        notifyAll();
+    }
+
+    private void await(long deadline, String what) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IOException(what + "超时 (流 " + id + ")");
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(what + "被中断");
+        }
+    }
+
+    private final class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            int grant = 0;
+            synchronized (PeerStream.this) {
+                long deadline = System.currentTimeMillis() + StreamMultiplexer.STALL_TIMEOUT_MS;
+                while (buffered == 0 && !remoteEnded && failure == null && !readClosed) {
+                    await(deadline, "等待数据");
+                }
+                if (buffered == 0) {
+                    if (readClosed) throw new IOException("流已关闭");
+                    if (remoteEnded) return -1;
+                    throw new IOException(failure);
+                }
+                while (n < len && !received.isEmpty()) {
+                    byte[] head = received.peek();
+                    int count = Math.min(len - n, head.length - headOffset);
+                    System.arraycopy(head, headOffset, b, off + n, count);
+                    n += count;
+                    headOffset += count;
+                    if (headOffset == head.length) {
+                        received.poll();
+                        headOffset = 0;
+                    }
+                }
+                buffered -= n;
+                // 读走半个窗口后一次性归还额度，避免每读一块都发一帧
+                unacknowledged += n;
+                if (unacknowledged >= StreamMultiplexer.WINDOW / 2 && !remoteEnded) {
+                    grant = unacknowledged;
+                    unacknowledged = 0;
+                }
+            }
+            if (grant > 0) mux.sendCredit(id, grant);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            synchronized (PeerStream.this) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            PeerStream.this.close();
+        }
+    }
+
+    private final class Output extends OutputStream {
+        private final byte[] buffer = new byte[StreamMultiplexer.MAX_CHUNK];
+        private int count = 0;
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (count == buffer.length) flushBuffer();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) flushBuffer();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            synchronized (PeerStream.this) {
+                if (localEnded) return;
+            }
+            try {
+                flushBuffer();
+            } finally {
+                boolean end;
+                synchronized (PeerStream.this) {
+                    end = !localEnded && failure == null && !remoteCancelled;
+                    localEnded = true;
+                }
+                if (end) mux.sendEnd(id);
+            }
+        }
+
+        /**
+         * 按剩余额度分块发出缓冲的数据，额度不足时等待对端归还
+         */
+        private void flushBuffer() throws IOException {
+            int sent = 0;
+            while (sent < count) {
+                int n;
+                synchronized (PeerStream.this) {
+                    long deadline = System.currentTimeMillis() + StreamMultiplexer.STALL_TIMEOUT_MS;
+                    if (credit == 0 && failure == null && !remoteCancelled && !localEnded) {
+                        mux.recordStall();
+                    }
+                    while (credit == 0 && failure == null && !remoteCancelled && !localEnded) {
+                        await(deadline, "等待发送额度");
+                    }
+                    if (failure != null) throw new IOException(failure);
+                    if (remoteCancelled) throw new IOException("对端已取消流 " + id);
+                    if (localEnded) throw new IOException("流 " + id + " 的发送方向已结束");
+                    n = Math.min(credit, count - sent);
+                    credit -= n;
+                }
+                mux.sendData(id, buffer, sent, n);
+                sent += n;
+            }
+            count = 0;
+        }
+    }
+}
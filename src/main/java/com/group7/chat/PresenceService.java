@@ -0,0 +1,609 @@
+package com.group7.chat;
+
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.MetricsRegistry;
+import com.group7.chat.security.SecurityManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 在线状态：每个节点发布一条带版本的在线记录，记录经邻居之间的增量同步传遍整个网络，
+ * 只通过中继可达的节点也会出现在成员列表中
+ *
+ * 记录由 (版本, 心跳) 排序，较新的覆盖较旧的：版本是节点启动时间，重启后更大；
+ * 心跳由节点本身每 HEARTBEAT_INTERVAL_MS 加一，正常退出时再加一并标记离线。
+ * 本节点每应用一条变化就给它分配一个递增的本地序号，邻居每 SYNC_INTERVAL_MS 用 PRESENCE_SYNC 拉取
+ * "某序号之后的变化" (PRESENCE_DELTA)，没有变化时只交换一条很小的消息。
+ * 每隔 DIGEST_INTERVAL_TICKS 次同步发送一次摘要 (PRESENCE_DIGEST)：在线记录按节点ID分成 DIGEST_BUCKETS 个桶，
+ * 每桶一个与顺序无关的哈希，对方只拉取不一致的桶，修复增量同步遗漏的变化（反熵）。
+ * 超过 EXPIRE_MS 没有新心跳的记录在本地视为离线；离线记录保留 PURGE_MS 后删除。
+ *
+ * 记录附带节点身份私钥签发的证明 (见 RequestProof)，经中继转发也不能被其他节点伪造或篡改；
+ * 没有有效证明的记录只接受记录所属节点自己发来的，且不再转发。
+ * 版本超前本地时钟 MAX_CLOCK_SKEW_MS 以上的记录被拒绝，记录总数不超过 MAX_RECORDS。
+ */
+public class PresenceService {
+
+    private static final Logger log = Logger.getLogger(PresenceService.class);
+
+    static final long HEARTBEAT_INTERVAL_MS = 30_000;
+    static final long EXPIRE_MS = 4 * HEARTBEAT_INTERVAL_MS;
+    static final long PURGE_MS = 30 * 60 * 1000;
+    public static final long SYNC_INTERVAL_MS = 5_000;
+    static final int DIGEST_INTERVAL_TICKS = 12;
+    static final int DIGEST_BUCKETS = 64;
+    static final int MAX_DELTA_RECORDS = 256;
+    static final int MAX_RECORDS = 8192;
+    static final long MAX_CLOCK_SKEW_MS = 5 * 60 * 1000L;
+    // 心跳上限：每次反驳只加一，远小于 Long.MAX_VALUE，不会溢出
+    static final long MAX_HEARTBEAT = Integer.MAX_VALUE;
+    private static final String PROOF_PURPOSE = "presence";
+    private static final String PROOF_SCOPE = "record";
+
+    private static final class Record {
+        final String nodeId;
+        String address;
+        long version;
+        long heartbeat;
+        boolean online;
+        boolean expired = false;
+        long updatedAt;
+        long seq;
+        String proof = "";
+
+        Record(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        boolean visible() {
+            return online && !expired;
+        }
+
+        boolean olderThan(long otherVersion, long otherHeartbeat) {
+            return version < otherVersion || (version == otherVersion && heartbeat < otherHeartbeat);
+        }
+
+        /**
+         * 证明签名的部分: 节点ID,地址,版本,心跳,在线(1/0)
+         */
+        String body() {
+            return nodeId + "," + address + "," + version + "," + heartbeat + "," + (online ? "1" : "0");
+        }
+
+        /**
+         * 节点ID,地址,版本,心跳,在线(1/0),证明；没有证明时最后一个字段为空。
+         * 文本消息格式以 | 分隔字段，记录中不使用 |，证明中的 | 换成 ;
+         */
+        String encode() {
+            return body() + "," + proof.replace('|', ';');
+        }
+    }
+
+    /**
+     * 解析后等待验证和合并的一条远程记录
+     */
+    private static final class Update {
+        final String nodeId;
+        final String address;
+        final long version;
+        final long heartbeat;
+        final boolean online;
+        String proof;
+
+        Update(String nodeId, String address, long version, long heartbeat, boolean online, String proof) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.version = version;
+            this.heartbeat = heartbeat;
+            this.online = online;
+            this.proof = proof;
+        }
+
+        String body() {
+            return nodeId + "," + address + "," + version + "," + heartbeat + "," + (online ? "1" : "0");
+        }
+    }
+
+    private final Node node;
+    private final Map<String, Record> records = new HashMap<>();
+    // 按本地序号排列，用于回答"某序号之后的变化"
+    private final TreeMap<Long, Record> bySeq = new TreeMap<>();
+    // 每个邻居已同步到的对方序号
+    private final Map<String, Long> cursors = new ConcurrentHashMap<>();
+    private final Record self;
+    private long changeSeq = 0;
+    private long lastHeartbeatAt;
+    private int ticks = 0;
+
+    private final Counter recordsApplied;
+    private final Counter recordsRejected;
+    private final Counter deltasSent;
+
+    public PresenceService(Node node, MetricsRegistry metrics) {
+        this.node = node;
+        this.self = new Record(node.getNodeIdString());
+        self.address = node.getAddress();
+        self.version = System.currentTimeMillis();
+        self.online = true;
+        self.updatedAt = self.version;
+        lastHeartbeatAt = self.version;
+        records.put(self.nodeId, self);
+        touchSelf();
+
+        this.recordsApplied = metrics.counter("chat_presence_records_applied_total", "应用的在线状态变化数");
+        this.recordsRejected = metrics.counter("chat_presence_records_rejected_total",
+                "因证明无效、版本超前或记录数已满而丢弃的在线记录数");
+        this.deltasSent = metrics.counter("chat_presence_deltas_sent_total", "发出的在线状态增量消息数");
+        metrics.gauge("chat_presence_online", "当前在线的成员数（不含本节点）", this::onlineCount);
+        metrics.gauge("chat_presence_records", "保存的在线记录数", this::recordCount);
+    }
+
+    /**
+     * 周期任务（每 SYNC_INTERVAL_MS）：心跳、过期、向每个邻居拉取增量，定期发送摘要
+     */
+    public void tick() {
+        List<Record> left = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (self.online && now - lastHeartbeatAt >= HEARTBEAT_INTERVAL_MS) {
+                self.heartbeat++;
+                self.updatedAt = now;
+                lastHeartbeatAt = now;
+                touchSelf();
+            }
+            List<Record> purged = new ArrayList<>();
+            for (Record record : records.values()) {
+                if (record == self) continue;
+                if (record.visible() && now - record.updatedAt > EXPIRE_MS) {
+                    record.expired = true;
+                    left.add(record);
+                } else if (!record.visible() && now - record.updatedAt > PURGE_MS) {
+                    purged.add(record);
+                }
+            }
+            for (Record record : purged) {
+                records.remove(record.nodeId);
+                bySeq.remove(record.seq);
+            }
+        }
+        notifyChanges(new ArrayList<>(), left);
+
+        boolean sendDigest = ++ticks % DIGEST_INTERVAL_TICKS == 0;
+        String digest = sendDigest ? encodeDigest() : null;
+        for (PeerConnection connection : node.getConnections().values()) {
+            String peerId = connection.getRemoteNodeId();
+            if (peerId == null || !connection.isConnected()) continue;
+            send(connection, new Message(Message.Type.PRESENCE_SYNC, node.getNodeIdString(),
+                    "since:" + cursors.getOrDefault(peerId, 0L)));
+            if (digest != null) {
+                send(connection, new Message(Message.Type.PRESENCE_DIGEST, node.getNodeIdString(), digest));
+            }
+        }
+    }
+
+    /**
+     * 处理邻居发来的在线状态消息，返回需要回复的消息，没有时返回null
+     */
+    public Message handle(PeerConnection source, Message message) {
+        String peerId = source.getRemoteNodeId();
+        if (peerId == null) return null;
+        switch (message.getType()) {
+            case PRESENCE_SYNC:
+                return handleSync(message.getContent());
+            case PRESENCE_DELTA:
+                return handleDelta(peerId, message.getContent());
+            case PRESENCE_DIGEST:
+                return handleDigest(peerId, message.getContent());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 请求为 "since:序号" 时返回该序号之后的变化，为 "buckets:桶号,..." 时返回这些桶中的全部记录
+     */
+    private Message handleSync(String request) {
+        StringBuilder content = new StringBuilder();
+        synchronized (this) {
+            if (request.startsWith("since:")) {
+                long since;
+                try {
+                    since = Long.parseLong(request.substring(6));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                // 对方的游标比本节点的序号还大，说明本节点重启过，从头同步
+                if (since > changeSeq) since = 0;
+                long cursor = changeSeq;
+                int count = 0;
+                for (Record record : bySeq.tailMap(since, false).values()) {
+                    if (count == MAX_DELTA_RECORDS) break;
+                    cursor = record.seq;
+                    if (!relayable(record)) continue;
+                    content.append('\n').append(record.encode());
+                    count++;
+                }
+                content.insert(0, count < MAX_DELTA_RECORDS ? changeSeq : cursor);
+            } else if (request.startsWith("buckets:")) {
+                // 请求为 "buckets:桶号,...@节点ID" 时从该节点ID之后继续，一次没有取完时在游标后给出下一页的请求
+                int at = request.indexOf('@');
+                String buckets = request.substring(8, at < 0 ? request.length() : at);
+                String after = at < 0 ? "" : request.substring(at + 1);
+                boolean[] wanted = new boolean[DIGEST_BUCKETS];
+                for (String bucket : buckets.split(",")) {
+                    try {
+                        int index = Integer.parseInt(bucket);
+                        if (index >= 0 && index < DIGEST_BUCKETS) wanted[index] = true;
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                // 游标为-1：按桶返回的记录不推进对方的增量游标。按节点ID排序分页
+                TreeMap<String, Record> matching = new TreeMap<>();
+                for (Record record : records.values()) {
+                    if (wanted[bucketOf(record.nodeId)] && relayable(record) && record.nodeId.compareTo(after) > 0) {
+                        matching.put(record.nodeId, record);
+                    }
+                }
+                content.append(-1);
+                int count = 0;
+                String last = null;
+                for (Record record : matching.values()) {
+                    if (count == MAX_DELTA_RECORDS) {
+                        content.insert(2, ";buckets:" + buckets + "@" + last);
+                        break;
+                    }
+                    content.append('\n').append(record.encode());
+                    last = record.nodeId;
+                    count++;
+                }
+            } else {
+                return null;
+            }
+        }
+        deltasSent.increment();
+        return new Message(Message.Type.PRESENCE_DELTA, node.getNodeIdString(), content.toString());
+    }
+
+    /**
+     * 应用增量；一次没有取完时立即继续拉取。证明在锁外验证，只验证比本地新的记录
+     */
+    private Message handleDelta(String peerId, String content) {
+        String[] lines = content.split("\n");
+        String[] header = lines[0].split(";", 2);
+        long cursor;
+        try {
+            cursor = Long.parseLong(header[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        List<Update> updates = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            Update update = parse(lines[i]);
+            if (update != null) updates.add(update);
+        }
+        synchronized (this) {
+            updates.removeIf(update -> !isNewer(update));
+        }
+        updates.removeIf(update -> !authentic(update, peerId));
+        List<Record> joined = new ArrayList<>();
+        List<Record> left = new ArrayList<>();
+        synchronized (this) {
+            for (Update update : updates) {
+                merge(update, joined, left);
+            }
+        }
+        notifyChanges(joined, left);
+        if (cursor < 0) {
+            boolean morePages = header.length == 2 && header[1].startsWith("buckets:") && header[1].indexOf('@') > 0;
+            return morePages ? new Message(Message.Type.PRESENCE_SYNC, node.getNodeIdString(), header[1]) : null;
+        }
+        cursors.put(peerId, cursor);
+        if (lines.length - 1 < MAX_DELTA_RECORDS) return null;
+        return new Message(Message.Type.PRESENCE_SYNC, node.getNodeIdString(), "since:" + cursor);
+    }
+
+    /**
+     * 比较摘要，拉取不一致的桶
+     */
+    private Message handleDigest(String peerId, String content) {
+        long[] theirs = decodeDigest(content);
+        if (theirs == null) return null;
+        long[] ours = bucketHashes();
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i < DIGEST_BUCKETS; i++) {
+            if (ours[i] != theirs[i]) {
+                if (buckets.length() > 0) buckets.append(',');
+                buckets.append(i);
+            }
+        }
+        if (buckets.length() == 0) return null;
+        log.debug(() -> "与 " + peerId.substring(0, 8) + " 的在线状态摘要不一致，拉取桶: " + buckets);
+        return new Message(Message.Type.PRESENCE_SYNC, node.getNodeIdString(), "buckets:" + buckets);
+    }
+
+    /**
+     * 解析一条远程记录，格式错误、版本超前本地时钟或心跳超出上限时返回null
+     */
+    private Update parse(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length != 6 && parts.length != 5) return null;
+        long version;
+        long heartbeat;
+        try {
+            version = Long.parseLong(parts[2]);
+            heartbeat = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (version < 0 || version > System.currentTimeMillis() + MAX_CLOCK_SKEW_MS
+                || heartbeat < 0 || heartbeat > MAX_HEARTBEAT) {
+            recordsRejected.increment();
+            return null;
+        }
+        return new Update(parts[0], parts[1], version, heartbeat, parts[4].equals("1"),
+                parts.length == 6 ? parts[5].replace(';', '|') : "");
+    }
+
+    /**
+     * 记录是否比本地的新；必须持有锁
+     */
+    private boolean isNewer(Update update) {
+        if (update.nodeId.equals(self.nodeId)) {
+            return self.online && self.olderThan(update.version, update.heartbeat);
+        }
+        Record record = records.get(update.nodeId);
+        return record == null || record.olderThan(update.version, update.heartbeat);
+    }
+
+    /**
+     * 证明有效的记录可以接受和转发；没有有效证明时只接受记录所属节点直接发来的，并清除证明使其不再转发
+     */
+    private boolean authentic(Update update, String peerId) {
+        SecurityManager securityManager = node.getSecurityManager();
+        boolean verified = !update.proof.isEmpty() && securityManager != null
+                && securityManager.verifyRequest(update.proof, PROOF_PURPOSE, update.nodeId, PROOF_SCOPE, update.body());
+        if (verified) return true;
+        update.proof = "";
+        if (update.nodeId.equals(peerId)) return true;
+        recordsRejected.increment();
+        return false;
+    }
+
+    /**
+     * 合并一条已验证的远程记录，验证期间本地已有更新的记录时忽略；必须持有锁
+     */
+    private void merge(Update update, List<Record> joined, List<Record> left) {
+        if (!isNewer(update)) return;
+        if (update.nodeId.equals(self.nodeId)) {
+            // 别的节点持有比自己更新的本节点记录（如上次运行留下的离线记录），用更大的心跳覆盖
+            self.version = Math.max(self.version, update.version);
+            self.heartbeat = update.heartbeat + 1;
+            touchSelf();
+            return;
+        }
+        Record record = records.get(update.nodeId);
+        boolean wasVisible = record != null && record.visible();
+        if (record == null) {
+            if (records.size() >= MAX_RECORDS && !evictOffline()) {
+                recordsRejected.increment();
+                return;
+            }
+            record = new Record(update.nodeId);
+            records.put(update.nodeId, record);
+        }
+        record.address = update.address;
+        record.version = update.version;
+        record.heartbeat = update.heartbeat;
+        record.online = update.online;
+        record.proof = update.proof;
+        record.expired = false;
+        record.updatedAt = System.currentTimeMillis();
+        assignSeq(record);
+        recordsApplied.increment();
+        if (!wasVisible && record.visible()) joined.add(record);
+        if (wasVisible && !record.visible()) left.add(record);
+    }
+
+    /**
+     * 记录数已满时删除最早更新的一条离线记录，没有离线记录时返回false；必须持有锁
+     */
+    private boolean evictOffline() {
+        Record oldest = null;
+        for (Record record : records.values()) {
+            if (record != self && !record.visible() && (oldest == null || record.updatedAt < oldest.updatedAt)) {
+                oldest = record;
+            }
+        }
+        if (oldest == null) return false;
+        records.remove(oldest.nodeId);
+        bySeq.remove(oldest.seq);
+        return true;
+    }
+
+    /**
+     * 与邻居建立连接 (HELLO)：直接连接是对方在线的证据，并立即从该邻居拉取全部记录
+     */
+    public void onNeighborHello(PeerConnection connection, String nodeId, String address) {
+        List<Record> joined = new ArrayList<>();
+        synchronized (this) {
+            Record record = records.get(nodeId);
+            if (record == null) {
+                if (records.size() >= MAX_RECORDS) evictOffline();
+                record = new Record(nodeId);
+                record.address = address;
+                record.online = true;
+                records.put(nodeId, record);
+                assignSeq(record);
+                joined.add(record);
+            } else {
+                // 对方可能刚重启，新版本的记录同步到之前先按在线显示
+                if (!record.visible()) joined.add(record);
+                record.online = true;
+                record.expired = false;
+            }
+            record.updatedAt = System.currentTimeMillis();
+        }
+        notifyChanges(joined, new ArrayList<>());
+        cursors.remove(nodeId);
+        send(connection, new Message(Message.Type.PRESENCE_SYNC, node.getNodeIdString(), "since:0"));
+    }
+
+    public void onNeighborClosed(String nodeId) {
+        cursors.remove(nodeId);
+    }
+
+    /**
+     * 正常退出：心跳加一并标记离线，直接推送给所有邻居，由它们继续传播
+     */
+    public void leave() {
+        String content;
+        synchronized (this) {
+            self.heartbeat++;
+            self.online = false;
+            touchSelf();
+            content = "-1\n" + self.encode();
+        }
+        for (PeerConnection connection : node.getConnections().values()) {
+            if (connection.getRemoteNodeId() != null && connection.isConnected()) {
+                deltasSent.increment();
+                send(connection, new Message(Message.Type.PRESENCE_DELTA, node.getNodeIdString(), content));
+            }
+        }
+    }
+
+    /**
+     * 把当前在线的成员逐个通知给新设置的监听器
+     */
+    public void announceOnlineMembers(MessageListener listener) {
+        if (listener == null) return;
+        for (Record record : visibleRecords()) {
+            listener.onMemberJoined(record.nodeId, record.address);
+        }
+    }
+
+    public synchronized boolean isOnline(String nodeId) {
+        Record record = records.get(nodeId);
+        return record != null && record != self && record.visible();
+    }
+
+    public synchronized int onlineCount() {
+        int count = 0;
+        for (Record record : records.values()) {
+            if (record != self && record.visible()) count++;
+        }
+        return count;
+    }
+
+    public synchronized int recordCount() {
+        return records.size();
+    }
+
+    /**
+     * 当前在线成员的节点ID（不含本节点）
+     */
+    public List<String> onlineMemberIds() {
+        List<String> ids = new ArrayList<>();
+        for (Record record : visibleRecords()) {
+            ids.add(record.nodeId);
+        }
+        return ids;
+    }
+
+    private synchronized List<Record> visibleRecords() {
+        List<Record> visible = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (record != self && record.visible()) visible.add(record);
+        }
+        return visible;
+    }
+
+    /**
+     * 本节点记录变化后重新签发证明并分配序号；没有安全管理器时不带证明，只有邻居会接受；必须持有锁
+     */
+    private void touchSelf() {
+        SecurityManager securityManager = node.getSecurityManager();
+        String proof = securityManager != null
+                ? securityManager.signRequest(PROOF_PURPOSE, PROOF_SCOPE, self.body()) : null;
+        self.proof = proof != null ? proof : "";
+        assignSeq(self);
+    }
+
+    /**
+     * 可以转发给其他节点的记录：带证明的记录，以及本节点自己的记录
+     */
+    private boolean relayable(Record record) {
+        return record == self || !record.proof.isEmpty();
+    }
+
+    private void assignSeq(Record record) {
+        bySeq.remove(record.seq);
+        record.seq = ++changeSeq;
+        bySeq.put(record.seq, record);
+    }
+
+    private void notifyChanges(List<Record> joined, List<Record> left) {
+        for (Record record : joined) {
+            node.onMemberOnline(record.nodeId);
+        }
+        MessageListener listener = node.getMessageRouter().getMessageListener();
+        if (listener == null) return;
+        for (Record record : joined) {
+            listener.onMemberJoined(record.nodeId, record.address);
+        }
+        for (Record record : left) {
+            listener.onMemberLeft(record.nodeId);
+        }
+    }
+
+    private void send(PeerConnection connection, Message message) {
+        node.sendToPeer(connection, message, message.serialize());
+    }
+
+    private static int bucketOf(String nodeId) {
+        return Math.floorMod(nodeId.hashCode(), DIGEST_BUCKETS);
+    }
+
+    /**
+     * 每个桶中可转发的在线记录的 (节点ID, 版本) 哈希之和，与记录顺序无关；心跳不计入，否则传播延迟会让摘要总是不一致
+     */
+    private synchronized long[] bucketHashes() {
+        long[] hashes = new long[DIGEST_BUCKETS];
+        for (Record record : records.values()) {
+            if (!record.visible() || !relayable(record)) continue;
+            long hash = record.nodeId.hashCode() * 0x9E3779B97F4A7C15L + record.version;
+            hash ^= hash >>> 31;
+            hash *= 0xBF58476D1CE4E5B9L;
+            hashes[bucketOf(record.nodeId)] += hash ^ (hash >>> 29);
+        }
+        return hashes;
+    }
+
+    private String encodeDigest() {
+        StringBuilder content = new StringBuilder();
+        for (long hash : bucketHashes()) {
+            if (content.length() > 0) content.append(',');
+            content.append(Long.toHexString(hash));
+        }
+        return content.toString();
+    }
+
+    private static long[] decodeDigest(String content) {
+        String[] parts = content.split(",");
+        if (parts.length != DIGEST_BUCKETS) return null;
+        long[] hashes = new long[DIGEST_BUCKETS];
+        try {
+            for (int i = 0; i < DIGEST_BUCKETS; i++) {
+                hashes[i] = Long.parseUnsignedLong(parts[i], 16);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return hashes;
+    }
+}
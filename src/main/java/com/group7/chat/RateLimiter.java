@@ -0,0 +1,257 @@
+package com.group7.chat;
+
+import com.group7.chat.PeerConnection.Lane;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.MetricsRegistry;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 入站消息限速：每个连接和每个原始发送者按消息类别 (Lane) 各有一个令牌桶
+ *
+ * 超限的消息在路由之前丢弃，不进入去重缓存，也不会被继续洪泛。
+ * 连接每丢弃一条消息累计一次违规分，分数每 SCORE_HALF_LIFE_MS 减半：
+ * 超过 DEMOTE_SCORE 时该连接的速率降为 DEMOTED_RATE_FACTOR 倍，
+ * 超过 DISCONNECT_SCORE 时断开连接；分数回落到 DEMOTE_SCORE / 4 以下后恢复正常速率。
+ * 跟踪的发送者在空闲 SENDER_IDLE_MS 后由 cleanup 移除。
+ * UDP RPC请求没有连接，按源地址使用与连接相同的速率，超限的数据报直接丢弃；空闲的地址同样由 cleanup 移除。
+ * 系统属性 group7.ratelimit=false 关闭限速（用于吞吐量测试）。
+ */
+public class RateLimiter {
+
+    private static final Logger log = Logger.getLogger(RateLimiter.class);
+
+    // 每个连接每类消息的速率（条/秒）和突发容量
+    private static final double[] CONNECTION_RATE = {50, 100, 20};
+    private static final double[] CONNECTION_BURST = {200, 300, 50};
+    // 每个原始发送者每类消息的速率和突发容量（经多条路径到达的重复副本不计入）
+    private static final double[] SENDER_RATE = {20, 20, 5};
+    private static final double[] SENDER_BURST = {50, 60, 20};
+
+    private static final double DEMOTE_SCORE = 50;
+    private static final double DISCONNECT_SCORE = 300;
+    private static final double DEMOTED_RATE_FACTOR = 0.25;
+    private static final long SCORE_HALF_LIFE_MS = 10_000;
+    private static final long SENDER_IDLE_MS = 60_000;
+    private static final int MAX_TRACKED_SENDERS = 10_000;
+
+    /**
+     * 判定结果
+     */
+    public enum Verdict {
+        ACCEPT,     // 处理消息
+        DROP,       // 丢弃消息
+        DISCONNECT  // 丢弃消息并断开连接
+    }
+
+    /**
+     * 令牌桶：按速率持续补充令牌，最多积累 burst 个
+     */
+    static final class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        /**
+         * 取一个令牌，factor 用于临时降低补充速率，令牌不足时返回false
+         */
+        synchronized boolean tryAcquire(double factor) {
+            refill(factor);
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+
+        /**
+         * 预支 amount 个令牌 (允许透支)，返回补足透支需要等待的纳秒数，令牌足够时返回0；
+         * 用于按字节限制带宽，一次取出的量可以超过 burst
+         */
+        synchronized long reserve(double amount) {
+            refill(1.0);
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        private void refill(double factor) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * rate * factor);
+            lastRefillNanos = now;
+        }
+
+        synchronized boolean isIdle(long idleNanos) {
+            return System.nanoTime() - lastRefillNanos > idleNanos;
+        }
+    }
+
+    /**
+     * 一个连接的令牌桶和违规分
+     */
+    private static final class PeerState {
+        final TokenBucket[] buckets = newBuckets(CONNECTION_RATE, CONNECTION_BURST);
+        double score = 0;
+        long scoreUpdatedMs = System.currentTimeMillis();
+        volatile boolean demoted = false;
+        boolean disconnected = false;
+
+        /**
+         * 按半衰期衰减后的当前分数
+         */
+        double decayedScore(long now) {
+            score *= Math.pow(0.5, (now - scoreUpdatedMs) / (double) SCORE_HALF_LIFE_MS);
+            scoreUpdatedMs = now;
+            return score;
+        }
+    }
+
+    private final boolean enabled = Boolean.parseBoolean(System.getProperty("group7.ratelimit", "true"));
+    private final Map<PeerConnection, PeerState> peers = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket[]> senders = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket[]> addresses = new ConcurrentHashMap<>();
+
+    private final Counter[] connectionDrops = new Counter[Lane.values().length];
+    private final Counter[] senderDrops = new Counter[Lane.values().length];
+    private final Counter[] addressDrops = new Counter[Lane.values().length];
+    private final Counter demotions;
+    private final Counter disconnects;
+
+    public RateLimiter(MetricsRegistry metrics) {
+        for (Lane lane : Lane.values()) {
+            String name = lane.name().toLowerCase();
+            connectionDrops[lane.ordinal()] = metrics.counter("chat_rate_limited_total",
+                    "因超过速率限制而丢弃的消息数", "scope", "connection", "lane", name);
+            senderDrops[lane.ordinal()] = metrics.counter("chat_rate_limited_total",
+                    "因超过速率限制而丢弃的消息数", "scope", "sender", "lane", name);
+            addressDrops[lane.ordinal()] = metrics.counter("chat_rate_limited_total",
+                    "因超过速率限制而丢弃的消息数", "scope", "address", "lane", name);
+        }
+        this.demotions = metrics.counter("chat_peer_penalties_total", "对超限连接的处罚次数", "action", "demote");
+        this.disconnects = metrics.counter("chat_peer_penalties_total", "对超限连接的处罚次数", "action", "disconnect");
+        metrics.gauge("chat_rate_limited_senders", "正在跟踪速率的发送者数", senders::size);
+    }
+
+    /**
+     * 检查来自某个连接的消息是否超过该连接的速率（去重之前调用，重复副本也计入）
+     */
+    public Verdict admitFromConnection(PeerConnection source, Message message) {
+        if (!enabled) return Verdict.ACCEPT;
+        // 已断开的连接上仍在排队处理的帧直接丢弃，不再计分
+        if (!source.isConnected()) return Verdict.DROP;
+        Lane lane = Lane.of(message.getType());
+        PeerState state = peers.computeIfAbsent(source, c -> new PeerState());
+        if (state.demoted) maybeRestore(source, state);
+        double factor = state.demoted ? DEMOTED_RATE_FACTOR : 1.0;
+        if (state.buckets[lane.ordinal()].tryAcquire(factor)) {
+            return Verdict.ACCEPT;
+        }
+        connectionDrops[lane.ordinal()].increment();
+        return penalize(source, state);
+    }
+
+    /**
+     * 检查消息的原始发送者是否超过速率（去重之后调用，只计新消息）
+     */
+    public boolean admitFromSender(Message message) {
+        if (!enabled) return true;
+        Lane lane = Lane.of(message.getType());
+        TokenBucket[] buckets = senders.get(message.getSenderId());
+        if (buckets == null) {
+            // 伪造大量发送者ID时不再跟踪新的发送者，此时仍受连接速率限制
+            if (senders.size() >= MAX_TRACKED_SENDERS) return true;
+            buckets = senders.computeIfAbsent(message.getSenderId(), id -> newBuckets(SENDER_RATE, SENDER_BURST));
+        }
+        if (buckets[lane.ordinal()].tryAcquire(1.0)) {
+            return true;
+        }
+        senderDrops[lane.ordinal()].increment();
+        return false;
+    }
+
+    /**
+     * 检查通过UDP收到的请求是否超过其源地址的速率
+     */
+    public boolean admitFromAddress(InetSocketAddress source, Message message) {
+        if (!enabled) return true;
+        Lane lane = Lane.of(message.getType());
+        String key = source.getAddress().getHostAddress() + ":" + source.getPort();
+        TokenBucket[] buckets = addresses.get(key);
+        if (buckets == null) {
+            // 伪造大量源地址时不再跟踪新的地址，只丢弃
+            if (addresses.size() >= MAX_TRACKED_SENDERS) {
+                addressDrops[lane.ordinal()].increment();
+                return false;
+            }
+            buckets = addresses.computeIfAbsent(key, k -> newBuckets(CONNECTION_RATE, CONNECTION_BURST));
+        }
+        if (buckets[lane.ordinal()].tryAcquire(1.0)) {
+            return true;
+        }
+        addressDrops[lane.ordinal()].increment();
+        return false;
+    }
+
+    private Verdict penalize(PeerConnection source, PeerState state) {
+        synchronized (state) {
+            if (state.disconnected) return Verdict.DROP;
+            long now = System.currentTimeMillis();
+            double score = state.decayedScore(now) + 1;
+            state.score = score;
+            if (score >= DISCONNECT_SCORE) {
+                state.disconnected = true;
+                disconnects.increment();
+                log.warn("连接 " + source.getAddress() + " 持续超过速率限制，断开连接");
+                return Verdict.DISCONNECT;
+            }
+            if (score >= DEMOTE_SCORE && !state.demoted) {
+                state.demoted = true;
+                demotions.increment();
+                log.warn("连接 " + source.getAddress() + " 超过速率限制，降低其速率");
+            }
+        }
+        return Verdict.DROP;
+    }
+
+    private void maybeRestore(PeerConnection source, PeerState state) {
+        synchronized (state) {
+            if (state.demoted && state.decayedScore(System.currentTimeMillis()) < DEMOTE_SCORE / 4) {
+                state.demoted = false;
+                log.info("连接 " + source.getAddress() + " 恢复正常速率");
+            }
+        }
+    }
+
+    /**
+     * 连接关闭时清除其状态
+     */
+    public void forget(PeerConnection connection) {
+        peers.remove(connection);
+    }
+
+    /**
+     * 移除长时间没有消息的发送者（定期调用）
+     */
+    public void cleanup() {
+        long idleNanos = SENDER_IDLE_MS * 1_000_000L;
+        senders.values().removeIf(buckets -> buckets[0].isIdle(idleNanos)
+                && buckets[1].isIdle(idleNanos) && buckets[2].isIdle(idleNanos));
+        addresses.values().removeIf(buckets -> buckets[0].isIdle(idleNanos)
+                && buckets[1].isIdle(idleNanos) && buckets[2].isIdle(idleNanos));
+    }
+
+    private static TokenBucket[] newBuckets(double[] rates, double[] bursts) {
+        TokenBucket[] buckets = new TokenBucket[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            buckets[i] = new TokenBucket(rates[i], bursts[i]);
+        }
+        return buckets;
+    }
+}
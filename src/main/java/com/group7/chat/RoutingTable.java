@@ -0,0 +1,148 @@
+package com.group7.chat;
+
+import com.group7.chat.Node.NodeInfo;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Kademlia 路由表：按与本节点ID的异或距离把已知节点分入 ID_LENGTH 个K-桶
+ *
+ * 桶下标 = ID_LENGTH - 距离的位数，下标越大离本节点越近。
+ * 本类只维护表本身，桶满时是否替换最旧节点（PING探测）由调用方决定。
+ */
+public class RoutingTable {
+
+    public static final int ID_LENGTH = 256; // 节点ID的位数 (SHA-256)
+
+    private final BigInteger localId;
+    private final int bucketSize;
+    private final List<Map<BigInteger, NodeInfo>> buckets;
+
+    public RoutingTable(BigInteger localId, int bucketSize) {
+        this.localId = localId;
+        this.bucketSize = bucketSize;
+        this.buckets = new ArrayList<>(ID_LENGTH);
+        for (int i = 0; i < ID_LENGTH; i++) {
+            buckets.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public int getBucketIndex(BigInteger nodeId) {
+        BigInteger distance = localId.xor(nodeId);
+        if (distance.equals(BigInteger.ZERO)) return 0;
+        return ID_LENGTH - distance.bitLength();
+    }
+
+    /**
+     * 加入或刷新节点
+     *
+     * @return 节点已保存时返回null；桶已满时返回该桶中最久未活跃的节点，由调用方决定是否替换
+     */
+    public NodeInfo update(NodeInfo nodeInfo) {
+        if (nodeInfo.getNodeId().equals(localId)) return null;
+
+        Map<BigInteger, NodeInfo> bucket = buckets.get(getBucketIndex(nodeInfo.getNodeId()));
+        NodeInfo existing = bucket.get(nodeInfo.getNodeId());
+        if (existing != null) {
+            existing.updateLastSeen();
+            return null;
+        }
+        if (bucket.size() < bucketSize) {
+            bucket.put(nodeInfo.getNodeId(), nodeInfo);
+            return null;
+        }
+        return bucket.values().stream().min(Comparator.comparingLong(NodeInfo::getLastSeen)).orElse(null);
+    }
+
+    /**
+     * 用新节点替换桶中的旧节点（旧节点PING无响应时调用）
+     */
+    public void replace(NodeInfo oldest, NodeInfo fresh) {
+        Map<BigInteger, NodeInfo> bucket = buckets.get(getBucketIndex(fresh.getNodeId()));
+        bucket.remove(oldest.getNodeId());
+        bucket.put(fresh.getNodeId(), fresh);
+    }
+
+    public boolean remove(BigInteger nodeId) {
+        return buckets.get(getBucketIndex(nodeId)).remove(nodeId) != null;
+    }
+
+    public boolean contains(BigInteger nodeId) {
+        return buckets.get(getBucketIndex(nodeId)).containsKey(nodeId);
+    }
+
+    public NodeInfo get(BigInteger nodeId) {
+        return buckets.get(getBucketIndex(nodeId)).get(nodeId);
+    }
+
+    /**
+     * 查找离目标最近的count个节点，按距离从近到远排列
+     */
+    public List<NodeInfo> findClosest(BigInteger targetId, int count) {
+        // 大顶堆只保留当前最近的count个，每个节点的距离只计算一次
+        PriorityQueue<Candidate> closest = new PriorityQueue<>(count + 1,
+                (a, b) -> b.distance.compareTo(a.distance));
+        for (Map<BigInteger, NodeInfo> bucket : buckets) {
+            for (NodeInfo info : bucket.values()) {
+                closest.add(new Candidate(info, info.getNodeId().xor(targetId)));
+                if (closest.size() > count) {
+                    closest.poll();
+                }
+            }
+        }
+        NodeInfo[] result = new NodeInfo[closest.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = closest.poll().info;
+        }
+        return new ArrayList<>(Arrays.asList(result));
+    }
+
+    /**
+     * 所有节点的快照
+     */
+    public List<NodeInfo> getAllNodes() {
+        List<NodeInfo> all = new ArrayList<>();
+        for (Map<BigInteger, NodeInfo> bucket : buckets) {
+            all.addAll(bucket.values());
+        }
+        return all;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<BigInteger, NodeInfo> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    public int getBucketSize(int bucketIndex) {
+        return buckets.get(bucketIndex).size();
+    }
+
+    /**
+     * 生成一个落在指定桶范围内的随机ID，用于刷新该桶
+     */
+    public BigInteger randomIdInBucket(int bucketIndex, Random random) {
+        BigInteger base = BigInteger.ONE.shiftLeft(ID_LENGTH - 1 - bucketIndex);
+        BigInteger randomComponent = new BigInteger(ID_LENGTH - 1 - bucketIndex, random);
+        return localId.xor(base.or(randomComponent));
+    }
+
+    private static final class Candidate {
+        private final NodeInfo info;
+        private final BigInteger distance;
+
+        Candidate(NodeInfo info, BigInteger distance) {
+            this.info = info;
+            this.distance = distance;
+        }
+    }
+}
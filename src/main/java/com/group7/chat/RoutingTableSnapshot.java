@@ -0,0 +1,120 @@
+package com.group7.chat;
+
+import com.group7.chat.Node.NodeInfo;
+import com.group7.chat.logging.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 路由表快照：节点停止时和运行期间定期保存，重启时加载，不必只依赖引导节点重建路由表
+ *
+ * 二进制格式: [魔数(4)][版本(1)][保存时间(8)][条目数(4)]，每个条目为
+ * [节点ID(32字节，大端)][主机(writeUTF)][端口(2)]。
+ * 先写临时文件再原子替换，进程在写入中途退出也不会留下半个快照。
+ * 超过 MAX_AGE_MS 的快照视为过期，不再加载。
+ */
+public final class RoutingTableSnapshot {
+
+    private static final Logger log = Logger.getLogger(RoutingTableSnapshot.class);
+
+    private static final int MAGIC = 0x52545331; // "RTS1"
+    private static final byte VERSION = 1;
+    private static final int ID_BYTES = RoutingTable.ID_LENGTH / 8;
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private RoutingTableSnapshot() {
+    }
+
+    /**
+     * 节点状态文件所在目录，由系统属性 group7.data.dir 指定，默认为 data
+     */
+    public static Path dataDir() {
+        return Paths.get(System.getProperty("group7.data.dir", "data"));
+    }
+
+    /**
+     * 指定端口的节点的默认快照路径
+     */
+    public static Path defaultPath(int port) {
+        return dataDir().resolve("routing-" + port + ".bin");
+    }
+
+    /**
+     * 保存快照，失败时返回false
+     */
+    public static boolean save(Collection<NodeInfo> nodes, Path path) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(nodes.size());
+                for (NodeInfo info : nodes) {
+                    out.write(toFixedBytes(info.getNodeId()));
+                    out.writeUTF(info.getHost());
+                    out.writeShort(info.getPort());
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            log.warn("保存路由表快照失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 加载快照，文件不存在、已损坏或已过期时返回空列表
+     */
+    public static List<NodeInfo> load(Path path) {
+        List<NodeInfo> nodes = new ArrayList<>();
+        if (!Files.exists(path)) return nodes;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                log.warn("路由表快照格式不正确，已忽略: " + path);
+                return nodes;
+            }
+            long savedAt = in.readLong();
+            if (System.currentTimeMillis() - savedAt > MAX_AGE_MS) {
+                log.info("路由表快照已过期，已忽略: " + path);
+                return nodes;
+            }
+            int count = in.readInt();
+            byte[] id = new byte[ID_BYTES];
+            for (int i = 0; i < count; i++) {
+                in.readFully(id);
+                String host = in.readUTF();
+                int port = in.readUnsignedShort();
+                nodes.add(new NodeInfo(new BigInteger(1, id), host, port));
+            }
+        } catch (IOException e) {
+            log.warn("读取路由表快照失败: " + e.getMessage());
+            nodes.clear();
+        }
+        return nodes;
+    }
+
+    /**
+     * 把节点ID编码为定长的无符号大端字节
+     */
+    private static byte[] toFixedBytes(BigInteger id) {
+        byte[] raw = id.toByteArray();
+        byte[] fixed = new byte[ID_BYTES];
+        int length = Math.min(raw.length, ID_BYTES);
+        System.arraycopy(raw, raw.length - length, fixed, ID_BYTES - length, length);
+        return fixed;
+    }
+}
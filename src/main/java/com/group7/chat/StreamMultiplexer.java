@@ -0,0 +1,214 @@
+package com.group7.chat;
+
+import com.group7.chat.logging.Logger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 在一条对等连接上复用多条 PeerStream
+ *
+ * 流帧 (PeerConnection.FRAME_STREAM) 的负载为 [操作(1)][流ID(4)][内容]：
+ * OPEN 的内容是协议名 (UTF-8)，DATA 是数据，CREDIT 是归还的额度 (4字节)，END 和 CANCEL 没有内容。
+ * 出站连接一方打开的流使用奇数ID，入站一方使用偶数ID，双方各自递增，不会冲突也不会复用。
+ *
+ * OPEN、DATA、END 走批量通道以保持先后顺序，每帧不超过 MAX_CHUNK，与聊天消息按DRR交错写出；
+ * CREDIT 和 CANCEL 走控制通道，不会排在积压的数据后面。批量通道积压超过上限丢弃了本方的帧时，该流以失败结束。
+ */
+final class StreamMultiplexer {
+
+    private static final Logger log = Logger.getLogger(StreamMultiplexer.class);
+
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte CREDIT = 3;
+    static final byte END = 4;
+    static final byte CANCEL = 5;
+
+    // 每条流每个方向最多有这么多字节在途或未读
+    static final int WINDOW = 256 * 1024;
+    // 单个DATA帧的最大数据量，与DRR的单位额度相同
+    static final int MAX_CHUNK = 16 * 1024;
+    // 等待数据或额度超过这个时间视为对端失去响应
+    static final long STALL_TIMEOUT_MS = 60_000;
+    // 对端同时打开的流的上限
+    static final int MAX_INBOUND_STREAMS = 64;
+
+    private static final int HEADER_SIZE = 5;
+
+    private final PeerConnection connection;
+    private final ConcurrentHashMap<Integer, PeerStream> streams = new ConcurrentHashMap<>();
+    private int nextId;
+    private int inboundCount = 0;
+    private volatile Consumer<PeerStream> acceptor;
+    private volatile String closedReason;
+
+    StreamMultiplexer(PeerConnection connection) {
+        this.connection = connection;
+        this.nextId = connection.isInbound() ? 2 : 1;
+    }
+
+    void setAcceptor(Consumer<PeerStream> acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    String getRemoteNodeId() {
+        return connection.getRemoteNodeId();
+    }
+
+    int getOpenStreams() {
+        return streams.size();
+    }
+
+    /**
+     * 打开一条新流，连接已关闭时返回null
+     */
+    PeerStream open(String protocol) {
+        PeerStream stream;
+        synchronized (this) {
+            if (closedReason != null) return null;
+            stream = new PeerStream(this, nextId, protocol);
+            nextId += 2;
+            streams.put(stream.getId(), stream);
+        }
+        send(OPEN, stream.getId(), protocol.getBytes(StandardCharsets.UTF_8), PeerConnection.Lane.BULK);
+        return stream;
+    }
+
+    /**
+     * 处理一个流帧，在连接的收帧线程上调用
+     */
+    void onFrame(byte[] payload) {
+        if (payload.length < HEADER_SIZE) {
+            log.warn("收到过短的流帧: " + connection.getAddress());
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte op = buffer.get();
+        int id = buffer.getInt();
+        if (op == OPEN) {
+            onOpen(id, new String(payload, HEADER_SIZE, payload.length - HEADER_SIZE, StandardCharsets.UTF_8));
+            return;
+        }
+        PeerStream stream = streams.get(id);
+        if (stream == null) {
+            // 本地已关闭的流：对端在收到CANCEL之前发出的帧直接丢弃
+            return;
+        }
+        switch (op) {
+            case DATA:
+                byte[] data = new byte[payload.length - HEADER_SIZE];
+                buffer.get(data);
+                if (!stream.onData(data)) {
+                    log.warn("流 " + id + " 超出接收窗口，关闭该流: " + connection.getAddress());
+                    stream.fail("对端超出接收窗口");
+                    sendCancel(id);
+                    remove(id);
+                }
+                break;
+            case CREDIT:
+                if (buffer.remaining() < 4 || !stream.onCredit(buffer.getInt())) {
+                    log.warn("流 " + id + " 收到无效的额度，关闭该流: " + connection.getAddress());
+                    stream.fail("对端归还的额度无效");
+                    sendCancel(id);
+                    remove(id);
+                }
+                break;
+            case END:
+                stream.onEnd();
+                break;
+            case CANCEL:
+                stream.onCancel();
+                break;
+            default:
+                log.warn("收到未知的流操作: " + op);
+        }
+    }
+
+    private void onOpen(int id, String protocol) {
+        Consumer<PeerStream> handler = acceptor;
+        PeerStream stream = null;
+        synchronized (this) {
+            boolean remoteParity = (id & 1) == (connection.isInbound() ? 1 : 0);
+            if (closedReason == null && handler != null && remoteParity
+                    && !streams.containsKey(id) && inboundCount < MAX_INBOUND_STREAMS) {
+                stream = new PeerStream(this, id, protocol);
+                streams.put(id, stream);
+                inboundCount++;
+            }
+        }
+        if (stream == null) {
+            log.warn("拒绝对端打开的流 " + id + " (" + protocol + "): " + connection.getAddress());
+            sendCancel(id);
+            return;
+        }
+        handler.accept(stream);
+    }
+
+    void remove(int id) {
+        synchronized (this) {
+            if (streams.remove(id) != null && (id & 1) == (connection.isInbound() ? 1 : 0)) {
+                inboundCount--;
+            }
+        }
+    }
+
+    /**
+     * 连接断开：所有未关闭的流读写都以IOException结束
+     */
+    void close(String reason) {
+        List<PeerStream> open;
+        synchronized (this) {
+            if (closedReason != null) return;
+            closedReason = reason;
+            open = new ArrayList<>(streams.values());
+            streams.clear();
+            inboundCount = 0;
+        }
+        for (PeerStream stream : open) {
+            stream.fail(reason);
+        }
+    }
+
+    void sendData(int id, byte[] data, int offset, int length) {
+        send(DATA, id, data, offset, length, PeerConnection.Lane.BULK);
+    }
+
+    void sendEnd(int id) {
+        send(END, id, new byte[0], PeerConnection.Lane.BULK);
+    }
+
+    void sendCredit(int id, int increment) {
+        send(CREDIT, id, ByteBuffer.allocate(4).putInt(increment).array(), PeerConnection.Lane.CONTROL);
+    }
+
+    void sendCancel(int id) {
+        send(CANCEL, id, new byte[0], PeerConnection.Lane.CONTROL);
+    }
+
+    void recordStall() {
+        connection.recordStreamStall();
+    }
+
+    private void send(byte op, int id, byte[] body, PeerConnection.Lane lane) {
+        send(op, id, body, 0, body.length, lane);
+    }
+
+    private void send(byte op, int id, byte[] body, int offset, int length, PeerConnection.Lane lane) {
+        if (closedReason != null) return;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(op).putInt(id).put(body, offset, length);
+        if (!connection.sendFrame(PeerConnection.FRAME_STREAM, frame.array(), lane) && lane == PeerConnection.Lane.BULK) {
+            // 丢掉的数据无法补发，流已不完整
+            PeerStream stream = streams.get(id);
+            if (stream != null) {
+                stream.fail("发送队列已满");
+                remove(id);
+                sendCancel(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.group7.chat;
+
+import com.group7.chat.RateLimiter.TokenBucket;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.MetricsRegistry;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件发送调度：限制同时进行的发送数，并按目标节点和全局两级令牌桶限制发送带宽
+ *
+ * 待发送的文件按目标节点分队，出队时在节点之间轮转，向一个节点排队的大批文件不会挡住发给其他节点的文件。
+ * 不超过 SMALL_FILE_BYTES 的小文件先于大文件出队，并且可以多占 SMALL_FILE_EXTRA_SLOTS 个并发名额，
+ * 不必等正在进行的大文件发完。带宽用可透支的令牌桶 (见 RateLimiter.TokenBucket.reserve) 限制：
+ * 每写出一块先从节点桶和全局桶各扣除相应字节，透支时发送线程睡眠到补足为止。
+ *
+ * 系统属性: group7.transfer.concurrency (同时发送数)、group7.transfer.rate (全局字节/秒)、
+ * group7.transfer.peerRate (每个节点字节/秒)，速率为0表示不限。
+ */
+public class TransferScheduler {
+
+    private static final Logger log = Logger.getLogger(TransferScheduler.class);
+
+    static final int DEFAULT_CONCURRENCY = 3;
+    static final long DEFAULT_GLOBAL_RATE = 32L * 1024 * 1024;
+    static final long DEFAULT_PEER_RATE = 16L * 1024 * 1024;
+    static final long SMALL_FILE_BYTES = 1024 * 1024;
+    static final int SMALL_FILE_EXTRA_SLOTS = 1;
+    // 令牌桶最多积累这么长时间的额度，空闲后的突发不超过这个量
+    private static final double BURST_SECONDS = 0.25;
+    // 结束的传输在列表中保留一段时间，供界面显示结果
+    private static final long FINISHED_RETENTION_MS = 10_000;
+    private static final long BUCKET_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    public enum State { QUEUED, ACTIVE, COMPLETED, FAILED }
+
+    /**
+     * 发送任务，在调度器分配的线程上运行，每写出一块数据前调用 throttle；抛出异常表示发送失败
+     */
+    interface Task {
+        void run(Transfer transfer) throws Exception;
+    }
+
+    /**
+     * 一个待发送或正在发送的文件，状态和进度可在任意线程读取
+     */
+    public static final class Transfer {
+        private final long id;
+        private final String peerId;
+        private final String fileName;
+        private final long size;
+        private final Task task;
+        private volatile State state = State.QUEUED;
+        private volatile long transferred = 0;
+        private volatile long startedNanos;
+        private volatile long finishedAt;
+
+        private Transfer(long id, String peerId, String fileName, long size, Task task) {
+            this.id = id;
+            this.peerId = peerId;
+            this.fileName = fileName;
+            this.size = size;
+            this.task = task;
+        }
+
+        public long getId() { return id; }
+        public String getPeerId() { return peerId; }
+        public String getFileName() { return fileName; }
+        public long getSize() { return size; }
+        public State getState() { return state; }
+        public long getTransferred() { return transferred; }
+
+        public boolean isSmall() {
+            return size <= SMALL_FILE_BYTES;
+        }
+
+        /**
+         * 完成比例 (0~1)
+         */
+        public double getProgress() {
+            return size > 0 ? Math.min(1.0, (double) transferred / size) : (state == State.COMPLETED ? 1.0 : 0.0);
+        }
+
+        /**
+         * 开始发送以来的平均速率 (字节/秒)，尚未开始时为0
+         */
+        public long getBytesPerSecond() {
+            long started = startedNanos;
+            if (started == 0) return 0;
+            long elapsed = System.nanoTime() - started;
+            return elapsed <= 0 ? 0 : (long) (transferred * 1e9 / elapsed);
+        }
+    }
+
+    /**
+     * 一个节点的待发送队列，小文件和大文件分开排队
+     */
+    private static final class PeerQueue {
+        final ArrayDeque<Transfer> small = new ArrayDeque<>();
+        final ArrayDeque<Transfer> large = new ArrayDeque<>();
+
+        boolean isEmpty() {
+            return small.isEmpty() && large.isEmpty();
+        }
+    }
+
+    private final Executor executor;
+    private final int maxConcurrent;
+    private final long peerRate;
+    private final TokenBucket globalBucket;
+    private final Map<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // 以下由 this 保护
+    private final Map<String, PeerQueue> queues = new HashMap<>();
+    private final ArrayDeque<String> rotation = new ArrayDeque<>();
+    private final Map<Long, Transfer> transfers = new LinkedHashMap<>();
+    private int queued = 0;
+    private int active = 0;
+
+    public TransferScheduler(Executor executor, MetricsRegistry metrics) {
+        this(executor, metrics, Integer.getInteger("group7.transfer.concurrency", DEFAULT_CONCURRENCY),
+                Long.getLong("group7.transfer.rate", DEFAULT_GLOBAL_RATE),
+                Long.getLong("group7.transfer.peerRate", DEFAULT_PEER_RATE));
+    }
+
+    /**
+     * 创建调度器，速率单位为字节/秒，0表示不限
+     */
+    public TransferScheduler(Executor executor, MetricsRegistry metrics, int maxConcurrent, long globalRate, long peerRate) {
+        this.executor = executor;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.peerRate = peerRate;
+        this.globalBucket = globalRate > 0 ? newBucket(globalRate) : null;
+        metrics.gauge("chat_file_transfers_pending", "排队和正在进行的文件发送数", this::getQueuedCount, "state", "queued");
+        metrics.gauge("chat_file_transfers_pending", "排队和正在进行的文件发送数", this::getActiveCount, "state", "active");
+    }
+
+    /**
+     * 加入一个发送任务，有空闲名额时立即开始
+     */
+    Transfer submit(String peerId, String fileName, long size, Task task) {
+        Transfer transfer = new Transfer(nextId.getAndIncrement(), peerId, fileName, size, task);
+        synchronized (this) {
+            pruneFinished();
+            transfers.put(transfer.id, transfer);
+            PeerQueue queue = queues.get(peerId);
+            if (queue == null) {
+                queue = new PeerQueue();
+                queues.put(peerId, queue);
+                rotation.add(peerId);
+            }
+            (transfer.isSmall() ? queue.small : queue.large).add(transfer);
+            queued++;
+        }
+        log.debug(() -> "[传输调度] 加入队列: " + fileName + " (" + size + " bytes) → " + peerId);
+        dispatch();
+        return transfer;
+    }
+
+    /**
+     * 在名额允许时依次启动下一个传输：小文件优先，同类文件在节点之间轮转
+     */
+    private void dispatch() {
+        while (true) {
+            Transfer next;
+            synchronized (this) {
+                next = null;
+                if (active < maxConcurrent + SMALL_FILE_EXTRA_SLOTS) next = poll(true);
+                if (next == null && active < maxConcurrent) next = poll(false);
+                if (next == null) return;
+                queued--;
+                active++;
+                next.state = State.ACTIVE;
+            }
+            Transfer started = next;
+            try {
+                executor.execute(() -> run(started));
+            } catch (RejectedExecutionException e) {
+                finish(started, State.FAILED);
+            }
+        }
+    }
+
+    /**
+     * 从下一个有相应类别文件的节点取出一个，该节点移到轮转队尾
+     */
+    private Transfer poll(boolean small) {
+        for (int i = rotation.size(); i > 0; i--) {
+            String peerId = rotation.poll();
+            PeerQueue queue = queues.get(peerId);
+            Transfer transfer = (small ? queue.small : queue.large).poll();
+            if (transfer == null) {
+                rotation.add(peerId);
+                continue;
+            }
+            if (queue.isEmpty()) {
+                queues.remove(peerId);
+            } else {
+                rotation.add(peerId);
+            }
+            return transfer;
+        }
+        return null;
+    }
+
+    private void run(Transfer transfer) {
+        transfer.startedNanos = System.nanoTime();
+        State result = State.FAILED;
+        try {
+            transfer.task.run(transfer);
+            result = State.COMPLETED;
+        } catch (Exception e) {
+            log.debug(() -> "[传输调度] 发送失败: " + transfer.fileName + " - " + e.getMessage());
+        } finally {
+            finish(transfer, result);
+        }
+    }
+
+    private void finish(Transfer transfer, State result) {
+        transfer.state = result;
+        transfer.finishedAt = System.currentTimeMillis();
+        synchronized (this) {
+            active--;
+        }
+        peerBuckets.values().removeIf(bucket -> bucket.isIdle(BUCKET_IDLE_NANOS));
+        dispatch();
+    }
+
+    /**
+     * 写出 bytes 字节之前调用：按节点和全局速率扣除额度，超出速率时睡眠到额度补足
+     */
+    void throttle(Transfer transfer, int bytes) throws InterruptedIOException {
+        long waitNanos = 0;
+        if (globalBucket != null) {
+            waitNanos = globalBucket.reserve(bytes);
+        }
+        if (peerRate > 0) {
+            TokenBucket bucket = peerBuckets.computeIfAbsent(transfer.peerId, id -> newBucket(peerRate));
+            waitNanos = Math.max(waitNanos, bucket.reserve(bytes));
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("文件发送被中断");
+            }
+        }
+        transfer.transferred += bytes;
+    }
+
+    /**
+     * 当前的传输列表：排队中和进行中的，以及最近结束的，按加入顺序排列
+     */
+    public synchronized List<Transfer> getTransfers() {
+        pruneFinished();
+        return new ArrayList<>(transfers.values());
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    private void pruneFinished() {
+        long cutoff = System.currentTimeMillis() - FINISHED_RETENTION_MS;
+        Iterator<Transfer> it = transfers.values().iterator();
+        while (it.hasNext()) {
+            Transfer transfer = it.next();
+            State state = transfer.state;
+            if ((state == State.COMPLETED || state == State.FAILED) && transfer.finishedAt < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    private static TokenBucket newBucket(long rate) {
+        return new TokenBucket(rate, Math.max(rate * BURST_SECONDS, 64 * 1024));
+    }
+}
@@ -0,0 +1,142 @@
+package com.group7.chat.gui;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.stage.Stage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天列表性能测试程序 - 后台线程连续提交大量消息，对比 MessageFeed 批量更新与逐条 Platform.runLater 的
+ * 帧间隔和堆内存占用，需要图形界面环境
+ *
+ * 用法: ChatViewBenchmark [消息数] [feed|runlater]
+ */
+public class ChatViewBenchmark {
+
+    private static final int DEFAULT_MESSAGES = 100_000;
+    // 每提交这么多条消息让出一次，模拟持续到达而不是一次性到达
+    private static final int BURST = 500;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+        boolean useFeed = args.length < 2 || !args[1].equals("runlater");
+
+        System.out.println("======================================");
+        System.out.println("聊天列表性能测试: " + count + " 条消息, " + (useFeed ? "MessageFeed" : "逐条 runLater"));
+        System.out.println("======================================");
+
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(started::countDown);
+        started.await();
+
+        ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+        ListView<ChatMessage> listView = new ListView<>(messages);
+        FrameRecorder frames = new FrameRecorder();
+        MessageFeed[] feed = new MessageFeed[1];
+        CountDownLatch shown = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            listView.setCellFactory(view -> new MessageListCell());
+            Stage stage = new Stage();
+            stage.setScene(new Scene(listView, 480, 640));
+            stage.show();
+            if (useFeed) {
+                feed[0] = new MessageFeed(listView, messages);
+                feed[0].start();
+            }
+            frames.start();
+            shown.countDown();
+        });
+        shown.await();
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ChatMessage message = new ChatMessage("Node_" + (i % 50), "测试消息 #" + i, ChatMessage.MessageType.RECEIVED);
+            if (useFeed) {
+                feed[0].submit(message);
+            } else {
+                // 改动前 EnhancedChatController 的做法: 每条消息一个 runLater，再嵌套一个滚动
+                Platform.runLater(() -> {
+                    messages.add(message);
+                    Platform.runLater(() -> listView.scrollTo(messages.size() - 1));
+                });
+            }
+            if (i % BURST == BURST - 1) {
+                Thread.sleep(1);
+            }
+        }
+        while (useFeed && feed[0].getPendingCount() > 0) {
+            Thread.sleep(5);
+        }
+        // runLater 按提交顺序执行，这个任务运行时之前提交的消息都已加入列表
+        CountDownLatch drained = new CountDownLatch(1);
+        Platform.runLater(() -> Platform.runLater(drained::countDown));
+        if (!drained.await(5, TimeUnit.MINUTES)) {
+            System.out.println("等待界面线程超时");
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            frames.stop();
+            if (feed[0] != null) feed[0].stop();
+            stopped.countDown();
+        });
+        stopped.await();
+        long heapAfter = usedHeap();
+
+        System.out.println("总耗时: " + elapsedMs + " ms");
+        System.out.println("帧: " + frames.summary());
+        if (feed[0] != null) {
+            System.out.println(feed[0].getStats());
+        } else {
+            System.out.println("列表长度: " + messages.size());
+        }
+        System.out.printf("堆内存: 测试前 %.1f MB, 测试后 %.1f MB%n", heapBefore / 1048576.0, heapAfter / 1048576.0);
+
+        Platform.exit();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 记录相邻两个界面脉冲之间的间隔，间隔超过两帧视为卡顿
+     */
+    private static final class FrameRecorder extends AnimationTimer {
+        private static final long JANK_NANOS = 2 * 16_666_667L;
+
+        private long last = 0;
+        private long frames = 0;
+        private long total = 0;
+        private long max = 0;
+        private long janks = 0;
+
+        @Override
+        public void handle(long now) {
+            if (last != 0) {
+                long interval = now - last;
+                frames++;
+                total += interval;
+                max = Math.max(max, interval);
+                if (interval > JANK_NANOS) janks++;
+            }
+            last = now;
+        }
+
+        String summary() {
+            double average = frames == 0 ? 0 : total / 1e6 / frames;
+            return String.format("%d 帧, 平均间隔 %.2f ms, 最大间隔 %.2f ms, 超过两帧的间隔 %d 次",
+                    frames, average, max / 1e6, janks);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.group7.chat.gui;
 
 import com.group7.chat.Node;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.store.MessageStore;
+import com.group7.chat.store.StoredMessage;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -26,12 +29,17 @@ import javafx.stage.Modality;
 
 import java.io.File;
 import java.net.URL;
-import java.util.HashMap;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
@@ -42,11 +50,17 @@ import javafx.stage.StageStyle;
  */
 public class EnhancedChatController implements Initializable, com.group7.chat.MessageListener {
 
+    private static final Logger log = Logger.getLogger(EnhancedChatController.class);
+
     // Left member panel
     @FXML
     private ListView<OnlineMember> memberListView;
     @FXML
     private Label memberCountLabel;
+    @FXML
+    private ListView<String> transferListView;
+    @FXML
+    private Label transferCountLabel;
 
     // Right chat panel
     @FXML
@@ -73,6 +87,9 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
     @FXML
     private HBox toolbar;
 
+    @FXML
+    private TextField searchField;
+
     // Menu
     @FXML
     private MenuItem aboutMenuItem;
@@ -81,10 +98,16 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
 
     private Node chatNode;
     private ObservableList<ChatMessage> messages;
-    private ObservableList<OnlineMember> onlineMembers;
+    private MemberDirectory memberDirectory;
     private Timer statusUpdateTimer;
-    private Map<String, PrivateChatWindow> privateChatWindows = new HashMap<>();
+    private MessageFeed feed;
+    private TransferQueueView transferQueueView;
+    private Map<String, PrivateChatWindow> privateChatWindows = new ConcurrentHashMap<>();
     private Stage emojiStage;
+    private Stage searchStage;
+
+    // Maximum number of history search results shown at once
+    private static final int SEARCH_LIMIT = 200;
 
     // emojis collection
     private final String[] COMMON_EMOJIS = {
@@ -137,12 +160,32 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
     public void initialize(URL location, ResourceBundle resources) {
         // init the data
         messages = FXCollections.observableArrayList();
-        onlineMembers = FXCollections.observableArrayList();
+        memberDirectory = new MemberDirectory(new MemberDirectory.Listener() {
+            @Override
+            public void memberJoined(OnlineMember member) {
+                addSystemMessage("Member " + member.getDisplayName() + " join the chat!");
+            }
+
+            @Override
+            public void memberLeft(OnlineMember member) {
+                addSystemMessage("Member " + member.getDisplayName() + " leave the chat!");
+            }
+
+            @Override
+            public void membersChanged(int count) {
+                memberCountLabel.setText("(" + count + ")");
+            }
+        });
 
         // setting up list view
         messageListView.setItems(messages);
         messageListView.setCellFactory(listView -> new MessageListCell());
-        memberListView.setItems(onlineMembers);
+        memberListView.setItems(memberDirectory.getSortedMembers());
+
+        // incoming messages are added to the list once per frame
+        feed = new MessageFeed(messageListView, messages);
+        feed.start();
+        memberDirectory.start();
 
         // default the group mode
 
@@ -166,6 +209,9 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
         // setting emoji button clickon event
         emojiButton.setOnAction(e -> showEmojiPopup());
 
+        // Enter in the search box searches the local history
+        searchField.setOnAction(e -> handleSearch());
+
         // adding the welcome message
         addSystemMessage("Welcome to the P2P chat app! Supports group chat, private chat and file transfer.");
     }
@@ -337,6 +383,20 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
         // Start the status update timer
         startStatusUpdateTimer();
 
+        // Show the latest page of group history; older pages load when scrolling to the top
+        MessageStore store = node.getMessageStore();
+        if (store != null) {
+            HistoryPager pager = new HistoryPager(store, MessageStore.GROUP_CONVERSATION, messageListView, messages,
+                    this::toChatMessage);
+            pager.start();
+            feed.setPager(pager);
+        }
+
+        // Show the outgoing file queue, refreshed twice a second
+        transferQueueView = new TransferQueueView(node.getFileTransferService().getScheduler(), transferCountLabel);
+        transferListView.setItems(transferQueueView.getItems());
+        transferQueueView.start();
+
         // Set up message listener
         node.setMessageListener(this);
 
@@ -392,6 +452,7 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
             // Send group chat message
             addSentMessage(messageText, ChatMessage.MessageType.SENT);
             chatNode.sendChatMessage(messageText);
+            recordHistory(MessageStore.GROUP_CONVERSATION, chatNode.getNodeIdString(), messageText, true);
 
             // Clear the input box
             messageInput.clear();
@@ -501,24 +562,91 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
      * Add a sent message
      */
     private void addSentMessage(String content, ChatMessage.MessageType type) {
-        Platform.runLater(() -> {
-            ChatMessage message = new ChatMessage(chatNode.getDisplayName(), content, type);
-            messages.add(message);
-            scrollToBottom();
-        });
+        feed.submitAndScroll(new ChatMessage(chatNode.getDisplayName(), content, type));
     }
 
     /**
      * Add received messages
      */
     public void addReceivedMessage(String senderId, String content, ChatMessage.MessageType type) {
-        Platform.runLater(() -> {
-            // Try to convert the node ID to a display name
-            String displayName = getDisplayNameForNodeId(senderId);
-            ChatMessage message = new ChatMessage(displayName, content, type);
-            messages.add(message);
-            scrollToBottom();
-        });
+        // The display name is resolved on the FX thread, where the member list lives
+        feed.submit(() -> new ChatMessage(getDisplayNameForNodeId(senderId), content, type));
+    }
+
+    /**
+     * Search the local history off the FX thread and show the matches in a separate window
+     */
+    private void handleSearch() {
+        String query = searchField.getText().trim();
+        MessageStore store = chatNode != null ? chatNode.getMessageStore() : null;
+        if (query.isEmpty() || store == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        CompletableFuture.supplyAsync(() -> store.search(query, SEARCH_LIMIT))
+                .thenAccept(results -> {
+                    long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                    Platform.runLater(() -> showSearchResults(query, results, elapsedMs));
+                })
+                .exceptionally(e -> {
+                    log.error("Message search failed: " + query, e);
+                    Platform.runLater(() -> addSystemMessage("Search failed: " + e.getMessage()));
+                    return null;
+                });
+    }
+
+    private void showSearchResults(String query, List<StoredMessage> results, long elapsedMs) {
+        ObservableList<ChatMessage> items = FXCollections.observableArrayList();
+        for (StoredMessage stored : results) {
+            if (!stored.getConversation().equals(MessageStore.GROUP_CONVERSATION)) {
+                stored = new StoredMessage(stored.getOffset(), stored.getConversation(), stored.getTimestamp(),
+                        stored.getSenderId(), "[private] " + stored.getContent(), stored.isOutgoing());
+            }
+            items.add(toChatMessage(stored));
+        }
+
+        ListView<ChatMessage> resultList = new ListView<>(items);
+        resultList.setCellFactory(listView -> new MessageListCell());
+        resultList.setPlaceholder(new Label("No messages found"));
+        resultList.getStyleClass().add("message-list");
+        VBox.setVgrow(resultList, Priority.ALWAYS);
+
+        Label summary = new Label(results.size() + " result(s) in " + elapsedMs + " ms");
+        VBox root = new VBox(5, summary, resultList);
+        root.setPadding(new Insets(10));
+
+        if (searchStage == null) {
+            searchStage = new Stage();
+            searchStage.initOwner(messageListView.getScene().getWindow());
+        }
+        Scene scene = new Scene(root, 480, 560);
+        scene.getStylesheets().addAll(messageListView.getScene().getStylesheets());
+        searchStage.setScene(scene);
+        searchStage.setTitle("Search: " + query);
+        searchStage.show();
+        searchStage.toFront();
+    }
+
+    /**
+     * Write a message to the local history without blocking the caller
+     */
+    private void recordHistory(String conversation, String senderId, String content, boolean outgoing) {
+        MessageStore store = chatNode != null ? chatNode.getMessageStore() : null;
+        if (store != null) {
+            store.appendAsync(conversation, senderId, content, outgoing);
+        }
+    }
+
+    /**
+     * Convert a stored history record to a list item
+     */
+    private ChatMessage toChatMessage(StoredMessage stored) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(stored.getTimestamp()), ZoneId.systemDefault());
+        if (stored.isOutgoing()) {
+            return new ChatMessage(chatNode.getDisplayName(), stored.getContent(), time, ChatMessage.MessageType.SENT);
+        }
+        return new ChatMessage(getDisplayNameForNodeId(stored.getSenderId()), stored.getContent(), time,
+                ChatMessage.MessageType.RECEIVED);
     }
 
     /**
@@ -526,10 +654,7 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
      */
     private String getDisplayNameForNodeId(String nodeId) {
         // Search among online members
-        OnlineMember member = onlineMembers.stream()
-                .filter(m -> m.getNodeId().equals(nodeId))
-                .findFirst()
-                .orElse(null);
+        OnlineMember member = memberDirectory.get(nodeId);
 
         if (member != null) {
             return member.getDisplayName();
@@ -546,22 +671,7 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
      * Add system message
      */
     private void addSystemMessage(String content) {
-        Platform.runLater(() -> {
-            ChatMessage message = new ChatMessage("System", content, ChatMessage.MessageType.SYSTEM);
-            messages.add(message);
-            scrollToBottom();
-        });
-    }
-
-    /**
-     * rolling to btm
-     */
-    private void scrollToBottom() {
-        Platform.runLater(() -> {
-            if (!messages.isEmpty()) {
-                messageListView.scrollTo(messages.size() - 1);
-            }
-        });
+        feed.submit(new ChatMessage("System", content, ChatMessage.MessageType.SYSTEM));
     }
 
     /**
@@ -581,7 +691,7 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
      */
     private void updateMemberCount() {
         Platform.runLater(() -> {
-            memberCountLabel.setText("(" + onlineMembers.size() + ")");
+            memberCountLabel.setText("(" + memberDirectory.size() + ")");
         });
     }
 
@@ -602,12 +712,14 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
     @Override
     public void onChatMessageReceived(String senderId, String content) {
         addReceivedMessage(senderId, content, ChatMessage.MessageType.RECEIVED);
+        recordHistory(MessageStore.GROUP_CONVERSATION, senderId, content, false);
     }
 
     @Override
     public void onPrivateChatMessageReceived(String senderId, String content) {
         // Display private chat messages in the main window
         addReceivedMessage(senderId, "[private] " + content, ChatMessage.MessageType.RECEIVED);
+        recordHistory(MessageStore.privateConversation(senderId), senderId, content, false);
 
         // If there is a corresponding private chat window, it will also be displayed in
         // the private chat window
@@ -676,48 +788,30 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
 
     @Override
     public void onMemberJoined(String nodeId, String address) {
-        Platform.runLater(() -> {
-            // Filter out your own nodes
-            if (chatNode != null && nodeId.equals(chatNode.getNodeIdString())) {
-                return;
-            }
-
-            // Check if it already exists
-            boolean exists = onlineMembers.stream()
-                    .anyMatch(member -> member.getNodeId().equals(nodeId));
+        // Filter out your own nodes
+        if (chatNode != null && nodeId.equals(chatNode.getNodeIdString())) {
+            return;
+        }
 
-            if (!exists) {
-                OnlineMember newMember = new OnlineMember(nodeId, address);
-                onlineMembers.add(newMember);
-                updateMemberCount();
-                addSystemMessage("Member " + newMember.getDisplayName() + " join the chat!");
-            }
-        });
+        // Applied with other membership changes on the next pulse
+        memberDirectory.submitJoin(nodeId, address);
     }
 
     @Override
     public void onMemberLeft(String nodeId) {
-        Platform.runLater(() -> {
-            // Find the member to be removed and get its display name
-            OnlineMember memberToRemove = onlineMembers.stream()
-                    .filter(member -> member.getNodeId().equals(nodeId))
-                    .findFirst()
-                    .orElse(null);
-
-            if (memberToRemove != null) {
-                onlineMembers.remove(memberToRemove);
-                updateMemberCount();
-                addSystemMessage("Member " + memberToRemove.getDisplayName() + " leave the chat!");
-            }
-            // Handling when a member leaves (simplified)
+        // Applied with other membership changes on the next pulse
+        memberDirectory.submitLeave(nodeId);
 
-            // Update the status of the corresponding private chat window
-            PrivateChatWindow privateChatWindow = privateChatWindows.get(nodeId);
-            if (privateChatWindow != null && privateChatWindow.isShowing()) {
-                privateChatWindow.updateOnlineStatus(false);
-                privateChatWindow.addSystemMessage("User offline");
-            }
-        });
+        // Update the status of the corresponding private chat window
+        PrivateChatWindow privateChatWindow = privateChatWindows.get(nodeId);
+        if (privateChatWindow != null) {
+            Platform.runLater(() -> {
+                if (privateChatWindow.isShowing()) {
+                    privateChatWindow.updateOnlineStatus(false);
+                    privateChatWindow.addSystemMessage("User offline");
+                }
+            });
+        }
     }
 
     /**
@@ -799,6 +893,15 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
         if (statusUpdateTimer != null) {
             statusUpdateTimer.cancel();
         }
+        if (feed != null) {
+            feed.stop();
+        }
+        if (memberDirectory != null) {
+            memberDirectory.stop();
+        }
+        if (transferQueueView != null) {
+            transferQueueView.stop();
+        }
 
         // Close all private chat windows
         for (PrivateChatWindow window : privateChatWindows.values()) {
@@ -810,6 +913,9 @@ public class EnhancedChatController implements Initializable, com.group7.chat.Me
         if (emojiStage != null) {
             emojiStage.close();
         }
+        if (searchStage != null) {
+            searchStage.close();
+        }
 
         privateChatWindows.clear();
     }
@@ -0,0 +1,135 @@
+package com.group7.chat.gui;
+
+import com.group7.chat.store.MessageStore;
+import com.group7.chat.store.StoredMessage;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.ScrollEvent;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * 聊天记录的分页加载：打开时只显示会话最近的一页，
+ * 消息列表滚动到顶部时再在后台线程读取更早的一页，插入到列表开头。
+ * 列表开头的消息被移出 (见 MessageFeed) 后，从剩下的第一条消息的时间继续向前读取。
+ */
+class HistoryPager {
+
+    static final int PAGE_SIZE = 50;
+    private static final long UNKNOWN_CURSOR = -1;
+
+    private final MessageStore store;
+    private final String conversation;
+    private final ListView<ChatMessage> listView;
+    private final ObservableList<ChatMessage> messages;
+    private final Function<StoredMessage, ChatMessage> converter;
+    private long cursor = Long.MAX_VALUE;
+    // cursor 为 UNKNOWN_CURSOR 时，下次读取前按这个时间查找对应的offset
+    private long cursorTime = 0;
+    // 每次移出开头的消息加一，丢弃移出之前发起、已经接不上列表开头的读取结果
+    private int trimCount = 0;
+    private boolean loading = false;
+    private boolean exhausted = false;
+    private boolean attached = false;
+
+    HistoryPager(MessageStore store, String conversation, ListView<ChatMessage> listView,
+                 ObservableList<ChatMessage> messages, Function<StoredMessage, ChatMessage> converter) {
+        this.store = store;
+        this.conversation = conversation;
+        this.listView = listView;
+        this.messages = messages;
+        this.converter = converter;
+    }
+
+    /**
+     * 读取最近一页并开始监听滚动；应在注册新消息监听之前调用，避免同一条消息既在记录中又被实时添加
+     */
+    void start() {
+        List<StoredMessage> latest = store.readBefore(conversation, cursor, PAGE_SIZE);
+        Platform.runLater(() -> {
+            insertPage(latest);
+            if (!messages.isEmpty()) listView.scrollTo(messages.size() - 1);
+            attachScrollListener();
+        });
+        // 列表皮肤创建之前找不到滚动条，第一次滚动时再尝试
+        listView.addEventFilter(ScrollEvent.SCROLL, event -> {
+            attachScrollListener();
+            if (event.getDeltaY() > 0 && isAtTop()) loadOlder();
+        });
+    }
+
+    private void attachScrollListener() {
+        if (attached) return;
+        ScrollBar bar = verticalScrollBar(listView);
+        if (bar == null) return;
+        attached = true;
+        bar.valueProperty().addListener((obs, oldValue, value) -> {
+            if (value.doubleValue() <= bar.getMin()) loadOlder();
+        });
+    }
+
+    private boolean isAtTop() {
+        ScrollBar bar = verticalScrollBar(listView);
+        return bar == null || !bar.isVisible() || bar.getValue() <= bar.getMin();
+    }
+
+    /**
+     * 列表的垂直滚动条，列表皮肤创建之前返回null
+     */
+    static ScrollBar verticalScrollBar(ListView<?> listView) {
+        for (javafx.scene.Node node : listView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                return (ScrollBar) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在后台读取更早的一页（JavaFX线程调用）
+     */
+    private void loadOlder() {
+        if (loading || exhausted) return;
+        loading = true;
+        long before = cursor;
+        long time = cursorTime;
+        int trimmedAtStart = trimCount;
+        CompletableFuture.supplyAsync(() -> store.readBefore(conversation,
+                        before != UNKNOWN_CURSOR ? before : store.offsetForTime(time), PAGE_SIZE))
+                .thenAccept(page -> Platform.runLater(() -> {
+                    loading = false;
+                    if (trimmedAtStart != trimCount) return;
+                    insertPage(page);
+                    // 保持当前看到的消息位置不变
+                    if (!page.isEmpty()) listView.scrollTo(page.size());
+                }));
+    }
+
+    /**
+     * 列表开头的消息被移出后调用（JavaFX线程），oldest 为剩下的第一条消息
+     */
+    void onHeadTrimmed(ChatMessage oldest) {
+        trimCount++;
+        cursor = UNKNOWN_CURSOR;
+        cursorTime = oldest.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        exhausted = false;
+    }
+
+    private void insertPage(List<StoredMessage> page) {
+        if (page.size() < PAGE_SIZE) exhausted = true;
+        if (page.isEmpty()) return;
+        cursor = page.get(0).getOffset();
+        List<ChatMessage> converted = new ArrayList<>(page.size());
+        for (StoredMessage stored : page) {
+            converted.add(converter.apply(stored));
+        }
+        messages.addAll(0, converted);
+    }
+}
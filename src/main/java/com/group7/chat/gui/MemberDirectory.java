@@ -0,0 +1,129 @@
+package com.group7.chat.gui;
+
+import javafx.animation.AnimationTimer;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.SortedList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 在线成员目录：按节点ID索引成员，并提供按显示名排序的只读列表供成员列表显示
+ *
+ * 加入和离开事件可在任意线程提交，先进入队列，由 AnimationTimer 在每个界面脉冲中合并后一次性应用：
+ * 同一节点在一个脉冲内的多次变化只保留最终状态，新增和删除各产生一次列表变更，
+ * 查找和去重都通过索引完成，不再扫描整个列表。索引和列表只在JavaFX线程上访问。
+ */
+class MemberDirectory extends AnimationTimer {
+
+    /**
+     * 成员变化的回调，在JavaFX线程上调用
+     */
+    interface Listener {
+        void memberJoined(OnlineMember member);
+        void memberLeft(OnlineMember member);
+        void membersChanged(int count);
+    }
+
+    private static final Comparator<OnlineMember> ORDER =
+            Comparator.comparing(OnlineMember::getDisplayName, String.CASE_INSENSITIVE_ORDER)
+                    .thenComparing(OnlineMember::getNodeId);
+
+    private static final class Change {
+        final String nodeId;
+        final String address; // 为null表示离开
+
+        Change(String nodeId, String address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+    }
+
+    private final Map<String, OnlineMember> index = new HashMap<>();
+    private final ObservableList<OnlineMember> members = FXCollections.observableArrayList();
+    private final SortedList<OnlineMember> sorted = new SortedList<>(members, ORDER);
+    private final ConcurrentLinkedQueue<Change> pending = new ConcurrentLinkedQueue<>();
+    private final Listener listener;
+
+    MemberDirectory(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 提交成员加入，可在任意线程调用
+     */
+    void submitJoin(String nodeId, String address) {
+        pending.add(new Change(nodeId, address));
+    }
+
+    /**
+     * 提交成员离开，可在任意线程调用
+     */
+    void submitLeave(String nodeId) {
+        pending.add(new Change(nodeId, null));
+    }
+
+    /**
+     * 按显示名排序的成员列表
+     */
+    ObservableList<OnlineMember> getSortedMembers() {
+        return sorted;
+    }
+
+    OnlineMember get(String nodeId) {
+        return index.get(nodeId);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    @Override
+    public void handle(long now) {
+        if (pending.isEmpty()) return;
+
+        // 每个节点只保留本脉冲内的最后一次变化
+        Map<String, Change> latest = new LinkedHashMap<>();
+        Change change;
+        while ((change = pending.poll()) != null) {
+            latest.put(change.nodeId, change);
+        }
+
+        List<OnlineMember> joined = new ArrayList<>();
+        List<OnlineMember> left = new ArrayList<>();
+        for (Change last : latest.values()) {
+            OnlineMember existing = index.get(last.nodeId);
+            if (last.address != null && existing == null) {
+                OnlineMember member = new OnlineMember(last.nodeId, last.address);
+                index.put(last.nodeId, member);
+                joined.add(member);
+            } else if (last.address == null && existing != null) {
+                index.remove(last.nodeId);
+                left.add(existing);
+            }
+        }
+        if (joined.isEmpty() && left.isEmpty()) return;
+
+        if (!left.isEmpty()) {
+            Set<OnlineMember> removed = new HashSet<>(left);
+            members.removeAll(removed);
+        }
+        members.addAll(joined);
+
+        for (OnlineMember member : joined) {
+            listener.memberJoined(member);
+        }
+        for (OnlineMember member : left) {
+            listener.memberLeft(member);
+        }
+        listener.membersChanged(index.size());
+    }
+}
@@ -0,0 +1,118 @@
+package com.group7.chat.gui;
+
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * 消息列表的批量更新：任意线程提交的消息先进入队列，由 AnimationTimer 在每个界面脉冲中一次性加入列表并只滚动一次，
+ * 消息再多也不会为每条消息各排一个 Platform.runLater。
+ * 需要读取界面状态（如在线成员列表）才能构造的消息可以提交 Supplier，在JavaFX线程上构造。
+ *
+ * 停留在底部时列表只保留最近的 MAX_WINDOW 条，向上翻看时最多保留 HARD_LIMIT 条；
+ * 被移出的旧消息由 HistoryPager 在再次滚动到顶部时从聊天记录读回。
+ * 只有原本停留在底部（或刚发送消息）时才自动滚动到最新消息，向上翻看时不会被拉回底部。
+ */
+class MessageFeed extends AnimationTimer {
+
+    static final int MAX_WINDOW = 500;
+    static final int HARD_LIMIT = 5000;
+
+    private final ListView<ChatMessage> listView;
+    private final ObservableList<ChatMessage> messages;
+    private final ConcurrentLinkedQueue<Supplier<ChatMessage>> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean scrollRequested = false;
+    private volatile HistoryPager pager;
+
+    // 脉冲耗时统计，只在JavaFX线程上更新
+    private long pulses = 0;
+    private long totalPulseNanos = 0;
+    private long maxPulseNanos = 0;
+    private int maxBatch = 0;
+
+    MessageFeed(ListView<ChatMessage> listView, ObservableList<ChatMessage> messages) {
+        this.listView = listView;
+        this.messages = messages;
+    }
+
+    /**
+     * 设置用于读回被移出消息的分页器
+     */
+    void setPager(HistoryPager pager) {
+        this.pager = pager;
+    }
+
+    /**
+     * 提交一条消息，可在任意线程调用
+     */
+    void submit(ChatMessage message) {
+        pending.add(() -> message);
+    }
+
+    /**
+     * 提交一条在JavaFX线程上构造的消息，可在任意线程调用
+     */
+    void submit(Supplier<ChatMessage> message) {
+        pending.add(message);
+    }
+
+    /**
+     * 提交一条消息并在显示时滚动到底部（本节点发出的消息）
+     */
+    void submitAndScroll(ChatMessage message) {
+        scrollRequested = true;
+        pending.add(() -> message);
+    }
+
+    @Override
+    public void handle(long now) {
+        if (pending.isEmpty()) return;
+        long start = System.nanoTime();
+
+        List<ChatMessage> batch = new ArrayList<>();
+        Supplier<ChatMessage> message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message.get());
+        }
+        boolean follow = scrollRequested || isAtBottom();
+        scrollRequested = false;
+
+        messages.addAll(batch);
+        int excess = messages.size() - (follow ? MAX_WINDOW : HARD_LIMIT);
+        if (excess > 0) {
+            messages.remove(0, excess);
+            if (pager != null) pager.onHeadTrimmed(messages.get(0));
+        }
+        if (follow) listView.scrollTo(messages.size() - 1);
+
+        long elapsed = System.nanoTime() - start;
+        pulses++;
+        totalPulseNanos += elapsed;
+        maxPulseNanos = Math.max(maxPulseNanos, elapsed);
+        maxBatch = Math.max(maxBatch, batch.size());
+    }
+
+    private boolean isAtBottom() {
+        ScrollBar bar = HistoryPager.verticalScrollBar(listView);
+        return bar == null || !bar.isVisible() || bar.getValue() >= bar.getMax();
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 脉冲统计: 处理过消息的脉冲数、平均和最大耗时、单个脉冲最多加入的消息数
+     */
+    String getStats() {
+        double averageMs = pulses == 0 ? 0 : totalPulseNanos / 1e6 / pulses;
+        return String.format("脉冲: %d, 平均 %.3f ms, 最大 %.3f ms, 最大批量 %d, 列表长度 %d",
+                pulses, averageMs, maxPulseNanos / 1e6, maxBatch, messages.size());
+    }
+}
@@ -1,6 +1,8 @@
 package com.group7.chat.gui;
 
 import com.group7.chat.Node;
+import com.group7.chat.store.MessageStore;
+import com.group7.chat.store.StoredMessage;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -14,6 +16,9 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 
 /**
@@ -39,6 +44,21 @@ public class PrivateChatWindow {
         this.messages = FXCollections.observableArrayList();
         
         initializeWindow();
+
+        // 显示最近的私聊记录，滚动到顶部时继续加载更早的记录
+        MessageStore store = chatNode.getMessageStore();
+        if (store != null) {
+            new HistoryPager(store, MessageStore.privateConversation(targetMember.getNodeId()),
+                    messageListView, messages, this::toChatMessage).start();
+        }
+    }
+    
+    private ChatMessage toChatMessage(StoredMessage stored) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(stored.getTimestamp()), ZoneId.systemDefault());
+        if (stored.isOutgoing()) {
+            return new ChatMessage(chatNode.getNodeId().toString(), stored.getContent(), time, ChatMessage.MessageType.SENT);
+        }
+        return new ChatMessage(stored.getSenderId(), stored.getContent(), time, ChatMessage.MessageType.RECEIVED);
     }
     
     private void initializeWindow() {
@@ -175,6 +195,13 @@ public class PrivateChatWindow {
             // 发送到网络
             chatNode.sendPrivateMessage(targetMember.getNodeId(), messageText);
             
+            // 异步写入本地聊天记录
+            MessageStore store = chatNode.getMessageStore();
+            if (store != null) {
+                store.appendAsync(MessageStore.privateConversation(targetMember.getNodeId()),
+                        chatNode.getNodeIdString(), messageText, true);
+            }
+            
             // 清空输入框
             messageInput.clear();
         }
@@ -0,0 +1,76 @@
+package com.group7.chat.gui;
+
+import com.group7.chat.TransferScheduler;
+import javafx.animation.AnimationTimer;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文件发送队列的实时显示：每隔 REFRESH_NANOS 从 TransferScheduler 读取一次传输列表，
+ * 内容有变化时才整体替换列表项，进度和速率因此以固定频率刷新，不随每一块数据的写出触发界面更新
+ */
+class TransferQueueView extends AnimationTimer {
+
+    private static final long REFRESH_NANOS = 500_000_000L;
+
+    private final TransferScheduler scheduler;
+    private final ObservableList<String> items = FXCollections.observableArrayList();
+    private final Label summaryLabel;
+    private long lastRefresh = 0;
+
+    TransferQueueView(TransferScheduler scheduler, Label summaryLabel) {
+        this.scheduler = scheduler;
+        this.summaryLabel = summaryLabel;
+    }
+
+    ObservableList<String> getItems() {
+        return items;
+    }
+
+    @Override
+    public void handle(long now) {
+        if (now - lastRefresh < REFRESH_NANOS) return;
+        lastRefresh = now;
+
+        List<String> lines = new ArrayList<>();
+        for (TransferScheduler.Transfer transfer : scheduler.getTransfers()) {
+            lines.add(describe(transfer));
+        }
+        if (!lines.equals(items)) {
+            items.setAll(lines);
+        }
+        summaryLabel.setText("(" + scheduler.getActiveCount() + "/" + scheduler.getMaxConcurrent()
+                + ", " + scheduler.getQueuedCount() + " queued)");
+    }
+
+    private static String describe(TransferScheduler.Transfer transfer) {
+        String target = transfer.getFileName() + " → " + shortId(transfer.getPeerId());
+        switch (transfer.getState()) {
+            case QUEUED:
+                return "⏳ " + target + "  " + formatBytes(transfer.getSize())
+                        + (transfer.isSmall() ? " (priority)" : "");
+            case ACTIVE:
+                return "↑ " + target + "  " + (int) (transfer.getProgress() * 100) + "%  "
+                        + formatBytes(transfer.getBytesPerSecond()) + "/s";
+            case COMPLETED:
+                return "✓ " + target;
+            default:
+                return "✗ " + target;
+        }
+    }
+
+    private static String shortId(String nodeId) {
+        return nodeId.length() > 8 ? nodeId.substring(0, 8) : nodeId;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
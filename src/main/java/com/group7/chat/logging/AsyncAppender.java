@@ -0,0 +1,151 @@
+package com.group7.chat.logging;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步环形缓冲区输出器
+ *
+ * 业务线程只需通过CAS在环形缓冲区中占一个槽位并放入日志事件，不会在标准输出的锁上互相等待；
+ * 单个后台线程按顺序取出事件、格式化并写到控制台。缓冲区满时丢弃新事件并计数，
+ * 日志永远不会反过来拖慢业务线程。
+ */
+public class AsyncAppender {
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * 一条日志事件，消息在产生时已经构造好
+     */
+    static final class LogEvent {
+        final long timestamp;
+        final Level level;
+        final String threadName;
+        final String message;
+        final Throwable throwable;
+
+        LogEvent(Level level, String message, Throwable throwable) {
+            this.timestamp = System.currentTimeMillis();
+            this.level = level;
+            this.threadName = Thread.currentThread().getName();
+            this.message = String.valueOf(message);
+            this.throwable = throwable;
+        }
+    }
+
+    private final AtomicReferenceArray<LogEvent> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // 下一个待消费的序号
+    private final AtomicLong tail = new AtomicLong(); // 下一个可占用的序号
+    private final LongAdder droppedCount = new LongAdder();   // 尚未报告的丢弃数
+    private final LongAdder totalDropped = new LongAdder();
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    public AsyncAppender() {
+        this(DEFAULT_CAPACITY, System.out, System.err);
+    }
+
+    public AsyncAppender(int capacity, PrintStream out, PrintStream err) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.out = out;
+        this.err = err;
+        this.consumer = new Thread(this::drainLoop, "async-logger");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * 追加一条日志事件，缓冲区满时丢弃并返回false
+     */
+    public boolean append(Level level, String message, Throwable throwable) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= slots.length()) {
+                droppedCount.increment();
+                totalDropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        slots.set((int) (sequence & mask), new LogEvent(level, message, throwable));
+        return true;
+    }
+
+    /**
+     * 等待已提交的事件全部输出（最多等待指定毫秒数）
+     */
+    public void flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (head.get() < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /**
+     * 停止后台线程，停止前输出剩余事件
+     */
+    public void shutdown() {
+        flush(1000);
+        running = false;
+        LockSupport.unpark(consumer);
+    }
+
+    public long getDroppedCount() {
+        return totalDropped.sum();
+    }
+
+    private void drainLoop() {
+        while (running) {
+            long sequence = head.get();
+            int index = (int) (sequence & mask);
+            LogEvent event = slots.get(index);
+            if (event == null) {
+                // 槽位尚未被占用，或生产者已占位但还没写入
+                out.flush();
+                err.flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            slots.set(index, null);
+            head.set(sequence + 1);
+            write(event);
+        }
+    }
+
+    private void write(LogEvent event) {
+        PrintStream stream = event.level.compareTo(Level.WARN) >= 0 ? err : out;
+        StringBuilder line = new StringBuilder(event.message.length() + 48);
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(event.timestamp)))
+            .append(' ').append(event.level.name());
+        for (int i = event.level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(" [").append(event.threadName).append("] ").append(event.message);
+        stream.println(line);
+        if (event.throwable != null) {
+            event.throwable.printStackTrace(stream);
+        }
+        long dropped = droppedCount.sumThenReset();
+        if (dropped > 0) {
+            err.println("[日志] 缓冲区已满，丢弃 " + dropped + " 条日志");
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.group7.chat.logging;
+
+/**
+ * 日志级别，按严重程度递增
+ */
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF;
+
+    /**
+     * 解析级别名称，无法识别时返回默认值
+     */
+    public static Level parse(String name, Level defaultLevel) {
+        if (name == null) return defaultLevel;
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
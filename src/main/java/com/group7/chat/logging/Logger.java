@@ -0,0 +1,108 @@
+package com.group7.chat.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 轻量日志门面
+ *
+ * 级别检查只是一次volatile读，低于当前级别的日志直接返回；
+ * 需要拼接字符串的调试日志应使用 Supplier 版本，禁用时不会构造消息。
+ * 全局级别默认INFO，可通过系统属性 group7.log.level 或 {@link #setLevel(Level)} 修改。
+ */
+public final class Logger {
+
+    private static final Map<String, Logger> LOGGERS = new ConcurrentHashMap<>();
+    private static volatile Level globalLevel = Level.parse(System.getProperty("group7.log.level"), Level.INFO);
+    private static volatile AsyncAppender appender;
+
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    public static Logger getLogger(Class<?> type) {
+        return getLogger(type.getName());
+    }
+
+    public static Logger getLogger(String name) {
+        return LOGGERS.computeIfAbsent(name, Logger::new);
+    }
+
+    public static Level getLevel() {
+        return globalLevel;
+    }
+
+    public static void setLevel(Level level) {
+        globalLevel = level;
+    }
+
+    /**
+     * 等待缓冲区中的日志全部输出
+     */
+    public static void flush() {
+        AsyncAppender current = appender;
+        if (current != null) {
+            current.flush(1000);
+        }
+    }
+
+    public static long getDroppedCount() {
+        AsyncAppender current = appender;
+        return current != null ? current.getDroppedCount() : 0;
+    }
+
+    private static AsyncAppender appender() {
+        AsyncAppender current = appender;
+        if (current == null) {
+            synchronized (Logger.class) {
+                current = appender;
+                if (current == null) {
+                    current = new AsyncAppender();
+                    AsyncAppender created = current;
+                    Runtime.getRuntime().addShutdownHook(new Thread(created::shutdown, "async-logger-shutdown"));
+                    appender = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(globalLevel) >= 0 && level != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void log(Level level, String message, Throwable throwable) {
+        if (isEnabled(level)) {
+            appender().append(level, message, throwable);
+        }
+    }
+
+    public void log(Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            appender().append(level, message.get(), null);
+        }
+    }
+
+    public void debug(String message) { log(Level.DEBUG, message, null); }
+    public void debug(Supplier<String> message) { log(Level.DEBUG, message); }
+
+    public void info(String message) { log(Level.INFO, message, null); }
+    public void info(Supplier<String> message) { log(Level.INFO, message); }
+
+    public void warn(String message) { log(Level.WARN, message, null); }
+    public void warn(Supplier<String> message) { log(Level.WARN, message); }
+
+    public void error(String message) { log(Level.ERROR, message, null); }
+    public void error(String message, Throwable throwable) { log(Level.ERROR, message, throwable); }
+}
@@ -0,0 +1,23 @@
+package com.group7.chat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单调递增计数器，基于LongAdder，多线程同时累加时不会争用同一个缓存行
+ */
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,153 @@
+package com.group7.chat.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 指标注册表 - 每个节点一个，保存该节点的计数器、仪表和直方图
+ *
+ * 指标按名称和标签唯一确定，重复注册返回同一个实例，调用方应在初始化时取得并保存引用，
+ * 热路径上只做LongAdder累加。导出格式为Prometheus文本格式(0.0.4)。
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private enum Type { COUNTER, GAUGE, SUMMARY }
+
+    /**
+     * 同名指标的集合，不同标签对应不同的序列
+     */
+    private static class Family {
+        private final String help;
+        private final Type type;
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final Map<String, Object> byKey = new ConcurrentHashMap<>();
+
+    /**
+     * 获取或注册计数器，labels为交替的标签名和标签值
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, Type.COUNTER, labels, Counter::new);
+    }
+
+    /**
+     * 注册由其他组件维护累计值的计数器，导出时调用supplier读取，supplier的返回值应单调递增
+     */
+    public void counter(String name, String help, LongSupplier supplier, String... labels) {
+        register(name, help, Type.COUNTER, labels, () -> supplier);
+    }
+
+    /**
+     * 注册仪表，导出时调用supplier读取当前值
+     */
+    public void gauge(String name, String help, LongSupplier supplier, String... labels) {
+        register(name, help, Type.GAUGE, labels, () -> supplier);
+    }
+
+    /**
+     * 获取或注册以纳秒记录、以秒导出的延迟直方图
+     */
+    public Histogram timer(String name, String help, String... labels) {
+        return (Histogram) register(name, help, Type.SUMMARY, labels, () -> new Histogram(1e9));
+    }
+
+    /**
+     * 获取或注册按原始数值导出的直方图（如扇出数量、字节数）
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, Type.SUMMARY, labels, () -> new Histogram(1));
+    }
+
+    private Object register(String name, String help, Type type, String[] labels,
+                            Supplier<Object> factory) {
+        String labelText = formatLabels(labels);
+        return byKey.computeIfAbsent(name + labelText, key -> {
+            Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+            if (family.type != type) {
+                throw new IllegalArgumentException("指标 " + name + " 已注册为 " + family.type);
+            }
+            Object metric = factory.get();
+            family.series.put(labelText, metric);
+            return metric;
+        });
+    }
+
+    /**
+     * 以Prometheus文本格式导出所有指标
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                switch (family.type) {
+                    case COUNTER:
+                        appendSample(out, name, labels, metric instanceof Counter
+                                ? ((Counter) metric).get() : ((LongSupplier) metric).getAsLong());
+                        break;
+                    case GAUGE:
+                        appendSample(out, name, labels, ((LongSupplier) metric).getAsLong());
+                        break;
+                    case SUMMARY:
+                        appendSummary(out, name, labels, (Histogram) metric);
+                        break;
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendSummary(StringBuilder out, String name, String labels, Histogram histogram) {
+        double scale = histogram.getScale();
+        for (double quantile : QUANTILES) {
+            String quantileLabel = "quantile=\"" + quantile + "\"";
+            String merged = labels.isEmpty() ? "{" + quantileLabel + "}"
+                    : labels.substring(0, labels.length() - 1) + "," + quantileLabel + "}";
+            appendSample(out, name, merged, histogram.getValueAtQuantile(quantile) / scale);
+        }
+        appendSample(out, name + "_sum", labels, histogram.getSum() / scale);
+        appendSample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length == 0) return "";
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("标签必须成对出现");
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) text.append(',');
+            text.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return text.append('}').toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.group7.chat.metrics;
+
+import com.group7.chat.logging.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 指标HTTP服务 - 使用JDK自带的HttpServer在本机回环地址上提供 /metrics
+ */
+public class MetricsServer {
+
+    private static final Logger log = Logger.getLogger(MetricsServer.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public MetricsServer(MetricsRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    /**
+     * 启动服务，端口被占用等失败时返回false
+     */
+    public synchronized boolean start() {
+        if (server != null) return true;
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/metrics", this::handleScrape);
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-http-" + port);
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executor);
+            server.start();
+            log.info("[指标] 指标服务已启动: http://127.0.0.1:" + port + "/metrics");
+            return true;
+        } catch (IOException e) {
+            log.error("[指标] 无法启动指标服务: " + e.getMessage());
+            server = null;
+            return false;
+        }
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.group7.chat.security;
 
+import com.group7.chat.logging.Logger;
 import java.security.PublicKey;
 import java.security.PrivateKey;
 import java.util.Base64;
@@ -11,6 +12,8 @@ import java.util.concurrent.ThreadLocalRandom;
  * 身份验证服务 - 处理节点身份验证和数字签名
  */
 public class AuthenticationService {
+
+    private static final Logger log = Logger.getLogger(AuthenticationService.class);
     
     private final KeyManager keyManager;
     private final CryptoService cryptoService;
@@ -116,15 +119,15 @@ public class AuthenticationService {
     public boolean registerNode(String nodeId, PublicKey publicKey) {
         try {
             // 验证节点ID与公钥的一致性
-            String expectedNodeId = keyManager.getPublicKeyFingerprint(publicKey);
+            String expectedNodeId = KeyManager.deriveNodeId(publicKey).toString(16);
             if (!expectedNodeId.equals(nodeId)) {
-                System.err.println("[身份验证] 节点ID与公钥不匹配: " + nodeId);
+                log.warn("[身份验证] 节点ID与公钥不匹配: " + nodeId);
                 return false;
             }
             
             // 检查密钥强度
             if (!cryptoService.isKeyStrengthSufficient(publicKey)) {
-                System.err.println("[身份验证] 公钥强度不足: " + nodeId);
+                log.warn("[身份验证] 公钥强度不足: " + nodeId);
                 return false;
             }
             
@@ -135,11 +138,11 @@ public class AuthenticationService {
             // 存储公钥到密钥管理器
             keyManager.storePublicKey(nodeId, publicKey);
             
-            System.out.println("[身份验证] 注册新节点: " + nodeId + " (指纹: " + fingerprint + ")");
+            log.info("[身份验证] 注册新节点: " + nodeId + " (指纹: " + fingerprint + ")");
             return true;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 注册节点失败: " + e.getMessage());
+            log.error("[身份验证] 注册节点失败: " + e.getMessage());
             return false;
         }
     }
@@ -156,11 +159,11 @@ public class AuthenticationService {
             // 存储挑战数据
             activeChallenges.put(challenge, new ChallengeData(challenge, targetNodeId));
             
-            System.out.println("[身份验证] 生成挑战给节点: " + targetNodeId);
+            log.debug(() -> "[身份验证] 生成挑战给节点: " + targetNodeId);
             return challenge;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 生成挑战失败: " + e.getMessage());
+            log.error("[身份验证] 生成挑战失败: " + e.getMessage());
             return null;
         }
     }
@@ -181,11 +184,11 @@ public class AuthenticationService {
             
             String response = String.join(":", nodeId, publicKeyString, signatureString);
             
-            System.out.println("[身份验证] 响应挑战: " + challenge.substring(0, 8) + "...");
+            log.debug(() -> "[身份验证] 响应挑战: " + challenge.substring(0, 8) + "...");
             return response;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 响应挑战失败: " + e.getMessage());
+            log.error("[身份验证] 响应挑战失败: " + e.getMessage());
             return null;
         }
     }
@@ -251,11 +254,11 @@ public class AuthenticationService {
             // 清理挑战
             activeChallenges.remove(challenge);
             
-            System.out.println("[身份验证] 验证成功: " + nodeId + " (信任级别: " + trustedNode.getTrustLevel() + ")");
+            log.info("[身份验证] 验证成功: " + nodeId + " (信任级别: " + trustedNode.getTrustLevel() + ")");
             return AuthenticationResult.SUCCESS;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 验证响应失败: " + e.getMessage());
+            log.error("[身份验证] 验证响应失败: " + e.getMessage());
             return AuthenticationResult.FAILED;
         }
     }
@@ -269,7 +272,7 @@ public class AuthenticationService {
             byte[] signature = cryptoService.sign(messageBytes, keyManager.getNodePrivateKey());
             return Base64.getEncoder().encodeToString(signature);
         } catch (Exception e) {
-            System.err.println("[身份验证] 签名消息失败: " + e.getMessage());
+            log.error("[身份验证] 签名消息失败: " + e.getMessage());
             return null;
         }
     }
@@ -281,7 +284,7 @@ public class AuthenticationService {
         try {
             TrustedNode trustedNode = trustedNodes.get(senderNodeId);
             if (trustedNode == null) {
-                System.err.println("[身份验证] 未知发送者: " + senderNodeId);
+                log.warn("[身份验证] 未知发送者: " + senderNodeId);
                 return false;
             }
             
@@ -301,7 +304,7 @@ public class AuthenticationService {
             return valid;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 验证消息签名失败: " + e.getMessage());
+            log.error("[身份验证] 验证消息签名失败: " + e.getMessage());
             return false;
         }
     }
@@ -350,7 +353,7 @@ public class AuthenticationService {
     public boolean removeNode(String nodeId) {
         TrustedNode removed = trustedNodes.remove(nodeId);
         if (removed != null) {
-            System.out.println("[身份验证] 移除节点: " + nodeId);
+            log.info("[身份验证] 移除节点: " + nodeId);
             return true;
         }
         return false;
@@ -363,7 +366,7 @@ public class AuthenticationService {
         TrustedNode node = trustedNodes.get(nodeId);
         if (node != null) {
             node.setTrustLevel(trustLevel);
-            System.out.println("[身份验证] 设置节点信任级别: " + nodeId + " -> " + trustLevel);
+            log.info("[身份验证] 设置节点信任级别: " + nodeId + " -> " + trustLevel);
             return true;
         }
         return false;
@@ -375,7 +378,7 @@ public class AuthenticationService {
     public void cleanupExpiredChallenges() {
         activeChallenges.entrySet().removeIf(entry -> {
             if (entry.getValue().isExpired()) {
-                System.out.println("[身份验证] 清理过期挑战: " + entry.getKey().substring(0, 8) + "...");
+                log.info("[身份验证] 清理过期挑战: " + entry.getKey().substring(0, 8) + "...");
                 return true;
             }
             return false;
@@ -410,7 +413,7 @@ public class AuthenticationService {
             return certificateData + ":" + signature;
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 创建节点证书失败: " + e.getMessage());
+            log.error("[身份验证] 创建节点证书失败: " + e.getMessage());
             return null;
         }
     }
@@ -442,7 +445,7 @@ public class AuthenticationService {
             return verifyMessageSignature(certificateData, signature, nodeId);
             
         } catch (Exception e) {
-            System.err.println("[身份验证] 验证证书失败: " + e.getMessage());
+            log.error("[身份验证] 验证证书失败: " + e.getMessage());
             return false;
         }
     }
@@ -0,0 +1,294 @@
+package com.group7.chat.security;
+
+import com.group7.chat.logging.Logger;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 加密流水线 - 把入站安全流量的解密和验证从读线程移到固定数量的工作线程
+ *
+ * 每个工作线程拥有一条队列（通道），同一排序键（如连接地址）的任务总是进入同一通道，
+ * 因此同一发送方的消息按到达顺序处理。工作线程每次取出一批任务连续处理，减少线程唤醒。
+ *
+ * submit 提交的任务（解密安全信封）占用通道容量：容量用完时读线程先限时等待（相当于放慢读取速度），
+ * 仍然没有空位则丢弃该任务并计数；多个连接共用的读线程 (如NIO的Selector线程) 用 trySubmit，不等待直接丢弃。
+ * 明文帧不能丢弃但同样占用容量：独占的读线程用 put，通道满时阻塞直到有空位；
+ * 共用的读线程用 offer，通道满时任务照常入队，调用方暂停该连接的读取，工作线程腾出一半容量后再恢复。
+ * 只有 execute 提交的任务（连接关闭，每条连接一次）不受容量限制。
+ */
+public class CryptoPipeline {
+
+    private static final Logger log = Logger.getLogger(CryptoPipeline.class);
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int BATCH_SIZE = 32;
+    private static final long OFFER_TIMEOUT_MS = 100;
+    private static final int SHED_LOG_INTERVAL = 100;
+
+    private static class Task {
+        private final Runnable action;
+        private final Semaphore permit; // 占用的通道容量，不可丢弃的任务为null
+        private final long enqueuedAt;
+
+        Task(Runnable action, Semaphore permit) {
+            this.action = action;
+            this.permit = permit;
+            this.enqueuedAt = System.nanoTime();
+        }
+
+        void release() {
+            if (permit != null) permit.release();
+        }
+    }
+
+    private final List<BlockingQueue<Task>> lanes = new ArrayList<>();
+    private final List<Semaphore> capacities = new ArrayList<>();
+    // offer 时通道已满而暂停读取的连接的恢复回调
+    private final List<Queue<Runnable>> waiters = new ArrayList<>();
+    private final int queueCapacity;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile Histogram queueWait = new Histogram(1e9);
+    private final LongAdder saturatedCount = new LongAdder();
+    private final LongAdder shedCount = new LongAdder();
+    private volatile boolean running = false;
+
+    public CryptoPipeline() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public CryptoPipeline(int laneCount, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        for (int i = 0; i < Math.max(1, laneCount); i++) {
+            lanes.add(new LinkedBlockingQueue<>());
+            capacities.add(new Semaphore(queueCapacity));
+            waiters.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * 将排队深度、丢弃次数和排队等待时间注册到节点的指标注册表
+     */
+    public void bindMetrics(MetricsRegistry registry) {
+        this.queueWait = registry.timer("chat_crypto_queue_seconds", "任务在加密流水线中的排队时间");
+        registry.gauge("chat_crypto_queue_depth", "加密流水线排队任务数", this::getQueueDepth);
+        registry.counter("chat_crypto_shed_total", "加密流水线因通道饱和丢弃的任务数", this::getShedCount);
+    }
+
+    /**
+     * 启动工作线程
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (int i = 0; i < lanes.size(); i++) {
+            int index = i;
+            Thread worker = new Thread(() -> runLane(index), "crypto-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        log.info("[加密流水线] 已启动 " + lanes.size() + " 个工作线程");
+    }
+
+    /**
+     * 停止工作线程，尚未处理的任务被丢弃
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        for (BlockingQueue<Task> lane : lanes) {
+            Task task;
+            while ((task = lane.poll()) != null) {
+                task.release();
+            }
+        }
+        for (Queue<Runnable> waiting : waiters) {
+            waiting.clear();
+        }
+    }
+
+    /**
+     * 提交可丢弃的任务。同一排序键的任务按提交顺序执行；流水线未启动时直接在调用线程执行。
+     *
+     * @return 任务被接受返回true，通道容量持续用完而被丢弃返回false
+     */
+    public boolean submit(String orderingKey, Runnable action) {
+        return submit(orderingKey, action, OFFER_TIMEOUT_MS);
+    }
+
+    /**
+     * 与 submit 相同，但通道已满时不等待，直接丢弃；用于不能阻塞的读线程
+     */
+    public boolean trySubmit(String orderingKey, Runnable action) {
+        return submit(orderingKey, action, 0);
+    }
+
+    private boolean submit(String orderingKey, Runnable action, long waitMs) {
+        if (!running) {
+            action.run();
+            return true;
+        }
+
+        int index = laneIndex(orderingKey);
+        Semaphore capacity = capacities.get(index);
+        if (capacity.tryAcquire()) {
+            lanes.get(index).add(new Task(action, capacity));
+            return true;
+        }
+
+        // 通道已满：允许等待时阻塞读线程一小段时间，让发送方感受到背压
+        saturatedCount.increment();
+        try {
+            if (waitMs > 0 && capacity.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+                lanes.get(index).add(new Task(action, capacity));
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        shedCount.increment();
+        long shed = shedCount.sum();
+        if (shed % SHED_LOG_INTERVAL == 1) {
+            log.warn("[加密流水线] 队列已满，丢弃来自 " + orderingKey + " 的任务 (累计丢弃: " + shed + ")");
+        }
+        return false;
+    }
+
+    /**
+     * 提交不可丢弃的任务并占用通道容量，通道已满时阻塞调用线程直到有空位；用于每个连接独占的读线程。
+     * 流水线未启动时直接在调用线程执行，等待期间流水线停止时丢弃
+     */
+    public void put(String orderingKey, Runnable action) {
+        if (!running) {
+            action.run();
+            return;
+        }
+        int index = laneIndex(orderingKey);
+        Semaphore capacity = capacities.get(index);
+        if (!capacity.tryAcquire()) {
+            saturatedCount.increment();
+            try {
+                while (!capacity.tryAcquire(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (!running) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        lanes.get(index).add(new Task(action, capacity));
+    }
+
+    /**
+     * 提交不可丢弃的任务并占用通道容量，不等待；用于不能阻塞的共用读线程。
+     * 通道已满时任务仍然入队并返回false，调用方应暂停读取，通道腾出一半容量后在工作线程上调用 resume
+     */
+    public boolean offer(String orderingKey, Runnable action, Runnable resume) {
+        if (!running) {
+            action.run();
+            return true;
+        }
+        int index = laneIndex(orderingKey);
+        Semaphore capacity = capacities.get(index);
+        if (capacity.tryAcquire()) {
+            lanes.get(index).add(new Task(action, capacity));
+            return true;
+        }
+        saturatedCount.increment();
+        waiters.get(index).add(resume);
+        lanes.get(index).add(new Task(action, null));
+        return false;
+    }
+
+    /**
+     * 提交不受容量限制的任务，与同一排序键的其他任务共同排序；流水线未启动时直接在调用线程执行
+     */
+    public void execute(String orderingKey, Runnable action) {
+        if (!running) {
+            action.run();
+            return;
+        }
+        lanes.get(laneIndex(orderingKey)).add(new Task(action, null));
+    }
+
+    private int laneIndex(String orderingKey) {
+        int hash = orderingKey != null ? orderingKey.hashCode() : 0;
+        return (hash & 0x7fffffff) % lanes.size();
+    }
+
+    private void runLane(int index) {
+        BlockingQueue<Task> lane = lanes.get(index);
+        Semaphore capacity = capacities.get(index);
+        Queue<Runnable> waiting = waiters.get(index);
+        List<Task> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                Task first = lane.poll(500, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                lane.drainTo(batch, BATCH_SIZE - 1);
+
+                for (Task task : batch) {
+                    task.release();
+                    queueWait.recordSince(task.enqueuedAt);
+                    try {
+                        task.action.run();
+                    } catch (Exception e) {
+                        log.error("[加密流水线] 任务执行失败: " + e.getMessage());
+                    }
+                }
+                batch.clear();
+                if (!waiting.isEmpty() && capacity.availablePermits() >= queueCapacity / 2) {
+                    Runnable resume;
+                    while ((resume = waiting.poll()) != null) {
+                        resume.run();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * 当前所有通道中排队的任务数
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Task> lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() { return lanes.size(); }
+    public long getSaturatedCount() { return saturatedCount.sum(); }
+    public long getShedCount() { return shedCount.sum(); }
+
+    /**
+     * 获取统计摘要
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("加密流水线: ").append(lanes.size()).append(" 个通道, 排队 ").append(getQueueDepth())
+             .append(", 饱和 ").append(getSaturatedCount()).append(" 次, 丢弃 ").append(getShedCount()).append("\n");
+        Histogram wait = queueWait;
+        stats.append(String.format("  排队等待: %d次, 中位 %.1fμs, 最大 %.1fμs%n",
+                wait.getCount(), wait.getValueAtQuantile(0.5) / 1000.0, wait.getMax() / 1000.0));
+        return stats.toString();
+    }
+}
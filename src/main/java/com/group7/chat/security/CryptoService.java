@@ -1,22 +1,29 @@
 package com.group7.chat.security;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 /**
- * 加密服务 - 提供RSA和AES加密/解密功能
+ * 加密服务 - 提供RSA和AES加密/解密功能，以及X25519密钥协商和HKDF
  */
 public class CryptoService {
     private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWITHSHA-256ANDMGF1PADDING";
     private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
     private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String XDH_ALGORITHM = "X25519";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int HMAC_LENGTH = 32;
     
-    private static final int GCM_IV_LENGTH = 12; // 96 bits
-    private static final int GCM_TAG_LENGTH = 16; // 128 bits
+    static final int GCM_IV_LENGTH = 12; // 96 bits
+    static final int GCM_TAG_LENGTH = 16; // 128 bits
     
     private final SecureRandom secureRandom;
     // 漏洞2: 使用可预测的IV计数器（在某些情况下）
@@ -146,6 +153,38 @@ public class CryptoService {
         return cipher.doFinal(encryptionResult.getEncryptedData());
     }
     
+    /**
+     * AES-GCM加密（调用方提供IV和附加认证数据），返回 密文||认证标签
+     */
+    public byte[] encryptWithAESGCM(byte[] data, SecretKey secretKey, byte[] iv, byte[] aad) throws Exception {
+        Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(data);
+    }
+    
+    /**
+     * AES-GCM解密（密文与认证标签分开传入，避免拼接拷贝）
+     */
+    public byte[] decryptWithAESGCM(byte[] ciphertext, byte[] tag, SecretKey secretKey, byte[] iv, byte[] aad) throws Exception {
+        Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        byte[] head = cipher.update(ciphertext);
+        byte[] tail = cipher.doFinal(tag);
+        if (head == null || head.length == 0) {
+            return tail;
+        }
+        byte[] plaintext = new byte[head.length + tail.length];
+        System.arraycopy(head, 0, plaintext, 0, head.length);
+        System.arraycopy(tail, 0, plaintext, head.length, tail.length);
+        return plaintext;
+    }
+    
     /**
      * 数字签名
      */
@@ -166,6 +205,73 @@ public class CryptoService {
         return signature.verify(signatureBytes);
     }
     
+    /**
+     * 当前JDK是否支持X25519（JDK 11起内置XDH）
+     */
+    public static boolean isX25519Supported() {
+        try {
+            KeyPairGenerator.getInstance(XDH_ALGORITHM);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * 生成X25519密钥对
+     */
+    public KeyPair generateX25519KeyPair() throws Exception {
+        return KeyPairGenerator.getInstance(XDH_ALGORITHM).generateKeyPair();
+    }
+    
+    /**
+     * 从X.509编码创建X25519公钥
+     */
+    public PublicKey decodeX25519PublicKey(byte[] encoded) throws Exception {
+        return KeyFactory.getInstance(XDH_ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+    
+    /**
+     * X25519密钥协商，返回32字节共享秘密
+     */
+    public byte[] x25519Agree(PrivateKey privateKey, PublicKey remotePublicKey) throws Exception {
+        KeyAgreement agreement = KeyAgreement.getInstance(XDH_ALGORITHM);
+        agreement.init(privateKey);
+        agreement.doPhase(remotePublicKey, true);
+        return agreement.generateSecret();
+    }
+    
+    /**
+     * HKDF-SHA256 (RFC 5869) 密钥派生：先提取再扩展出指定长度的密钥材料
+     */
+    public byte[] hkdf(byte[] inputKeyMaterial, byte[] salt, byte[] info, int length) throws Exception {
+        if (length <= 0 || length > 255 * HMAC_LENGTH) {
+            throw new IllegalArgumentException("无效的HKDF输出长度: " + length);
+        }
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        byte[] saltBytes = (salt == null || salt.length == 0) ? new byte[HMAC_LENGTH] : salt;
+        mac.init(new SecretKeySpec(saltBytes, HMAC_ALGORITHM));
+        byte[] prk = mac.doFinal(inputKeyMaterial);
+        
+        mac.init(new SecretKeySpec(prk, HMAC_ALGORITHM));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            if (info != null) {
+                mac.update(info);
+            }
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int chunk = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, chunk);
+            offset += chunk;
+        }
+        clearSensitiveData(prk);
+        return output;
+    }
+    
     /**
      * 计算SHA-256哈希
      */
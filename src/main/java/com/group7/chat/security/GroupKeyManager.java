@@ -0,0 +1,278 @@
+package com.group7.chat.security;
+
+import com.group7.chat.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 群组密钥管理器 - 实现发送者密钥(Sender Key)方案
+ *
+ * 每个成员维护一条自己的链密钥，通过已有的两两会话密钥分发给其他成员一次。
+ * 之后每条群聊消息只加密一次并广播：消息密钥由链密钥派生，
+ * 链密钥随每条消息向前棘轮(HMAC)推进，成员离开时整条链重新生成(换代)。
+ */
+public class GroupKeyManager {
+
+    private static final Logger log = Logger.getLogger(GroupKeyManager.class);
+
+    private static final byte VERSION = 1;
+    private static final int CHAIN_KEY_LENGTH = 32;
+    private static final byte[] MESSAGE_KEY_SEED = {0x01};
+    private static final byte[] CHAIN_KEY_SEED = {0x02};
+
+    // 接收方最多向前跳过的消息数，以及为乱序消息保留的消息密钥数
+    private static final int MAX_SKIP = 1000;
+    private static final int MAX_SKIPPED_KEYS = 64;
+
+    /**
+     * 一条发送者密钥链的状态
+     */
+    private static class ChainState {
+        private final int generation;
+        private byte[] chainKey;
+        private int index;
+        private final Map<Integer, byte[]> skippedKeys = new LinkedHashMap<Integer, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > MAX_SKIPPED_KEYS;
+            }
+        };
+
+        ChainState(int generation, byte[] chainKey, int index) {
+            this.generation = generation;
+            this.chainKey = chainKey;
+            this.index = index;
+        }
+    }
+
+    private final String localNodeId;
+    private final CryptoService cryptoService;
+
+    // 本节点的发送链
+    private ChainState ownChain;
+
+    // 其他成员的发送链，按发送者节点ID索引
+    private final Map<String, ChainState> remoteChains = new ConcurrentHashMap<>();
+
+    public GroupKeyManager(String localNodeId, CryptoService cryptoService) {
+        this.localNodeId = localNodeId;
+        this.cryptoService = cryptoService;
+        this.ownChain = new ChainState(0, cryptoService.generateRandomBytes(CHAIN_KEY_LENGTH), 0);
+    }
+
+    /**
+     * 使用本节点的发送者密钥加密一条群聊消息（只加密一次，用于广播）
+     * 格式: [版本(1)][代数(4)][序号(4)][IV(12)][密文||标签]
+     */
+    public synchronized byte[] encrypt(byte[] plaintext) throws Exception {
+        ChainState chain = ownChain;
+        int index = chain.index;
+        byte[] messageKey = hmac(chain.chainKey, MESSAGE_KEY_SEED);
+        advance(chain);
+
+        byte[] iv = cryptoService.generateRandomBytes(CryptoService.GCM_IV_LENGTH);
+        byte[] aad = associatedData(localNodeId, chain.generation, index);
+        byte[] sealed = cryptoService.encryptWithAESGCM(plaintext, toAesKey(messageKey), iv, aad);
+        cryptoService.clearSensitiveData(messageKey);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + iv.length + sealed.length);
+        buffer.put(VERSION);
+        buffer.putInt(chain.generation);
+        buffer.putInt(index);
+        buffer.put(iv);
+        buffer.put(sealed);
+        return buffer.array();
+    }
+
+    /**
+     * 解密来自指定发送者的群聊消息
+     */
+    public byte[] decrypt(String senderId, byte[] data) throws Exception {
+        ChainState chain = remoteChains.get(senderId);
+        if (chain == null) {
+            throw new IllegalStateException("尚未收到发送者 " + senderId + " 的群组密钥");
+        }
+
+        int generation;
+        int index;
+        byte[] iv = new byte[CryptoService.GCM_IV_LENGTH];
+        byte[] sealed;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.get() != VERSION) {
+                throw new IllegalArgumentException("不支持的群聊消息版本");
+            }
+            generation = buffer.getInt();
+            index = buffer.getInt();
+            buffer.get(iv);
+            sealed = new byte[buffer.remaining()];
+            buffer.get(sealed);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("群聊密文不完整", e);
+        }
+        if (sealed.length < CryptoService.GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("群聊密文不完整");
+        }
+
+        byte[] ciphertext = Arrays.copyOfRange(sealed, 0, sealed.length - CryptoService.GCM_TAG_LENGTH);
+        byte[] tag = Arrays.copyOfRange(sealed, sealed.length - CryptoService.GCM_TAG_LENGTH, sealed.length);
+        byte[] aad = associatedData(senderId, generation, index);
+        synchronized (chain) {
+            if (generation != chain.generation) {
+                throw new IllegalStateException("发送者 " + senderId + " 的群组密钥已换代，等待新密钥");
+            }
+            if (index < chain.index) {
+                byte[] skipped = chain.skippedKeys.get(index);
+                if (skipped == null) {
+                    throw new SecurityException("群聊消息序号重复或已过期，可能是重放攻击");
+                }
+                byte[] plaintext = cryptoService.decryptWithAESGCM(ciphertext, tag, toAesKey(skipped), iv, aad);
+                chain.skippedKeys.remove(index);
+                cryptoService.clearSensitiveData(skipped);
+                return plaintext;
+            }
+            return decryptAhead(chain, index, ciphertext, tag, iv, aad);
+        }
+    }
+
+    /**
+     * 导出本节点当前的发送者密钥，用于通过两两会话密钥分发给成员
+     * 格式: [代数(4)][序号(4)][链密钥(32)]
+     */
+    public synchronized byte[] exportSenderKey() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + CHAIN_KEY_LENGTH);
+        buffer.putInt(ownChain.generation);
+        buffer.putInt(ownChain.index);
+        buffer.put(ownChain.chainKey);
+        return buffer.array();
+    }
+
+    /**
+     * 安装其他成员分发来的发送者密钥
+     */
+    public void installSenderKey(String senderId, byte[] distribution) {
+        if (distribution.length != 4 + 4 + CHAIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("无效的发送者密钥长度: " + distribution.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(distribution);
+        int generation = buffer.getInt();
+        int index = buffer.getInt();
+        byte[] chainKey = new byte[CHAIN_KEY_LENGTH];
+        buffer.get(chainKey);
+
+        ChainState existing = remoteChains.get(senderId);
+        if (existing != null && existing.generation > generation) {
+            log.warn("[群组密钥] 忽略过期的发送者密钥: " + senderId);
+            return;
+        }
+        remoteChains.put(senderId, new ChainState(generation, chainKey, index));
+        log.info("[群组密钥] 安装发送者密钥: " + senderId + " (代数: " + generation + ")");
+    }
+
+    /**
+     * 成员变化时换代：生成全新的链密钥，离开的成员无法解密之后的消息
+     */
+    public synchronized void rotate() {
+        cryptoService.clearSensitiveData(ownChain.chainKey);
+        ownChain = new ChainState(ownChain.generation + 1, cryptoService.generateRandomBytes(CHAIN_KEY_LENGTH), 0);
+        log.info("[群组密钥] 发送者密钥已换代，当前代数: " + ownChain.generation);
+    }
+
+    /**
+     * 移除离开成员的发送者密钥
+     */
+    public void removeSender(String senderId) {
+        ChainState removed = remoteChains.remove(senderId);
+        if (removed != null) {
+            cryptoService.clearSensitiveData(removed.chainKey);
+        }
+    }
+
+    public boolean hasSenderKey(String senderId) {
+        return remoteChains.containsKey(senderId);
+    }
+
+    public synchronized int getGeneration() {
+        return ownChain.generation;
+    }
+
+    public int getRemoteSenderCount() {
+        return remoteChains.size();
+    }
+
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    /**
+     * 解密序号不小于当前位置的消息：在链密钥的副本上向前棘轮，标签验证通过后才更新链的位置和跳过的消息密钥，
+     * 伪造的消息不会让链失去同步
+     */
+    private byte[] decryptAhead(ChainState chain, int index, byte[] ciphertext, byte[] tag,
+                                byte[] iv, byte[] aad) throws Exception {
+        if (index - chain.index > MAX_SKIP) {
+            throw new SecurityException("群聊消息序号跳跃过大: " + index);
+        }
+        Map<Integer, byte[]> skipped = new LinkedHashMap<>();
+        byte[] chainKey = chain.chainKey.clone();
+        for (int position = chain.index; position < index; position++) {
+            skipped.put(position, hmac(chainKey, MESSAGE_KEY_SEED));
+            byte[] next = hmac(chainKey, CHAIN_KEY_SEED);
+            cryptoService.clearSensitiveData(chainKey);
+            chainKey = next;
+        }
+        byte[] messageKey = hmac(chainKey, MESSAGE_KEY_SEED);
+        byte[] nextChainKey = hmac(chainKey, CHAIN_KEY_SEED);
+        cryptoService.clearSensitiveData(chainKey);
+
+        byte[] plaintext;
+        try {
+            plaintext = cryptoService.decryptWithAESGCM(ciphertext, tag, toAesKey(messageKey), iv, aad);
+        } catch (Exception e) {
+            skipped.values().forEach(cryptoService::clearSensitiveData);
+            cryptoService.clearSensitiveData(nextChainKey);
+            throw e;
+        } finally {
+            cryptoService.clearSensitiveData(messageKey);
+        }
+        cryptoService.clearSensitiveData(chain.chainKey);
+        chain.chainKey = nextChainKey;
+        chain.index = index + 1;
+        chain.skippedKeys.putAll(skipped);
+        return plaintext;
+    }
+
+    private void advance(ChainState chain) throws Exception {
+        byte[] next = hmac(chain.chainKey, CHAIN_KEY_SEED);
+        cryptoService.clearSensitiveData(chain.chainKey);
+        chain.chainKey = next;
+        chain.index++;
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static SecretKey toAesKey(byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    private static byte[] associatedData(String senderId, int generation, int index) {
+        byte[] senderBytes = senderId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(senderBytes.length + 8);
+        buffer.put(senderBytes);
+        buffer.putInt(generation);
+        buffer.putInt(index);
+        return buffer.array();
+    }
+}
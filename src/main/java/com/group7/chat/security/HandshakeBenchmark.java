@@ -0,0 +1,197 @@
+package com.group7.chat.security;
+
+import com.group7.chat.Message;
+import com.group7.chat.logging.Level;
+import com.group7.chat.logging.Logger;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 密钥交换性能测试程序 - 在内存中对比RSA、X25519两种握手模式以及票据恢复的吞吐量
+ *
+ * 用法: HandshakeBenchmark [握手次数]
+ */
+public class HandshakeBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 500;
+    private static final int KEYGEN_ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        System.out.println("======================================");
+        System.out.println("密钥交换性能测试");
+        System.out.println("======================================");
+
+        if (!CryptoService.isX25519Supported()) {
+            System.out.println("当前JDK不支持X25519，只能测试RSA模式");
+        }
+
+        Path dirA = Files.createTempDirectory("handshake-a");
+        Path dirB = Files.createTempDirectory("handshake-b");
+        PrintStream console = System.out;
+        try {
+            benchmarkKeyGeneration();
+
+            CryptoService cryptoService = new CryptoService();
+            KeyManager keyManagerA = new KeyManager(dirA);
+            KeyManager keyManagerB = new KeyManager(dirB);
+            KeyExchangeProtocol protocolA = new KeyExchangeProtocol(keyManagerA, cryptoService);
+            KeyExchangeProtocol protocolB = new KeyExchangeProtocol(keyManagerB, cryptoService);
+
+            // 握手过程的日志会淹没测试结果，测量期间暂时屏蔽
+            Logger.setLevel(Level.OFF);
+
+            double rsaMillis = runMode(KeyExchangeProtocol.KeyAgreementMode.RSA,
+                    protocolA, protocolB, keyManagerA, keyManagerB, iterations, console);
+            double x25519Millis = -1;
+            if (keyManagerA.hasAgreementKey() && keyManagerB.hasAgreementKey()) {
+                x25519Millis = runMode(KeyExchangeProtocol.KeyAgreementMode.X25519,
+                        protocolA, protocolB, keyManagerA, keyManagerB, iterations, console);
+            }
+
+            double resumeMillis = runResume(protocolA, protocolB, keyManagerA, keyManagerB, iterations, console);
+            
+            System.out.println("--------------------------------------");
+            if (x25519Millis > 0) {
+                System.out.printf("X25519 相对 RSA 加速: %.1fx%n", rsaMillis / x25519Millis);
+            }
+            System.out.printf("票据恢复 相对 RSA 加速: %.1fx%n", rsaMillis / resumeMillis);
+        } finally {
+            deleteDirectory(dirA);
+            deleteDirectory(dirB);
+        }
+    }
+
+    /**
+     * 对比首次启动时生成身份密钥的耗时
+     */
+    private static void benchmarkKeyGeneration() throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < KEYGEN_ITERATIONS; i++) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            generator.generateKeyPair();
+        }
+        double rsaMillis = (System.nanoTime() - start) / 1e6 / KEYGEN_ITERATIONS;
+        System.out.printf("RSA-2048 密钥生成: %.2f ms/次%n", rsaMillis);
+
+        if (CryptoService.isX25519Supported()) {
+            CryptoService cryptoService = new CryptoService();
+            start = System.nanoTime();
+            for (int i = 0; i < KEYGEN_ITERATIONS; i++) {
+                cryptoService.generateX25519KeyPair();
+            }
+            double x25519Millis = (System.nanoTime() - start) / 1e6 / KEYGEN_ITERATIONS;
+            System.out.printf("X25519 密钥生成:   %.2f ms/次%n", x25519Millis);
+        }
+    }
+
+    /**
+     * 以指定模式重复完成握手，返回平均每次握手的毫秒数
+     */
+    private static double runMode(KeyExchangeProtocol.KeyAgreementMode mode,
+                                  KeyExchangeProtocol protocolA, KeyExchangeProtocol protocolB,
+                                  KeyManager keyManagerA, KeyManager keyManagerB,
+                                  int iterations, PrintStream console) {
+        protocolA.setSupportedModes(mode);
+        protocolB.setSupportedModes(mode);
+
+        // 预热，让JIT完成编译
+        int warmup = Math.max(10, iterations / 5);
+        for (int i = 0; i < warmup; i++) {
+            handshake(protocolA, protocolB, keyManagerB.getNodeId());
+            keyManagerA.removeSessionTicket(keyManagerB.getNodeId());
+        }
+
+        int completed = 0;
+        int messages = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int exchanged = handshake(protocolA, protocolB, keyManagerB.getNodeId());
+            if (exchanged > 0 && keyManagerA.hasSessionKey(keyManagerB.getNodeId())
+                    && keyManagerA.getSessionKeyHash(keyManagerB.getNodeId())
+                            .equals(keyManagerB.getSessionKeyHash(keyManagerA.getNodeId()))) {
+                completed++;
+                messages += exchanged;
+            }
+            keyManagerA.removeSessionKey(keyManagerB.getNodeId());
+            keyManagerB.removeSessionKey(keyManagerA.getNodeId());
+            // 每次都测完整交换，不使用票据
+            keyManagerA.removeSessionTicket(keyManagerB.getNodeId());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double avgMillis = elapsed / 1e6 / iterations;
+        console.printf("%-6s 模式: %d/%d 次握手成功, %.3f ms/次, %.0f 次/秒, %.1f 条消息/次%n",
+                mode, completed, iterations, avgMillis, iterations / (elapsed / 1e9),
+                completed > 0 ? (double) messages / completed : 0.0);
+        return avgMillis;
+    }
+
+    /**
+     * 完整交换一次后反复用票据恢复会话（每次恢复都会换发新票据），返回平均每次恢复的毫秒数
+     */
+    private static double runResume(KeyExchangeProtocol protocolA, KeyExchangeProtocol protocolB,
+                                    KeyManager keyManagerA, KeyManager keyManagerB,
+                                    int iterations, PrintStream console) {
+        String nodeB = keyManagerB.getNodeId();
+        handshake(protocolA, protocolB, nodeB);
+
+        int warmup = Math.max(10, iterations / 5);
+        for (int i = 0; i < warmup; i++) {
+            handshake(protocolA, protocolB, nodeB);
+        }
+
+        int resumed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            boolean hadTicket = keyManagerA.getSessionTicket(nodeB) != null;
+            int exchanged = handshake(protocolA, protocolB, nodeB);
+            if (hadTicket && exchanged == 2 && keyManagerA.getSessionKeyHash(nodeB)
+                    .equals(keyManagerB.getSessionKeyHash(keyManagerA.getNodeId()))) {
+                resumed++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double avgMillis = elapsed / 1e6 / iterations;
+        console.printf("票据恢复: %d/%d 次恢复成功, %.3f ms/次, %.0f 次/秒, 2.0 条消息/次%n",
+                resumed, iterations, avgMillis, iterations / (elapsed / 1e9));
+        return avgMillis;
+    }
+
+    /**
+     * 在两个协议实例间传递消息直到握手结束，返回交换的消息数，失败返回-1
+     */
+    private static int handshake(KeyExchangeProtocol initiator, KeyExchangeProtocol responder, String responderId) {
+        Message message = initiator.initiateKeyExchange(responderId);
+        if (message == null) {
+            return -1;
+        }
+        int count = 1;
+        boolean toResponder = true;
+        while (message != null) {
+            message = toResponder ? responder.handleKeyExchangeMessage(message)
+                                  : initiator.handleKeyExchangeMessage(message);
+            toResponder = !toResponder;
+            if (message != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("清理临时目录失败: " + e.getMessage());
+        }
+    }
+}
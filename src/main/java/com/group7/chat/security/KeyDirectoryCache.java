@@ -0,0 +1,76 @@
+package com.group7.chat.security;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 公钥目录缓存 - 保存从DHT取得并已验证的其他节点公钥记录
+ *
+ * 按节点ID索引，容量有上限（按最近使用淘汰），缓存 ttlMs 后过期，过期后重新从DHT查询，
+ * 对端更换密钥后最多 ttlMs 内会使用到新记录。
+ */
+public class KeyDirectoryCache {
+
+    private static final class CachedRecord {
+        final KeyRecord record;
+        final long expiresAt;
+
+        CachedRecord(KeyRecord record, long expiresAt) {
+            this.record = record;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final Map<String, CachedRecord> records;
+
+    public KeyDirectoryCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.records = new LinkedHashMap<String, CachedRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRecord> eldest) {
+                return size() > KeyDirectoryCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized void put(KeyRecord record) {
+        records.put(record.getNodeId(), new CachedRecord(record, System.currentTimeMillis() + ttlMs));
+    }
+
+    /**
+     * 获取未过期的记录，过期则顺便移除
+     */
+    public synchronized KeyRecord get(String nodeId) {
+        CachedRecord entry = records.get(nodeId);
+        if (entry == null) return null;
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            records.remove(nodeId);
+            return null;
+        }
+        return entry.record;
+    }
+
+    /**
+     * 移除所有过期记录，返回移除数量
+     */
+    public synchronized int removeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<CachedRecord> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next().expiresAt) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+}
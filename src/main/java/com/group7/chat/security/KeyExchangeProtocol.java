@@ -1,16 +1,60 @@
 package com.group7.chat.security;
 
+import com.group7.chat.logging.Logger;
 import com.group7.chat.Message;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 密钥交换协议 - 处理节点间的安全密钥交换
+ *
+ * 支持两种模式，由发起方在HELLO中按优先级列出，响应方选择第一个双方都支持的：
+ * RSA    - HELLO / HELLO_RESPONSE / KEY_EXCHANGE / KEY_CONFIRM，会话密钥用RSA-OAEP包装传递
+ * X25519 - HELLO / HELLO_RESPONSE / KEY_CONFIRM，双方交换临时X25519公钥，会话密钥由
+ *          临时-临时共享秘密与静态-静态共享秘密一起经HKDF派生，双方用派生出的确认密钥
+ *          对握手记录做HMAC完成认证。静态X25519公钥由RSA身份签名绑定（签名只计算一次并缓存），
+ *          静态共享秘密按对端缓存，因此每次握手只需一次临时密钥生成和一次X25519运算
+ *
+ * 完整交换成功后，响应方签发一张会话票据（RSA模式附在KEY_CONFIRM中，X25519模式用NEW_TICKET发送）。
+ * 重连时发起方用 RESUME / RESUME_OK 一个往返即可由票据中的恢复密钥派生新的会话密钥，
+ * 票据只能使用一次，每次恢复都会换发新票据；票据无效时响应方回复RESUME_REJECT，发起方回退到完整交换。
  */
 public class KeyExchangeProtocol {
+
+    private static final Logger log = Logger.getLogger(KeyExchangeProtocol.class);
+    
+    /**
+     * 密钥协商模式
+     */
+    public enum KeyAgreementMode {
+        RSA,
+        X25519
+    }
+    
+    private static final String TRANSCRIPT_LABEL = "group7-chat-x25519-v1";
+    private static final byte[] SESSION_KEY_INFO = "group7-chat session key".getBytes(StandardCharsets.UTF_8);
+    private static final int SESSION_KEY_LENGTH = 32;
+    private static final int CONFIRMATION_KEY_LENGTH = 32;
+    
+    // 会话票据
+    private static final byte[] RESUMPTION_INFO = "group7-chat resumption".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMED_SESSION_INFO = "group7-chat resumed session".getBytes(StandardCharsets.UTF_8);
+    private static final int RESUMPTION_SECRET_LENGTH = 32;
+    private static final long TICKET_LIFETIME = 12 * 60 * 60 * 1000L; // 12小时
+    private static final int MAX_USED_TICKETS = 4096;
     
     /**
      * 密钥交换状态
@@ -19,6 +63,7 @@ public class KeyExchangeProtocol {
         INIT,           // 初始状态
         HELLO_SENT,     // 已发送Hello消息
         HELLO_RECEIVED, // 已接收Hello消息
+        RESUME_SENT,    // 已发送会话恢复请求
         KEY_SENT,       // 已发送密钥
         KEY_RECEIVED,   // 已接收密钥
         COMPLETED,      // 交换完成
@@ -35,6 +80,11 @@ public class KeyExchangeProtocol {
         private SecretKey sessionKey;
         private long timestamp;
         private String challenge;
+        private KeyAgreementMode mode = KeyAgreementMode.RSA;
+        private KeyPair ephemeralKeyPair;
+        private byte[] confirmationKey;
+        private byte[] resumptionSecret;
+        private String transcript;
         
         public ExchangeSession(String nodeId) {
             this.nodeId = nodeId;
@@ -54,6 +104,16 @@ public class KeyExchangeProtocol {
         public void updateTimestamp() { this.timestamp = System.currentTimeMillis(); }
         public String getChallenge() { return challenge; }
         public void setChallenge(String challenge) { this.challenge = challenge; }
+        public KeyAgreementMode getMode() { return mode; }
+        public void setMode(KeyAgreementMode mode) { this.mode = mode; }
+        public KeyPair getEphemeralKeyPair() { return ephemeralKeyPair; }
+        public void setEphemeralKeyPair(KeyPair ephemeralKeyPair) { this.ephemeralKeyPair = ephemeralKeyPair; }
+        public byte[] getConfirmationKey() { return confirmationKey; }
+        public byte[] getResumptionSecret() { return resumptionSecret; }
+        public void setResumptionSecret(byte[] resumptionSecret) { this.resumptionSecret = resumptionSecret; }
+        public void setConfirmationKey(byte[] confirmationKey) { this.confirmationKey = confirmationKey; }
+        public String getTranscript() { return transcript; }
+        public void setTranscript(String transcript) { this.transcript = transcript; }
     }
     
     private final KeyManager keyManager;
@@ -65,15 +125,73 @@ public class KeyExchangeProtocol {
     // 会话超时时间（30秒）
     private static final long SESSION_TIMEOUT = 30000;
     
+    // 本节点支持的密钥协商模式，按优先级排列
+    private volatile List<KeyAgreementMode> supportedModes;
+    
+    // 与各节点静态X25519公钥的共享秘密缓存，键为 节点ID|对端静态公钥
+    private final Map<String, byte[]> staticSecrets = new ConcurrentHashMap<>();
+    
+    // 加密本节点签发的票据的密钥，只存在于内存中，重启后旧票据自然失效
+    private final SecretKey ticketKey;
+    
+    // 已使用过的票据摘要 -> 记录的过期时间，防止票据重放。过期时间为使用时刻加票据有效期，
+    // 因此插入顺序就是过期顺序，清理时从头部移除到第一个未过期的记录为止；
+    // 未过期的记录从不淘汰，记录数达到上限时拒绝恢复，发起方回退到完整的密钥交换
+    private final LinkedHashMap<String, Long> usedTickets = new LinkedHashMap<>();
+    
     public KeyExchangeProtocol(KeyManager keyManager, CryptoService cryptoService) {
         this.keyManager = keyManager;
         this.cryptoService = cryptoService;
+        this.ticketKey = keyManager.generateSessionKey();
+        if (keyManager.hasAgreementKey()) {
+            setSupportedModes(KeyAgreementMode.X25519, KeyAgreementMode.RSA);
+        } else {
+            setSupportedModes(KeyAgreementMode.RSA);
+        }
     }
     
     /**
-     * 发起密钥交换 - 发送Hello消息
+     * 设置支持的密钥协商模式（按优先级），缺少静态X25519密钥时忽略X25519
+     */
+    public void setSupportedModes(KeyAgreementMode... modes) {
+        List<KeyAgreementMode> list = new ArrayList<>();
+        for (KeyAgreementMode mode : modes) {
+            if (mode == KeyAgreementMode.X25519 && !keyManager.hasAgreementKey()) {
+                log.warn("[密钥交换] 缺少静态X25519密钥，无法启用X25519模式");
+                continue;
+            }
+            if (!list.contains(mode)) {
+                list.add(mode);
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(KeyAgreementMode.RSA);
+        }
+        supportedModes = Collections.unmodifiableList(list);
+    }
+    
+    public List<KeyAgreementMode> getSupportedModes() {
+        return supportedModes;
+    }
+    
+    /**
+     * 发起密钥交换 - 持有对方签发的有效票据时发送会话恢复请求，否则发送Hello消息
      */
     public Message initiateKeyExchange(String targetNodeId) {
+        SessionTicketCache.Ticket ticket = keyManager.getSessionTicket(targetNodeId);
+        if (ticket != null) {
+            Message resume = initiateResumption(targetNodeId, ticket);
+            if (resume != null) {
+                return resume;
+            }
+        }
+        return initiateFullKeyExchange(targetNodeId);
+    }
+    
+    /**
+     * 发起完整密钥交换 - 发送Hello消息
+     */
+    private Message initiateFullKeyExchange(String targetNodeId) {
         try {
             // 创建交换会话
             ExchangeSession session = new ExchangeSession(targetNodeId);
@@ -85,16 +203,24 @@ public class KeyExchangeProtocol {
             session.setChallenge(challenge);
             session.setState(ExchangeState.HELLO_SENT);
             
-            // 创建Hello消息
+            // 创建Hello消息，附带支持的模式列表；支持X25519时同时携带临时公钥和静态公钥
             String publicKeyString = keyManager.publicKeyToString(keyManager.getNodePublicKey());
-            String content = "HELLO:" + keyManager.getNodeId() + ":" + publicKeyString + ":" + challenge;
+            String content = "HELLO:" + keyManager.getNodeId() + ":" + publicKeyString + ":" + challenge
+                    + ":" + encodeModes(supportedModes);
+            if (supportedModes.contains(KeyAgreementMode.X25519)) {
+                KeyPair ephemeral = cryptoService.generateX25519KeyPair();
+                session.setEphemeralKeyPair(ephemeral);
+                content += ":" + encode(ephemeral.getPublic().getEncoded())
+                        + ":" + encode(keyManager.getAgreementPublicKey().getEncoded())
+                        + ":" + encode(keyManager.getAgreementKeyBinding(cryptoService));
+            }
             
-            System.out.println("[密钥交换] 发起与 " + targetNodeId + " 的密钥交换");
+            log.info("[密钥交换] 发起与 " + targetNodeId + " 的密钥交换");
             
             return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
             
         } catch (Exception e) {
-            System.err.println("[密钥交换] 发起密钥交换失败: " + e.getMessage());
+            log.error("[密钥交换] 发起密钥交换失败: " + e.getMessage());
             return null;
         }
     }
@@ -105,10 +231,11 @@ public class KeyExchangeProtocol {
     public Message handleKeyExchangeMessage(Message message) {
         try {
             String content = message.getContent();
-            String[] parts = content.split(":", 4);
+            // Base64字段不含冒号，可以按冒号完整切分
+            String[] parts = content.split(":");
             
             if (parts.length < 2) {
-                System.err.println("[密钥交换] 无效的密钥交换消息格式");
+                log.warn("[密钥交换] 无效的密钥交换消息格式");
                 return null;
             }
             
@@ -124,13 +251,21 @@ public class KeyExchangeProtocol {
                     return handleKeyExchangeData(senderNodeId, parts);
                 case "KEY_CONFIRM":
                     return handleKeyConfirm(senderNodeId, parts);
+                case "NEW_TICKET":
+                    return handleNewTicket(senderNodeId, parts);
+                case "RESUME":
+                    return handleResume(senderNodeId, parts);
+                case "RESUME_OK":
+                    return handleResumeOk(senderNodeId, parts);
+                case "RESUME_REJECT":
+                    return handleResumeReject(senderNodeId);
                 default:
-                    System.err.println("[密钥交换] 未知的消息类型: " + messageType);
+                    log.warn("[密钥交换] 未知的消息类型: " + messageType);
                     return null;
             }
             
         } catch (Exception e) {
-            System.err.println("[密钥交换] 处理密钥交换消息失败: " + e.getMessage());
+            log.error("[密钥交换] 处理密钥交换消息失败: " + e.getMessage());
             return null;
         }
     }
@@ -149,19 +284,34 @@ public class KeyExchangeProtocol {
         
         // 验证节点ID
         PublicKey remotePublicKey = keyManager.createPublicKey(publicKeyString);
-        String expectedNodeId = keyManager.getPublicKeyFingerprint(remotePublicKey);
+        String expectedNodeId = KeyManager.deriveNodeId(remotePublicKey).toString(16);
         
         // 漏洞3: 在某些条件下跳过节点ID验证
         // 如果挑战字符串以"DEBUG_"开头，则跳过验证（模拟调试模式的遗留代码）
         if (!challenge.startsWith("DEBUG_") && !expectedNodeId.equals(remoteNodeId)) {
-            System.err.println("[密钥交换] 节点ID验证失败");
+            log.error("[密钥交换] 节点ID验证失败");
             return null;
         } else if (challenge.startsWith("DEBUG_")) {
-            System.out.println("[密钥交换] 调试模式：跳过节点ID验证");
+            log.info("[密钥交换] 调试模式：跳过节点ID验证");
+        }
+        
+        // 选择模式：按发起方的优先级取第一个本节点也支持的模式，旧版本HELLO不带列表时视为RSA
+        KeyAgreementMode mode = negotiateMode(parts.length > 4 ? parts[4] : KeyAgreementMode.RSA.name());
+        if (mode == null) {
+            log.warn("[密钥交换] 没有双方都支持的密钥交换模式: " + senderNodeId);
+            return null;
+        }
+        if (mode == KeyAgreementMode.X25519) {
+            if (parts.length < 8) {
+                throw new IllegalArgumentException("X25519 Hello消息格式错误");
+            }
+            return respondWithX25519(senderNodeId, remotePublicKey, challenge, parts);
         }
         
         // 创建或更新会话
         ExchangeSession session = activeSessions.computeIfAbsent(senderNodeId, ExchangeSession::new);
+        session.setMode(KeyAgreementMode.RSA);
+        session.setEphemeralKeyPair(null);
         session.setRemotePublicKey(remotePublicKey);
         session.setChallenge(challenge);
         session.setState(ExchangeState.HELLO_RECEIVED);
@@ -182,7 +332,7 @@ public class KeyExchangeProtocol {
         String publicKeyString2 = keyManager.publicKeyToString(keyManager.getNodePublicKey());
         String content = "HELLO_RESPONSE:" + keyManager.getNodeId() + ":" + publicKeyString2 + ":" + response;
         
-        System.out.println("[密钥交换] 响应来自 " + senderNodeId + " 的Hello消息");
+        log.debug(() -> "[密钥交换] 响应来自 " + senderNodeId + " 的Hello消息");
         
         return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
     }
@@ -197,7 +347,7 @@ public class KeyExchangeProtocol {
         
         ExchangeSession session = activeSessions.get(senderNodeId);
         if (session == null || session.getState() != ExchangeState.HELLO_SENT) {
-            System.err.println("[密钥交换] 无效的Hello响应");
+            log.warn("[密钥交换] 无效的Hello响应");
             return null;
         }
         
@@ -207,13 +357,21 @@ public class KeyExchangeProtocol {
         
         // 验证公钥
         PublicKey remotePublicKey = keyManager.createPublicKey(publicKeyString);
-        String expectedNodeId = keyManager.getPublicKeyFingerprint(remotePublicKey);
+        String expectedNodeId = KeyManager.deriveNodeId(remotePublicKey).toString(16);
         
         if (!expectedNodeId.equals(remoteNodeId)) {
-            System.err.println("[密钥交换] Hello响应中的节点ID验证失败");
+            log.error("[密钥交换] Hello响应中的节点ID验证失败");
             return null;
         }
         
+        if (parts.length > 4 && KeyAgreementMode.X25519.name().equals(parts[4])) {
+            if (parts.length < 9 || session.getEphemeralKeyPair() == null) {
+                log.warn("[密钥交换] 无效的X25519 Hello响应");
+                return null;
+            }
+            return completeX25519(senderNodeId, session, remotePublicKey, response, parts);
+        }
+        
         // 更新会话
         session.setRemotePublicKey(remotePublicKey);
         session.setState(ExchangeState.KEY_SENT);
@@ -233,7 +391,7 @@ public class KeyExchangeProtocol {
         // 创建密钥交换消息
         String content = "KEY_EXCHANGE:" + keyManager.getNodeId() + ":" + encryptedKeyString + ":" + response;
         
-        System.out.println("[密钥交换] 发送会话密钥给 " + senderNodeId);
+        log.debug(() -> "[密钥交换] 发送会话密钥给 " + senderNodeId);
         
         return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
     }
@@ -248,7 +406,7 @@ public class KeyExchangeProtocol {
         
         ExchangeSession session = activeSessions.get(senderNodeId);
         if (session == null || session.getState() != ExchangeState.HELLO_RECEIVED) {
-            System.err.println("[密钥交换] 无效的密钥交换数据");
+            log.warn("[密钥交换] 无效的密钥交换数据");
             return null;
         }
         
@@ -274,10 +432,11 @@ public class KeyExchangeProtocol {
         byte[] encryptedOurKey = cryptoService.encryptWithRSA(ourSessionKey.getEncoded(), session.getRemotePublicKey());
         String encryptedOurKeyString = Base64.getEncoder().encodeToString(encryptedOurKey);
         
-        // 创建确认消息
-        String content = "KEY_CONFIRM:" + keyManager.getNodeId() + ":" + encryptedOurKeyString;
+        // 创建确认消息，同时附带会话票据
+        String content = "KEY_CONFIRM:" + keyManager.getNodeId() + ":" + encryptedOurKeyString
+                + ":" + issueTicket(senderNodeId, receivedSessionKey) + ":" + TICKET_LIFETIME;
         
-        System.out.println("[密钥交换] 确认与 " + senderNodeId + " 的密钥交换");
+        log.debug(() -> "[密钥交换] 确认与 " + senderNodeId + " 的密钥交换");
         
         return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
     }
@@ -290,9 +449,13 @@ public class KeyExchangeProtocol {
             throw new IllegalArgumentException("密钥确认消息格式错误");
         }
         
+        if (parts.length >= 4 && KeyAgreementMode.X25519.name().equals(parts[2])) {
+            return handleX25519Confirm(senderNodeId, parts[3]);
+        }
+        
         ExchangeSession session = activeSessions.get(senderNodeId);
         if (session == null || session.getState() != ExchangeState.KEY_SENT) {
-            System.err.println("[密钥交换] 无效的密钥确认");
+            log.warn("[密钥交换] 无效的密钥确认");
             return null;
         }
         
@@ -311,7 +474,12 @@ public class KeyExchangeProtocol {
         // 存储会话密钥（使用我们生成的密钥）
         keyManager.storeSessionKey(senderNodeId, session.getSessionKey());
         
-        System.out.println("[密钥交换] 与 " + senderNodeId + " 的密钥交换完成");
+        // 保存对方签发的会话票据
+        if (parts.length >= 5) {
+            storeTicket(senderNodeId, parts[3], parts[4], deriveResumptionSecret(session.getSessionKey()));
+        }
+        
+        log.info("[密钥交换] 与 " + senderNodeId + " 的密钥交换完成");
         
         // 清理会话
         activeSessions.remove(senderNodeId);
@@ -319,6 +487,490 @@ public class KeyExchangeProtocol {
         return null; // 不需要回复
     }
     
+    /**
+     * 响应方：使用X25519完成密钥协商并对握手记录计算确认码
+     * 响应格式: HELLO_RESPONSE:节点ID:RSA公钥:响应挑战:X25519:临时公钥:静态公钥:绑定签名:确认码
+     */
+    private Message respondWithX25519(String senderNodeId, PublicKey remotePublicKey,
+                                      String challenge, String[] parts) throws Exception {
+        PublicKey remoteEphemeral = cryptoService.decodeX25519PublicKey(decode(parts[5]));
+        PublicKey remoteStatic = verifyAgreementKey(senderNodeId, remotePublicKey, parts[6], parts[7]);
+        if (remoteStatic == null) {
+            log.error("[密钥交换] 静态公钥绑定验证失败: " + senderNodeId);
+            return null;
+        }
+        
+        KeyPair ephemeral = cryptoService.generateX25519KeyPair();
+        String response = encode(cryptoService.generateRandomBytes(16));
+        String localEphemeral = encode(ephemeral.getPublic().getEncoded());
+        String transcript = buildTranscript(senderNodeId, keyManager.getNodeId(),
+                parts[5], localEphemeral, challenge, response);
+        byte[] keyMaterial = deriveKeyMaterial(senderNodeId, ephemeral, remoteEphemeral, remoteStatic, transcript);
+        
+        ExchangeSession session = activeSessions.computeIfAbsent(senderNodeId, ExchangeSession::new);
+        session.setMode(KeyAgreementMode.X25519);
+        session.setRemotePublicKey(remotePublicKey);
+        session.setChallenge(challenge);
+        session.setTranscript(transcript);
+        session.setSessionKey(keyManager.createSecretKey(Arrays.copyOfRange(keyMaterial, 0, SESSION_KEY_LENGTH)));
+        session.setConfirmationKey(Arrays.copyOfRange(keyMaterial, SESSION_KEY_LENGTH, keyMaterial.length));
+        session.setState(ExchangeState.HELLO_RECEIVED);
+        session.updateTimestamp();
+        cryptoService.clearSensitiveData(keyMaterial);
+        
+        keyManager.storePublicKey(senderNodeId, remotePublicKey);
+        
+        byte[] confirmation = confirm(session.getConfirmationKey(), "RESPONDER", transcript);
+        String content = "HELLO_RESPONSE:" + keyManager.getNodeId()
+                + ":" + keyManager.publicKeyToString(keyManager.getNodePublicKey())
+                + ":" + response
+                + ":" + KeyAgreementMode.X25519.name()
+                + ":" + localEphemeral
+                + ":" + encode(keyManager.getAgreementPublicKey().getEncoded())
+                + ":" + encode(keyManager.getAgreementKeyBinding(cryptoService))
+                + ":" + encode(confirmation);
+        
+        log.debug(() -> "[密钥交换] 以X25519模式响应来自 " + senderNodeId + " 的Hello消息");
+        
+        return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
+    }
+    
+    /**
+     * 发起方：验证响应方的确认码，存储会话密钥，回复自己的确认码
+     */
+    private Message completeX25519(String senderNodeId, ExchangeSession session, PublicKey remotePublicKey,
+                                   String response, String[] parts) throws Exception {
+        PublicKey remoteStatic = verifyAgreementKey(senderNodeId, remotePublicKey, parts[6], parts[7]);
+        if (remoteStatic == null) {
+            log.error("[密钥交换] 静态公钥绑定验证失败: " + senderNodeId);
+            return null;
+        }
+        
+        KeyPair ephemeral = session.getEphemeralKeyPair();
+        String transcript = buildTranscript(keyManager.getNodeId(), senderNodeId,
+                encode(ephemeral.getPublic().getEncoded()), parts[5], session.getChallenge(), response);
+        byte[] keyMaterial = deriveKeyMaterial(senderNodeId, ephemeral,
+                cryptoService.decodeX25519PublicKey(decode(parts[5])), remoteStatic, transcript);
+        byte[] confirmationKey = Arrays.copyOfRange(keyMaterial, SESSION_KEY_LENGTH, keyMaterial.length);
+        try {
+            if (!cryptoService.secureEquals(confirm(confirmationKey, "RESPONDER", transcript), decode(parts[8]))) {
+                log.error("[密钥交换] 响应方确认码验证失败: " + senderNodeId);
+                return null;
+            }
+            
+            SecretKey sessionKey = keyManager.createSecretKey(Arrays.copyOfRange(keyMaterial, 0, SESSION_KEY_LENGTH));
+            keyManager.storePublicKey(senderNodeId, remotePublicKey);
+            keyManager.storeSessionKey(senderNodeId, sessionKey);
+            
+            session.setSessionKey(sessionKey);
+            session.setState(ExchangeState.COMPLETED);
+            activeSessions.remove(senderNodeId);
+            
+            byte[] confirmation = confirm(confirmationKey, "INITIATOR", transcript);
+            String content = "KEY_CONFIRM:" + keyManager.getNodeId() + ":" + KeyAgreementMode.X25519.name() + ":" + encode(confirmation);
+            
+            log.info("[密钥交换] 与 " + senderNodeId + " 的X25519密钥交换完成");
+            
+            return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
+        } finally {
+            cryptoService.clearSensitiveData(keyMaterial);
+            cryptoService.clearSensitiveData(confirmationKey);
+        }
+    }
+    
+    /**
+     * 响应方：验证发起方的确认码后启用会话密钥
+     */
+    private Message handleX25519Confirm(String senderNodeId, String confirmation) throws Exception {
+        ExchangeSession session = activeSessions.get(senderNodeId);
+        if (session == null || session.getMode() != KeyAgreementMode.X25519
+                || session.getState() != ExchangeState.HELLO_RECEIVED) {
+            log.warn("[密钥交换] 无效的X25519密钥确认");
+            return null;
+        }
+        
+        activeSessions.remove(senderNodeId);
+        byte[] confirmationKey = session.getConfirmationKey();
+        try {
+            if (!cryptoService.secureEquals(confirm(confirmationKey, "INITIATOR", session.getTranscript()),
+                    decode(confirmation))) {
+                log.error("[密钥交换] 发起方确认码验证失败: " + senderNodeId);
+                return null;
+            }
+        } finally {
+            cryptoService.clearSensitiveData(confirmationKey);
+        }
+        
+        keyManager.storeSessionKey(senderNodeId, session.getSessionKey());
+        session.setState(ExchangeState.COMPLETED);
+        
+        log.info("[密钥交换] 与 " + senderNodeId + " 的X25519密钥交换完成");
+        
+        String content = "NEW_TICKET:" + keyManager.getNodeId()
+                + ":" + issueTicket(senderNodeId, session.getSessionKey()) + ":" + TICKET_LIFETIME;
+        return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
+    }
+    
+    /**
+     * 发起方：保存完整交换后收到的会话票据
+     */
+    private Message handleNewTicket(String senderNodeId, String[] parts) throws Exception {
+        if (parts.length < 4) {
+            throw new IllegalArgumentException("会话票据消息格式错误");
+        }
+        SecretKey sessionKey = keyManager.getSessionKey(senderNodeId);
+        if (sessionKey == null) {
+            log.warn("[密钥交换] 收到票据但没有会话密钥: " + senderNodeId);
+            return null;
+        }
+        storeTicket(senderNodeId, parts[2], parts[3], deriveResumptionSecret(sessionKey));
+        return null;
+    }
+    
+    /**
+     * 发起会话恢复
+     * 格式: RESUME:节点ID:票据:随机数:绑定码
+     */
+    private Message initiateResumption(String targetNodeId, SessionTicketCache.Ticket ticket) {
+        try {
+            String nonce = encode(cryptoService.generateRandomBytes(16));
+            byte[] binder = resumeBinder(ticket.getResumptionSecret(), keyManager.getNodeId(), targetNodeId, nonce);
+            
+            ExchangeSession session = new ExchangeSession(targetNodeId);
+            session.setChallenge(nonce);
+            session.setResumptionSecret(ticket.getResumptionSecret());
+            session.setState(ExchangeState.RESUME_SENT);
+            activeSessions.put(targetNodeId, session);
+            
+            // 票据只能使用一次
+            keyManager.removeSessionTicket(targetNodeId);
+            
+            log.info("[密钥交换] 使用会话票据恢复与 " + targetNodeId + " 的会话");
+            
+            String content = "RESUME:" + keyManager.getNodeId() + ":" + ticket.getTicket() + ":" + nonce + ":" + encode(binder);
+            return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
+        } catch (Exception e) {
+            log.error("[密钥交换] 发起会话恢复失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 响应方：验证票据并派生新的会话密钥，同时换发新票据
+     * 响应格式: RESUME_OK:节点ID:随机数:确认码:新票据:有效期
+     */
+    private Message handleResume(String senderNodeId, String[] parts) throws Exception {
+        if (parts.length < 5) {
+            throw new IllegalArgumentException("会话恢复消息格式错误");
+        }
+        String ticket = parts[2];
+        String clientNonce = parts[3];
+        
+        byte[] resumptionSecret = openTicket(senderNodeId, ticket);
+        if (resumptionSecret == null) {
+            return rejectResume(senderNodeId, "票据无效或已过期");
+        }
+        try {
+            byte[] expectedBinder = resumeBinder(resumptionSecret, senderNodeId, keyManager.getNodeId(), clientNonce);
+            if (!cryptoService.secureEquals(expectedBinder, decode(parts[4]))) {
+                return rejectResume(senderNodeId, "绑定码验证失败");
+            }
+            String rejection = markTicketUsed(ticket);
+            if (rejection != null) {
+                return rejectResume(senderNodeId, rejection);
+            }
+            
+            String serverNonce = encode(cryptoService.generateRandomBytes(16));
+            String transcript = resumeTranscript(senderNodeId, keyManager.getNodeId(), clientNonce, serverNonce);
+            byte[] keyMaterial = deriveResumedKeyMaterial(resumptionSecret, transcript);
+            byte[] confirmationKey = Arrays.copyOfRange(keyMaterial, SESSION_KEY_LENGTH, keyMaterial.length);
+            SecretKey sessionKey = keyManager.createSecretKey(Arrays.copyOfRange(keyMaterial, 0, SESSION_KEY_LENGTH));
+            cryptoService.clearSensitiveData(keyMaterial);
+            
+            keyManager.storeSessionKey(senderNodeId, sessionKey);
+            activeSessions.remove(senderNodeId);
+            
+            String content = "RESUME_OK:" + keyManager.getNodeId()
+                    + ":" + serverNonce
+                    + ":" + encode(confirm(confirmationKey, "RESUME_OK", transcript))
+                    + ":" + issueTicket(senderNodeId, sessionKey)
+                    + ":" + TICKET_LIFETIME;
+            cryptoService.clearSensitiveData(confirmationKey);
+            
+            log.info("[密钥交换] 通过会话票据恢复与 " + senderNodeId + " 的会话");
+            
+            return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), content);
+        } finally {
+            cryptoService.clearSensitiveData(resumptionSecret);
+        }
+    }
+    
+    /**
+     * 发起方：验证确认码，启用新会话密钥并保存换发的票据
+     */
+    private Message handleResumeOk(String senderNodeId, String[] parts) throws Exception {
+        if (parts.length < 6) {
+            throw new IllegalArgumentException("会话恢复响应格式错误");
+        }
+        ExchangeSession session = activeSessions.get(senderNodeId);
+        if (session == null || session.getState() != ExchangeState.RESUME_SENT) {
+            log.warn("[密钥交换] 无效的会话恢复响应");
+            return null;
+        }
+        activeSessions.remove(senderNodeId);
+        
+        String transcript = resumeTranscript(keyManager.getNodeId(), senderNodeId, session.getChallenge(), parts[2]);
+        byte[] keyMaterial = deriveResumedKeyMaterial(session.getResumptionSecret(), transcript);
+        byte[] confirmationKey = Arrays.copyOfRange(keyMaterial, SESSION_KEY_LENGTH, keyMaterial.length);
+        try {
+            if (!cryptoService.secureEquals(confirm(confirmationKey, "RESUME_OK", transcript), decode(parts[3]))) {
+                log.error("[密钥交换] 会话恢复确认码验证失败: " + senderNodeId);
+                return null;
+            }
+            SecretKey sessionKey = keyManager.createSecretKey(Arrays.copyOfRange(keyMaterial, 0, SESSION_KEY_LENGTH));
+            keyManager.storeSessionKey(senderNodeId, sessionKey);
+            storeTicket(senderNodeId, parts[4], parts[5], deriveResumptionSecret(sessionKey));
+            
+            log.info("[密钥交换] 与 " + senderNodeId + " 的会话已恢复");
+            return null;
+        } finally {
+            cryptoService.clearSensitiveData(keyMaterial);
+            cryptoService.clearSensitiveData(confirmationKey);
+            cryptoService.clearSensitiveData(session.getResumptionSecret());
+        }
+    }
+    
+    /**
+     * 发起方：票据被拒绝，回退到完整密钥交换
+     */
+    private Message handleResumeReject(String senderNodeId) {
+        ExchangeSession session = activeSessions.get(senderNodeId);
+        if (session == null || session.getState() != ExchangeState.RESUME_SENT) {
+            log.warn("[密钥交换] 无效的会话恢复拒绝消息");
+            return null;
+        }
+        log.info("[密钥交换] 会话票据被 " + senderNodeId + " 拒绝，改为完整密钥交换");
+        return initiateFullKeyExchange(senderNodeId);
+    }
+    
+    private Message rejectResume(String senderNodeId, String reason) {
+        log.warn("[密钥交换] 拒绝来自 " + senderNodeId + " 的会话恢复: " + reason);
+        return new Message(Message.Type.KEY_EXCHANGE, keyManager.getNodeId(), "RESUME_REJECT:" + keyManager.getNodeId());
+    }
+    
+    /**
+     * 签发票据：用本地票据密钥加密 [过期时间(8)][持有方ID长度(2)][持有方ID][恢复密钥(32)]
+     * 输出为 Base64(IV || 密文 || 认证标签)，本节点ID作为附加认证数据
+     */
+    private String issueTicket(String holderNodeId, SecretKey sessionKey) throws Exception {
+        byte[] holder = holderNodeId.getBytes(StandardCharsets.UTF_8);
+        byte[] resumptionSecret = deriveResumptionSecret(sessionKey);
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + 2 + holder.length + resumptionSecret.length);
+        plaintext.putLong(System.currentTimeMillis() + TICKET_LIFETIME);
+        plaintext.putShort((short) holder.length);
+        plaintext.put(holder);
+        plaintext.put(resumptionSecret);
+        cryptoService.clearSensitiveData(resumptionSecret);
+        
+        byte[] iv = cryptoService.generateRandomBytes(CryptoService.GCM_IV_LENGTH);
+        byte[] sealed = cryptoService.encryptWithAESGCM(plaintext.array(), ticketKey, iv, ticketAssociatedData());
+        cryptoService.clearSensitiveData(plaintext.array());
+        
+        byte[] ticket = new byte[iv.length + sealed.length];
+        System.arraycopy(iv, 0, ticket, 0, iv.length);
+        System.arraycopy(sealed, 0, ticket, iv.length, sealed.length);
+        return encode(ticket);
+    }
+    
+    /**
+     * 解开本节点签发的票据，票据无效、过期或持有方不符时返回null
+     */
+    private byte[] openTicket(String holderNodeId, String ticketString) {
+        try {
+            byte[] ticket = decode(ticketString);
+            int headerLength = CryptoService.GCM_IV_LENGTH;
+            if (ticket.length < headerLength + CryptoService.GCM_TAG_LENGTH) {
+                return null;
+            }
+            byte[] iv = Arrays.copyOfRange(ticket, 0, headerLength);
+            byte[] ciphertext = Arrays.copyOfRange(ticket, headerLength, ticket.length - CryptoService.GCM_TAG_LENGTH);
+            byte[] tag = Arrays.copyOfRange(ticket, ticket.length - CryptoService.GCM_TAG_LENGTH, ticket.length);
+            ByteBuffer plaintext = ByteBuffer.wrap(
+                    cryptoService.decryptWithAESGCM(ciphertext, tag, ticketKey, iv, ticketAssociatedData()));
+            
+            long expiresAt = plaintext.getLong();
+            byte[] holder = new byte[plaintext.getShort()];
+            plaintext.get(holder);
+            byte[] resumptionSecret = new byte[RESUMPTION_SECRET_LENGTH];
+            plaintext.get(resumptionSecret);
+            
+            if (System.currentTimeMillis() >= expiresAt
+                    || !holderNodeId.equals(new String(holder, StandardCharsets.UTF_8))) {
+                cryptoService.clearSensitiveData(resumptionSecret);
+                return null;
+            }
+            return resumptionSecret;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * 记录已使用的票据，成功时返回null；票据已使用过或记录已满时返回拒绝原因
+     */
+    private String markTicketUsed(String ticket) throws Exception {
+        String digest = encode(cryptoService.hash(ticket.getBytes(StandardCharsets.UTF_8)));
+        long now = System.currentTimeMillis();
+        synchronized (usedTickets) {
+            purgeUsedTickets(now);
+            if (usedTickets.containsKey(digest)) {
+                return "票据已被使用";
+            }
+            if (usedTickets.size() >= MAX_USED_TICKETS) {
+                // 淘汰未过期的记录会让对应票据可以再次使用，宁可拒绝恢复
+                log.warn("[密钥交换] 已使用票据记录已满 (" + MAX_USED_TICKETS + ")，拒绝会话恢复");
+                return "票据记录已满";
+            }
+            // 票据自签发起最多有效 TICKET_LIFETIME，记录保留到使用时刻之后同样长的时间即可覆盖其剩余有效期
+            usedTickets.put(digest, now + TICKET_LIFETIME);
+            return null;
+        }
+    }
+    
+    /**
+     * 移除已过期的票据记录，调用方持有 usedTickets 的锁
+     */
+    private void purgeUsedTickets(long now) {
+        Iterator<Long> it = usedTickets.values().iterator();
+        while (it.hasNext() && it.next() <= now) {
+            it.remove();
+        }
+    }
+    
+    private void storeTicket(String issuerNodeId, String ticket, String lifetime, byte[] resumptionSecret) {
+        long expiresAt = System.currentTimeMillis() + Math.min(Long.parseLong(lifetime), TICKET_LIFETIME);
+        keyManager.storeSessionTicket(issuerNodeId, new SessionTicketCache.Ticket(ticket, resumptionSecret, expiresAt));
+    }
+    
+    private byte[] ticketAssociatedData() {
+        return ("ticket|" + keyManager.getNodeId()).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 由会话密钥派生恢复密钥，双方各自计算，不在网络上传输
+     */
+    private byte[] deriveResumptionSecret(SecretKey sessionKey) throws Exception {
+        return cryptoService.hkdf(sessionKey.getEncoded(), null, RESUMPTION_INFO, RESUMPTION_SECRET_LENGTH);
+    }
+    
+    private byte[] deriveResumedKeyMaterial(byte[] resumptionSecret, String transcript) throws Exception {
+        byte[] salt = cryptoService.hash(transcript.getBytes(StandardCharsets.UTF_8));
+        return cryptoService.hkdf(resumptionSecret, salt, RESUMED_SESSION_INFO, SESSION_KEY_LENGTH + CONFIRMATION_KEY_LENGTH);
+    }
+    
+    private byte[] resumeBinder(byte[] resumptionSecret, String clientId, String serverId, String nonce) throws Exception {
+        return cryptoService.createHMAC(("RESUME|" + clientId + "|" + serverId + "|" + nonce).getBytes(StandardCharsets.UTF_8),
+                new SecretKeySpec(resumptionSecret, "HmacSHA256"));
+    }
+    
+    private static String resumeTranscript(String clientId, String serverId, String clientNonce, String serverNonce) {
+        return "group7-chat-resume-v1|" + clientId + "|" + serverId + "|" + clientNonce + "|" + serverNonce;
+    }
+    
+    /**
+     * 验证RSA身份对静态X25519公钥的绑定签名，已验证过的相同公钥直接使用缓存
+     */
+    private PublicKey verifyAgreementKey(String nodeId, PublicKey rsaPublicKey,
+                                         String agreementKeyString, String bindingString) throws Exception {
+        byte[] agreementKeyBytes = decode(agreementKeyString);
+        PublicKey cached = keyManager.getAgreementKey(nodeId);
+        if (cached != null && Arrays.equals(cached.getEncoded(), agreementKeyBytes)) {
+            return cached;
+        }
+        if (!cryptoService.verifySignature(agreementKeyBytes, decode(bindingString), rsaPublicKey)) {
+            return null;
+        }
+        PublicKey agreementKey = cryptoService.decodeX25519PublicKey(agreementKeyBytes);
+        keyManager.storeAgreementKey(nodeId, agreementKey);
+        return agreementKey;
+    }
+    
+    /**
+     * 派生会话密钥和确认密钥：HKDF(临时共享秘密 || 静态共享秘密)，握手记录的摘要作为盐
+     * 临时部分提供前向安全，静态部分只有持有对应私钥的双方才能算出，从而完成认证
+     */
+    private byte[] deriveKeyMaterial(String remoteNodeId, KeyPair localEphemeral, PublicKey remoteEphemeral,
+                                     PublicKey remoteStatic, String transcript) throws Exception {
+        byte[] ephemeralSecret = cryptoService.x25519Agree(localEphemeral.getPrivate(), remoteEphemeral);
+        byte[] staticSecret = staticSecret(remoteNodeId, remoteStatic);
+        byte[] inputKeyMaterial = new byte[ephemeralSecret.length + staticSecret.length];
+        System.arraycopy(ephemeralSecret, 0, inputKeyMaterial, 0, ephemeralSecret.length);
+        System.arraycopy(staticSecret, 0, inputKeyMaterial, ephemeralSecret.length, staticSecret.length);
+        try {
+            byte[] salt = cryptoService.hash(transcript.getBytes(StandardCharsets.UTF_8));
+            return cryptoService.hkdf(inputKeyMaterial, salt, SESSION_KEY_INFO, SESSION_KEY_LENGTH + CONFIRMATION_KEY_LENGTH);
+        } finally {
+            cryptoService.clearSensitiveData(ephemeralSecret);
+            cryptoService.clearSensitiveData(inputKeyMaterial);
+        }
+    }
+    
+    /**
+     * 获取与对端静态公钥的共享秘密，对端更换静态公钥时缓存键随之变化
+     */
+    private byte[] staticSecret(String remoteNodeId, PublicKey remoteStatic) throws Exception {
+        String cacheKey = remoteNodeId + "|" + encode(remoteStatic.getEncoded());
+        byte[] secret = staticSecrets.get(cacheKey);
+        if (secret == null) {
+            staticSecrets.keySet().removeIf(key -> key.startsWith(remoteNodeId + "|"));
+            secret = cryptoService.x25519Agree(keyManager.getAgreementPrivateKey(), remoteStatic);
+            staticSecrets.put(cacheKey, secret);
+        }
+        return secret;
+    }
+    
+    private byte[] confirm(byte[] confirmationKey, String role, String transcript) throws Exception {
+        return cryptoService.createHMAC((role + "|" + transcript).getBytes(StandardCharsets.UTF_8),
+                new SecretKeySpec(confirmationKey, "HmacSHA256"));
+    }
+    
+    private static String buildTranscript(String initiatorId, String responderId, String initiatorEphemeral,
+                                          String responderEphemeral, String challenge, String response) {
+        return TRANSCRIPT_LABEL + "|" + initiatorId + "|" + responderId + "|" + initiatorEphemeral
+                + "|" + responderEphemeral + "|" + challenge + "|" + response;
+    }
+    
+    /**
+     * 按发起方给出的优先级选择第一个本节点也支持的模式
+     */
+    private KeyAgreementMode negotiateMode(String offered) {
+        for (String name : offered.split(",")) {
+            for (KeyAgreementMode mode : supportedModes) {
+                if (mode.name().equals(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private static String encodeModes(List<KeyAgreementMode> modes) {
+        StringBuilder builder = new StringBuilder();
+        for (KeyAgreementMode mode : modes) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(mode.name());
+        }
+        return builder.toString();
+    }
+    
+    private static String encode(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+    
+    private static byte[] decode(String data) {
+        return Base64.getDecoder().decode(data);
+    }
+    
     /**
      * 检查密钥交换是否完成
      */
@@ -331,10 +983,14 @@ public class KeyExchangeProtocol {
      */
     public void cleanupTimeoutSessions() {
         long currentTime = System.currentTimeMillis();
+        synchronized (usedTickets) {
+            purgeUsedTickets(currentTime);
+        }
+        keyManager.cleanupExpiredTickets();
         activeSessions.entrySet().removeIf(entry -> {
             ExchangeSession session = entry.getValue();
             if (currentTime - session.getTimestamp() > SESSION_TIMEOUT) {
-                System.out.println("[密钥交换] 清理超时会话: " + entry.getKey());
+                log.info("[密钥交换] 清理超时会话: " + entry.getKey());
                 return true;
             }
             return false;
@@ -1,9 +1,11 @@
 package com.group7.chat.security;
 
+import com.group7.chat.logging.Logger;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -11,38 +13,90 @@ import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 密钥管理器 - 负责生成、存储和管理所有加密密钥
+ *
+ * 每个节点的长期密钥保存在 keys/<端口>/ 下，节点ID由长期公钥派生 (见 deriveNodeId)，
+ * 因此重启后节点ID不变，其他节点路由表中的条目和会话缓存继续有效。
  */
 public class KeyManager {
+
+    private static final Logger log = Logger.getLogger(KeyManager.class);
+
     private static final String RSA_ALGORITHM = "RSA";
     private static final String AES_ALGORITHM = "AES";
     private static final int RSA_KEY_SIZE = 2048;
     private static final int AES_KEY_SIZE = 256;
     
+    private static final String XDH_ALGORITHM = "X25519";
+    
     private static final String KEYS_DIR = "keys";
     private static final String PRIVATE_KEY_FILE = "private_key.pem";
     private static final String PUBLIC_KEY_FILE = "public_key.pem";
+    private static final String AGREEMENT_PRIVATE_KEY_FILE = "x25519_private_key.pem";
+    private static final String AGREEMENT_PUBLIC_KEY_FILE = "x25519_public_key.pem";
     
     // 节点的长期密钥对
     private KeyPair nodeKeyPair;
     
+    // 节点的静态X25519密钥对（JDK不支持时为null），以及RSA身份对其公钥的绑定签名
+    private KeyPair agreementKeyPair;
+    private volatile byte[] agreementKeyBinding;
+    
     // 会话密钥缓存 - 存储与其他节点的会话密钥
     private final Map<String, SecretKey> sessionKeys = new ConcurrentHashMap<>();
     
+    // 会话密钥ID - 安全信封通过8字节的密钥ID定位会话密钥和对端节点
+    private final Map<String, Long> sessionKeyIds = new ConcurrentHashMap<>();
+    private final Map<Long, String> keyIdOwners = new ConcurrentHashMap<>();
+    
+    /**
+     * 会话密钥变化的监听器，在存储或移除会话密钥的线程上回调
+     */
+    public interface SessionKeyListener {
+        void onSessionKeyStored(String nodeId, long keyId, Long previousKeyId);
+        
+        default void onSessionKeyRemoved(String nodeId, long keyId) {}
+    }
+    
+    private final List<SessionKeyListener> sessionKeyListeners = new CopyOnWriteArrayList<>();
+    
+    // 会话恢复票据 - 其他节点签发给本节点的票据，重连时用于跳过完整密钥交换
+    private static final int MAX_SESSION_TICKETS = 256;
+    private final SessionTicketCache sessionTickets = new SessionTicketCache(MAX_SESSION_TICKETS);
+    
     // 公钥缓存 - 存储其他节点的公钥
     private final Map<String, PublicKey> publicKeyCache = new ConcurrentHashMap<>();
     
+    // 已验证绑定关系的其他节点静态X25519公钥
+    private final Map<String, PublicKey> agreementKeyCache = new ConcurrentHashMap<>();
+    
+    // 从DHT取得的其他节点公钥记录 - 发送第一条私聊前不必先与对端握手
+    private static final int MAX_KEY_RECORDS = 1024;
+    private static final long KEY_RECORD_TTL = 6 * 60 * 60 * 1000L; // 6小时
+    private final KeyDirectoryCache keyDirectory = new KeyDirectoryCache(MAX_KEY_RECORDS, KEY_RECORD_TTL);
+    
     private final SecureRandom secureRandom;
-    private final String nodeId;
+    private final Path keysDir;
+    private String nodeId;
     
-    public KeyManager(String nodeId) {
-        this.nodeId = nodeId;
+    /**
+     * 加载或生成监听指定端口的节点的密钥
+     */
+    public KeyManager(int port) {
+        this(migrateLegacyKeys(keysDirForPort(port)));
+    }
+    
+    public KeyManager(Path keysDir) {
+        this.keysDir = keysDir;
         this.secureRandom = new SecureRandom();
         initializeNodeKeys();
+        initializeAgreementKeys();
     }
     
     /**
@@ -52,31 +106,52 @@ public class KeyManager {
         try {
             // 尝试加载现有密钥
             if (loadExistingKeys()) {
-                System.out.println("[安全] 成功加载现有密钥对");
+                log.info("[安全] 成功加载现有密钥对");
                 return;
             }
             
             // 生成新的密钥对
-            System.out.println("[安全] 生成新的RSA密钥对...");
+            log.info("[安全] 生成新的RSA密钥对...");
             KeyPairGenerator keyGen = KeyPairGenerator.getInstance(RSA_ALGORITHM);
             keyGen.initialize(RSA_KEY_SIZE, secureRandom);
             nodeKeyPair = keyGen.generateKeyPair();
             
             // 保存密钥到文件
             saveKeysToFile();
-            System.out.println("[安全] RSA密钥对生成并保存完成");
+            log.info("[安全] RSA密钥对生成并保存完成");
             
         } catch (Exception e) {
             throw new RuntimeException("密钥初始化失败", e);
         }
     }
     
+    /**
+     * 旧版本所有节点共用 keys/ 下的一对身份密钥：端口目录中还没有密钥时，把旧密钥移入，
+     * 第一个启动的节点沿用原来的身份，其余节点生成新的身份
+     */
+    private static Path migrateLegacyKeys(Path keysDir) {
+        Path legacyDir = keysDir.getParent();
+        if (legacyDir == null || Files.exists(keysDir.resolve(PRIVATE_KEY_FILE))) return keysDir;
+        Path legacyPrivate = legacyDir.resolve(PRIVATE_KEY_FILE);
+        Path legacyPublic = legacyDir.resolve(PUBLIC_KEY_FILE);
+        if (!Files.exists(legacyPrivate) || !Files.exists(legacyPublic)) return keysDir;
+        try {
+            Files.createDirectories(keysDir);
+            Files.move(legacyPrivate, keysDir.resolve(PRIVATE_KEY_FILE));
+            Files.move(legacyPublic, keysDir.resolve(PUBLIC_KEY_FILE));
+            log.info("[安全] 已将旧的身份密钥迁移到 " + keysDir);
+        } catch (IOException e) {
+            // 另一个节点同时在迁移，或目录不可写：本节点使用自己的密钥
+            log.warn("[安全] 迁移旧的身份密钥失败: " + e.getMessage());
+        }
+        return keysDir;
+    }
+    
     /**
      * 加载现有的密钥对
      */
     private boolean loadExistingKeys() {
         try {
-            Path keysDir = Paths.get(KEYS_DIR);
             Path privateKeyPath = keysDir.resolve(PRIVATE_KEY_FILE);
             Path publicKeyPath = keysDir.resolve(PUBLIC_KEY_FILE);
             
@@ -107,7 +182,7 @@ public class KeyManager {
             return true;
             
         } catch (Exception e) {
-            System.err.println("[安全] 加载现有密钥失败: " + e.getMessage());
+            log.error("[安全] 加载现有密钥失败: " + e.getMessage());
             return false;
         }
     }
@@ -116,7 +191,6 @@ public class KeyManager {
      * 保存密钥对到文件
      */
     private void saveKeysToFile() throws IOException {
-        Path keysDir = Paths.get(KEYS_DIR);
         Files.createDirectories(keysDir);
         
         // 保存私钥
@@ -132,6 +206,129 @@ public class KeyManager {
         Files.writeString(keysDir.resolve(PUBLIC_KEY_FILE), publicKeyPEM);
     }
     
+    /**
+     * 初始化静态X25519密钥对，用于X25519握手中的身份认证
+     */
+    private void initializeAgreementKeys() {
+        if (!CryptoService.isX25519Supported()) {
+            log.info("[安全] 当前JDK不支持X25519，仅使用RSA密钥交换");
+            return;
+        }
+        try {
+            Path privateKeyPath = keysDir.resolve(AGREEMENT_PRIVATE_KEY_FILE);
+            Path publicKeyPath = keysDir.resolve(AGREEMENT_PUBLIC_KEY_FILE);
+            KeyFactory keyFactory = KeyFactory.getInstance(XDH_ALGORITHM);
+            
+            if (Files.exists(privateKeyPath) && Files.exists(publicKeyPath)) {
+                PrivateKey privateKey = keyFactory.generatePrivate(
+                        new PKCS8EncodedKeySpec(readPem(privateKeyPath, "PRIVATE KEY")));
+                PublicKey publicKey = keyFactory.generatePublic(
+                        new X509EncodedKeySpec(readPem(publicKeyPath, "PUBLIC KEY")));
+                agreementKeyPair = new KeyPair(publicKey, privateKey);
+                return;
+            }
+            
+            agreementKeyPair = KeyPairGenerator.getInstance(XDH_ALGORITHM).generateKeyPair();
+            Files.createDirectories(keysDir);
+            writePem(privateKeyPath, "PRIVATE KEY", agreementKeyPair.getPrivate().getEncoded());
+            writePem(publicKeyPath, "PUBLIC KEY", agreementKeyPair.getPublic().getEncoded());
+            log.info("[安全] X25519密钥对生成并保存完成");
+        } catch (Exception e) {
+            log.error("[安全] 初始化X25519密钥失败: " + e.getMessage());
+            agreementKeyPair = null;
+        }
+    }
+    
+    private static byte[] readPem(Path path, String label) throws IOException {
+        String pem = Files.readString(path)
+                .replace("-----BEGIN " + label + "-----", "")
+                .replace("-----END " + label + "-----", "")
+                .replaceAll("\\s", "");
+        return Base64.getDecoder().decode(pem);
+    }
+    
+    private static void writePem(Path path, String label, byte[] encoded) throws IOException {
+        Files.writeString(path, "-----BEGIN " + label + "-----\n" +
+                Base64.getEncoder().encodeToString(encoded) +
+                "\n-----END " + label + "-----");
+    }
+    
+    /**
+     * 是否具备静态X25519密钥（决定能否使用X25519握手）
+     */
+    public boolean hasAgreementKey() {
+        return agreementKeyPair != null;
+    }
+    
+    public PublicKey getAgreementPublicKey() {
+        return agreementKeyPair != null ? agreementKeyPair.getPublic() : null;
+    }
+    
+    public PrivateKey getAgreementPrivateKey() {
+        return agreementKeyPair != null ? agreementKeyPair.getPrivate() : null;
+    }
+    
+    /**
+     * 获取RSA身份对静态X25519公钥的绑定签名，首次调用时计算并缓存，避免每次握手都做RSA签名
+     */
+    public byte[] getAgreementKeyBinding(CryptoService cryptoService) throws Exception {
+        byte[] binding = agreementKeyBinding;
+        if (binding == null && agreementKeyPair != null) {
+            binding = cryptoService.sign(agreementKeyPair.getPublic().getEncoded(), nodeKeyPair.getPrivate());
+            agreementKeyBinding = binding;
+        }
+        return binding;
+    }
+    
+    /**
+     * 存储已验证绑定关系的其他节点静态X25519公钥
+     */
+    public void storeAgreementKey(String nodeId, PublicKey agreementKey) {
+        agreementKeyCache.put(nodeId, agreementKey);
+    }
+    
+    /**
+     * 获取其他节点已验证的静态X25519公钥
+     */
+    public PublicKey getAgreementKey(String nodeId) {
+        return agreementKeyCache.get(nodeId);
+    }
+    
+    /**
+     * 获取其他节点的静态X25519公钥：优先使用握手中验证过的，其次使用DHT公钥记录中的
+     */
+    public PublicKey getPeerAgreementKey(String nodeId) {
+        PublicKey agreementKey = agreementKeyCache.get(nodeId);
+        if (agreementKey != null) return agreementKey;
+        KeyRecord record = keyDirectory.get(nodeId);
+        return record != null ? record.getAgreementKey() : null;
+    }
+    
+    /**
+     * 缓存已验证的公钥记录
+     */
+    public void storeKeyRecord(KeyRecord record) {
+        keyDirectory.put(record);
+    }
+    
+    /**
+     * 获取未过期的公钥记录
+     */
+    public KeyRecord getKeyRecord(String nodeId) {
+        return keyDirectory.get(nodeId);
+    }
+    
+    /**
+     * 清理过期的公钥记录
+     */
+    public int cleanupExpiredKeyRecords() {
+        return keyDirectory.removeExpired();
+    }
+    
+    public int getKeyRecordCount() {
+        return keyDirectory.size();
+    }
+    
     /**
      * 生成AES会话密钥
      */
@@ -150,7 +347,20 @@ public class KeyManager {
      */
     public void storeSessionKey(String nodeId, SecretKey sessionKey) {
         sessionKeys.put(nodeId, sessionKey);
-        System.out.println("[安全] 存储会话密钥: " + nodeId);
+        long keyId = computeKeyId(sessionKey);
+        Long previousId = sessionKeyIds.put(nodeId, keyId);
+        if (previousId != null && previousId != keyId) {
+            keyIdOwners.remove(previousId, nodeId);
+        }
+        keyIdOwners.put(keyId, nodeId);
+        log.info("[安全] 存储会话密钥: " + nodeId);
+        for (SessionKeyListener listener : sessionKeyListeners) {
+            listener.onSessionKeyStored(nodeId, keyId, previousId);
+        }
+    }
+    
+    public void addSessionKeyListener(SessionKeyListener listener) {
+        sessionKeyListeners.add(listener);
     }
     
     /**
@@ -165,17 +375,87 @@ public class KeyManager {
      */
     public void removeSessionKey(String nodeId) {
         SecretKey removed = sessionKeys.remove(nodeId);
+        Long keyId = sessionKeyIds.remove(nodeId);
+        if (keyId != null) {
+            keyIdOwners.remove(keyId, nodeId);
+            for (SessionKeyListener listener : sessionKeyListeners) {
+                listener.onSessionKeyRemoved(nodeId, keyId);
+            }
+        }
         if (removed != null) {
-            System.out.println("[安全] 移除会话密钥: " + nodeId);
+            log.info("[安全] 移除会话密钥: " + nodeId);
         }
     }
     
+    /**
+     * 获取与指定节点的会话密钥ID，没有会话密钥时返回null
+     */
+    public Long getSessionKeyId(String nodeId) {
+        return sessionKeyIds.get(nodeId);
+    }
+    
+    /**
+     * 根据会话密钥ID查找对端节点
+     */
+    public String getNodeIdForKeyId(long keyId) {
+        return keyIdOwners.get(keyId);
+    }
+    
+    /**
+     * 计算会话密钥ID（密钥SHA-256摘要的前8字节）
+     */
+    private long computeKeyId(SecretKey key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(key.getEncoded());
+            long id = 0;
+            for (int i = 0; i < 8; i++) {
+                id = (id << 8) | (hash[i] & 0xFF);
+            }
+            return id;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("计算密钥ID失败", e);
+        }
+    }
+    
+    /**
+     * 存储其他节点签发的会话恢复票据
+     */
+    public void storeSessionTicket(String nodeId, SessionTicketCache.Ticket ticket) {
+        sessionTickets.put(nodeId, ticket);
+    }
+    
+    /**
+     * 获取未过期的会话恢复票据
+     */
+    public SessionTicketCache.Ticket getSessionTicket(String nodeId) {
+        return sessionTickets.get(nodeId);
+    }
+    
+    /**
+     * 移除会话恢复票据（票据被拒绝或已使用）
+     */
+    public void removeSessionTicket(String nodeId) {
+        sessionTickets.remove(nodeId);
+    }
+    
+    /**
+     * 清理过期的会话恢复票据
+     */
+    public int cleanupExpiredTickets() {
+        return sessionTickets.removeExpired();
+    }
+    
+    public int getSessionTicketCount() {
+        return sessionTickets.size();
+    }
+    
     /**
      * 存储其他节点的公钥
      */
     public void storePublicKey(String nodeId, PublicKey publicKey) {
         publicKeyCache.put(nodeId, publicKey);
-        System.out.println("[安全] 存储公钥: " + nodeId);
+        log.info("[安全] 存储公钥: " + nodeId);
     }
     
     /**
@@ -200,18 +480,35 @@ public class KeyManager {
     }
     
     /**
-     * 获取节点ID（基于公钥指纹）
+     * 获取节点ID（长期公钥的SHA-256，十六进制）
      */
     public String getNodeId() {
+        if (nodeId == null) {
+            nodeId = deriveNodeId(nodeKeyPair.getPublic()).toString(16);
+        }
+        return nodeId;
+    }
+    
+    /**
+     * 由公钥派生节点ID：X.509编码公钥的SHA-256，作为256位无符号整数
+     */
+    public static BigInteger deriveNodeId(PublicKey publicKey) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(nodeKeyPair.getPublic().getEncoded());
-            return Base64.getEncoder().encodeToString(hash).substring(0, 16);
+            return new BigInteger(1, digest.digest(publicKey.getEncoded()));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("生成节点ID失败", e);
         }
     }
     
+    /**
+     * 监听指定端口的节点的密钥目录，同一台机器上的多个节点各自拥有独立的身份；
+     * 根目录由系统属性 group7.keys.dir 指定，默认为 keys
+     */
+    public static Path keysDirForPort(int port) {
+        return Paths.get(System.getProperty("group7.keys.dir", KEYS_DIR), String.valueOf(port));
+    }
+    
     /**
      * 获取公钥的指纹
      */
@@ -230,7 +527,9 @@ public class KeyManager {
      */
     public void clearAllSessionKeys() {
         sessionKeys.clear();
-        System.out.println("[安全] 清理所有会话密钥");
+        sessionKeyIds.clear();
+        keyIdOwners.clear();
+        log.info("[安全] 清理所有会话密钥");
     }
     
     /**
@@ -0,0 +1,88 @@
+package com.group7.chat.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * 公钥记录：节点的RSA身份公钥和静态X25519公钥，由身份私钥签名，发布在DHT中供其他节点查询
+ *
+ * 文本格式: k1|节点ID|RSA公钥|X25519公钥|签发时间|签名，公钥和签名为Base64。
+ * 节点ID由RSA公钥派生 (见 KeyManager.deriveNodeId)，记录可以自行验证：
+ * ID与公钥一致且签名有效即可信，不依赖保存或转发记录的节点。
+ */
+public final class KeyRecord {
+
+    private static final String VERSION = "k1";
+    private static final String SIGNING_LABEL = "group7-chat-key-record-v1";
+
+    private final String nodeId;
+    private final PublicKey identityKey;
+    private final PublicKey agreementKey;
+    private final long issuedAt;
+
+    private KeyRecord(String nodeId, PublicKey identityKey, PublicKey agreementKey, long issuedAt) {
+        this.nodeId = nodeId;
+        this.identityKey = identityKey;
+        this.agreementKey = agreementKey;
+        this.issuedAt = issuedAt;
+    }
+
+    /**
+     * 为本节点签发记录，没有静态X25519密钥时返回null
+     */
+    public static String issue(KeyManager keyManager, CryptoService cryptoService) throws Exception {
+        if (!keyManager.hasAgreementKey()) return null;
+        String identity = encode(keyManager.getNodePublicKey().getEncoded());
+        String agreement = encode(keyManager.getAgreementPublicKey().getEncoded());
+        long issuedAt = System.currentTimeMillis();
+        String body = VERSION + "|" + keyManager.getNodeId() + "|" + identity + "|" + agreement + "|" + issuedAt;
+        byte[] signature = cryptoService.sign(signedData(body), keyManager.getNodePrivateKey());
+        return body + "|" + encode(signature);
+    }
+
+    /**
+     * 解析并验证记录，格式错误、ID与公钥不符或签名无效时返回null
+     */
+    public static KeyRecord verify(String encoded, String expectedNodeId, CryptoService cryptoService) {
+        try {
+            String[] parts = encoded.split("\\|");
+            if (parts.length != 6 || !VERSION.equals(parts[0]) || !parts[1].equals(expectedNodeId)) return null;
+            PublicKey identityKey = KeyFactory.getInstance("RSA")
+                    .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(parts[2])));
+            if (!KeyManager.deriveNodeId(identityKey).toString(16).equals(expectedNodeId)) return null;
+            String body = encoded.substring(0, encoded.lastIndexOf('|'));
+            if (!cryptoService.verifySignature(signedData(body), Base64.getDecoder().decode(parts[5]), identityKey)) {
+                return null;
+            }
+            PublicKey agreementKey = cryptoService.decodeX25519PublicKey(Base64.getDecoder().decode(parts[3]));
+            return new KeyRecord(parts[1], identityKey, agreementKey, Long.parseLong(parts[4]));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 记录声明的节点ID，不是公钥记录时返回null；不做验证
+     */
+    public static String claimedNodeId(String encoded) {
+        if (!encoded.startsWith(VERSION + "|")) return null;
+        int end = encoded.indexOf('|', VERSION.length() + 1);
+        return end < 0 ? null : encoded.substring(VERSION.length() + 1, end);
+    }
+
+    private static byte[] signedData(String body) {
+        return (SIGNING_LABEL + "|" + body).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    public String getNodeId() { return nodeId; }
+    public PublicKey getIdentityKey() { return identityKey; }
+    public PublicKey getAgreementKey() { return agreementKey; }
+    public long getIssuedAt() { return issuedAt; }
+}
@@ -0,0 +1,62 @@
+package com.group7.chat.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * 请求证明：请求方用身份私钥对请求签名，证明自己持有请求中声明的节点ID
+ *
+ * 文本格式: r1|RSA公钥|签发时间|签名，公钥和签名为Base64。节点ID由RSA公钥派生 (见 KeyManager.deriveNodeId)，
+ * 签名覆盖用途、发送方ID、作用范围 (如被请求的节点ID)、签发时间和请求内容，
+ * 签发时间与本地时间相差超过 MAX_SKEW_MS 的证明无效。
+ */
+public final class RequestProof {
+
+    static final long MAX_SKEW_MS = 5 * 60 * 1000L;
+
+    private static final String VERSION = "r1";
+    private static final String SIGNING_LABEL = "group7-chat-request-v1";
+
+    private RequestProof() {
+    }
+
+    /**
+     * 以本节点身份为请求签发证明
+     */
+    public static String issue(KeyManager keyManager, CryptoService cryptoService,
+                               String purpose, String scope, String body) throws Exception {
+        String identity = Base64.getEncoder().encodeToString(keyManager.getNodePublicKey().getEncoded());
+        long issuedAt = System.currentTimeMillis();
+        byte[] signature = cryptoService.sign(
+                signedData(purpose, keyManager.getNodeId(), scope, issuedAt, body), keyManager.getNodePrivateKey());
+        return VERSION + "|" + identity + "|" + issuedAt + "|" + Base64.getEncoder().encodeToString(signature);
+    }
+
+    /**
+     * 验证证明：公钥派生的ID须等于 senderId，签发时间在允许范围内，签名覆盖相同的用途、范围和内容
+     */
+    public static boolean verify(String proof, String purpose, String senderId, String scope, String body,
+                                 CryptoService cryptoService) {
+        try {
+            String[] parts = proof.split("\\|");
+            if (parts.length != 4 || !VERSION.equals(parts[0])) return false;
+            long issuedAt = Long.parseLong(parts[2]);
+            if (Math.abs(System.currentTimeMillis() - issuedAt) > MAX_SKEW_MS) return false;
+            PublicKey identityKey = KeyFactory.getInstance("RSA")
+                    .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(parts[1])));
+            if (!KeyManager.deriveNodeId(identityKey).toString(16).equals(senderId)) return false;
+            return cryptoService.verifySignature(signedData(purpose, senderId, scope, issuedAt, body),
+                    Base64.getDecoder().decode(parts[3]), identityKey);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static byte[] signedData(String purpose, String senderId, String scope, long issuedAt, String body) {
+        return (SIGNING_LABEL + "|" + purpose + "|" + senderId + "|" + scope + "|" + issuedAt + "|" + body)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
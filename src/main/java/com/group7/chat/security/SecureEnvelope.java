@@ -0,0 +1,103 @@
+package com.group7.chat.security;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * 二进制安全信封 - 作为 PeerConnection.FRAME_SECURE 帧的负载直接在线路上传输
+ *
+ * 格式: [版本(1)][密钥ID(8)][序列号(8)][IV(12)][密文长度(4)][密文][认证标签(16)]
+ * 头部的 版本/密钥ID/序列号 作为AES-GCM的附加认证数据(AAD)，
+ * 因此篡改头部同样会导致解密失败。
+ */
+public class SecureEnvelope {
+
+    public static final byte VERSION = 1;
+
+    static final int HEADER_LENGTH = 1 + 8 + 8;
+
+    private final long keyId;
+    private final long sequence;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+    private final byte[] tag;
+
+    public SecureEnvelope(long keyId, long sequence, byte[] iv, byte[] ciphertext, byte[] tag) {
+        this.keyId = keyId;
+        this.sequence = sequence;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+        this.tag = tag;
+    }
+
+    public long getKeyId() { return keyId; }
+    public long getSequence() { return sequence; }
+    public byte[] getIv() { return iv; }
+    public byte[] getCiphertext() { return ciphertext; }
+    public byte[] getTag() { return tag; }
+
+    /**
+     * 构造附加认证数据 (与编码后的头部相同)
+     */
+    static byte[] associatedData(long keyId, long sequence) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        buffer.put(VERSION);
+        buffer.putLong(keyId);
+        buffer.putLong(sequence);
+        return buffer.array();
+    }
+
+    /**
+     * 编码后的字节长度
+     */
+    public int encodedLength() {
+        return HEADER_LENGTH + iv.length + 4 + ciphertext.length + tag.length;
+    }
+
+    /**
+     * 编码为线路格式
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        buffer.put(VERSION);
+        buffer.putLong(keyId);
+        buffer.putLong(sequence);
+        buffer.put(iv);
+        buffer.putInt(ciphertext.length);
+        buffer.put(ciphertext);
+        buffer.put(tag);
+        return buffer.array();
+    }
+
+    /**
+     * 从线路格式解码
+     */
+    public static SecureEnvelope fromBytes(byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("不支持的安全信封版本: " + version);
+            }
+            long keyId = buffer.getLong();
+            long sequence = buffer.getLong();
+
+            byte[] iv = new byte[CryptoService.GCM_IV_LENGTH];
+            buffer.get(iv);
+
+            int ciphertextLength = buffer.getInt();
+            if (ciphertextLength < 0 || ciphertextLength != buffer.remaining() - CryptoService.GCM_TAG_LENGTH) {
+                throw new IllegalArgumentException("无效的密文长度: " + ciphertextLength);
+            }
+            byte[] ciphertext = new byte[ciphertextLength];
+            buffer.get(ciphertext);
+
+            byte[] tag = new byte[CryptoService.GCM_TAG_LENGTH];
+            buffer.get(tag);
+
+            return new SecureEnvelope(keyId, sequence, iv, ciphertext, tag);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("安全信封数据不完整", e);
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package com.group7.chat.security;
 
+import com.group7.chat.PeerStream;
+import com.group7.chat.logging.Logger;
 import javax.crypto.SecretKey;
 import java.io.*;
-import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -11,18 +12,26 @@ import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * 安全文件传输服务 - 提供加密的文件传输功能
+ *
+ * 在与目标节点的现有连接上打开一条复用流 (协议名 "secure-file")，文件按块用会话密钥加密后写入流中。
  */
 public class SecureFileTransferService {
+
+    private static final Logger log = Logger.getLogger(SecureFileTransferService.class);
+
+    /** 安全文件流的协议名 (见 PeerStream.getProtocol) */
+    public static final String PROTOCOL = "secure-file";
     
     private final KeyManager keyManager;
     private final CryptoService cryptoService;
-    private final int basePort;
-    private ServerSocket serverSocket;
     private ExecutorService executorService;
-    private boolean running = false;
+    private volatile boolean running = false;
+    private volatile Function<String, PeerStream> streamOpener;
     
     // 文件传输会话管理
     private final ConcurrentHashMap<String, FileTransferSession> activeSessions = new ConcurrentHashMap<>();
@@ -107,26 +116,26 @@ public class SecureFileTransferService {
         public long getDuration() { return duration; }
     }
     
-    public SecureFileTransferService(KeyManager keyManager, CryptoService cryptoService, int basePort) {
+    public SecureFileTransferService(KeyManager keyManager, CryptoService cryptoService) {
         this.keyManager = keyManager;
         this.cryptoService = cryptoService;
-        this.basePort = basePort + 2000; // 使用不同的端口范围
         this.executorService = Executors.newCachedThreadPool();
     }
     
+    /**
+     * 设置按节点ID打开安全文件流的方法，没有直接连接时返回null
+     */
+    public void setStreamOpener(Function<String, PeerStream> streamOpener) {
+        this.streamOpener = streamOpener;
+    }
+    
     /**
      * 启动安全文件传输服务
      */
-    public void start() throws IOException {
+    public void start() {
         if (running) return;
-        
-        serverSocket = new ServerSocket(basePort);
         running = true;
-        
-        // 启动服务器监听线程
-        executorService.submit(this::acceptConnections);
-        
-        System.out.println("[安全文件传输] 服务启动，端口: " + basePort);
+        log.info("[安全文件传输] 服务启动，通过对等连接上的复用流收发文件");
     }
     
     /**
@@ -134,34 +143,24 @@ public class SecureFileTransferService {
      */
     public void stop() {
         running = false;
-        
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            System.err.println("[安全文件传输] 关闭服务器套接字失败: " + e.getMessage());
-        }
-        
         executorService.shutdown();
         activeSessions.clear();
         
-        System.out.println("[安全文件传输] 服务已停止");
+        log.info("[安全文件传输] 服务已停止");
     }
     
     /**
-     * 接受连接
+     * 接受对端打开的安全文件流，交给传输线程处理
      */
-    private void acceptConnections() {
-        while (running) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(() -> handleFileTransfer(clientSocket));
-            } catch (IOException e) {
-                if (running) {
-                    System.err.println("[安全文件传输] 接受连接失败: " + e.getMessage());
-                }
-            }
+    public void acceptStream(PeerStream stream) {
+        if (!running) {
+            stream.close();
+            return;
+        }
+        try {
+            executorService.submit(() -> handleFileTransfer(stream));
+        } catch (RejectedExecutionException e) {
+            stream.close();
         }
     }
     
@@ -197,23 +196,22 @@ public class SecureFileTransferService {
                 sessionId, targetNodeId, fileName, fileSize, fileHash, sessionKey);
             activeSessions.put(sessionId, session);
             
-            // 连接到目标节点
-            String targetAddress = getNodeAddress(targetNodeId);
-            if (targetAddress == null) {
-                return new TransferResult(false, "无法获取目标节点地址", 0, 0);
+            // 在与目标节点的连接上打开流
+            Function<String, PeerStream> opener = streamOpener;
+            PeerStream stream = opener != null ? opener.apply(targetNodeId) : null;
+            if (stream == null) {
+                activeSessions.remove(sessionId);
+                return new TransferResult(false, "与目标节点没有直接连接", 0, 0);
             }
             
-            String[] addressParts = targetAddress.split(":");
-            String host = addressParts[0];
-            int port = Integer.parseInt(addressParts[1]) + 2000; // 安全文件传输端口
-            
-            try (Socket socket = new Socket(host, port);
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream in = new DataInputStream(socket.getInputStream());
+            try (stream;
                  FileInputStream fileIn = new FileInputStream(file.toFile())) {
+                DataOutputStream out = new DataOutputStream(stream.getOutputStream());
+                DataInputStream in = new DataInputStream(stream.getInputStream());
                 
                 // 发送传输头信息
                 sendTransferHeader(out, sessionId, fileName, fileSize, fileHash, savePath);
+                out.flush();
                 
                 // 等待确认
                 String response = in.readUTF();
@@ -223,6 +221,7 @@ public class SecureFileTransferService {
                 
                 // 开始传输加密文件数据
                 long totalSent = sendEncryptedFileData(out, fileIn, session);
+                out.flush();
                 
                 // 等待传输完成确认
                 String finalResponse = in.readUTF();
@@ -232,7 +231,7 @@ public class SecureFileTransferService {
                 activeSessions.remove(sessionId);
                 
                 if (success) {
-                    System.out.println("[安全文件传输] 文件发送成功: " + fileName + " (" + totalSent + " bytes)");
+                    log.info("[安全文件传输] 文件发送成功: " + fileName + " (" + totalSent + " bytes)");
                     return new TransferResult(true, "文件发送成功", totalSent, duration);
                 } else {
                     return new TransferResult(false, "文件传输验证失败: " + finalResponse, totalSent, duration);
@@ -242,7 +241,7 @@ public class SecureFileTransferService {
             
         } catch (Exception e) {
             long duration = System.currentTimeMillis() - startTime;
-            System.err.println("[安全文件传输] 发送文件失败: " + e.getMessage());
+            log.error("[安全文件传输] 发送文件失败: " + e.getMessage());
             return new TransferResult(false, "发送失败: " + e.getMessage(), 0, duration);
         }
     }
@@ -250,9 +249,10 @@ public class SecureFileTransferService {
     /**
      * 处理文件传输连接
      */
-    private void handleFileTransfer(Socket clientSocket) {
-        try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
+    private void handleFileTransfer(PeerStream stream) {
+        try (stream) {
+            DataInputStream in = new DataInputStream(stream.getInputStream());
+            DataOutputStream out = new DataOutputStream(stream.getOutputStream());
             
             // 接收传输头信息
             String headerData = in.readUTF();
@@ -263,6 +263,12 @@ public class SecureFileTransferService {
                 return;
             }
             
+            // 头中的发送方必须是流所在连接的对端，防止冒用其他节点的会话密钥
+            if (!header.senderId.equals(stream.getRemoteNodeId())) {
+                out.writeUTF("ERROR:Sender mismatch");
+                return;
+            }
+            
             // 验证会话密钥
             SecretKey sessionKey = keyManager.getSessionKey(header.senderId);
             if (sessionKey == null) {
@@ -278,6 +284,7 @@ public class SecureFileTransferService {
             
             // 确认准备接收
             out.writeUTF("READY");
+            out.flush();
             
             // 接收加密文件数据
             TransferResult result = receiveEncryptedFileData(in, header, session);
@@ -288,19 +295,13 @@ public class SecureFileTransferService {
             activeSessions.remove(header.sessionId);
             
             if (result.isSuccess()) {
-                System.out.println("[安全文件传输] 文件接收成功: " + header.fileName);
+                log.info("[安全文件传输] 文件接收成功: " + header.fileName);
             } else {
-                System.err.println("[安全文件传输] 文件接收失败: " + result.getMessage());
+                log.error("[安全文件传输] 文件接收失败: " + result.getMessage());
             }
             
         } catch (Exception e) {
-            System.err.println("[安全文件传输] 处理文件传输失败: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // 忽略关闭异常
-            }
+            log.error("[安全文件传输] 处理文件传输失败: " + e.getMessage());
         }
     }
     
@@ -362,7 +363,7 @@ public class SecureFileTransferService {
                 parts[5]  // savePath
             );
         } catch (Exception e) {
-            System.err.println("[安全文件传输] 解析传输头失败: " + e.getMessage());
+            log.error("[安全文件传输] 解析传输头失败: " + e.getMessage());
             return null;
         }
     }
@@ -400,8 +401,10 @@ public class SecureFileTransferService {
             // 输出进度
             if (totalSent % (CHUNK_SIZE * 10) == 0 || totalSent == session.getFileSize()) {
                 double progress = session.getProgress() * 100;
-                System.out.printf("[安全文件传输] 发送进度: %.1f%% (%d/%d bytes)%n", 
-                    progress, totalSent, session.getFileSize());
+                if (log.isDebugEnabled()) {
+                    log.debug(String.format("[安全文件传输] 发送进度: %.1f%% (%d/%d bytes)",
+                        progress, totalSent, session.getFileSize()));
+                }
             }
         }
         
@@ -449,8 +452,10 @@ public class SecureFileTransferService {
                     // 输出进度
                     if (totalReceived % (CHUNK_SIZE * 10) == 0 || totalReceived == header.fileSize) {
                         double progress = session.getProgress() * 100;
-                        System.out.printf("[安全文件传输] 接收进度: %.1f%% (%d/%d bytes)%n", 
-                            progress, totalReceived, header.fileSize);
+                        if (log.isDebugEnabled()) {
+                            log.debug(String.format("[安全文件传输] 接收进度: %.1f%% (%d/%d bytes)",
+                                progress, totalReceived, header.fileSize));
+                        }
                     }
                 }
                 
@@ -502,15 +507,6 @@ public class SecureFileTransferService {
         }
     }
     
-    /**
-     * 获取节点地址（这里需要与现有系统集成）
-     */
-    private String getNodeAddress(String nodeId) {
-        // 这里需要与现有的节点地址解析系统集成
-        // 暂时返回localhost地址用于测试
-        return "localhost:8080"; // 需要实际实现
-    }
-    
     /**
      * 获取活跃传输会话
      */
@@ -531,7 +527,7 @@ public class SecureFileTransferService {
     public boolean cancelTransfer(String sessionId) {
         FileTransferSession session = activeSessions.remove(sessionId);
         if (session != null) {
-            System.out.println("[安全文件传输] 取消传输会话: " + sessionId);
+            log.info("[安全文件传输] 取消传输会话: " + sessionId);
             return true;
         }
         return false;
@@ -1,28 +1,289 @@
 package com.group7.chat.security;
 
+import com.group7.chat.logging.Logger;
 import com.group7.chat.Message;
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 安全消息处理器 - 负责消息的加密和解密
  */
 public class SecureMessageHandler {
+
+    private static final Logger log = Logger.getLogger(SecureMessageHandler.class);
     
     private final KeyManager keyManager;
     private final CryptoService cryptoService;
     private final AuthenticationService authenticationService;
+    private final GroupKeyManager groupKeyManager;
+    
+    private static final byte[] PRIVATE_MESSAGE_INFO = "group7-chat private message".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEALED_SENDER_KEY_INFO = "group7-chat sealed sender key".getBytes(StandardCharsets.UTF_8);
+    
+    // 安全信封序列号：发送方向按对端节点递增，接收方向按密钥ID维护一个滑动重放窗口；
+    // 会话密钥更换或移除时清除旧密钥的状态，新密钥的序列号从1开始
+    private final Map<String, AtomicLong> sendSequences = new ConcurrentHashMap<>();
+    private final Map<Long, ReplayWindow> replayWindows = new ConcurrentHashMap<>();
     
     public SecureMessageHandler(KeyManager keyManager, CryptoService cryptoService, AuthenticationService authenticationService) {
+        this(keyManager, cryptoService, authenticationService, new GroupKeyManager(keyManager.getNodeId(), cryptoService));
+    }
+    
+    public SecureMessageHandler(KeyManager keyManager, CryptoService cryptoService, AuthenticationService authenticationService,
+                                GroupKeyManager groupKeyManager) {
         this.keyManager = keyManager;
         this.cryptoService = cryptoService;
         this.authenticationService = authenticationService;
+        this.groupKeyManager = groupKeyManager;
+        keyManager.addSessionKeyListener(new KeyManager.SessionKeyListener() {
+            @Override
+            public void onSessionKeyStored(String nodeId, long keyId, Long previousKeyId) {
+                if (previousKeyId == null || previousKeyId != keyId) {
+                    sendSequences.remove(nodeId);
+                    if (previousKeyId != null) replayWindows.remove(previousKeyId);
+                }
+            }
+
+            @Override
+            public void onSessionKeyRemoved(String nodeId, long keyId) {
+                sendSequences.remove(nodeId);
+                replayWindows.remove(keyId);
+            }
+        });
+    }
+    
+    /**
+     * 将消息封装为二进制安全信封（逐跳加密，使用与对端节点的会话密钥）
+     */
+    public SecureEnvelope sealEnvelope(Message message, String targetNodeId) throws Exception {
+        SecretKey sessionKey = keyManager.getSessionKey(targetNodeId);
+        Long keyId = keyManager.getSessionKeyId(targetNodeId);
+        if (sessionKey == null || keyId == null) {
+            throw new IllegalStateException("未找到与节点 " + targetNodeId + " 的会话密钥");
+        }
+        
+        long sequence = sendSequences.computeIfAbsent(targetNodeId, id -> new AtomicLong()).incrementAndGet();
+        byte[] iv = cryptoService.generateRandomBytes(CryptoService.GCM_IV_LENGTH);
+        byte[] aad = SecureEnvelope.associatedData(keyId, sequence);
+        byte[] sealed = cryptoService.encryptWithAESGCM(message.toBytes(), sessionKey, iv, aad);
+        
+        // GCM输出为 密文||标签，拆分后分别放入信封
+        int ciphertextLength = sealed.length - CryptoService.GCM_TAG_LENGTH;
+        byte[] ciphertext = new byte[ciphertextLength];
+        byte[] tag = new byte[CryptoService.GCM_TAG_LENGTH];
+        System.arraycopy(sealed, 0, ciphertext, 0, ciphertextLength);
+        System.arraycopy(sealed, ciphertextLength, tag, 0, tag.length);
+        
+        return new SecureEnvelope(keyId, sequence, iv, ciphertext, tag);
+    }
+    
+    /**
+     * 打开二进制安全信封，返回其中的原始消息
+     *
+     * @param expectedPeerId 连接上已知的对端节点ID，未知时为null
+     */
+    public Message openEnvelope(SecureEnvelope envelope, String expectedPeerId) throws Exception {
+        String peerId = keyManager.getNodeIdForKeyId(envelope.getKeyId());
+        if (peerId == null) {
+            throw new IllegalStateException("未知的会话密钥ID: " + Long.toHexString(envelope.getKeyId()));
+        }
+        if (expectedPeerId != null && !expectedPeerId.equals(peerId)) {
+            throw new SecurityException("安全信封的密钥不属于该连接的对端节点");
+        }
+        SecretKey sessionKey = keyManager.getSessionKey(peerId);
+        if (sessionKey == null) {
+            throw new IllegalStateException("未找到与节点 " + peerId + " 的会话密钥");
+        }
+        
+        byte[] aad = SecureEnvelope.associatedData(envelope.getKeyId(), envelope.getSequence());
+        byte[] plaintext = cryptoService.decryptWithAESGCM(
+            envelope.getCiphertext(), envelope.getTag(), sessionKey, envelope.getIv(), aad);
+        
+        // 认证通过后再检查序列号，防止重放。序列号在封装时分配，而帧按通道优先级写出，
+        // 到达顺序可能与序列号不同，因此记录窗口内每个序列号是否见过，而不是只比较最大值
+        ReplayWindow window = replayWindows.computeIfAbsent(envelope.getKeyId(), keyId -> new ReplayWindow());
+        if (!window.accept(envelope.getSequence())) {
+            throw new SecurityException("安全信封序列号重复或过旧，可能是重放攻击");
+        }
+        
+        Message message = Message.fromBytes(ByteBuffer.wrap(plaintext));
+        // 发送者密钥按消息内的发送者ID安装，只接受会话对端分发的它自己的密钥，
+        // 否则任何直连节点都可以冒充其他成员安装密钥并伪造其群聊消息
+        if (message.getType() == Message.Type.SENDER_KEY && !peerId.equals(message.getSenderId())) {
+            throw new SecurityException("发送者密钥的发送者 " + message.getSenderId() + " 与信封所属节点 " + peerId + " 不一致");
+        }
+        return message;
+    }
+    
+    /**
+     * 重放窗口：记录最大序列号以及它之前 SIZE 个序列号各自是否已收到 (与IPsec/DTLS的做法相同)
+     */
+    static final class ReplayWindow {
+        static final int SIZE = 1024;
+        
+        private final long[] bits = new long[SIZE / 64];
+        private long highest = 0;
+        
+        /**
+         * 序列号第一次出现且未落到窗口之外时返回true并记下它
+         */
+        synchronized boolean accept(long sequence) {
+            if (sequence <= 0) {
+                return false;
+            }
+            if (sequence > highest) {
+                if (sequence - highest >= SIZE) {
+                    Arrays.fill(bits, 0L);
+                } else {
+                    for (long skipped = highest + 1; skipped < sequence; skipped++) {
+                        clear(skipped);
+                    }
+                }
+                highest = sequence;
+                set(sequence);
+                return true;
+            }
+            if (highest - sequence >= SIZE || isSet(sequence)) {
+                return false;
+            }
+            set(sequence);
+            return true;
+        }
+        
+        private boolean isSet(long sequence) {
+            int index = (int) (sequence % SIZE);
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
+        
+        private void set(long sequence) {
+            int index = (int) (sequence % SIZE);
+            bits[index >>> 6] |= 1L << index;
+        }
+        
+        private void clear(long sequence) {
+            int index = (int) (sequence % SIZE);
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+    
+    /**
+     * 端到端加密私聊消息，不需要与接收方事先握手：
+     * 发送方生成临时X25519密钥，与接收方的静态公钥（来自握手或DHT公钥记录）协商，
+     * 再加上双方静态密钥的共享秘密，经HKDF派生一次性的AES-GCM密钥。
+     * 静态部分只有发送方和接收方能算出，接收方因此能确认发送者身份。
+     * 密文格式: Base64([临时公钥长度(1)][临时公钥][IV(12)][密文||标签])，保留原消息的ID、时间戳和TTL。
+     */
+    public Message sealPrivateMessage(Message privateMessage) throws Exception {
+        return seal(privateMessage, Message.Type.SECURE_PRIVATE_CHAT, PRIVATE_MESSAGE_INFO);
+    }
+    
+    /**
+     * 解密发给本节点的端到端加密私聊消息，返回明文内容
+     */
+    public String openPrivateMessage(Message message) throws Exception {
+        return new String(open(message, PRIVATE_MESSAGE_INFO), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 把本节点的发送者密钥端到端加密给指定成员，经中继转发也只有该成员能解开，
+     * 用于没有直连会话密钥的成员
+     */
+    public Message sealSenderKeyFor(String senderId, String memberNodeId) throws Exception {
+        return seal(createSenderKeyMessage(senderId, memberNodeId), Message.Type.SEALED_SENDER_KEY, SEALED_SENDER_KEY_INFO);
+    }
+    
+    /**
+     * 解开发给本节点的发送者密钥并安装，静态密钥协商保证了它确实来自声明的发送者
+     */
+    public void installSealedSenderKey(Message message) throws Exception {
+        byte[] distribution = Base64.getDecoder().decode(open(message, SEALED_SENDER_KEY_INFO));
+        groupKeyManager.installSenderKey(message.getSenderId(), distribution);
+    }
+    
+    private Message seal(Message privateMessage, Message.Type sealedType, byte[] info) throws Exception {
+        String targetNodeId = privateMessage.getTargetId();
+        PublicKey recipientKey = keyManager.getPeerAgreementKey(targetNodeId);
+        if (recipientKey == null || !keyManager.hasAgreementKey()) {
+            throw new IllegalStateException("没有节点 " + targetNodeId + " 的X25519公钥");
+        }
+        KeyPair ephemeral = cryptoService.generateX25519KeyPair();
+        byte[] ephemeralPublic = ephemeral.getPublic().getEncoded();
+        SecretKey messageKey = derivePrivateMessageKey(
+            cryptoService.x25519Agree(ephemeral.getPrivate(), recipientKey),
+            cryptoService.x25519Agree(keyManager.getAgreementPrivateKey(), recipientKey),
+            privateMessage.getSenderId(), targetNodeId, ephemeralPublic, info);
+        byte[] iv = cryptoService.generateRandomBytes(CryptoService.GCM_IV_LENGTH);
+        byte[] sealed = cryptoService.encryptWithAESGCM(privateMessage.getContent().getBytes(StandardCharsets.UTF_8),
+            messageKey, iv, privateMessageAad(privateMessage));
+        
+        ByteBuffer buffer = ByteBuffer.allocate(1 + ephemeralPublic.length + iv.length + sealed.length);
+        buffer.put((byte) ephemeralPublic.length).put(ephemeralPublic).put(iv).put(sealed);
+        return new Message(privateMessage.getMessageId(), sealedType, privateMessage.getSenderId(),
+            Base64.getEncoder().encodeToString(buffer.array()), privateMessage.getTimestamp(), privateMessage.getTtl(),
+            targetNodeId);
+    }
+    
+    private byte[] open(Message message, byte[] info) throws Exception {
+        PublicKey senderKey = keyManager.getPeerAgreementKey(message.getSenderId());
+        if (senderKey == null || !keyManager.hasAgreementKey()) {
+            throw new IllegalStateException("没有节点 " + message.getSenderId() + " 的X25519公钥");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(message.getContent()));
+        byte[] ephemeralPublic = new byte[buffer.get() & 0xFF];
+        byte[] iv = new byte[CryptoService.GCM_IV_LENGTH];
+        buffer.get(ephemeralPublic).get(iv);
+        if (buffer.remaining() < CryptoService.GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("私聊密文过短");
+        }
+        byte[] ciphertext = new byte[buffer.remaining() - CryptoService.GCM_TAG_LENGTH];
+        byte[] tag = new byte[CryptoService.GCM_TAG_LENGTH];
+        buffer.get(ciphertext).get(tag);
+        
+        PrivateKey localKey = keyManager.getAgreementPrivateKey();
+        SecretKey messageKey = derivePrivateMessageKey(
+            cryptoService.x25519Agree(localKey, cryptoService.decodeX25519PublicKey(ephemeralPublic)),
+            cryptoService.x25519Agree(localKey, senderKey),
+            message.getSenderId(), message.getTargetId(), ephemeralPublic, info);
+        return cryptoService.decryptWithAESGCM(ciphertext, tag, messageKey, iv, privateMessageAad(message));
+    }
+    
+    private SecretKey derivePrivateMessageKey(byte[] ephemeralSecret, byte[] staticSecret, String senderId,
+                                              String targetId, byte[] ephemeralPublic, byte[] info) throws Exception {
+        byte[] inputKeyMaterial = new byte[ephemeralSecret.length + staticSecret.length];
+        System.arraycopy(ephemeralSecret, 0, inputKeyMaterial, 0, ephemeralSecret.length);
+        System.arraycopy(staticSecret, 0, inputKeyMaterial, ephemeralSecret.length, staticSecret.length);
+        try {
+            byte[] salt = cryptoService.hash(("group7-chat-private-v1|" + senderId + "|" + targetId + "|"
+                + Base64.getEncoder().encodeToString(ephemeralPublic)).getBytes(StandardCharsets.UTF_8));
+            return keyManager.createSecretKey(cryptoService.hkdf(inputKeyMaterial, salt, info, 32));
+        } finally {
+            cryptoService.clearSensitiveData(ephemeralSecret);
+            cryptoService.clearSensitiveData(staticSecret);
+            cryptoService.clearSensitiveData(inputKeyMaterial);
+        }
+    }
+    
+    private static byte[] privateMessageAad(Message message) {
+        return (message.getMessageId() + "|" + message.getSenderId() + "|" + message.getTargetId() + "|"
+            + message.getTimestamp()).getBytes(StandardCharsets.UTF_8);
     }
     
     /**
      * 安全消息包装类
+     *
+     * @deprecated 文本传输格式会对密文和签名做Base64编码并再次转义，
+     *             逐跳加密请使用 {@link #sealEnvelope(Message, String)}
      */
+    @Deprecated
     public static class SecureMessage {
         private final String senderId;
         private final String encryptedContent;
@@ -105,7 +366,7 @@ public class SecureMessageHandler {
         byte[] signatureBytes = cryptoService.sign(contentBytes, keyManager.getNodePrivateKey());
         String signature = Base64.getEncoder().encodeToString(signatureBytes);
         
-        System.out.println("[安全消息] 加密消息发送给: " + targetNodeId);
+        log.debug(() -> "[安全消息] 加密消息发送给: " + targetNodeId);
         
         return new SecureMessage(senderId, encryptedContent, signature, timestamp, messageId);
     }
@@ -164,7 +425,7 @@ public class SecureMessageHandler {
         // 解析消息内容
         String actualContent = parseMessageContent(fullContent, secureMessage.getTimestamp(), secureMessage.getMessageId());
         
-        System.out.println("[安全消息] 成功解密来自 " + senderId + " 的消息");
+        log.debug(() -> "[安全消息] 成功解密来自 " + senderId + " 的消息");
         
         return actualContent;
     }
@@ -173,75 +434,49 @@ public class SecureMessageHandler {
      * 加密群聊消息
      */
     public Message encryptGroupMessage(String content, String groupId) throws Exception {
-        // 为群聊消息创建特殊格式
-        long timestamp = System.currentTimeMillis();
-        String messageId = generateMessageId();
-        String senderId = keyManager.getNodeId();
-        
-        // 群聊消息使用发送者的私钥签名，但不加密内容（因为需要广播）
-        // 在实际应用中，可以为群聊实现群密钥机制
-        String fullContent = createFullMessageContent(content, timestamp, messageId);
-        
-        // 创建数字签名
-        byte[] contentBytes = fullContent.getBytes(StandardCharsets.UTF_8);
-        byte[] signatureBytes = cryptoService.sign(contentBytes, keyManager.getNodePrivateKey());
-        String signature = Base64.getEncoder().encodeToString(signatureBytes);
-        
-        // 创建安全群聊消息格式
-        String secureContent = "SECURE_GROUP:" + senderId + ":" + 
-                              Base64.getEncoder().encodeToString(fullContent.getBytes(StandardCharsets.UTF_8)) + 
-                              ":" + signature + ":" + timestamp + ":" + messageId;
-        
-        System.out.println("[安全消息] 创建安全群聊消息");
-        
-        return new Message(Message.Type.CHAT, senderId, secureContent);
+        String senderId = groupKeyManager.getLocalNodeId();
+        return encryptGroupMessage(new Message(Message.Type.CHAT, senderId, content));
+    }
+    
+    /**
+     * 使用发送者密钥加密群聊消息：整条消息只加密一次，密文原样广播和转发。
+     * 保留原消息的ID和时间戳，以便沿用路由器的去重逻辑。
+     */
+    public Message encryptGroupMessage(Message chatMessage) throws Exception {
+        byte[] sealed = groupKeyManager.encrypt(chatMessage.getContent().getBytes(StandardCharsets.UTF_8));
+        String secureContent = Base64.getEncoder().encodeToString(sealed);
+        return new Message(chatMessage.getMessageId(), Message.Type.SECURE_CHAT, chatMessage.getSenderId(),
+            secureContent, chatMessage.getTimestamp(), chatMessage.getTtl(), null);
     }
     
     /**
      * 解密群聊消息
      */
     public String decryptGroupMessage(Message message) throws Exception {
-        String content = message.getContent();
-        
-        if (!content.startsWith("SECURE_GROUP:")) {
+        if (message.getType() != Message.Type.SECURE_CHAT) {
             // 非安全群聊消息，直接返回
-            return content;
-        }
-        
-        String[] parts = content.split(":", 6);
-        if (parts.length != 6) {
-            throw new IllegalArgumentException("无效的安全群聊消息格式");
-        }
-        
-        String senderId = parts[1];
-        String encodedContent = parts[2];
-        String signature = parts[3];
-        long timestamp = Long.parseLong(parts[4]);
-        String messageId = parts[5];
-        
-        // 解码消息内容
-        byte[] contentBytes = Base64.getDecoder().decode(encodedContent);
-        String fullContent = new String(contentBytes, StandardCharsets.UTF_8);
-        
-        // 验证数字签名
-        byte[] signatureBytes = Base64.getDecoder().decode(signature);
-        java.security.PublicKey senderPublicKey = keyManager.getPublicKey(senderId);
-        
-        if (senderPublicKey == null) {
-            throw new IllegalStateException("未找到发送者 " + senderId + " 的公钥");
+            return message.getContent();
         }
         
-        boolean signatureValid = cryptoService.verifySignature(contentBytes, signatureBytes, senderPublicKey);
-        if (!signatureValid) {
-            throw new SecurityException("群聊消息签名验证失败");
-        }
-        
-        // 解析消息内容
-        String actualContent = parseMessageContent(fullContent, timestamp, messageId);
-        
-        System.out.println("[安全消息] 成功验证来自 " + senderId + " 的群聊消息");
-        
-        return actualContent;
+        byte[] sealed = Base64.getDecoder().decode(message.getContent());
+        byte[] plaintext = groupKeyManager.decrypt(message.getSenderId(), sealed);
+        return new String(plaintext, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 创建发送者密钥分发消息，必须通过与目标成员的安全信封发送，或经 {@link #sealSenderKeyFor} 端到端加密
+     */
+    public Message createSenderKeyMessage(String senderId, String memberNodeId) {
+        String distribution = Base64.getEncoder().encodeToString(groupKeyManager.exportSenderKey());
+        return new Message(Message.Type.SENDER_KEY, senderId, distribution, memberNodeId);
+    }
+    
+    /**
+     * 安装成员分发来的发送者密钥
+     */
+    public void installSenderKey(Message message) {
+        byte[] distribution = Base64.getDecoder().decode(message.getContent());
+        groupKeyManager.installSenderKey(message.getSenderId(), distribution);
     }
     
     /**
@@ -308,7 +543,7 @@ public class SecureMessageHandler {
             decryptMessage(secureMessage);
             return true;
         } catch (Exception e) {
-            System.err.println("[安全消息] 消息完整性验证失败: " + e.getMessage());
+            log.error("[安全消息] 消息完整性验证失败: " + e.getMessage());
             return false;
         }
     }
@@ -352,7 +587,7 @@ public class SecureMessageHandler {
         try {
             // 检查是否有目标节点的公钥
             if (!keyManager.hasPublicKey(targetNodeId)) {
-                System.err.println("[密钥交换] 缺少节点公钥: " + targetNodeId);
+                log.warn("[密钥交换] 缺少节点公钥: " + targetNodeId);
                 return false;
             }
             
@@ -362,23 +597,26 @@ public class SecureMessageHandler {
             // 存储会话密钥
             keyManager.storeSessionKey(targetNodeId, sessionKey);
             
-            System.out.println("[密钥交换] 成功与节点 " + targetNodeId + " 建立会话密钥");
+            log.info("[密钥交换] 成功与节点 " + targetNodeId + " 建立会话密钥");
             return true;
             
         } catch (Exception e) {
-            System.err.println("[密钥交换] 失败: " + e.getMessage());
+            log.error("[密钥交换] 失败: " + e.getMessage());
             return false;
         }
     }
     
     /**
      * 加密消息（从Message对象）
+     *
+     * @deprecated 请使用 {@link #sealEnvelope(Message, String)}，以二进制帧发送
      */
+    @Deprecated
     public Message encryptMessage(Message message, String targetNodeId) {
         try {
             // 检查是否可以发送安全消息
             if (!canSendSecureMessage(targetNodeId)) {
-                System.err.println("[安全消息] 无法向 " + targetNodeId + " 发送安全消息");
+                log.warn("[安全消息] 无法向 " + targetNodeId + " 发送安全消息");
                 return null;
             }
             
@@ -396,7 +634,7 @@ public class SecureMessageHandler {
             return encryptedMessage;
             
         } catch (Exception e) {
-            System.err.println("[安全消息] 加密失败: " + e.getMessage());
+            log.error("[安全消息] 加密失败: " + e.getMessage());
             return null;
         }
     }
@@ -1,6 +1,10 @@
 package com.group7.chat.security;
 
+import com.group7.chat.logging.Logger;
 import com.group7.chat.Message;
+import com.group7.chat.metrics.Counter;
+import com.group7.chat.metrics.Histogram;
+import com.group7.chat.metrics.MetricsRegistry;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -9,24 +13,44 @@ import java.util.concurrent.TimeUnit;
  * 安全管理器 - 统一管理所有安全功能
  */
 public class SecurityManager {
+
+    private static final Logger log = Logger.getLogger(SecurityManager.class);
     
     private final KeyManager keyManager;
     private final CryptoService cryptoService;
     private final AuthenticationService authenticationService;
     private final SecureMessageHandler secureMessageHandler;
     private final SecureFileTransferService secureFileTransferService;
+    private final GroupKeyManager groupKeyManager;
+    private final KeyExchangeProtocol keyExchangeProtocol;
+    private final CryptoPipeline cryptoPipeline;
     
     private final ScheduledExecutorService scheduler;
     private boolean securityEnabled = true;
     private boolean strictMode = false; // 严格模式：只允许加密通信
+    private boolean groupEncryptionEnabled = false; // 群聊使用发送者密钥加密
+
+    private Histogram sealTimer;
+    private Histogram openTimer;
+    private Histogram groupSealTimer;
+    private Histogram groupOpenTimer;
+    private Counter cryptoFailures;
     
-    public SecurityManager(String nodeId, int basePort) throws Exception {
+    /**
+     * 加载或生成节点的长期密钥并初始化安全组件，节点ID由该密钥派生 (见 KeyManager.getNodeId)
+     */
+    public SecurityManager(int basePort) throws Exception {
         // 初始化核心安全组件
-        this.keyManager = new KeyManager(nodeId);
+        this.keyManager = new KeyManager(basePort);
+        String nodeId = keyManager.getNodeId();
         this.cryptoService = new CryptoService();
         this.authenticationService = new AuthenticationService(keyManager, cryptoService);
-        this.secureMessageHandler = new SecureMessageHandler(keyManager, cryptoService, authenticationService);
-        this.secureFileTransferService = new SecureFileTransferService(keyManager, cryptoService, basePort);
+        this.groupKeyManager = new GroupKeyManager(nodeId, cryptoService);
+        this.secureMessageHandler = new SecureMessageHandler(keyManager, cryptoService, authenticationService, groupKeyManager);
+        this.secureFileTransferService = new SecureFileTransferService(keyManager, cryptoService);
+        this.keyExchangeProtocol = new KeyExchangeProtocol(keyManager, cryptoService);
+        this.cryptoPipeline = new CryptoPipeline();
+        bindMetrics(new MetricsRegistry());
         
         // 初始化定时任务调度器
         this.scheduler = Executors.newScheduledThreadPool(2);
@@ -34,9 +58,26 @@ public class SecurityManager {
         // 启动定期维护任务
         startMaintenanceTasks();
         
-        System.out.println("[安全管理器] 初始化完成，节点ID: " + nodeId);
+        log.info("[安全管理器] 初始化完成，节点ID: " + nodeId);
     }
     
+    /**
+     * 将加密延迟、失败次数和密钥状态注册到节点的指标注册表
+     */
+    public void bindMetrics(MetricsRegistry registry) {
+        String help = "加密操作耗时";
+        this.sealTimer = registry.timer("chat_crypto_seconds", help, "op", "seal");
+        this.openTimer = registry.timer("chat_crypto_seconds", help, "op", "open");
+        this.groupSealTimer = registry.timer("chat_crypto_seconds", help, "op", "group_seal");
+        this.groupOpenTimer = registry.timer("chat_crypto_seconds", help, "op", "group_open");
+        this.cryptoFailures = registry.counter("chat_crypto_failures_total", "加密或解密失败次数");
+        registry.gauge("chat_session_keys", "已建立的会话密钥数", keyManager::getSessionKeyCount);
+        registry.gauge("chat_session_tickets", "持有的会话票据数", keyManager::getSessionTicketCount);
+        registry.gauge("chat_key_records", "缓存的其他节点公钥记录数", keyManager::getKeyRecordCount);
+        registry.gauge("chat_group_senders", "已安装的群聊发送者密钥数", groupKeyManager::getRemoteSenderCount);
+        cryptoPipeline.bindMetrics(registry);
+    }
+
     /**
      * 启动安全服务
      */
@@ -44,7 +85,10 @@ public class SecurityManager {
         // 启动安全文件传输服务
         secureFileTransferService.start();
         
-        System.out.println("[安全管理器] 安全服务已启动");
+        // 启动入站安全流量的加密工作线程
+        cryptoPipeline.start();
+        
+        log.info("[安全管理器] 安全服务已启动");
     }
     
     /**
@@ -55,15 +99,17 @@ public class SecurityManager {
             // 停止安全文件传输服务
             secureFileTransferService.stop();
             
+            cryptoPipeline.stop();
+            
             // 停止定时任务
             scheduler.shutdown();
             if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
                 scheduler.shutdownNow();
             }
             
-            System.out.println("[安全管理器] 安全服务已停止");
+            log.info("[安全管理器] 安全服务已停止");
         } catch (Exception e) {
-            System.err.println("[安全管理器] 停止服务时出错: " + e.getMessage());
+            log.warn("[安全管理器] 停止服务时出错: " + e.getMessage());
         }
     }
     
@@ -88,7 +134,7 @@ public class SecurityManager {
                 // 漏洞1: 严格模式检查存在绕过条件
                 // 当消息类型为HELLO或PING时，即使在严格模式下也允许通过
                 if (strictMode && message.getType() != Message.Type.HELLO && message.getType() != Message.Type.PING) {
-                    System.err.println("[安全管理器] 严格模式下拒绝非加密消息: " + senderNodeId);
+                    log.warn("[安全管理器] 严格模式下拒绝非加密消息: " + senderNodeId);
                     return null;
                 }
                 
@@ -96,7 +142,7 @@ public class SecurityManager {
                 if (authenticationService.isNodeVerified(senderNodeId)) {
                     // 对于已验证的节点，检查消息完整性
                     if (!verifyMessageIntegrity(message, senderNodeId)) {
-                        System.err.println("[安全管理器] 消息完整性验证失败: " + senderNodeId);
+                        log.error("[安全管理器] 消息完整性验证失败: " + senderNodeId);
                         return null;
                     }
                 }
@@ -105,52 +151,223 @@ public class SecurityManager {
             }
             
         } catch (Exception e) {
-            System.err.println("[安全管理器] 处理传入消息失败: " + e.getMessage());
+            log.error("[安全管理器] 处理传入消息失败: " + e.getMessage());
             return null;
         }
     }
     
     /**
-     * 处理传出消息的加密和签名
+     * 检查是否可以用二进制安全信封向对端节点发送消息
+     */
+    public boolean canSealFor(String peerNodeId) {
+        return securityEnabled && peerNodeId != null && keyManager.hasSessionKey(peerNodeId);
+    }
+    
+    /**
+     * 将消息封装为安全信封帧负载，失败时返回null（调用方可回退为明文帧，严格模式除外）
      */
-    public String processOutgoingMessage(Message message, String targetNodeId) {
+    public byte[] sealMessage(Message message, String peerNodeId) {
+        long start = System.nanoTime();
         try {
-            if (!securityEnabled) {
-                // 安全功能禁用时，直接序列化消息
-                return message.serialize();
-            }
-            
-            // 检查目标节点是否支持安全通信
-            boolean targetSupportsEncryption = keyManager.hasSessionKey(targetNodeId);
-            
-            if (targetSupportsEncryption || strictMode) {
-                // 加密消息
-                Message encryptedMessage = secureMessageHandler.encryptMessage(message, targetNodeId);
-                if (encryptedMessage != null) {
-                    return encryptedMessage.serialize();
-                } else if (strictMode) {
-                    System.err.println("[安全管理器] 严格模式下无法加密消息，拒绝发送: " + targetNodeId);
-                    return null;
-                }
-            }
-            
-            // 对于非加密消息，添加数字签名
-            String serializedMessage = message.serialize();
-            String signature = authenticationService.signMessage(serializedMessage);
-            
-            if (signature != null) {
-                // 在消息中添加签名信息
-                return serializedMessage + "|SIG:" + signature;
-            }
-            
-            return serializedMessage;
-            
+            byte[] sealed = secureMessageHandler.sealEnvelope(message, peerNodeId).toBytes();
+            sealTimer.recordSince(start);
+            return sealed;
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 封装安全信封失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 解析并解密安全信封帧负载，失败时返回null
+     */
+    public Message openEnvelope(byte[] payload, String expectedPeerId) {
+        long start = System.nanoTime();
+        try {
+            SecureEnvelope envelope = SecureEnvelope.fromBytes(payload);
+            Message message = secureMessageHandler.openEnvelope(envelope, expectedPeerId);
+            openTimer.recordSince(start);
+            return message;
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 打开安全信封失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 使用发送者密钥加密群聊消息，失败时返回null
+     */
+    public Message sealGroupMessage(Message chatMessage) {
+        long start = System.nanoTime();
+        try {
+            Message sealed = secureMessageHandler.encryptGroupMessage(chatMessage);
+            groupSealTimer.recordSince(start);
+            return sealed;
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 加密群聊消息失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 解密安全群聊消息，尚未收到发送者密钥或解密失败时返回null
+     */
+    public String openGroupMessage(Message message) {
+        long start = System.nanoTime();
+        try {
+            String content = secureMessageHandler.decryptGroupMessage(message);
+            groupOpenTimer.recordSince(start);
+            return content;
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 解密群聊消息失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 端到端加密私聊消息，没有接收方的X25519公钥或加密失败时返回null（调用方可发送明文）
+     */
+    public Message sealPrivateMessage(Message privateMessage) {
+        if (!securityEnabled || keyManager.getPeerAgreementKey(privateMessage.getTargetId()) == null) return null;
+        try {
+            return secureMessageHandler.sealPrivateMessage(privateMessage);
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 加密私聊消息失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 解密端到端加密的私聊消息，失败时返回null
+     */
+    public String openPrivateMessage(Message message) {
+        try {
+            return secureMessageHandler.openPrivateMessage(message);
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 解密私聊消息失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 是否已有对端节点的X25519公钥（握手或公钥记录）
+     */
+    public boolean hasAgreementKeyFor(String nodeId) {
+        return keyManager.getPeerAgreementKey(nodeId) != null;
+    }
+    
+    /**
+     * 签发本节点的公钥记录，用于发布到DHT；不支持X25519时返回null
+     */
+    public String issueKeyRecord() {
+        try {
+            return KeyRecord.issue(keyManager, cryptoService);
+        } catch (Exception e) {
+            log.error("[安全管理器] 签发公钥记录失败: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * 验证从DHT取得的公钥记录并缓存，记录无效时返回false
+     */
+    public boolean importKeyRecord(String encoded, String nodeId) {
+        KeyRecord record = KeyRecord.verify(encoded, nodeId, cryptoService);
+        if (record == null) {
+            log.warn("[安全管理器] 节点 " + nodeId + " 的公钥记录无效");
+            return false;
+        }
+        keyManager.storeKeyRecord(record);
+        return true;
+    }
+
+    /**
+     * 验证公钥记录但不缓存，返回记录的签发时间，无效时返回-1
+     */
+    public long verifyKeyRecord(String encoded, String nodeId) {
+        KeyRecord record = KeyRecord.verify(encoded, nodeId, cryptoService);
+        return record != null ? record.getIssuedAt() : -1;
+    }
+
+    /**
+     * 以本节点身份为请求签发证明 (见 RequestProof)，失败时返回null
+     */
+    public String signRequest(String purpose, String scope, String body) {
+        try {
+            return RequestProof.issue(keyManager, cryptoService, purpose, scope, body);
+        } catch (Exception e) {
+            log.error("[安全管理器] 签发请求证明失败: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 验证请求证明确实由 senderId 的持有者签发
+     */
+    public boolean verifyRequest(String proof, String purpose, String senderId, String scope, String body) {
+        return RequestProof.verify(proof, purpose, senderId, scope, body, cryptoService);
+    }
+
+    /**
+     * 创建发给指定成员的发送者密钥分发消息
+     */
+    public Message createSenderKeyMessage(String localNodeId, String memberNodeId) {
+        return secureMessageHandler.createSenderKeyMessage(localNodeId, memberNodeId);
+    }
+    
+    /**
+     * 安装通过安全信封收到的发送者密钥
+     */
+    public void installSenderKey(Message message) {
+        try {
+            secureMessageHandler.installSenderKey(message);
+        } catch (Exception e) {
+            log.error("[安全管理器] 安装发送者密钥失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 把本节点的发送者密钥端到端加密给指定成员，没有其X25519公钥或加密失败时返回null
+     */
+    public Message sealSenderKeyFor(String localNodeId, String memberNodeId) {
+        if (!securityEnabled || keyManager.getPeerAgreementKey(memberNodeId) == null) return null;
+        try {
+            return secureMessageHandler.sealSenderKeyFor(localNodeId, memberNodeId);
         } catch (Exception e) {
-            System.err.println("[安全管理器] 处理传出消息失败: " + e.getMessage());
+            cryptoFailures.increment();
+            log.error("[安全管理器] 加密发送者密钥失败: " + e.getMessage());
             return null;
         }
     }
     
+    /**
+     * 解开并安装端到端加密的发送者密钥，失败时返回false
+     */
+    public boolean installSealedSenderKey(Message message) {
+        try {
+            secureMessageHandler.installSealedSenderKey(message);
+            return true;
+        } catch (Exception e) {
+            cryptoFailures.increment();
+            log.error("[安全管理器] 安装加密的发送者密钥失败: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * 成员离开时丢弃其发送者密钥并为本节点换代，调用方需要把新密钥重新分发给剩余成员
+     */
+    public void onMemberLeft(String nodeId) {
+        groupKeyManager.removeSender(nodeId);
+        groupKeyManager.rotate();
+    }
+    
     /**
      * 处理密钥交换请求
      */
@@ -158,13 +375,13 @@ public class SecurityManager {
         try {
             // 检查是否已有会话密钥
             if (keyManager.hasSessionKey(targetNodeId)) {
-                System.out.println("[安全管理器] 与节点 " + targetNodeId + " 已有会话密钥");
+                log.info("[安全管理器] 与节点 " + targetNodeId + " 已有会话密钥");
                 return true;
             }
             
             // 检查是否有目标节点的公钥
             if (!keyManager.hasPublicKey(targetNodeId)) {
-                System.err.println("[安全管理器] 缺少节点公钥: " + targetNodeId);
+                log.warn("[安全管理器] 缺少节点公钥: " + targetNodeId);
                 return false;
             }
             
@@ -172,15 +389,15 @@ public class SecurityManager {
             boolean success = secureMessageHandler.initiateKeyExchange(targetNodeId);
             
             if (success) {
-                System.out.println("[安全管理器] 密钥交换成功: " + targetNodeId);
+                log.info("[安全管理器] 密钥交换成功: " + targetNodeId);
             } else {
-                System.err.println("[安全管理器] 密钥交换失败: " + targetNodeId);
+                log.error("[安全管理器] 密钥交换失败: " + targetNodeId);
             }
             
             return success;
             
         } catch (Exception e) {
-            System.err.println("[安全管理器] 处理密钥交换失败: " + e.getMessage());
+            log.error("[安全管理器] 处理密钥交换失败: " + e.getMessage());
             return false;
         }
     }
@@ -206,11 +423,11 @@ public class SecurityManager {
             
             // 这里需要与网络层集成，发送挑战并等待响应
             // 暂时返回成功，实际实现需要异步处理
-            System.out.println("[安全管理器] 身份验证挑战已发送: " + nodeId);
+            log.info("[安全管理器] 身份验证挑战已发送: " + nodeId);
             return AuthenticationService.AuthenticationResult.SUCCESS;
             
         } catch (Exception e) {
-            System.err.println("[安全管理器] 节点身份验证失败: " + e.getMessage());
+            log.error("[安全管理器] 节点身份验证失败: " + e.getMessage());
             return AuthenticationService.AuthenticationResult.FAILED;
         }
     }
@@ -257,7 +474,7 @@ public class SecurityManager {
             return true; // 没有签名的消息默认通过
             
         } catch (Exception e) {
-            System.err.println("[安全管理器] 验证消息完整性失败: " + e.getMessage());
+            log.error("[安全管理器] 验证消息完整性失败: " + e.getMessage());
             return false;
         }
     }
@@ -271,17 +488,27 @@ public class SecurityManager {
             try {
                 authenticationService.cleanupExpiredChallenges();
             } catch (Exception e) {
-                System.err.println("[安全管理器] 清理过期挑战失败: " + e.getMessage());
+                log.error("[安全管理器] 清理过期挑战失败: " + e.getMessage());
             }
         }, 5, 5, TimeUnit.MINUTES);
         
+        // 每30秒清理超时的密钥交换会话和过期的公钥记录
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                keyExchangeProtocol.cleanupTimeoutSessions();
+                keyManager.cleanupExpiredKeyRecords();
+            } catch (Exception e) {
+                log.error("[安全管理器] 清理密钥交换会话失败: " + e.getMessage());
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+        
         // 每30分钟输出安全统计信息
         scheduler.scheduleAtFixedRate(() -> {
             try {
                 String stats = authenticationService.getAuthenticationStats();
-                System.out.println("[安全管理器] " + stats);
+                log.info("[安全管理器] " + stats);
             } catch (Exception e) {
-                System.err.println("[安全管理器] 获取统计信息失败: " + e.getMessage());
+                log.error("[安全管理器] 获取统计信息失败: " + e.getMessage());
             }
         }, 30, 30, TimeUnit.MINUTES);
     }
@@ -292,18 +519,27 @@ public class SecurityManager {
     public AuthenticationService getAuthenticationService() { return authenticationService; }
     public SecureMessageHandler getSecureMessageHandler() { return secureMessageHandler; }
     public SecureFileTransferService getSecureFileTransferService() { return secureFileTransferService; }
+    public GroupKeyManager getGroupKeyManager() { return groupKeyManager; }
+    public KeyExchangeProtocol getKeyExchangeProtocol() { return keyExchangeProtocol; }
+    public CryptoPipeline getCryptoPipeline() { return cryptoPipeline; }
     
     // Security settings
     public boolean isSecurityEnabled() { return securityEnabled; }
     public void setSecurityEnabled(boolean enabled) { 
         this.securityEnabled = enabled;
-        System.out.println("[安全管理器] 安全功能 " + (enabled ? "启用" : "禁用"));
+        log.info("[安全管理器] 安全功能 " + (enabled ? "启用" : "禁用"));
+    }
+    
+    public boolean isGroupEncryptionEnabled() { return securityEnabled && groupEncryptionEnabled; }
+    public void setGroupEncryptionEnabled(boolean enabled) {
+        this.groupEncryptionEnabled = enabled;
+        log.info("[安全管理器] 群聊加密 " + (enabled ? "启用" : "禁用"));
     }
     
     public boolean isStrictMode() { return strictMode; }
     public void setStrictMode(boolean strict) { 
         this.strictMode = strict;
-        System.out.println("[安全管理器] 严格模式 " + (strict ? "启用" : "禁用"));
+        log.info("[安全管理器] 严格模式 " + (strict ? "启用" : "禁用"));
     }
     
     /**
@@ -317,14 +553,30 @@ public class SecurityManager {
         status.append("节点ID: ").append(keyManager.getNodeId()).append("\n");
         status.append("会话密钥数量: ").append(keyManager.getSessionKeyCount()).append("\n");
         status.append("公钥数量: ").append(keyManager.getPublicKeyCount()).append("\n");
+        status.append("会话票据数量: ").append(keyManager.getSessionTicketCount()).append("\n");
+        status.append("群聊加密: ").append(isGroupEncryptionEnabled() ? "启用" : "禁用")
+              .append(" (密钥代数: ").append(groupKeyManager.getGeneration())
+              .append(", 已知发送者: ").append(groupKeyManager.getRemoteSenderCount()).append(")\n");
+        status.append("密钥交换模式: ").append(keyExchangeProtocol.getSupportedModes()).append("\n");
         status.append(authenticationService.getAuthenticationStats()).append("\n");
         
         var activeSessions = secureFileTransferService.getAllActiveSessions();
         status.append("活跃文件传输: ").append(activeSessions.size()).append("\n");
+        status.append(cryptoPipeline.getStats());
+        appendLatency(status, "封装信封", sealTimer);
+        appendLatency(status, "打开信封", openTimer);
+        appendLatency(status, "群聊加密", groupSealTimer);
+        appendLatency(status, "群聊解密", groupOpenTimer);
         
         return status.toString();
     }
     
+    private static void appendLatency(StringBuilder status, String operation, Histogram timer) {
+        if (timer.getCount() == 0) return;
+        status.append(String.format("  %s: %d次, 中位 %.1fμs, 最大 %.1fμs%n", operation, timer.getCount(),
+                timer.getValueAtQuantile(0.5) / 1000.0, timer.getMax() / 1000.0));
+    }
+    
     /**
      * 导出节点身份证书
      */
@@ -345,22 +597,22 @@ public class SecurityManager {
      */
     public void debugSecurityState() {
         if (System.getProperty("debug.security", "false").equals("true")) {
-            System.out.println("=== 调试：安全状态详细信息 ===");
-            System.out.println("节点私钥指纹: " + keyManager.getPrivateKeyFingerprint());
+            log.info("=== 调试：安全状态详细信息 ===");
+            log.info("节点私钥指纹: " + keyManager.getPrivateKeyFingerprint());
             
             // 危险：输出会话密钥信息
             var sessionKeys = keyManager.getAllSessionKeys();
             for (var entry : sessionKeys.entrySet()) {
                 String nodeId = entry.getKey();
                 String keyHash = keyManager.getSessionKeyHash(nodeId);
-                System.out.println("会话密钥 [" + nodeId + "]: " + keyHash);
+                log.info("会话密钥 [" + nodeId + "]: " + keyHash);
                 
                 // 极其危险：在特定条件下输出完整的密钥
                 if (nodeId.contains("test") || nodeId.contains("debug")) {
-                    System.out.println("  完整密钥: " + java.util.Base64.getEncoder().encodeToString(entry.getValue().getEncoded()));
+                    log.info("  完整密钥: " + java.util.Base64.getEncoder().encodeToString(entry.getValue().getEncoded()));
                 }
             }
-            System.out.println("========================");
+            log.info("========================");
         }
     }
 }
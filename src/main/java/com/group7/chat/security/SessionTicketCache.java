@@ -0,0 +1,93 @@
+package com.group7.chat.security;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 会话票据缓存 - 保存其他节点签发给本节点的恢复票据
+ *
+ * 按节点ID索引，容量有上限（按最近使用淘汰），过期的票据在读取和清理时移除。
+ */
+public class SessionTicketCache {
+
+    /**
+     * 一张会话票据：票据本身对持有方不透明，恢复密钥只有持有方和签发方知道
+     */
+    public static class Ticket {
+        private final String ticket;
+        private final byte[] resumptionSecret;
+        private final long expiresAt;
+
+        public Ticket(String ticket, byte[] resumptionSecret, long expiresAt) {
+            this.ticket = ticket;
+            this.resumptionSecret = resumptionSecret;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getTicket() { return ticket; }
+        public byte[] getResumptionSecret() { return resumptionSecret; }
+        public long getExpiresAt() { return expiresAt; }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final Map<String, Ticket> tickets;
+
+    public SessionTicketCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.tickets = new LinkedHashMap<String, Ticket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                return size() > SessionTicketCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized void put(String nodeId, Ticket ticket) {
+        tickets.put(nodeId, ticket);
+    }
+
+    /**
+     * 获取未过期的票据，过期则顺便移除
+     */
+    public synchronized Ticket get(String nodeId) {
+        Ticket ticket = tickets.get(nodeId);
+        if (ticket != null && ticket.isExpired(System.currentTimeMillis())) {
+            tickets.remove(nodeId);
+            return null;
+        }
+        return ticket;
+    }
+
+    public synchronized void remove(String nodeId) {
+        tickets.remove(nodeId);
+    }
+
+    /**
+     * 移除所有过期票据，返回移除数量
+     */
+    public synchronized int removeExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Ticket> iterator = tickets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return tickets.size();
+    }
+
+    public synchronized void clear() {
+        tickets.clear();
+    }
+}
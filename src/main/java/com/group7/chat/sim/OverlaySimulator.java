@@ -0,0 +1,487 @@
+package com.group7.chat.sim;
+
+import com.group7.chat.DhtValueStore;
+import com.group7.chat.Message;
+import com.group7.chat.MessageListener;
+import com.group7.chat.Node;
+import com.group7.chat.Node.NodeInfo;
+import com.group7.chat.logging.Level;
+import com.group7.chat.logging.Logger;
+import com.group7.chat.transport.InMemoryTransport;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 覆盖网络模拟器 - 在一个JVM中运行一组真实的 Node，节点之间通过模拟网络条件的内存传输层连接
+ *
+ * 每个节点使用 InMemoryTransport，传播延迟、抖动、丢包和上行带宽由 SimConfig 设定，
+ * 连接上的帧和DHT控制数据报都经过同样的网络条件。依次执行：节点逐个加入、广播、DHT存取、节点流失，
+ * 报告每节点内存、每次广播的覆盖率、消息放大倍数和覆盖时间、查找成功率、耗时和跳数分布，
+ * 以及流失后路由表中离线节点条目的变化；离线条目在观察期内没有减少时单独给出警告，不作为"未收敛"一笔带过。
+ * 所有时间均为真实时间；密钥和状态文件写入临时目录，结束后删除。
+ *
+ * 用法: OverlaySimulator [key=value ...]，可用参数见 SimConfig，例如
+ *       OverlaySimulator nodes=200 latency=50 loss=0.01 bandwidth=125000
+ */
+public class OverlaySimulator {
+
+    private static final long BROADCAST_WAIT_MS = 10_000;
+    private static final long LOOKUP_WAIT_MS = 60_000;
+    private static final long CONVERGENCE_SAMPLE_MS = 5_000;
+
+    private final SimConfig config;
+    private final Random random;
+    private final InMemoryTransport.Conditions conditions;
+    private final List<Node> nodes = new ArrayList<>();
+    private final Set<Integer> stoppedPorts = new HashSet<>();
+    // 广播内容 -> (收到的节点端口 -> 收到的时刻)
+    private final Map<String, Map<Integer, Long>> deliveries = new ConcurrentHashMap<>();
+    private final List<BigInteger> keys = new ArrayList<>();
+    private final List<Integer> publishers = new ArrayList<>();
+    private int broadcastSequence = 0;
+
+    public OverlaySimulator(SimConfig config) {
+        this.config = config;
+        this.random = new Random(config.getSeed());
+        this.conditions = new InMemoryTransport.Conditions(config.getLatencyMillis(), config.getJitterMillis(),
+                config.getLossRate(), config.getBandwidthBytesPerSecond(), config.getSeed());
+    }
+
+    public static void main(String[] args) throws IOException {
+        SimConfig config = SimConfig.fromArgs(args);
+        Logger.setLevel(Level.OFF);
+
+        Path workDir = Files.createTempDirectory("overlay-sim");
+        System.setProperty("group7.data.dir", workDir.resolve("data").toString());
+        System.setProperty("group7.keys.dir", workDir.resolve("keys").toString());
+
+        System.out.println("======================================");
+        System.out.println("覆盖网络模拟");
+        System.out.println("======================================");
+        System.out.println(config);
+        OverlaySimulator simulator = new OverlaySimulator(config);
+        try {
+            simulator.run();
+        } finally {
+            simulator.shutdown();
+            deleteRecursively(workDir);
+        }
+        System.exit(0);
+    }
+
+    public void run() {
+        long wallStart = System.nanoTime();
+
+        buildOverlay();
+        printSection("广播");
+        runBroadcasts(config.getBroadcasts());
+        printSection("DHT存取");
+        publishValues(config.getLookups());
+        runLookups();
+
+        if (config.getChurn() > 0) {
+            printSection(String.format("节点流失 %.0f%%", config.getChurn() * 100));
+            churn();
+            System.out.println("流失后立即:");
+            runBroadcasts(config.getBroadcasts());
+            runLookups();
+            observeConvergence();
+            System.out.println(config.getObserveSeconds() + " 秒后:");
+            runBroadcasts(config.getBroadcasts());
+            runLookups();
+        }
+
+        printSection("汇总");
+        printTraffic();
+        System.out.printf("模拟耗时: %.1f 秒%n", (System.nanoTime() - wallStart) / 1e9);
+    }
+
+    /**
+     * 节点按 joinInterval 依次启动，每个节点以一个随机的已启动节点为引导节点，全部启动后等待 settle 秒
+     */
+    private void buildOverlay() {
+        long heapBefore = usedHeap();
+        long wallStart = System.nanoTime();
+
+        for (int i = 0; i < config.getNodes(); i++) {
+            int port = config.getBasePort() + i;
+            Node node = new Node(port, new InMemoryTransport(conditions));
+            if (i > 0) {
+                node.addBootstrapPeer("localhost:" + (config.getBasePort() + random.nextInt(i)));
+            }
+            node.setMessageListener(new DeliveryRecorder(port));
+            node.start();
+            nodes.add(node);
+            sleep((long) config.getJoinIntervalMillis());
+        }
+        sleep(TimeUnit.SECONDS.toMillis(config.getSettleSeconds()));
+
+        long heapAfter = usedHeap();
+        printSection("加入");
+        System.out.printf("%d 个节点加入完成，用时 %.1f 秒%n", config.getNodes(), (System.nanoTime() - wallStart) / 1e9);
+        System.out.printf("每节点内存: %.1f KB (含密钥、路由表、连接和各节点的线程)%n",
+                (heapAfter - heapBefore) / 1024.0 / config.getNodes());
+        printOverlayShape();
+    }
+
+    private void printOverlayShape() {
+        List<Integer> links = new ArrayList<>();
+        List<Integer> tableSizes = new ArrayList<>();
+        for (Node node : liveNodes()) {
+            links.add(node.getConnectionCount());
+            tableSizes.add(node.getRoutingTableSize());
+        }
+        System.out.printf("连接数: 平均 %.1f, 中位 %d, 最大 %d%n",
+                average(links), percentile(links, 0.5), percentile(links, 1.0));
+        System.out.printf("路由表节点数: 平均 %.1f, 中位 %d, 最大 %d%n",
+                average(tableSizes), percentile(tableSizes, 0.5), percentile(tableSizes, 1.0));
+    }
+
+    /**
+     * 依次从随机节点发送群聊消息，统计覆盖率、放大倍数（群聊消息发送次数 / 收到的节点数）和覆盖时间
+     */
+    private void runBroadcasts(int count) {
+        if (count <= 0) return;
+        long drainMillis = (long) (2 * (config.getLatencyMillis() + config.getJitterMillis())) + 100;
+        double coverage = 0, amplification = 0, t95 = 0, t100 = 0;
+        int complete = 0;
+        for (int i = 0; i < count; i++) {
+            List<Node> live = liveNodes();
+            Node origin = live.get(random.nextInt(live.size()));
+            String content = "sim-" + broadcastSequence++;
+            Map<Integer, Long> received = new ConcurrentHashMap<>();
+            deliveries.put(content, received);
+
+            long sentBefore = chatMessagesSent();
+            long start = System.nanoTime();
+            origin.sendChatMessage(content);
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(BROADCAST_WAIT_MS);
+            while (received.size() < live.size() - 1 && System.nanoTime() < deadline) {
+                sleep(20);
+            }
+            sleep(drainMillis); // 让仍在路上的重复消息到达，计入放大倍数
+            deliveries.remove(content);
+
+            List<Long> times = new ArrayList<>();
+            times.add(0L); // 发送者自己
+            for (long at : received.values()) {
+                times.add(TimeUnit.NANOSECONDS.toMillis(at - start));
+            }
+            Collections.sort(times);
+            coverage += times.size() / (double) live.size();
+            amplification += (chatMessagesSent() - sentBefore) / (double) Math.max(1, received.size());
+            int index95 = (int) Math.ceil(live.size() * 0.95) - 1;
+            if (times.size() > index95) {
+                t95 += times.get(index95);
+                complete++;
+            }
+            t100 += times.get(times.size() - 1);
+        }
+        System.out.printf("广播 %d 次: 平均覆盖率 %.2f%%, 放大倍数 %.1f 条/节点, 覆盖95%%用时 %s, 最后到达 %.0f ms%n",
+                count, coverage / count * 100, amplification / count,
+                complete > 0 ? String.format("%.0f ms", t95 / complete) : "未达到", t100 / count);
+    }
+
+    /**
+     * 从随机节点发布 count 个值，统计每个值保存到的远程节点数
+     */
+    private void publishValues(int count) {
+        if (count <= 0) return;
+        List<CompletableFuture<Integer>> stores = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<Node> live = liveNodes();
+            int publisher = random.nextInt(live.size());
+            BigInteger key = DhtValueStore.keyFor("sim-value-" + i);
+            keys.add(key);
+            publishers.add(live.get(publisher).getPort());
+            stores.add(live.get(publisher).putValue(key, valueFor(keys.size() - 1), DhtValueStore.DEFAULT_TTL_MS));
+        }
+        List<Integer> replicas = new ArrayList<>();
+        for (CompletableFuture<Integer> store : stores) {
+            replicas.add(await(store, LOOKUP_WAIT_MS, 0));
+        }
+        System.out.printf("发布 %d 个值: 副本数 平均 %.1f, 最少 %d%n",
+                count, average(replicas), percentile(replicas, 0.0));
+    }
+
+    /**
+     * 每个已发布的值从一个不是发布者的随机在线节点查找一次，统计成功率、耗时和成功查找的跳数分布（本地命中不计入跳数）
+     */
+    private void runLookups() {
+        if (keys.isEmpty()) return;
+        List<CompletableFuture<long[]>> lookups = new ArrayList<>();
+        AtomicInteger localHits = new AtomicInteger();
+        for (int i = 0; i < keys.size(); i++) {
+            Node initiator = randomLiveNodeExcept(publishers.get(i));
+            BigInteger key = keys.get(i);
+            String expected = valueFor(i);
+            if (initiator.getValueStore().get(key) != null) localHits.incrementAndGet();
+            long start = System.nanoTime();
+            lookups.add(initiator.lookupValue(key).thenApply(result -> expected.equals(result.getValue())
+                    ? new long[] {TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result.getHops()}
+                    : null));
+        }
+        List<Integer> latencies = new ArrayList<>();
+        List<Integer> hops = new ArrayList<>();
+        for (CompletableFuture<long[]> lookup : lookups) {
+            long[] outcome = await(lookup, LOOKUP_WAIT_MS, null);
+            if (outcome == null) continue;
+            latencies.add((int) outcome[0]);
+            if (outcome[1] > 0) hops.add((int) outcome[1]);
+        }
+        System.out.printf("查找 %d 次: 成功率 %.1f%% (本地命中 %d 次), 耗时 中位 %d ms, p99 %d ms%n",
+                keys.size(), latencies.size() * 100.0 / keys.size(), localHits.get(),
+                percentile(latencies, 0.5), percentile(latencies, 0.99));
+        if (!hops.isEmpty()) {
+            System.out.printf("查找跳数: 平均 %.2f, 中位 %d, p99 %d, 最大 %d, 分布 %s%n",
+                    average(hops), percentile(hops, 0.5), percentile(hops, 0.99), percentile(hops, 1.0),
+                    distribution(hops));
+        }
+    }
+
+    /**
+     * 随机让 churn 比例的节点同时停止，不包括DHT值的发布者
+     */
+    private void churn() {
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : liveNodes()) {
+            if (!publishers.contains(node.getPort())) candidates.add(node);
+        }
+        Collections.shuffle(candidates, random);
+        int victims = Math.min(candidates.size(), (int) (liveNodes().size() * config.getChurn()));
+        for (int i = 0; i < victims; i++) {
+            Node node = candidates.get(i);
+            stoppedPorts.add(node.getPort());
+            node.stop();
+        }
+        System.out.printf("%d 个节点停止, 剩余 %d 个, 路由表中的离线节点条目 %d 个%n",
+                victims, liveNodes().size(), staleEntries());
+    }
+
+    /**
+     * 在 observe 秒内定期统计在线节点路由表中指向已停止节点的条目数
+     */
+    private void observeConvergence() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(config.getObserveSeconds());
+        long initialStale = staleEntries();
+        long evictionsBefore = routingEvictions();
+        long stale = initialStale;
+        long lowest = initialStale;
+        long halfAt = -1, zeroAt = -1;
+        List<Long> samples = new ArrayList<>();
+        samples.add(initialStale);
+        while (System.nanoTime() < deadline) {
+            sleep(Math.min(CONVERGENCE_SAMPLE_MS, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1));
+            stale = staleEntries();
+            samples.add(stale);
+            lowest = Math.min(lowest, stale);
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+            if (halfAt < 0 && stale * 2 <= initialStale) halfAt = elapsed;
+            if (stale == 0) {
+                zeroAt = elapsed;
+                break;
+            }
+        }
+        if (zeroAt >= 0) {
+            System.out.printf("路由表收敛: 离线节点条目 %d 个, 清零用时 %d 秒 (减半用时 %d 秒)%n",
+                    initialStale, zeroAt, halfAt);
+        } else {
+            System.out.printf("路由表未收敛: %d 秒后仍有 %d 个离线节点条目 (初始 %d)%s%n",
+                    config.getObserveSeconds(), stale, initialStale,
+                    halfAt >= 0 ? String.format("，减半用时 %d 秒", halfAt) : "");
+        }
+        System.out.printf("离线节点条目 (每 %d 秒采样): %s, 期间PING确认后移除 %d 个%n",
+                TimeUnit.MILLISECONDS.toSeconds(CONVERGENCE_SAMPLE_MS), samples, routingEvictions() - evictionsBefore);
+        if (initialStale > 0 && lowest >= initialStale) {
+            System.out.printf("警告: 观察期内离线节点条目没有减少 (始终不少于 %d 个)，路由表维护没有发现离线节点%n",
+                    initialStale);
+        }
+        printOverlayShape();
+    }
+
+    private long staleEntries() {
+        long stale = 0;
+        for (Node node : liveNodes()) {
+            for (NodeInfo info : node.getRoutingTable().getAllNodes()) {
+                if (stoppedPorts.contains(info.getPort())) stale++;
+            }
+        }
+        return stale;
+    }
+
+    private long routingEvictions() {
+        long evicted = 0;
+        for (Node node : liveNodes()) {
+            evicted += node.getRoutingEvictions();
+        }
+        return evicted;
+    }
+
+    private void printTraffic() {
+        System.out.printf("连接上的帧 %d 个 (重传 %d 个, 重传用完而中断的连接 %d 条), 数据报 %d 个 (丢失 %d 个), 共 %.1f MB%n",
+                conditions.getFramesSent(), conditions.getFramesRetransmitted(), conditions.getConnectionsAborted(),
+                conditions.getDatagramsSent(), conditions.getDatagramsLost(), conditions.getBytesSent() / 1024.0 / 1024.0);
+        StringBuilder byType = new StringBuilder("按类型发出的消息:");
+        for (Message.Type type : Message.Type.values()) {
+            long sent = 0;
+            for (Node node : nodes) {
+                sent += node.getMessageRouter().getSentCount(type);
+            }
+            if (sent > 0) byType.append(' ').append(type).append('=').append(sent);
+        }
+        System.out.println(byType);
+    }
+
+    private void shutdown() {
+        for (Node node : liveNodes()) {
+            node.stop();
+        }
+    }
+
+    /**
+     * 所有在线节点发出的群聊消息数，加密和未加密的都计入
+     */
+    private long chatMessagesSent() {
+        long sent = 0;
+        for (Node node : liveNodes()) {
+            sent += node.getMessageRouter().getSentCount(Message.Type.CHAT)
+                    + node.getMessageRouter().getSentCount(Message.Type.SECURE_CHAT);
+        }
+        return sent;
+    }
+
+    private List<Node> liveNodes() {
+        List<Node> live = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!stoppedPorts.contains(node.getPort())) live.add(node);
+        }
+        return live;
+    }
+
+    private Node randomLiveNodeExcept(int port) {
+        List<Node> live = liveNodes();
+        while (true) {
+            Node node = live.get(random.nextInt(live.size()));
+            if (node.getPort() != port || live.size() == 1) return node;
+        }
+    }
+
+    private static String valueFor(int index) {
+        return "sim-value-" + index;
+    }
+
+    /**
+     * 记录本节点收到每条模拟广播的时刻
+     */
+    private class DeliveryRecorder implements MessageListener {
+
+        private final int port;
+
+        DeliveryRecorder(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public void onChatMessageReceived(String senderId, String content) {
+            Map<Integer, Long> received = deliveries.get(content);
+            if (received != null) received.putIfAbsent(port, System.nanoTime());
+        }
+
+        @Override
+        public void onPrivateChatMessageReceived(String senderId, String content) {}
+
+        @Override
+        public void onFileTransferRequest(String senderId, String fileName, long fileSize) {}
+
+        @Override
+        public void onConnectionStatusChanged(int connectionCount) {}
+
+        @Override
+        public void onSystemMessage(String message) {}
+
+        @Override
+        public void onMemberJoined(String nodeId, String address) {}
+
+        @Override
+        public void onMemberLeft(String nodeId) {}
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long timeoutMillis, T fallback) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            return fallback;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteRecursively(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("无法删除临时目录 " + root + ": " + e.getMessage());
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double average(List<Integer> values) {
+        long sum = 0;
+        for (int value : values) sum += value;
+        return values.isEmpty() ? 0 : sum / (double) values.size();
+    }
+
+    private static int percentile(List<Integer> values, double quantile) {
+        if (values.isEmpty()) return 0;
+        List<Integer> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    /**
+     * 形如 {1=3, 2=10, 3=2} 的取值计数，按取值排序
+     */
+    private static String distribution(List<Integer> values) {
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (int value : values) {
+            counts.merge(value, 1, Integer::sum);
+        }
+        return counts.toString();
+    }
+
+    private static void printSection(String title) {
+        System.out.println("--------------------------------------");
+        System.out.println(title);
+    }
+}
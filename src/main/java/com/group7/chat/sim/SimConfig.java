@@ -0,0 +1,79 @@
+package com.group7.chat.sim;
+
+/**
+ * 模拟参数，通过命令行的 key=value 形式覆盖默认值
+ *
+ * latency、jitter、joinInterval 以毫秒为单位，settle、observe 以秒为单位，带宽为每个节点上行的字节/秒，0表示不限。
+ * 节点数没有硬性上限，但每个节点是一个真实的 Node：有自己的调度、UDP接收和加密工作线程，启动时生成RSA和X25519密钥，
+ * 因此规模受本机线程数、内存和启动时间限制，普通机器上一般到几百个节点。这是有意的取舍：
+ * 模拟运行的是真实的协议代码而不是协议模型，能暴露实现本身的问题；
+ * 跳数随网络规模增长这类需要上万节点的性质，应当用离散事件模拟另行研究，不在本工具范围内。
+ */
+public class SimConfig {
+
+    private int nodes = 100;
+    private long seed = 42;
+    private double latencyMillis = 40;
+    private double jitterMillis = 20;
+    private double lossRate = 0.0;
+    private long bandwidthBytesPerSecond = 0;
+    private double joinIntervalMillis = 200;
+    private int basePort = 30000;
+    private int settleSeconds = 15;
+    private int broadcasts = 10;
+    private int lookups = 50;
+    private double churn = 0.1;
+    private int observeSeconds = 60;
+
+    public static SimConfig fromArgs(String[] args) {
+        SimConfig config = new SimConfig();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("参数格式应为 key=value: " + arg);
+            }
+            String value = parts[1];
+            switch (parts[0]) {
+                case "nodes": config.nodes = Integer.parseInt(value); break;
+                case "seed": config.seed = Long.parseLong(value); break;
+                case "latency": config.latencyMillis = Double.parseDouble(value); break;
+                case "jitter": config.jitterMillis = Double.parseDouble(value); break;
+                case "loss": config.lossRate = Double.parseDouble(value); break;
+                case "bandwidth": config.bandwidthBytesPerSecond = Long.parseLong(value); break;
+                case "joinInterval": config.joinIntervalMillis = Double.parseDouble(value); break;
+                case "basePort": config.basePort = Integer.parseInt(value); break;
+                case "settle": config.settleSeconds = Integer.parseInt(value); break;
+                case "broadcasts": config.broadcasts = Integer.parseInt(value); break;
+                case "lookups": config.lookups = Integer.parseInt(value); break;
+                case "churn": config.churn = Double.parseDouble(value); break;
+                case "observe": config.observeSeconds = Integer.parseInt(value); break;
+                default:
+                    throw new IllegalArgumentException("未知参数: " + parts[0]);
+            }
+        }
+        return config;
+    }
+
+    public int getNodes() { return nodes; }
+    public long getSeed() { return seed; }
+    public double getLatencyMillis() { return latencyMillis; }
+    public double getJitterMillis() { return jitterMillis; }
+    public double getLossRate() { return lossRate; }
+    public long getBandwidthBytesPerSecond() { return bandwidthBytesPerSecond; }
+    public double getJoinIntervalMillis() { return joinIntervalMillis; }
+    public int getBasePort() { return basePort; }
+    public int getSettleSeconds() { return settleSeconds; }
+    public int getBroadcasts() { return broadcasts; }
+    public int getLookups() { return lookups; }
+    public double getChurn() { return churn; }
+    public int getObserveSeconds() { return observeSeconds; }
+
+    @Override
+    public String toString() {
+        return String.format("nodes=%d seed=%d latency=%.0fms jitter=%.0fms loss=%.3f bandwidth=%s "
+                        + "joinInterval=%.0fms basePort=%d settle=%ds broadcasts=%d lookups=%d churn=%.2f observe=%ds",
+                nodes, seed, latencyMillis, jitterMillis, lossRate,
+                bandwidthBytesPerSecond == 0 ? "不限" : bandwidthBytesPerSecond + "B/s",
+                joinIntervalMillis, basePort, settleSeconds, broadcasts, lookups, churn, observeSeconds);
+    }
+}
@@ -0,0 +1,189 @@
+package com.group7.chat.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 搜索索引的一个不可变段文件，写入后只读，通过内存映射读取
+ *
+ * 文件格式: [各词的倒排表 (见 Postings)][词典][词典位置(8)][消息数(4)][词数(4)][最小offset(8)][最大offset(8)][魔数(4)]，
+ * 词典按词排序，每项为 [词长度(2)][词(UTF-8)][倒排表位置(8)][项数(4)]。打开时把词典读入内存，查找用二分查找。
+ */
+final class IndexSegment {
+
+    static final String SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x4d535358; // "MSSX"
+    private static final int FOOTER_SIZE = 8 + 4 + 4 + 8 + 8 + 4;
+
+    final Path path;
+    final int docCount;
+    final long minOffset;
+    final long maxOffset;
+    private final String[] terms;
+    private final long[] starts;
+    private final int[] counts;
+    private final ByteBuffer buffer;
+
+    private IndexSegment(Path path, int docCount, long minOffset, long maxOffset,
+                         String[] terms, long[] starts, int[] counts, ByteBuffer buffer) {
+        this.path = path;
+        this.docCount = docCount;
+        this.minOffset = minOffset;
+        this.maxOffset = maxOffset;
+        this.terms = terms;
+        this.starts = starts;
+        this.counts = counts;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 按词的顺序写入一个新段，写完后原子地移动到目标路径
+     */
+    static final class Builder {
+        private final Path target;
+        private final Path temp;
+        private final DataOutputStream out;
+        private final List<String> terms = new ArrayList<>();
+        private final List<long[]> entries = new ArrayList<>();
+        private long position = 0;
+
+        Builder(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 65536));
+        }
+
+        /**
+         * 追加一个词的倒排表，词必须按升序加入
+         */
+        void add(String term, Postings.Writer postings) throws IOException {
+            if (!terms.isEmpty() && terms.get(terms.size() - 1).compareTo(term) >= 0) {
+                throw new IllegalArgumentException("词必须按升序加入: " + term);
+            }
+            out.write(postings.bytes(), 0, postings.length());
+            terms.add(term);
+            entries.add(new long[]{position, postings.count()});
+            position += postings.length();
+        }
+
+        IndexSegment finish(int docCount, long minOffset, long maxOffset) throws IOException {
+            try {
+                long dictionaryStart = position;
+                for (int i = 0; i < terms.size(); i++) {
+                    byte[] term = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(term.length);
+                    out.write(term);
+                    out.writeLong(entries.get(i)[0]);
+                    out.writeInt((int) entries.get(i)[1]);
+                }
+                out.writeLong(dictionaryStart);
+                out.writeInt(docCount);
+                out.writeInt(terms.size());
+                out.writeLong(minOffset);
+                out.writeLong(maxOffset);
+                out.writeInt(MAGIC);
+                out.flush();
+            } finally {
+                out.close();
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return open(target);
+        }
+
+        void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                // 临时文件在下次打开索引时清理
+            }
+        }
+    }
+
+    /**
+     * 打开段文件，格式错误时抛出IOException
+     */
+    static IndexSegment open(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) throw new IOException("索引段大小无效: " + path);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int footer = buffer.capacity() - FOOTER_SIZE;
+        long dictionaryStart = buffer.getLong(footer);
+        int docCount = buffer.getInt(footer + 8);
+        int termCount = buffer.getInt(footer + 12);
+        long minOffset = buffer.getLong(footer + 16);
+        long maxOffset = buffer.getLong(footer + 24);
+        if (buffer.getInt(footer + 32) != MAGIC || dictionaryStart < 0 || dictionaryStart > footer || termCount < 0) {
+            throw new IOException("索引段已损坏: " + path);
+        }
+
+        String[] terms = new String[termCount];
+        long[] starts = new long[termCount];
+        int[] counts = new int[termCount];
+        ByteBuffer dictionary = buffer.duplicate();
+        dictionary.position((int) dictionaryStart).limit(footer);
+        try {
+            for (int i = 0; i < termCount; i++) {
+                byte[] term = new byte[dictionary.getShort() & 0xFFFF];
+                dictionary.get(term);
+                terms[i] = new String(term, StandardCharsets.UTF_8);
+                starts[i] = dictionary.getLong();
+                counts[i] = dictionary.getInt();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("索引段词典已损坏: " + path);
+        }
+        return new IndexSegment(path, docCount, minOffset, maxOffset, terms, starts, counts, buffer);
+    }
+
+    int termCount() {
+        return terms.length;
+    }
+
+    String term(int i) {
+        return terms[i];
+    }
+
+    /**
+     * 第 i 个词的倒排表
+     */
+    long[] postingsAt(int i) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) starts[i]);
+        return Postings.decode(view, counts[i]);
+    }
+
+    /**
+     * 词的倒排表，段中没有这个词时返回null
+     */
+    long[] postings(String term) {
+        int i = Arrays.binarySearch(terms, term);
+        return i < 0 ? null : postingsAt(i);
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // 不在清单中的段文件在下次打开索引时清理
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.group7.chat.store;
+
+import com.group7.chat.logging.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 消息日志的一个段文件：只追加写入，通过内存映射读取
+ *
+ * 记录格式: [长度(4)][CRC32(4)][时间戳(8)][标志(1)][会话(2+n)][发送者(2+n)][内容(4+n)]，
+ * 长度和CRC覆盖时间戳之后的部分。段内维护两个稀疏索引：每 TIME_INDEX_INTERVAL 字节一条的时间索引，
+ * 以及每个会话每 CONVERSATION_INDEX_INTERVAL 条记录一条的会话索引。
+ * 段写满封存时索引写入同名 .idx 文件，重新打开时不必扫描整个段；活跃段在打开时扫描重建，
+ * 末尾不完整或校验失败的记录（写入中途退出）被截断。
+ */
+final class LogSegment {
+
+    private static final Logger log = Logger.getLogger(LogSegment.class);
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    static final byte FLAG_OUTGOING = 1;
+    static final byte FLAG_TOMBSTONE = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TIME_INDEX_INTERVAL = 4096;
+    static final int CONVERSATION_INDEX_INTERVAL = 16;
+    private static final int INDEX_MAGIC = 0x4d534958; // "MSIX"
+
+    /**
+     * 按位置递增的稀疏索引 (时间戳, 段内位置)
+     */
+    static final class SparseIndex {
+        long[] timestamps = new long[8];
+        int[] positions = new int[8];
+        int size;
+
+        void add(long timestamp, int position) {
+            if (size == positions.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            timestamps[size] = timestamp;
+            positions[size] = position;
+            size++;
+        }
+
+        /**
+         * 位置小于 position 的最后一个条目，没有时返回-1
+         */
+        int lastBefore(int position) {
+            int low = 0, high = size - 1, result = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < position) {
+                    result = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 时间戳小于 timestamp 的最后一个条目，没有时返回-1
+         */
+        int lastBeforeTime(long timestamp) {
+            int low = 0, high = size - 1, result = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < timestamp) {
+                    result = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return result;
+        }
+    }
+
+    final long baseOffset;
+    private final Path logPath;
+    private final Path indexPath;
+    private FileChannel channel;
+    private long size;
+    private MappedByteBuffer mapped;
+    private long mappedSize = -1;
+
+    private final SparseIndex timeIndex = new SparseIndex();
+    private final Map<String, SparseIndex> conversationIndex = new HashMap<>();
+    private final Map<String, Integer> conversationCounts = new HashMap<>();
+    // 本段中各会话最新的删除标记的全局offset
+    private final Map<String, Long> tombstones = new HashMap<>();
+    private int lastTimeIndexed = -TIME_INDEX_INTERVAL;
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+
+    private LogSegment(Path dir, long baseOffset) {
+        this.baseOffset = baseOffset;
+        String name = String.format("%020d", baseOffset);
+        this.logPath = dir.resolve(name + LOG_SUFFIX);
+        this.indexPath = dir.resolve(name + INDEX_SUFFIX);
+    }
+
+    /**
+     * 创建一个新的空段
+     */
+    static LogSegment create(Path dir, long baseOffset) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseOffset);
+        segment.channel = FileChannel.open(segment.logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.size = segment.channel.size();
+        return segment;
+    }
+
+    /**
+     * 打开已有的段：已封存且有索引文件时直接加载索引，否则扫描段文件重建
+     */
+    static LogSegment open(Path dir, long baseOffset, boolean sealed) throws IOException {
+        LogSegment segment = create(dir, baseOffset);
+        if (sealed && segment.loadIndex()) return segment;
+        Files.deleteIfExists(segment.indexPath);
+        segment.recover();
+        if (sealed) segment.writeIndex();
+        return segment;
+    }
+
+    /**
+     * 从文件名解析段的起始offset，不是段文件时返回-1
+     */
+    static long parseBaseOffset(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(LOG_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long endOffset() {
+        return baseOffset + size;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    Map<String, Long> getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * 追加一条记录，返回其段内位置
+     */
+    int append(long timestamp, byte flags, String conversation, String senderId, String content) throws IOException {
+        ByteBuffer record = encode(timestamp, flags, conversation, senderId, content);
+        int position = (int) size;
+        long writeAt = size;
+        while (record.hasRemaining()) {
+            writeAt += channel.write(record, writeAt);
+        }
+        size = writeAt;
+        indexRecord(position, timestamp, flags, conversation);
+        return position;
+    }
+
+    /**
+     * 读取会话中位置在 beforePosition 之前的最新 limit 条消息（按时间从旧到新），
+     * 全局offset不大于 deletedUpTo 的记录视为已删除
+     */
+    List<StoredMessage> readBefore(String conversation, int beforePosition, int limit, long deletedUpTo)
+            throws IOException {
+        SparseIndex index = conversationIndex.get(conversation);
+        if (index == null) return new ArrayList<>();
+        int last = index.lastBefore(beforePosition);
+        if (last < 0) return new ArrayList<>();
+
+        // 相邻索引条目之间有 CONVERSATION_INDEX_INTERVAL 条该会话的记录，向前多退一个条目即可覆盖 limit 条
+        int start = Math.max(0, last - limit / CONVERSATION_INDEX_INTERVAL - 1);
+        byte[] wanted = conversation.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = view();
+        ArrayDeque<StoredMessage> window = new ArrayDeque<>(limit + 1);
+        int position = index.positions[start];
+        int end = (int) Math.min(beforePosition, size);
+        while (position < end) {
+            int length = buffer.getInt(position);
+            int body = position + HEADER_SIZE;
+            byte flags = buffer.get(body + 8);
+            if ((flags & FLAG_TOMBSTONE) == 0 && baseOffset + position > deletedUpTo
+                    && conversationEquals(buffer, body + 9, wanted)) {
+                window.addLast(decode(buffer, position));
+                if (window.size() > limit) window.removeFirst();
+            }
+            position = body + length;
+        }
+        return new ArrayList<>(window);
+    }
+
+    /**
+     * 段内位置 position 处的消息，位置超出段末尾或是删除标记时返回null
+     */
+    StoredMessage readAt(int position) throws IOException {
+        if (position < 0 || position + HEADER_SIZE > size) return null;
+        ByteBuffer buffer = view();
+        if ((buffer.get(position + HEADER_SIZE + 8) & FLAG_TOMBSTONE) != 0) return null;
+        return decode(buffer, position);
+    }
+
+    /**
+     * 从段内位置 position 开始顺序读取最多 maxRecords 条记录（含删除标记，内容为空）加入 out，
+     * 返回最后一条记录之后的段内位置
+     */
+    int readFrom(int position, int maxRecords, List<StoredMessage> out) throws IOException {
+        ByteBuffer buffer = view();
+        for (int i = 0; i < maxRecords && position < size; i++) {
+            out.add(decode(buffer, position));
+            position += HEADER_SIZE + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    /**
+     * 第一条时间戳不早于 timestamp 的记录的全局offset，没有时返回-1
+     */
+    long offsetForTime(long timestamp) throws IOException {
+        if (lastTimestamp < timestamp) return -1;
+        int entry = timeIndex.lastBeforeTime(timestamp);
+        int position = entry < 0 ? 0 : timeIndex.positions[entry];
+        ByteBuffer buffer = view();
+        while (position < size) {
+            if (buffer.getLong(position + HEADER_SIZE) >= timestamp) return baseOffset + position;
+            position += HEADER_SIZE + buffer.getInt(position);
+        }
+        return -1;
+    }
+
+    /**
+     * 段中是否有属于已删除会话、可以被压缩掉的记录
+     */
+    boolean hasDeletedRecords(Map<String, Long> deleted) {
+        for (Map.Entry<String, SparseIndex> entry : conversationIndex.entrySet()) {
+            Long deletedUpTo = deleted.get(entry.getKey());
+            if (deletedUpTo != null && baseOffset + entry.getValue().positions[0] < deletedUpTo) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 去掉已删除会话的记录后重写本段（仅用于已封存的段），返回重写后的新段
+     */
+    LogSegment rewrite(Map<String, Long> deleted) throws IOException {
+        Path dir = logPath.getParent();
+        Path temp = logPath.resolveSibling(logPath.getFileName() + ".compacting");
+        ByteBuffer buffer = view();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int position = 0;
+            while (position < size) {
+                int total = HEADER_SIZE + buffer.getInt(position);
+                StoredMessage record = decode(buffer, position);
+                Long deletedUpTo = deleted.get(record.getConversation());
+                boolean tombstone = (buffer.get(position + HEADER_SIZE + 8) & FLAG_TOMBSTONE) != 0;
+                if (tombstone || deletedUpTo == null || baseOffset + position > deletedUpTo) {
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(position).limit(position + total);
+                    while (slice.hasRemaining()) out.write(slice);
+                }
+                position += total;
+            }
+            out.force(true);
+        }
+        close();
+        mapped = null;
+        Files.move(temp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(indexPath);
+        return open(dir, baseOffset, true);
+    }
+
+    /**
+     * 段写满时调用：刷盘并保存索引
+     */
+    void seal() throws IOException {
+        channel.force(true);
+        writeIndex();
+    }
+
+    void flush() throws IOException {
+        channel.force(false);
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭时的错误
+        }
+    }
+
+    void delete() throws IOException {
+        close();
+        mapped = null;
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    /**
+     * 当前段内容的只读映射，段增长后重新映射
+     */
+    private ByteBuffer view() throws IOException {
+        if (mapped == null || mappedSize != size) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mappedSize = size;
+        }
+        return mapped.duplicate();
+    }
+
+    private void indexRecord(int position, long timestamp, byte flags, String conversation) {
+        if (firstTimestamp < 0) firstTimestamp = timestamp;
+        lastTimestamp = timestamp;
+        if (position - lastTimeIndexed >= TIME_INDEX_INTERVAL) {
+            timeIndex.add(timestamp, position);
+            lastTimeIndexed = position;
+        }
+        if ((flags & FLAG_TOMBSTONE) != 0) {
+            tombstones.put(conversation, baseOffset + position);
+            return;
+        }
+        int count = conversationCounts.merge(conversation, 1, Integer::sum);
+        if ((count - 1) % CONVERSATION_INDEX_INTERVAL == 0) {
+            conversationIndex.computeIfAbsent(conversation, c -> new SparseIndex()).add(timestamp, position);
+        }
+    }
+
+    /**
+     * 扫描整个段重建索引，遇到不完整或校验失败的记录时截断
+     */
+    private void recover() throws IOException {
+        ByteBuffer buffer = view();
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + HEADER_SIZE <= size) {
+            int length = buffer.getInt(position);
+            if (length < 17 || position + HEADER_SIZE + (long) length > size) break;
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + HEADER_SIZE).limit(position + HEADER_SIZE + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+
+            StoredMessage record = decode(buffer, position);
+            indexRecord(position, record.getTimestamp(), buffer.get(position + HEADER_SIZE + 8),
+                    record.getConversation());
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            log.warn("消息日志段 " + logPath.getFileName() + " 在位置 " + position + " 之后的数据不完整，已截断");
+            mapped = null;
+            channel.truncate(position);
+            size = position;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(size);
+            out.writeLong(firstTimestamp);
+            out.writeLong(lastTimestamp);
+            writeSparseIndex(out, timeIndex);
+            out.writeInt(conversationIndex.size());
+            for (Map.Entry<String, SparseIndex> entry : conversationIndex.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeSparseIndex(out, entry.getValue());
+            }
+            out.writeInt(tombstones.size());
+            for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 加载索引文件，文件不存在、损坏或与段大小不符时返回false
+     */
+    private boolean loadIndex() {
+        if (!Files.exists(indexPath)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readLong() != size) return false;
+            firstTimestamp = in.readLong();
+            lastTimestamp = in.readLong();
+            readSparseIndex(in, timeIndex);
+            int conversations = in.readInt();
+            for (int i = 0; i < conversations; i++) {
+                String conversation = in.readUTF();
+                readSparseIndex(in, conversationIndex.computeIfAbsent(conversation, c -> new SparseIndex()));
+            }
+            int deleted = in.readInt();
+            for (int i = 0; i < deleted; i++) {
+                tombstones.put(in.readUTF(), in.readLong());
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("读取消息日志索引 " + indexPath.getFileName() + " 失败，重新扫描: " + e.getMessage());
+            timeIndex.size = 0;
+            conversationIndex.clear();
+            tombstones.clear();
+            return false;
+        }
+    }
+
+    private static void writeSparseIndex(DataOutputStream out, SparseIndex index) throws IOException {
+        out.writeInt(index.size);
+        for (int i = 0; i < index.size; i++) {
+            out.writeLong(index.timestamps[i]);
+            out.writeInt(index.positions[i]);
+        }
+    }
+
+    private static void readSparseIndex(DataInputStream in, SparseIndex index) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            index.add(in.readLong(), in.readInt());
+        }
+    }
+
+    private static ByteBuffer encode(long timestamp, byte flags, String conversation, String senderId, String content) {
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = senderId.getBytes(StandardCharsets.UTF_8);
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        if (conversationBytes.length > 0xFFFF || senderBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("会话或发送者ID过长");
+        }
+        int length = 8 + 1 + 2 + conversationBytes.length + 2 + senderBytes.length + 4 + contentBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length).putInt(0);
+        buffer.putLong(timestamp).put(flags);
+        buffer.putShort((short) conversationBytes.length).put(conversationBytes);
+        buffer.putShort((short) senderBytes.length).put(senderBytes);
+        buffer.putInt(contentBytes.length).put(contentBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private StoredMessage decode(ByteBuffer buffer, int position) {
+        int at = position + HEADER_SIZE;
+        long timestamp = buffer.getLong(at);
+        byte flags = buffer.get(at + 8);
+        at += 9;
+        int conversationLength = buffer.getShort(at) & 0xFFFF;
+        String conversation = readString(buffer, at + 2, conversationLength);
+        at += 2 + conversationLength;
+        int senderLength = buffer.getShort(at) & 0xFFFF;
+        String senderId = readString(buffer, at + 2, senderLength);
+        at += 2 + senderLength;
+        int contentLength = buffer.getInt(at);
+        String content = readString(buffer, at + 4, contentLength);
+        return new StoredMessage(baseOffset + position, conversation, timestamp, senderId, content,
+                (flags & FLAG_OUTGOING) != 0);
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 不解码字符串，直接比较记录中的会话字段
+     */
+    private static boolean conversationEquals(ByteBuffer buffer, int position, byte[] wanted) {
+        if ((buffer.getShort(position) & 0xFFFF) != wanted.length) return false;
+        for (int i = 0; i < wanted.length; i++) {
+            if (buffer.get(position + 2 + i) != wanted[i]) return false;
+        }
+        return true;
+    }
+}
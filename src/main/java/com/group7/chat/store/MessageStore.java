@@ -0,0 +1,400 @@
+package com.group7.chat.store;
+
+import com.group7.chat.logging.Logger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 本地聊天记录：由只追加的段文件组成的消息日志 (见 LogSegment)
+ *
+ * 活跃段超过 maxSegmentBytes 时封存并新建下一个段，段以其起始offset命名。
+ * appendAsync 把写入交给单独的写线程，界面线程和网络线程不等待磁盘；readBefore 按会话从新到旧分页读取。
+ * 压缩任务每 COMPACT_INTERVAL_MINUTES 运行一次：删除超过保留期或超出总大小上限的最旧段，
+ * 并重写含有已删除会话 (deleteConversation) 记录的段。
+ * 全文索引 (SearchIndex) 保存在 search 子目录中，随写入增量更新；打开时或段被重写后由写线程分批补建，
+ * 补建完成之前较新的消息暂时搜索不到。
+ */
+public class MessageStore {
+
+    private static final Logger log = Logger.getLogger(MessageStore.class);
+
+    public static final String GROUP_CONVERSATION = "group";
+
+    private static final long DEFAULT_SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final long DEFAULT_RETENTION_MS = 90L * 24 * 60 * 60 * 1000;
+    private static final long DEFAULT_MAX_TOTAL_BYTES = 512L * 1024 * 1024;
+    private static final long COMPACT_INTERVAL_MINUTES = 60;
+    private static final int INDEX_CATCH_UP_RECORDS = 5000;
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final long retentionMs;
+    private final long maxTotalBytes;
+    private final List<LogSegment> segments = new ArrayList<>();
+    // 各会话最新删除标记的全局offset，不大于该offset的记录视为已删除
+    private final Map<String, Long> deleted = new HashMap<>();
+    private final SearchIndex searchIndex;
+    private long lastTimestamp = 0;
+    private boolean closed = false;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MessageStore(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_MS, DEFAULT_MAX_TOTAL_BYTES);
+    }
+
+    public MessageStore(Path dir, long maxSegmentBytes, long retentionMs, long maxTotalBytes) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.retentionMs = retentionMs;
+        this.maxTotalBytes = maxTotalBytes;
+        Files.createDirectories(dir);
+        openSegments();
+        searchIndex = SearchIndex.open(dir.resolve("search"));
+        long logStart = segments.get(0).baseOffset;
+        if (searchIndex.getIndexedUpTo() > activeSegment().endOffset()) {
+            // 日志比索引短（日志文件被删除或截断），索引已不可信
+            searchIndex.reset(logStart);
+        }
+        searchIndex.skipTo(logStart);
+        searchIndex.setLiveFrom(logStart);
+        writer.execute(this::catchUpIndex);
+        writer.scheduleAtFixedRate(this::compact, COMPACT_INTERVAL_MINUTES, COMPACT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 私聊会话的名称
+     */
+    public static String privateConversation(String peerId) {
+        return "private:" + peerId;
+    }
+
+    /**
+     * 异步追加一条消息，写入失败只记录日志
+     */
+    public void appendAsync(String conversation, String senderId, String content, boolean outgoing) {
+        try {
+            writer.execute(() -> {
+                try {
+                    append(conversation, senderId, content, outgoing);
+                } catch (IOException | IllegalArgumentException e) {
+                    log.error("写入聊天记录失败: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("聊天记录已关闭，丢弃一条消息");
+        }
+    }
+
+    /**
+     * 同步追加一条消息，返回写入的记录
+     */
+    public synchronized StoredMessage append(String conversation, String senderId, String content,
+                                             boolean outgoing) throws IOException {
+        if (closed) throw new IOException("聊天记录已关闭");
+        // 时间戳单调不减，同一会话中offset和时间戳的顺序一致
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        byte flags = outgoing ? LogSegment.FLAG_OUTGOING : 0;
+        LogSegment segment = activeSegmentFor(conversation.length() + senderId.length() + content.length() * 3L);
+        int position = segment.append(timestamp, flags, conversation, senderId, content);
+        lastTimestamp = timestamp;
+        indexRecord(segment.baseOffset + position, segment.endOffset(), content);
+        return new StoredMessage(segment.baseOffset + position, conversation, timestamp, senderId, content, outgoing);
+    }
+
+    /**
+     * 读取会话中offset在 beforeOffset 之前的最新 limit 条消息，按时间从旧到新排列；
+     * 读取最新一页时传入 Long.MAX_VALUE，之后用返回的第一条消息的offset继续向前翻页
+     */
+    public synchronized List<StoredMessage> readBefore(String conversation, long beforeOffset, int limit) {
+        List<StoredMessage> result = new ArrayList<>();
+        long deletedUpTo = deleted.getOrDefault(conversation, -1L);
+        try {
+            for (int i = segments.size() - 1; i >= 0 && result.size() < limit; i--) {
+                LogSegment segment = segments.get(i);
+                if (segment.baseOffset >= beforeOffset) continue;
+                if (segment.endOffset() <= deletedUpTo) break;
+                int beforePosition = (int) Math.min(beforeOffset - segment.baseOffset, segment.size());
+                result.addAll(0, segment.readBefore(conversation, beforePosition, limit - result.size(), deletedUpTo));
+            }
+        } catch (IOException e) {
+            log.error("读取聊天记录失败: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 第一条时间戳不早于 timestamp 的记录的offset（用于按日期跳转），没有时返回日志末尾的offset
+     */
+    public synchronized long offsetForTime(long timestamp) {
+        try {
+            for (LogSegment segment : segments) {
+                long offset = segment.offsetForTime(timestamp);
+                if (offset >= 0) return offset;
+            }
+        } catch (IOException e) {
+            log.error("读取聊天记录失败: " + e.getMessage());
+        }
+        return activeSegment().endOffset();
+    }
+
+    /**
+     * 全文搜索：返回包含查询中所有词的消息，从新到旧最多 limit 条，不含已删除的会话。
+     * 索引按词（中日韩文字按二元词）匹配，候选消息再按查询中以空白分隔的每个片段做一次不区分大小写的子串检查
+     */
+    public List<StoredMessage> search(String query, int limit) {
+        List<StoredMessage> results = new ArrayList<>();
+        List<String> terms = Tokenizer.terms(query);
+        if (terms.isEmpty() || limit <= 0) return results;
+        String[] fragments = query.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        long before = Long.MAX_VALUE;
+        int batch = Math.max(32, limit * 2);
+        while (results.size() < limit) {
+            long[] candidates = searchIndex.search(terms, before, batch);
+            for (int i = 0; i < candidates.length && results.size() < limit; i++) {
+                StoredMessage message = readAt(candidates[i]);
+                if (message != null && containsAll(message.getContent().toLowerCase(Locale.ROOT), fragments)) {
+                    results.add(message);
+                }
+            }
+            if (candidates.length < batch) break;
+            before = candidates[candidates.length - 1];
+        }
+        return results;
+    }
+
+    private static boolean containsAll(String content, String[] fragments) {
+        for (String fragment : fragments) {
+            if (!content.contains(fragment)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 全局offset处的消息，记录已被删除（保留期、删除会话）时返回null
+     */
+    synchronized StoredMessage readAt(long offset) {
+        if (closed) return null;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            LogSegment segment = segments.get(i);
+            if (segment.baseOffset > offset) continue;
+            if (offset >= segment.endOffset()) return null;
+            try {
+                StoredMessage message = segment.readAt((int) (offset - segment.baseOffset));
+                if (message == null || offset <= deleted.getOrDefault(message.getConversation(), -1L)) return null;
+                return message;
+            } catch (IOException e) {
+                log.error("读取聊天记录失败: " + e.getMessage());
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除一个会话的全部记录：先写入删除标记，磁盘空间在下次压缩时回收
+     */
+    public synchronized boolean deleteConversation(String conversation) {
+        try {
+            LogSegment segment = activeSegmentFor(conversation.length());
+            long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+            int position = segment.append(timestamp, LogSegment.FLAG_TOMBSTONE, conversation, "", "");
+            lastTimestamp = timestamp;
+            deleted.put(conversation, segment.baseOffset + position);
+            indexRecord(segment.baseOffset + position, segment.endOffset(), null);
+            return true;
+        } catch (IOException e) {
+            log.error("删除会话记录失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 回收磁盘空间：删除过期或超出总大小的最旧段，重写含有已删除会话记录的封存段（活跃段不处理）
+     */
+    public synchronized void compact() {
+        if (closed) return;
+        try {
+            long cutoff = System.currentTimeMillis() - retentionMs;
+            while (segments.size() > 1) {
+                LogSegment oldest = segments.get(0);
+                if (oldest.getLastTimestamp() >= cutoff && totalBytes() <= maxTotalBytes) break;
+                oldest.delete();
+                segments.remove(0);
+                log.info("删除过期的聊天记录段: " + oldest.baseOffset);
+                searchIndex.setLiveFrom(segments.get(0).baseOffset);
+                searchIndex.skipTo(segments.get(0).baseOffset);
+            }
+            boolean rewritten = false;
+            for (int i = 0; i < segments.size() - 1; i++) {
+                LogSegment segment = segments.get(i);
+                if (segment.hasDeletedRecords(deleted)) {
+                    long before = segment.size();
+                    LogSegment compacted = segment.rewrite(deleted);
+                    segments.set(i, compacted);
+                    rewritten = true;
+                    log.info("压缩聊天记录段 " + segment.baseOffset + ": " + before + " -> " + compacted.size() + " 字节");
+                }
+            }
+            if (rewritten) {
+                // 重写后段内记录的offset变了，索引从头重建
+                searchIndex.reset(segments.get(0).baseOffset);
+                writer.execute(this::catchUpIndex);
+            }
+        } catch (IOException e) {
+            log.error("压缩聊天记录失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 所有段的总字节数
+     */
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    /**
+     * 等待已提交的写入完成后关闭
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            try {
+                activeSegment().flush();
+            } catch (IOException e) {
+                log.warn("刷新聊天记录失败: " + e.getMessage());
+            }
+            searchIndex.close();
+            for (LogSegment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    private void openSegments() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".compacting") || name.endsWith(".tmp")) {
+                    // 压缩或写索引中途退出留下的临时文件
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        log.warn("无法删除临时文件 " + name);
+                    }
+                    return;
+                }
+                long base = LogSegment.parseBaseOffset(file);
+                if (base >= 0) bases.add(base);
+            });
+        }
+        bases.sort(null);
+        for (int i = 0; i < bases.size(); i++) {
+            LogSegment segment = LogSegment.open(dir, bases.get(i), i < bases.size() - 1);
+            segments.add(segment);
+            segment.getTombstones().forEach((conversation, offset) -> deleted.merge(conversation, offset, Math::max));
+            lastTimestamp = Math.max(lastTimestamp, segment.getLastTimestamp());
+        }
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.create(dir, 0));
+        }
+    }
+
+    /**
+     * 索引已追上日志末尾时把新记录加入索引，否则留给 catchUpIndex
+     */
+    private void indexRecord(long offset, long end, String content) {
+        if (searchIndex.getIndexedUpTo() != offset) return;
+        try {
+            if (searchIndex.add(offset, end, content)) scheduleIndexMerge();
+        } catch (IOException e) {
+            log.error("写入搜索索引失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 从索引位置开始补建最多 INDEX_CATCH_UP_RECORDS 条记录，未完成时在写线程上继续，不长时间占用写线程
+     */
+    private synchronized void catchUpIndex() {
+        if (closed) return;
+        long from = searchIndex.getIndexedUpTo();
+        try {
+            for (LogSegment segment : segments) {
+                if (from >= segment.endOffset()) continue;
+                // 重写过的段比原来短，与下一个段之间有空隙
+                from = Math.max(from, segment.baseOffset);
+                List<StoredMessage> records = new ArrayList<>();
+                long end = segment.baseOffset
+                        + segment.readFrom((int) (from - segment.baseOffset), INDEX_CATCH_UP_RECORDS, records);
+                boolean flushed = false;
+                for (int i = 0; i < records.size(); i++) {
+                    StoredMessage record = records.get(i);
+                    long next = i + 1 < records.size() ? records.get(i + 1).getOffset() : end;
+                    flushed |= searchIndex.add(record.getOffset(), next, record.getContent());
+                }
+                if (flushed) scheduleIndexMerge();
+                writer.execute(this::catchUpIndex);
+                return;
+            }
+        } catch (IOException | RejectedExecutionException e) {
+            log.warn("补建搜索索引中断: " + e.getMessage());
+        }
+    }
+
+    private void scheduleIndexMerge() {
+        try {
+            writer.execute(() -> {
+                try {
+                    searchIndex.maybeMerge();
+                } catch (IOException e) {
+                    log.error("合并搜索索引失败: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已关闭，下次打开时再合并
+        }
+    }
+
+    private LogSegment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * 返回可写入 approximateBytes 字节的活跃段，当前段已满时封存并新建
+     */
+    private LogSegment activeSegmentFor(long approximateBytes) throws IOException {
+        LogSegment active = activeSegment();
+        if (active.size() > 0 && active.size() + approximateBytes > maxSegmentBytes) {
+            active.seal();
+            active = LogSegment.create(dir, active.endOffset());
+            segments.add(active);
+        }
+        return active;
+    }
+}
@@ -0,0 +1,76 @@
+package com.group7.chat.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 倒排表的压缩编码：按offset递增排列，每项保存与前一项的差值，差值用变长整数 (每字节7位) 编码，
+ * 同一会话连续的消息之间差值很小，通常一到两个字节一项
+ */
+final class Postings {
+
+    private Postings() {
+    }
+
+    /**
+     * 逐项追加的倒排表，offset必须递增
+     */
+    static final class Writer {
+        private byte[] bytes = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private long last = 0;
+
+        void add(long offset) {
+            long delta = offset - last;
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            while ((delta & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = offset;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        long[] decode() {
+            return Postings.decode(ByteBuffer.wrap(bytes, 0, length), count);
+        }
+    }
+
+    /**
+     * 解码 buffer 当前位置开始的 count 项
+     */
+    static long[] decode(ByteBuffer buffer, int count) {
+        long[] offsets = new long[count];
+        long last = 0;
+        int position = buffer.position();
+        for (int i = 0; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            last += delta;
+            offsets[i] = last;
+        }
+        return offsets;
+    }
+}
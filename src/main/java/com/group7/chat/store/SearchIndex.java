@@ -0,0 +1,380 @@
+package com.group7.chat.store;
+
+import com.group7.chat.logging.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * 聊天记录的全文索引：词 -> 包含该词的消息offset（倒排表）
+ *
+ * 新消息先加入内存中的缓冲，缓冲满 FLUSH_DOCS 条时写成一个不可变的索引段 (IndexSegment)。
+ * 同一级别（消息数同一数量级）的相邻段达到 MERGE_FACTOR 个时合并为上一级的一个段，段数保持在对数级别；
+ * 合并时丢弃已被保留期删除的消息。清单文件记录当前的段和已写入段的日志位置 (indexedUpTo)，
+ * 缓冲中的消息不持久化，重新打开后由 MessageStore 从该位置补建。
+ */
+final class SearchIndex {
+
+    private static final Logger log = Logger.getLogger(SearchIndex.class);
+
+    static final int FLUSH_DOCS = 20_000;
+    static final int MERGE_FACTOR = 8;
+
+    private static final String MANIFEST = "manifest";
+    private static final int MANIFEST_MAGIC = 0x4d53534d; // "MSSM"
+
+    private final Path dir;
+    private final List<IndexSegment> segments = new ArrayList<>(); // 从旧到新
+    private Map<String, Postings.Writer> buffer = new HashMap<>();
+    private int bufferDocs = 0;
+    private long bufferMin = -1;
+    private long bufferMax = -1;
+    // 日志中这个位置之前的记录都已加入索引（含缓冲）
+    private long indexedUpTo = 0;
+    // 保留期删除的日志位置，之前的offset不再返回
+    private long liveFrom = 0;
+    private int nextSegmentId = 0;
+    private boolean merging = false;
+
+    private SearchIndex(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 打开索引目录，清单缺失或损坏时从空索引开始
+     */
+    static SearchIndex open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        SearchIndex index = new SearchIndex(dir);
+        if (!index.loadManifest()) {
+            index.segments.clear();
+            index.indexedUpTo = 0;
+        }
+        index.deleteUnlistedFiles();
+        return index;
+    }
+
+    synchronized long getIndexedUpTo() {
+        return indexedUpTo;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 加入日志位置 offset 处的一条消息，end 为下一条记录的位置；content 为null时只前移 indexedUpTo（删除标记）。
+     * 缓冲写成新段时返回true，调用者应安排一次 maybeMerge
+     */
+    synchronized boolean add(long offset, long end, String content) throws IOException {
+        indexedUpTo = end;
+        if (content == null) return false;
+        List<String> terms = Tokenizer.terms(content);
+        if (terms.isEmpty()) return false;
+        for (String term : terms) {
+            buffer.computeIfAbsent(term, t -> new Postings.Writer()).add(offset);
+        }
+        if (bufferMin < 0) bufferMin = offset;
+        bufferMax = offset;
+        if (++bufferDocs < FLUSH_DOCS) return false;
+        flush();
+        return true;
+    }
+
+    /**
+     * 跳过不需要索引的日志区间
+     */
+    synchronized void skipTo(long offset) {
+        indexedUpTo = Math.max(indexedUpTo, offset);
+    }
+
+    /**
+     * 日志最旧的段被删除后调用，之前的offset不再出现在结果中
+     */
+    synchronized void setLiveFrom(long offset) {
+        liveFrom = offset;
+    }
+
+    /**
+     * 把缓冲写成一个新段并更新清单
+     */
+    synchronized void flush() throws IOException {
+        if (bufferDocs > 0) {
+            List<String> terms = new ArrayList<>(buffer.keySet());
+            terms.sort(null);
+            IndexSegment.Builder builder = new IndexSegment.Builder(segmentPath(nextSegmentId++));
+            try {
+                for (String term : terms) {
+                    builder.add(term, buffer.get(term));
+                }
+                segments.add(builder.finish(bufferDocs, bufferMin, bufferMax));
+            } catch (IOException | RuntimeException e) {
+                builder.abort();
+                throw e;
+            }
+            buffer = new HashMap<>();
+            bufferDocs = 0;
+            bufferMin = -1;
+            bufferMax = -1;
+        }
+        writeManifest();
+    }
+
+    /**
+     * 合并同一级别的 MERGE_FACTOR 个相邻段，直到没有可合并的段。
+     * 读写段文件时不持有锁，只在替换段列表时加锁；同一时间只有一个合并在进行
+     */
+    void maybeMerge() throws IOException {
+        synchronized (this) {
+            if (merging) return;
+            merging = true;
+        }
+        try {
+            List<IndexSegment> run;
+            while ((run = nextMergeRun()) != null) {
+                IndexSegment merged = merge(run);
+                synchronized (this) {
+                    int at = segments.indexOf(run.get(0));
+                    if (at < 0) {
+                        // 合并期间索引被重建，丢弃合并结果
+                        merged.delete();
+                        return;
+                    }
+                    segments.subList(at, at + run.size()).clear();
+                    segments.add(at, merged);
+                    writeManifest();
+                }
+                for (IndexSegment segment : run) {
+                    segment.delete();
+                }
+                log.info("合并 " + run.size() + " 个搜索索引段，共 " + merged.docCount + " 条消息、" + merged.termCount() + " 个词");
+            }
+        } finally {
+            synchronized (this) {
+                merging = false;
+            }
+        }
+    }
+
+    private synchronized List<IndexSegment> nextMergeRun() {
+        for (int end = segments.size(); end >= MERGE_FACTOR; end--) {
+            int level = level(segments.get(end - 1));
+            boolean sameLevel = true;
+            for (int i = end - MERGE_FACTOR; i < end - 1 && sameLevel; i++) {
+                sameLevel = level(segments.get(i)) == level;
+            }
+            if (sameLevel) return new ArrayList<>(segments.subList(end - MERGE_FACTOR, end));
+        }
+        return null;
+    }
+
+    private static int level(IndexSegment segment) {
+        int level = 0;
+        for (long size = FLUSH_DOCS * (long) MERGE_FACTOR; segment.docCount >= size; size *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * 按词的顺序多路归并各段的词典；输入段按offset从小到大排列，倒排表直接顺序拼接
+     */
+    private IndexSegment merge(List<IndexSegment> run) throws IOException {
+        long floor;
+        int id;
+        synchronized (this) {
+            floor = liveFrom;
+            id = nextSegmentId++;
+        }
+        PriorityQueue<int[]> cursors = new PriorityQueue<>(Comparator
+                .<int[], String>comparing(c -> run.get(c[0]).term(c[1]))
+                .thenComparingInt(c -> c[0]));
+        int docCount = 0;
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).termCount() > 0) cursors.add(new int[]{s, 0});
+            docCount += run.get(s).docCount;
+        }
+
+        IndexSegment.Builder builder = new IndexSegment.Builder(segmentPath(id));
+        try {
+            while (!cursors.isEmpty()) {
+                String term = run.get(cursors.peek()[0]).term(cursors.peek()[1]);
+                Postings.Writer postings = new Postings.Writer();
+                // 相同的词按段的顺序出队，拼接后仍然递增
+                while (!cursors.isEmpty() && run.get(cursors.peek()[0]).term(cursors.peek()[1]).equals(term)) {
+                    int[] cursor = cursors.poll();
+                    IndexSegment segment = run.get(cursor[0]);
+                    for (long offset : segment.postingsAt(cursor[1])) {
+                        if (offset >= floor) postings.add(offset);
+                    }
+                    if (++cursor[1] < segment.termCount()) cursors.add(cursor);
+                }
+                if (postings.count() > 0) builder.add(term, postings);
+            }
+            return builder.finish(docCount, Math.max(floor, run.get(0).minOffset),
+                    run.get(run.size() - 1).maxOffset);
+        } catch (IOException | RuntimeException e) {
+            builder.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * 查找包含所有词、offset小于 before 的消息，从新到旧最多返回 max 个offset
+     */
+    synchronized long[] search(List<String> terms, long before, int max) {
+        long[] result = new long[max];
+        int found = 0;
+        if (bufferDocs > 0 && bufferMin < before) {
+            found = intersect(bufferPostings(terms), before, result, found);
+        }
+        for (int i = segments.size() - 1; i >= 0 && found < max; i--) {
+            IndexSegment segment = segments.get(i);
+            if (segment.minOffset >= before || segment.maxOffset < liveFrom) continue;
+            List<long[]> lists = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                long[] postings = segment.postings(term);
+                if (postings == null) {
+                    lists = null;
+                    break;
+                }
+                lists.add(postings);
+            }
+            found = intersect(lists, before, result, found);
+        }
+        return Arrays.copyOf(result, found);
+    }
+
+    private List<long[]> bufferPostings(List<String> terms) {
+        List<long[]> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings.Writer postings = buffer.get(term);
+            if (postings == null) return null;
+            lists.add(postings.decode());
+        }
+        return lists;
+    }
+
+    /**
+     * 以最短的倒排表为主，从后向前在其余表中二分查找，结果写入 result[found...]
+     */
+    private int intersect(List<long[]> lists, long before, long[] result, int found) {
+        if (lists == null || lists.isEmpty()) return found;
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        long[] driver = lists.get(0);
+        for (int i = driver.length - 1; i >= 0 && found < result.length; i--) {
+            long offset = driver[i];
+            if (offset < liveFrom) break;
+            if (offset >= before) continue;
+            boolean all = true;
+            for (int j = 1; j < lists.size() && all; j++) {
+                all = Arrays.binarySearch(lists.get(j), offset) >= 0;
+            }
+            if (all) result[found++] = offset;
+        }
+        return found;
+    }
+
+    /**
+     * 丢弃全部索引，从日志位置 from 开始重建（日志段被压缩重写后offset会变化）
+     */
+    synchronized void reset(long from) throws IOException {
+        for (IndexSegment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        buffer = new HashMap<>();
+        bufferDocs = 0;
+        bufferMin = -1;
+        bufferMax = -1;
+        indexedUpTo = from;
+        liveFrom = from;
+        writeManifest();
+    }
+
+    /**
+     * 关闭前把缓冲写入段
+     */
+    synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            log.warn("保存搜索索引失败: " + e.getMessage());
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return dir.resolve(String.format("%08d", id) + IndexSegment.SUFFIX);
+    }
+
+    /**
+     * 清单记录的是已写入段的位置，缓冲中的消息不计入
+     */
+    private void writeManifest() throws IOException {
+        long flushedUpTo = bufferDocs > 0 ? bufferMin : indexedUpTo;
+        Path temp = dir.resolve(MANIFEST + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(flushedUpTo);
+            out.writeInt(nextSegmentId);
+            out.writeInt(segments.size());
+            for (IndexSegment segment : segments) {
+                out.writeUTF(segment.path.getFileName().toString());
+            }
+        }
+        Files.move(temp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean loadManifest() {
+        Path manifest = dir.resolve(MANIFEST);
+        if (!Files.exists(manifest)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MANIFEST_MAGIC) return false;
+            indexedUpTo = in.readLong();
+            nextSegmentId = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                segments.add(IndexSegment.open(dir.resolve(in.readUTF())));
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("读取搜索索引失败，重新建立: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 删除合并或写入中途退出留下的文件
+     */
+    private void deleteUnlistedFiles() throws IOException {
+        Set<Path> listed = new HashSet<>();
+        for (IndexSegment segment : segments) {
+            listed.add(segment.path);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(file -> !file.getFileName().toString().equals(MANIFEST) && !listed.contains(file))
+                    .forEach(file -> {
+                        try {
+                            Files.delete(file);
+                        } catch (IOException e) {
+                            log.warn("无法删除搜索索引文件 " + file.getFileName());
+                        }
+                    });
+        }
+    }
+}
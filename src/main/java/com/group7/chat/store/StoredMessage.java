@@ -0,0 +1,37 @@
+package com.group7.chat.store;
+
+/**
+ * 消息日志中的一条聊天记录
+ *
+ * offset 是记录在整个日志中的位置，同一会话中越新的消息 offset 越大，可作为向前翻页的游标。
+ */
+public class StoredMessage {
+
+    private final long offset;
+    private final String conversation;
+    private final long timestamp;
+    private final String senderId;
+    private final String content;
+    private final boolean outgoing;
+
+    public StoredMessage(long offset, String conversation, long timestamp, String senderId,
+                         String content, boolean outgoing) {
+        this.offset = offset;
+        this.conversation = conversation;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.content = content;
+        this.outgoing = outgoing;
+    }
+
+    public long getOffset() { return offset; }
+    public String getConversation() { return conversation; }
+    public long getTimestamp() { return timestamp; }
+    public String getSenderId() { return senderId; }
+    public String getContent() { return content; }
+
+    /**
+     * 是否为本节点发出的消息
+     */
+    public boolean isOutgoing() { return outgoing; }
+}
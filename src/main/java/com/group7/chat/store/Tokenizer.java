@@ -0,0 +1,71 @@
+package com.group7.chat.store;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 全文检索的分词：字母和数字的连续片段（转为小写）作为一个词，
+ * 中日韩文字没有空格分隔，按相邻两个字切分为重叠的二元词，只有一个字的片段作为单字词
+ *
+ * 例: "Hello 你好世界" -> hello, 你好, 好世, 世界。查询使用同样的切分，所有词都出现的消息才是候选结果。
+ */
+final class Tokenizer {
+
+    static final int MAX_TERM_LENGTH = 32;
+    static final int MAX_TERMS_PER_MESSAGE = 256;
+
+    private Tokenizer() {
+    }
+
+    /**
+     * 文本中不重复的词，按首次出现的顺序，最多 MAX_TERMS_PER_MESSAGE 个
+     */
+    static List<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length && terms.size() < MAX_TERMS_PER_MESSAGE) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                int end = i;
+                List<Integer> run = new ArrayList<>();
+                while (end < length && isCjk(text.codePointAt(end))) {
+                    int c = text.codePointAt(end);
+                    run.add(c);
+                    end += Character.charCount(c);
+                }
+                if (run.size() == 1) {
+                    terms.add(new String(Character.toChars(run.get(0))));
+                }
+                for (int j = 0; j + 1 < run.size() && terms.size() < MAX_TERMS_PER_MESSAGE; j++) {
+                    terms.add(new StringBuilder().appendCodePoint(run.get(j)).appendCodePoint(run.get(j + 1)).toString());
+                }
+                i = end;
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                int end = i;
+                while (end < length) {
+                    int c = text.codePointAt(end);
+                    if (!Character.isLetterOrDigit(c) || isCjk(c)) break;
+                    end += Character.charCount(c);
+                }
+                String word = text.substring(i, end).toLowerCase(Locale.ROOT);
+                terms.add(word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word);
+                i = end;
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,54 @@
+package com.group7.chat.transport;
+
+import java.io.IOException;
+
+/**
+ * 一条已建立的双向帧连接
+ *
+ * 同一连接的帧按到达顺序逐个交给 FrameHandler，不会并发回调；
+ * send 可以从任意线程调用。
+ */
+public interface Channel {
+
+    /**
+     * 开始接收帧，在此之前到达的数据会等待到调用之后再交付
+     */
+    void start(FrameHandler handler);
+
+    /**
+     * 发送一帧，连接已关闭或写入失败时抛出IOException
+     */
+    void send(byte type, byte[] payload) throws IOException;
+
+    /**
+     * 对端地址，形如 "127.0.0.1:8080"
+     */
+    String getRemoteAddress();
+
+    boolean isOpen();
+
+    /**
+     * FrameHandler 是否在多个连接共用的线程上回调 (如NIO的Selector线程)，此时回调不能阻塞，否则会拖慢所有连接
+     */
+    default boolean hasSharedReceiver() {
+        return false;
+    }
+
+    /**
+     * 暂停交付新帧，直到 resumeReading；只能在 FrameHandler.onFrame 中调用。
+     * 共用收帧线程的连接借此在下游排满时施加背压，独占收帧线程的连接直接在回调中阻塞即可，默认不做任何事
+     */
+    default void pauseReading() {
+    }
+
+    /**
+     * 恢复交付被 pauseReading 暂停的帧，可以从任意线程调用
+     */
+    default void resumeReading() {
+    }
+
+    /**
+     * 关闭连接，重复调用无效果；已调用 start 时会回调一次 FrameHandler.onClosed
+     */
+    void close();
+}
@@ -0,0 +1,25 @@
+package com.group7.chat.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * 无连接的数据报端点，DHT控制RPC通过它收发请求和响应 (见 DhtRpc)
+ *
+ * 数据报可能丢失或乱序，由调用方超时重发。
+ */
+public interface DatagramEndpoint {
+
+    /**
+     * 发送 datagram 中剩余的字节作为一个数据报
+     */
+    void send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+
+    /**
+     * 阻塞直到收到一个数据报，内容写入 buffer，返回来源地址；端点关闭后抛出IOException
+     */
+    InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,17 @@
+package com.group7.chat.transport;
+
+/**
+ * 连接上的帧接收回调
+ */
+public interface FrameHandler {
+
+    /**
+     * 收到一帧，负载数组归接收方所有
+     */
+    void onFrame(byte type, byte[] payload);
+
+    /**
+     * 连接关闭（任一方关闭或读写出错），每条连接只回调一次
+     */
+    void onClosed();
+}
@@ -0,0 +1,415 @@
+package com.group7.chat.transport;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 同一JVM内的内存传输：按端口号在进程内登记监听者，帧直接放入对端的接收队列
+ *
+ * 没有序列化到字节流和系统调用的开销，用于测试多个节点以及测量路由层本身的吞吐上限。
+ * 主机名被忽略，只按端口查找监听者。负载数组不复制，发送后调用方不应再修改。
+ * 各连接的帧在按需扩展的线程池上按顺序交付，回调阻塞不影响其他连接；数据报端点同样按端口登记 (见 bindDatagram)。
+ *
+ * 使用 Conditions 创建时模拟网络条件：每个传输层实例是一个节点，有一条按带宽排队的上行链路，
+ * 帧和数据报在发出后经过传播延迟 (含抖动) 才到达。数据报按丢包率丢弃；连接上的帧不会丢失，
+ * 丢包表现为该帧在 RETRANSMIT_MILLIS 后重传，与TCP一样阻塞同一连接上之后的帧；
+ * 连续重传 MAX_RETRANSMISSIONS 次仍然丢失时连接在该时刻中断，两端都收到关闭通知（丢包率为1时每条连接都会中断）。
+ */
+public class InMemoryTransport implements Transport {
+
+    // 连接上丢失的帧经过这么久重传 (TCP的最小重传超时)，不短于两倍传播延迟
+    static final double RETRANSMIT_MILLIS = 200;
+    // 同一帧连续重传的上限，与Linux的 tcp_retries2 默认值相同
+    static final int MAX_RETRANSMISSIONS = 15;
+    private static final int UDP_HEADER_SIZE = 28;
+
+    private static final Map<Integer, InMemoryTransport> listeners = new ConcurrentHashMap<>();
+    private static final Map<Integer, MemoryEndpoint> endpoints = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextClientPort = new AtomicInteger(60000);
+    private static final ExecutorService delivery = Executors.newCachedThreadPool(daemon("memory-transport"));
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(daemon("memory-transport-timer"));
+
+    /**
+     * 模拟的网络条件，由同一次模拟的所有传输层共用，同时统计经过的流量
+     */
+    public static final class Conditions {
+        private final double latencyMillis;
+        private final double jitterMillis;
+        private final double lossRate;
+        private final long bandwidthBytesPerSecond;
+        private final Random random;
+
+        private final AtomicLong framesSent = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong framesRetransmitted = new AtomicLong();
+        private final AtomicLong connectionsAborted = new AtomicLong();
+        private final AtomicLong datagramsSent = new AtomicLong();
+        private final AtomicLong datagramsLost = new AtomicLong();
+
+        /**
+         * 带宽为每个节点上行的字节/秒，0表示不限
+         */
+        public Conditions(double latencyMillis, double jitterMillis, double lossRate,
+                          long bandwidthBytesPerSecond, long seed) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.lossRate = lossRate;
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+            this.random = new Random(seed);
+        }
+
+        private synchronized double nextDouble() {
+            return random.nextDouble();
+        }
+
+        private long propagationNanos() {
+            return (long) ((latencyMillis + nextDouble() * jitterMillis) * 1_000_000);
+        }
+
+        private boolean lost() {
+            return lossRate > 0 && nextDouble() < lossRate;
+        }
+
+        private long retransmitNanos() {
+            return (long) (Math.max(RETRANSMIT_MILLIS, 2 * latencyMillis) * 1_000_000);
+        }
+
+        public long getFramesSent() { return framesSent.get(); }
+        public long getBytesSent() { return bytesSent.get(); }
+        public long getFramesRetransmitted() { return framesRetransmitted.get(); }
+        public long getConnectionsAborted() { return connectionsAborted.get(); }
+        public long getDatagramsSent() { return datagramsSent.get(); }
+        public long getDatagramsLost() { return datagramsLost.get(); }
+    }
+
+    private final Conditions conditions;
+    private int port = -1;
+    private Consumer<Channel> acceptor;
+    private long uplinkFreeAt = 0; // 上行链路空闲的时刻 (System.nanoTime)，由 this 保护
+
+    /**
+     * 没有延迟、丢包和带宽限制的内存传输
+     */
+    public InMemoryTransport() {
+        this(null);
+    }
+
+    /**
+     * 按 conditions 模拟网络条件的内存传输，conditions 为null时不模拟
+     */
+    public InMemoryTransport(Conditions conditions) {
+        this.conditions = conditions;
+    }
+
+    @Override
+    public void listen(int port, Consumer<Channel> acceptor) throws IOException {
+        this.acceptor = acceptor;
+        if (listeners.putIfAbsent(port, this) != null) {
+            throw new BindException("端口已被占用: " + port);
+        }
+        this.port = port;
+    }
+
+    @Override
+    public Channel dial(String host, int port) throws IOException {
+        InMemoryTransport listener = listeners.get(port);
+        if (listener == null) {
+            throw new ConnectException("连接被拒绝: " + host + ":" + port);
+        }
+        MemoryChannel client = new MemoryChannel(this, "localhost:" + port);
+        MemoryChannel server = new MemoryChannel(listener, "localhost:" + nextClientPort.getAndIncrement());
+        client.peer = server;
+        server.peer = client;
+        listener.acceptor.accept(server);
+        return client;
+    }
+
+    @Override
+    public DatagramEndpoint bindDatagram(int port) throws IOException {
+        MemoryEndpoint endpoint = new MemoryEndpoint(this, port);
+        if (endpoints.putIfAbsent(port, endpoint) != null) {
+            throw new BindException("数据报端口已被占用: " + port);
+        }
+        return endpoint;
+    }
+
+    @Override
+    public void close() {
+        if (port >= 0) {
+            listeners.remove(port, this);
+            port = -1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    /**
+     * 经过本节点上行链路发出 bytes 字节，返回到达对端的时刻；不模拟网络条件时返回0
+     */
+    private long arrivalTime(int bytes) {
+        if (conditions == null) return 0;
+        long now = System.nanoTime();
+        long departure;
+        synchronized (this) {
+            long start = Math.max(now, uplinkFreeAt);
+            long transmit = conditions.bandwidthBytesPerSecond > 0
+                    ? bytes * 1_000_000_000L / conditions.bandwidthBytesPerSecond : 0;
+            uplinkFreeAt = start + transmit;
+            departure = uplinkFreeAt;
+        }
+        return departure + conditions.propagationNanos();
+    }
+
+    /**
+     * 在 arrival 时刻执行 action，arrival 为0或已过去时立即执行
+     */
+    private static void at(long arrival, Runnable action) {
+        long delay = arrival - System.nanoTime();
+        if (arrival == 0 || delay <= 0) {
+            action.run();
+        } else {
+            timer.schedule(action, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static final class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    // 放入接收队列表示对端已关闭
+    private static final Frame CLOSED = new Frame((byte) 0, null);
+
+    private static class MemoryChannel implements Channel {
+
+        private final InMemoryTransport owner;
+        private final String remoteAddress;
+        private final Queue<Frame> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile MemoryChannel peer;
+        private volatile FrameHandler handler;
+        private long lastArrival = 0; // 本方向上一帧到达对端的时刻，由 this 保护
+
+        MemoryChannel(InMemoryTransport owner, String remoteAddress) {
+            this.owner = owner;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void start(FrameHandler handler) {
+            this.handler = handler;
+            scheduleDrain();
+        }
+
+        private void receive(Frame frame) {
+            if (closed.get()) return;
+            inbox.add(frame);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (handler != null && !inbox.isEmpty() && draining.compareAndSet(false, true)) {
+                delivery.execute(this::drain);
+            }
+        }
+
+        /**
+         * 按到达顺序交付接收队列中的帧，同一连接同时只有一个线程在交付
+         */
+        private void drain() {
+            try {
+                Frame frame;
+                while (!closed.get() && (frame = inbox.poll()) != null) {
+                    if (frame == CLOSED) {
+                        close();
+                        return;
+                    }
+                    handler.onFrame(frame.type, frame.payload);
+                }
+            } finally {
+                draining.set(false);
+            }
+            if (!closed.get()) scheduleDrain();
+        }
+
+        @Override
+        public void send(byte type, byte[] payload) throws IOException {
+            if (closed.get()) throw new ClosedChannelException();
+            transmit(new Frame(type, payload), FRAME_HEADER_SIZE + payload.length);
+        }
+
+        /**
+         * 按网络条件把帧送到对端：到达时刻不早于本方向上一帧，保持连接上的顺序
+         */
+        private void transmit(Frame frame, int bytes) {
+            MemoryChannel target = peer;
+            Conditions conditions = owner.conditions;
+            if (conditions == null) {
+                target.receive(frame);
+                return;
+            }
+            conditions.framesSent.incrementAndGet();
+            conditions.bytesSent.addAndGet(bytes);
+            long arrival = owner.arrivalTime(bytes);
+            int retransmissions = 0;
+            while (conditions.lost()) {
+                if (retransmissions++ == MAX_RETRANSMISSIONS) {
+                    conditions.connectionsAborted.incrementAndGet();
+                    at(arrival, this::abort);
+                    return;
+                }
+                conditions.framesRetransmitted.incrementAndGet();
+                arrival += conditions.retransmitNanos();
+            }
+            synchronized (this) {
+                arrival = Math.max(arrival, lastArrival);
+                lastArrival = arrival;
+                // 在锁内安排，到达时刻相同的帧按安排的先后交付
+                at(arrival, () -> target.receive(frame));
+            }
+        }
+
+        /**
+         * 重传次数用完：两端各自关闭，关闭通知同样经过模拟的网络，可能再次中断，但每端只关闭一次
+         */
+        private void abort() {
+            close();
+            peer.close();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            inbox.clear();
+            // 关闭通知排在已发出的帧之后到达对端
+            transmit(CLOSED, FRAME_HEADER_SIZE);
+            FrameHandler current = handler;
+            if (current != null) current.onClosed();
+        }
+    }
+
+    // 放入数据报接收队列表示端点已关闭
+    private static final byte[] ENDPOINT_CLOSED = new byte[0];
+
+    private static final class Datagram {
+        final InetSocketAddress source;
+        final byte[] data;
+
+        Datagram(InetSocketAddress source, byte[] data) {
+            this.source = source;
+            this.data = data;
+        }
+    }
+
+    private static final class MemoryEndpoint implements DatagramEndpoint {
+
+        private final InMemoryTransport owner;
+        private final int port;
+        private final InetSocketAddress address;
+        private final BlockingQueue<Datagram> received = new LinkedBlockingQueue<>();
+        private volatile boolean closed = false;
+
+        MemoryEndpoint(InMemoryTransport owner, int port) {
+            this.owner = owner;
+            this.port = port;
+            this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+            if (closed) throw new ClosedChannelException();
+            byte[] data = new byte[datagram.remaining()];
+            datagram.get(data);
+            Conditions conditions = owner.conditions;
+            if (conditions != null) {
+                conditions.datagramsSent.incrementAndGet();
+                conditions.bytesSent.addAndGet(UDP_HEADER_SIZE + data.length);
+            }
+            long arrival = owner.arrivalTime(UDP_HEADER_SIZE + data.length);
+            if (conditions != null && conditions.lost()) {
+                conditions.datagramsLost.incrementAndGet();
+                return;
+            }
+            Datagram packet = new Datagram(address, data);
+            at(arrival, () -> {
+                // 与UDP一样，发往没有端点的端口的数据报直接消失
+                MemoryEndpoint destination = endpoints.get(target.getPort());
+                if (destination != null && !destination.closed) destination.received.add(packet);
+            });
+        }
+
+        @Override
+        public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+            Datagram packet;
+            try {
+                packet = received.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            }
+            if (packet.data == ENDPOINT_CLOSED) {
+                received.add(packet);
+                throw new ClosedChannelException();
+            }
+            buffer.put(packet.data, 0, Math.min(packet.data.length, buffer.remaining()));
+            return packet.source;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            endpoints.remove(port, this);
+            received.add(new Datagram(address, ENDPOINT_CLOSED));
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,332 @@
+package com.group7.chat.transport;
+
+import com.group7.chat.logging.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 非阻塞NIO传输：所有连接共用一个Selector线程读写，帧回调也在该线程上执行
+ *
+ * 发送时先尝试直接写入，写不完的部分进入连接的发送队列，由Selector线程在可写时继续写出；
+ * 队列中积压超过 MAX_PENDING_BYTES 时 send 抛出IOException，避免慢速对端耗尽内存。
+ * 帧回调暂停读取 (pauseReading) 时取消该连接的读兴趣，已读入缓冲区的帧在恢复后继续交付。
+ * 每个连接的读缓冲区固定为 READ_BUFFER_SIZE，放不下的大帧把负载直接读进为该帧分配的数组，交付后即释放。
+ */
+public class NioTransport implements Transport {
+
+    private static final Logger log = Logger.getLogger(NioTransport.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private Selector selector;
+    private Thread selectorThread;
+    private ServerSocketChannel serverChannel;
+    private Consumer<Channel> acceptor;
+    private volatile boolean running = false;
+    // 其他线程提交给Selector线程执行的注册和兴趣集修改
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public synchronized void listen(int port, Consumer<Channel> acceptor) throws IOException {
+        ensureStarted();
+        this.acceptor = acceptor;
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        this.serverChannel = server;
+        submit(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                log.warn("监听通道已关闭: " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public Channel dial(String host, int port) throws IOException {
+        ensureStarted();
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setTcpNoDelay(true);
+        return new NioChannel(socketChannel);
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            log.warn("关闭监听端口失败: " + e.getMessage());
+        }
+        if (selector != null) selector.wakeup();
+    }
+
+    @Override
+    public String getName() {
+        return "nio";
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+        if (selectorThread != null) return;
+        selector = Selector.open();
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "nio-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                    } else {
+                        NioChannel channel = (NioChannel) key.attachment();
+                        if (key.isReadable()) channel.readFrames();
+                        if (key.isValid() && key.isWritable()) channel.flushPending();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) log.error("Selector出错: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // 忽略关闭时的错误
+        }
+    }
+
+    private void acceptConnection() {
+        try {
+            SocketChannel socketChannel = serverChannel.accept();
+            if (socketChannel == null) return;
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            acceptor.accept(new NioChannel(socketChannel));
+        } catch (IOException e) {
+            if (running) log.error("接受连接时发生错误: " + e.getMessage());
+        }
+    }
+
+    private class NioChannel implements Channel {
+
+        private final SocketChannel socketChannel;
+        private final String remoteAddress;
+        private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private long pendingBytes = 0;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // 正在接收的大帧，负载不经过读缓冲区（只在Selector线程上访问）
+        private byte largeType;
+        private byte[] largePayload;
+        private int largeFilled;
+        private SelectionKey key;
+        private volatile FrameHandler handler;
+        private boolean readPaused = false; // 只在Selector线程上访问
+
+        NioChannel(SocketChannel socketChannel) throws IOException {
+            this.socketChannel = socketChannel;
+            String address = socketChannel.getRemoteAddress().toString();
+            this.remoteAddress = address.startsWith("/") ? address.substring(1) : address;
+        }
+
+        @Override
+        public void start(FrameHandler handler) {
+            this.handler = handler;
+            submit(() -> {
+                try {
+                    key = socketChannel.register(selector, SelectionKey.OP_READ, this);
+                    updateInterest();
+                } catch (ClosedChannelException e) {
+                    close();
+                }
+            });
+        }
+
+        /**
+         * 读出所有可用数据，并把其中完整的帧逐个交给回调（Selector线程）
+         */
+        void readFrames() {
+            try {
+                int read;
+                if (largePayload != null) {
+                    read = socketChannel.read(ByteBuffer.wrap(largePayload, largeFilled, largePayload.length - largeFilled));
+                    if (read > 0) largeFilled += read;
+                } else {
+                    read = socketChannel.read(readBuffer);
+                }
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                deliverFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * 把缓冲区中完整的帧逐个交给回调，读取暂停时停在下一帧之前（Selector线程）
+         */
+        private void deliverFrames() throws IOException {
+            if (largePayload != null) {
+                if (readPaused || largeFilled < largePayload.length) return;
+                byte[] payload = largePayload;
+                largePayload = null;
+                handler.onFrame(largeType, payload);
+            }
+            readBuffer.flip();
+            while (!readPaused && readBuffer.remaining() >= FRAME_HEADER_SIZE) {
+                byte type = readBuffer.get(readBuffer.position());
+                int length = readBuffer.getInt(readBuffer.position() + 1);
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("无效的帧长度: " + length);
+                }
+                if (readBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                    if (readBuffer.capacity() < FRAME_HEADER_SIZE + length) {
+                        // 大帧：缓冲区中剩下的都属于这一帧，移到单独的数组，之后的数据直接读进该数组
+                        readBuffer.position(readBuffer.position() + FRAME_HEADER_SIZE);
+                        largeType = type;
+                        largePayload = new byte[length];
+                        largeFilled = readBuffer.remaining();
+                        readBuffer.get(largePayload, 0, largeFilled);
+                    }
+                    break;
+                }
+                readBuffer.position(readBuffer.position() + FRAME_HEADER_SIZE);
+                byte[] payload = new byte[length];
+                readBuffer.get(payload);
+                handler.onFrame(type, payload);
+            }
+            readBuffer.compact();
+        }
+
+        @Override
+        public void pauseReading() {
+            readPaused = true;
+            updateInterest();
+        }
+
+        @Override
+        public void resumeReading() {
+            submit(() -> {
+                if (!readPaused || closed.get()) return;
+                readPaused = false;
+                updateInterest();
+                try {
+                    deliverFrames();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public void send(byte type, byte[] payload) throws IOException {
+            if (closed.get()) throw new ClosedChannelException();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+            frame.put(type).putInt(payload.length).put(payload).flip();
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    socketChannel.write(frame);
+                    if (!frame.hasRemaining()) return;
+                }
+                if (pendingBytes + frame.remaining() > MAX_PENDING_BYTES) {
+                    throw new IOException("发送队列已满 (" + pendingBytes + " 字节未发出)");
+                }
+                pending.add(frame);
+                pendingBytes += frame.remaining();
+            }
+            submit(this::updateInterest);
+        }
+
+        /**
+         * 写出发送队列中的数据（Selector线程）
+         */
+        void flushPending() {
+            try {
+                synchronized (pending) {
+                    ByteBuffer frame;
+                    while ((frame = pending.peek()) != null) {
+                        int before = frame.remaining();
+                        socketChannel.write(frame);
+                        pendingBytes -= before - frame.remaining();
+                        if (frame.hasRemaining()) break;
+                        pending.poll();
+                    }
+                }
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (key == null || !key.isValid()) return;
+            boolean hasPending;
+            synchronized (pending) {
+                hasPending = !pending.isEmpty();
+            }
+            int ops = readPaused ? 0 : SelectionKey.OP_READ;
+            key.interestOps(hasPending ? ops | SelectionKey.OP_WRITE : ops);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public boolean hasSharedReceiver() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get() && socketChannel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                // 忽略关闭时的错误
+            }
+            FrameHandler current = handler;
+            if (current != null) current.onClosed();
+        }
+    }
+}
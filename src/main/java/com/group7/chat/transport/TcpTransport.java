@@ -0,0 +1,142 @@
+package com.group7.chat.transport;
+
+import com.group7.chat.logging.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 阻塞式TCP传输：一个接受连接的线程，每条连接一个读线程
+ */
+public class TcpTransport implements Transport {
+
+    private static final Logger log = Logger.getLogger(TcpTransport.class);
+
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    @Override
+    public void listen(int port, Consumer<Channel> acceptor) throws IOException {
+        serverSocket = new ServerSocket(port);
+        running = true;
+        new Thread(() -> acceptConnections(acceptor), "tcp-accept-" + port).start();
+    }
+
+    private void acceptConnections(Consumer<Channel> acceptor) {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                acceptor.accept(new TcpChannel(socket));
+            } catch (IOException e) {
+                if (running) log.error("接受连接时发生错误: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Channel dial(String host, int port) throws IOException {
+        return new TcpChannel(new Socket(host, port));
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+        } catch (IOException e) {
+            log.warn("关闭监听端口失败: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "tcp";
+    }
+
+    private static class TcpChannel implements Channel {
+
+        private final Socket socket;
+        private final DataInputStream reader;
+        private final DataOutputStream writer;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile FrameHandler handler;
+
+        TcpChannel(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void start(FrameHandler handler) {
+            this.handler = handler;
+            new Thread(this::readFrames).start();
+        }
+
+        private void readFrames() {
+            try {
+                while (true) {
+                    byte type;
+                    try {
+                        type = reader.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int length = reader.readInt();
+                    if (length < 0 || length > MAX_FRAME_SIZE) {
+                        throw new IOException("无效的帧长度: " + length);
+                    }
+                    byte[] payload = new byte[length];
+                    reader.readFully(payload);
+                    handler.onFrame(type, payload);
+                }
+            } catch (IOException e) {
+                // 连接断开
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public synchronized void send(byte type, byte[] payload) throws IOException {
+            writer.writeByte(type);
+            writer.writeInt(payload.length);
+            writer.write(payload);
+            writer.flush();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            String remoteAddr = socket.getRemoteSocketAddress().toString();
+            // 移除前缀斜杠，如 "/127.0.0.1:8080" -> "127.0.0.1:8080"
+            if (remoteAddr.startsWith("/")) {
+                remoteAddr = remoteAddr.substring(1);
+            }
+            return remoteAddr;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get() && socket.isConnected() && !socket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // 忽略关闭时的错误
+            }
+            FrameHandler current = handler;
+            if (current != null) current.onClosed();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.group7.chat.transport;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * 节点之间的帧传输层
+ *
+ * 传输层只负责建立连接和收发帧 [类型(1字节)][长度(4字节)][负载]，不关心负载内容，
+ * Node 和 MessageRouter 通过它收发消息，不直接接触Socket。
+ * 可用实现: tcp (每连接一个阻塞读线程)、nio (单个Selector线程)、memory (同一JVM内的内存连接)。
+ */
+public interface Transport {
+
+    int FRAME_HEADER_SIZE = 5;
+    int MAX_FRAME_SIZE = 16 * 1024 * 1024; // 16MB
+
+    /**
+     * 在指定端口监听，新的入站连接交给 acceptor，由它调用 Channel.start 开始接收帧
+     */
+    void listen(int port, Consumer<Channel> acceptor) throws IOException;
+
+    /**
+     * 连接到对端，连接失败时抛出IOException
+     */
+    Channel dial(String host, int port) throws IOException;
+
+    /**
+     * 停止监听，已建立的连接由各自的所有者关闭
+     */
+    void close();
+
+    String getName();
+
+    /**
+     * 在同一端口号绑定数据报端点，供DHT控制RPC使用；默认使用系统UDP
+     */
+    default DatagramEndpoint bindDatagram(int port) throws IOException {
+        return UdpEndpoint.bind(port);
+    }
+
+    /**
+     * 按名称创建传输层: tcp、nio 或 memory，名称为null时使用tcp
+     */
+    static Transport create(String name) {
+        if (name == null) return new TcpTransport();
+        switch (name) {
+            case "tcp": return new TcpTransport();
+            case "nio": return new NioTransport();
+            case "memory": return new InMemoryTransport();
+            default:
+                throw new IllegalArgumentException("未知的传输层: " + name);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.group7.chat.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 系统UDP上的数据报端点，tcp 和 nio 传输层使用
+ */
+final class UdpEndpoint implements DatagramEndpoint {
+
+    private final DatagramChannel channel;
+
+    private UdpEndpoint(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    static UdpEndpoint bind(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UdpEndpoint(channel);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        channel.send(datagram, target);
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+        return (InetSocketAddress) channel.receive(buffer);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略关闭时的错误
+        }
+    }
+}